@@ -36,6 +36,31 @@ public abstract class AbstractMilterHandler implements MilterHandler {
 
   protected final MessageModificationService messageModificationService;
 
+  /**
+   * Creates a handler which negotiates the smallest set of protocol steps: steps whose callbacks
+   * aren't overridden are skipped, steps whose callbacks are annotated with {@link NoReply} are
+   * negotiated without reply.
+   *
+   * @param milterActions actions the milter intends to perform
+   */
+  protected AbstractMilterHandler(Actions milterActions) {
+    this(milterActions, MilterMacros.instance());
+  }
+
+  /**
+   * Creates a handler which negotiates the smallest set of protocol steps, see {@link #AbstractMilterHandler(Actions)}.
+   * Steps with requested macros are kept (without reply) even if their callbacks aren't overridden.
+   *
+   * @param milterActions actions the milter intends to perform
+   * @param milterMacros macros the milter requests
+   */
+  protected AbstractMilterHandler(Actions milterActions, MilterMacros milterMacros) {
+    this.milterActions              = milterActions;
+    this.milterProtocolSteps        = ProtocolStepsInspector.inspect(getClass(), milterMacros);
+    this.milterMacros               = milterMacros;
+    this.messageModificationService = new MessageModificationServiceImpl();
+  }
+
   protected AbstractMilterHandler(Actions milterActions, ProtocolSteps milterProtocolSteps) {
     this(milterActions, milterProtocolSteps, new MessageModificationServiceImpl());
   }
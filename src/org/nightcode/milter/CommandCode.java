@@ -58,9 +58,18 @@ public enum CommandCode implements Code {
 
   private static final CommandCode[] CODES = new CommandCode['U' + 1];
 
+  private static final long DEF_RESPONSE_TIMEOUT_MS = 5_000;
+
+  /**
+   * Response timeouts resolved once from the "jmilter.&lt;command&gt;.responseTimeoutMs" properties, indexed by ordinal.
+   */
+  private static final long[] RESPONSE_TIMEOUTS_MS = new long[values().length];
+
   static {
     for (CommandCode code : CommandCode.values()) {
       CODES[code.code] = code;
+      String key = "jmilter." + code.name() + ".responseTimeoutMs";
+      RESPONSE_TIMEOUTS_MS[code.ordinal()] = getLong(() -> key, DEF_RESPONSE_TIMEOUT_MS);
     }
   }
 
@@ -98,6 +107,6 @@ public enum CommandCode implements Code {
   }
 
   public long responseTimeoutMs() {
-    return getLong(() -> "jmilter." + CommandCode.this.name() + ".responseTimeoutMs", 5_000);
+    return RESPONSE_TIMEOUTS_MS[ordinal()];
   }
 }
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Headers of one read batch in a flat reusable layout: names and values are kept
+ * as raw bytes in a single array, each header is described by three offsets.
+ * A batch is valid only during {@link HeaderBatchHandler#headers} call.
+ */
+public final class HeaderBatch {
+
+  private static final int INITIAL_DATA_CAPACITY   = 4096;
+  private static final int INITIAL_HEADER_CAPACITY = 32;
+
+  private byte[] data    = new byte[INITIAL_DATA_CAPACITY];
+  private int[]  offsets = new int[INITIAL_HEADER_CAPACITY * 3];
+  private int    length;
+  private int    size;
+
+  /**
+   * Appends a header from the payload of SMFIC_HEADER packet.
+   *
+   * @param payload {@code name\0value\0}
+   * @param nameLength length of the header name
+   */
+  public void add(byte[] payload, int nameLength) {
+    int valueLength = payload.length - nameLength - 2;
+    if (valueLength < 0) {
+      throw new IllegalArgumentException("invalid header payload length " + payload.length + ", name length " + nameLength);
+    }
+    int required = length + nameLength + valueLength;
+    if (required > data.length) {
+      data = Arrays.copyOf(data, Math.max(data.length << 1, required));
+    }
+    if (size * 3 + 3 > offsets.length) {
+      offsets = Arrays.copyOf(offsets, offsets.length << 1);
+    }
+    int base = size * 3;
+    offsets[base] = length;
+    System.arraycopy(payload, 0, data, length, nameLength);
+    length += nameLength;
+    offsets[base + 1] = length;
+    System.arraycopy(payload, nameLength + 1, data, length, valueLength);
+    length += valueLength;
+    offsets[base + 2] = length;
+    size++;
+  }
+
+  public void clear() {
+    length = 0;
+    size   = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the backing array, use {@link #nameOffset}, {@link #valueOffset} and
+   * the corresponding lengths to access raw header bytes.
+   *
+   * @return backing array
+   */
+  public byte[] array() {
+    return data;
+  }
+
+  public int nameOffset(int index) {
+    return offsets[checkIndex(index) * 3];
+  }
+
+  public int nameLength(int index) {
+    int base = checkIndex(index) * 3;
+    return offsets[base + 1] - offsets[base];
+  }
+
+  public int valueOffset(int index) {
+    return offsets[checkIndex(index) * 3 + 1];
+  }
+
+  public int valueLength(int index) {
+    int base = checkIndex(index) * 3;
+    return offsets[base + 2] - offsets[base + 1];
+  }
+
+  public String name(int index) {
+    return new String(data, nameOffset(index), nameLength(index), StandardCharsets.UTF_8);
+  }
+
+  public String value(int index) {
+    return new String(data, valueOffset(index), valueLength(index), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Compares the name of the header with the given ASCII name ignoring case
+   * without decoding the header.
+   *
+   * @param index header index
+   * @param name ASCII header name
+   * @return {@code true} if the name of the header is equal to the given one
+   */
+  public boolean nameEquals(int index, String name) {
+    int offset = nameOffset(index);
+    if (nameLength(index) != name.length()) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      int a = data[offset + i] & 0xFF;
+      int b = name.charAt(i);
+      if (a != b && toLower(a) != toLower(b)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+    }
+    return index;
+  }
+
+  private static int toLower(int c) {
+    return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+  }
+}
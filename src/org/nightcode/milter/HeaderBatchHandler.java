@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter;
+
+/**
+ * Optional extension of {@link MilterHandler} that receives headers in batches. When the handler
+ * implements this interface and SMFIP_NR_HDR is negotiated, headers decoded from one read batch
+ * (up to EOH) are delivered with a single {@link #headers} call instead of
+ * {@link MilterHandler#header} call per header. Macros sent for the headers step are delivered
+ * as they arrive, i.e. before the batch they belong to.
+ */
+public interface HeaderBatchHandler {
+
+  /**
+   * Called with headers of one read batch. No reply is expected since SMFIP_NR_HDR is negotiated.
+   *
+   * @param context milter context
+   * @param batch headers in order of arrival, valid only until the method returns
+   * @throws MilterException if an error occurs
+   */
+  void headers(MilterContext context, HeaderBatch batch) throws MilterException;
+}
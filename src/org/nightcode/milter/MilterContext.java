@@ -14,16 +14,43 @@
 
 package org.nightcode.milter;
 
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Future;
 
+import io.netty.util.AttributeMap;
 import org.nightcode.milter.codec.MilterPacket;
 
-public interface MilterContext {
+/**
+ * Per-session state of a milter conversation. Handlers may keep their own per-session objects
+ * (parsers, scanners, accumulated message data) as attributes of the context.
+ */
+public interface MilterContext extends AttributeMap {
 
   int PROTOCOL_VERSION = 6;
 
   MilterHandler handler();
 
+  /**
+   * Registers asynchronous work the reply to the current command depends on,
+   * the work is cancelled if the stage misses its deadline (see {@link StageDeadlines}).
+   * Cancelled work must not reply.
+   *
+   * @param work pending work
+   */
+  default void addPendingWork(Future<?> work) {
+    // do nothing
+  }
+
+  /**
+   * Cancels registered pending work.
+   *
+   * @return {@code true} if unfinished work has been cancelled
+   */
+  default boolean cancelPendingWork() {
+    return false;
+  }
+
   void destroy();
 
   Actions getMtaActions();
@@ -52,6 +79,20 @@ public interface MilterContext {
 
   void sendPacket(MilterPacket packet) throws MilterException;
 
+  /**
+   * Sends the packets as one batch, e.g. message modifications followed by the final reply.
+   * The packets are suppressed as a whole if the NR bit is negotiated for the current step.
+   * By default the packets are sent one by one with {@link #sendPacket}.
+   *
+   * @param packets packets to send
+   * @throws MilterException if the packets can't be sent
+   */
+  default void sendPackets(List<MilterPacket> packets) throws MilterException {
+    for (MilterPacket packet : packets) {
+      sendPacket(packet);
+    }
+  }
+
   void setMtaActions(Actions mtaActions);
 
   void setMtaProtocolSteps(ProtocolSteps mtaProtocolSteps);
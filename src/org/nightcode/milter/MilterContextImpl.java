@@ -1,8 +1,12 @@
 package org.nightcode.milter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Future;
 
+import io.netty.util.DefaultAttributeMap;
 import org.nightcode.milter.codec.MilterPacket;
 import org.nightcode.milter.net.MilterPacketSender;
 import org.nightcode.milter.util.Log;
@@ -10,7 +14,7 @@ import org.nightcode.milter.util.MilterPackets;
 
 import static java.lang.String.format;
 
-public class MilterContextImpl implements MilterContext {
+public class MilterContextImpl extends DefaultAttributeMap implements MilterContext {
 
   private static final int PROTOCOL_VERSION = 6;
 
@@ -23,6 +27,8 @@ public class MilterContextImpl implements MilterContext {
   private final MilterPacketSender milterPacketSender;
   private final MilterMacros       milterMacros;
 
+  private final List<Future<?>> pendingWork = new ArrayList<>(2);
+
   private volatile int           mtaProtocolVersion;
   private volatile Actions       mtaActions;
   private volatile ProtocolSteps mtaProtocolSteps;
@@ -51,6 +57,24 @@ public class MilterContextImpl implements MilterContext {
     return handler;
   }
 
+  @Override public void addPendingWork(Future<?> work) {
+    synchronized (pendingWork) {
+      pendingWork.removeIf(Future::isDone);
+      pendingWork.add(work);
+    }
+  }
+
+  @Override public boolean cancelPendingWork() {
+    boolean cancelled = false;
+    synchronized (pendingWork) {
+      for (Future<?> work : pendingWork) {
+        cancelled |= work.cancel(true);
+      }
+      pendingWork.clear();
+    }
+    return cancelled;
+  }
+
   @Override public void destroy() {
     milterPacketSender.close();
   }
@@ -104,21 +128,23 @@ public class MilterContextImpl implements MilterContext {
   }
 
   @Override public void sendPacket(MilterPacket packet) throws MilterException {
-    int noReplyBit = getSessionStep().noReplyBit();
-    if (noReplyBit != 0 && ((getSessionProtocolSteps().bitmap() & noReplyBit) != 0)) {
-      Log.debug().log(getClass()
-          , () -> format("NR bit has non-zero value for state %s but attempt to send packet has been caught", sessionStep));
-      if ((milterProtocolSteps().bitmap() & noReplyBit) != 0
-          && (getMtaProtocolSteps().bitmap() & noReplyBit) == 0) {
-        Log.debug().log(getClass(), () -> format("MTA doesn't support NR for state %s, trying to send SMFIR_CONTINUE", sessionStep));
-        sendPacket0(MilterPackets.SMFIS_CONTINUE);
-      }
+    if (isReplySuppressed()) {
       return;
     }
-
     sendPacket0(packet);
   }
 
+  @Override public void sendPackets(List<MilterPacket> packets) throws MilterException {
+    if (isReplySuppressed()) {
+      return;
+    }
+    try {
+      milterPacketSender.sendBatch(packets);
+    } catch (IOException ex) {
+      throw new MilterException("unable to send packets: " + packets, ex);
+    }
+  }
+
   @Override public void setMtaActions(Actions mtaActions) {
     this.mtaActions = mtaActions;
   }
@@ -143,6 +169,21 @@ public class MilterContextImpl implements MilterContext {
     this.sessionStep = sessionStep;
   }
 
+  private boolean isReplySuppressed() throws MilterException {
+    int noReplyBit = getSessionStep().noReplyBit();
+    if (noReplyBit != 0 && ((getSessionProtocolSteps().bitmap() & noReplyBit) != 0)) {
+      Log.debug().log(getClass()
+          , () -> format("NR bit has non-zero value for state %s but attempt to send packet has been caught", sessionStep));
+      if ((milterProtocolSteps().bitmap() & noReplyBit) != 0
+          && (getMtaProtocolSteps().bitmap() & noReplyBit) == 0) {
+        Log.debug().log(getClass(), () -> format("MTA doesn't support NR for state %s, trying to send SMFIR_CONTINUE", sessionStep));
+        sendPacket0(MilterPackets.SMFIS_CONTINUE);
+      }
+      return true;
+    }
+    return false;
+  }
+
   private void sendPacket0(MilterPacket packet) throws MilterException {
     try {
       milterPacketSender.send(packet);
@@ -0,0 +1,757 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.net.MilterPacketSender;
+import org.nightcode.milter.util.ByteArrays;
+import org.nightcode.milter.util.Log;
+import org.nightcode.milter.util.MilterPackets;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.CommandCode.SMFIC_ABORT;
+import static org.nightcode.milter.CommandCode.SMFIC_BODY;
+import static org.nightcode.milter.CommandCode.SMFIC_CONNECT;
+import static org.nightcode.milter.CommandCode.SMFIC_DATA;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_EOH;
+import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
+import static org.nightcode.milter.CommandCode.SMFIC_HELO;
+import static org.nightcode.milter.CommandCode.SMFIC_MAIL;
+import static org.nightcode.milter.CommandCode.SMFIC_RCPT;
+import static org.nightcode.milter.CommandCode.SMFIC_UNKNOWN;
+import static org.nightcode.milter.ResponseCode.SMFIR_ACCEPT;
+import static org.nightcode.milter.ResponseCode.SMFIR_CONTINUE;
+import static org.nightcode.milter.ResponseCode.SMFIR_PROGRESS;
+import static org.nightcode.milter.ResponseCode.SMFIR_SKIP;
+
+/**
+ * Runs several handlers in one milter session, so that independent checks share a single MTA
+ * connection and a single round trip per step.
+ *
+ * <p>Every handler gets its own context (and its own attributes), its replies are captured by the chain.
+ * For each step handlers are called in order until one of them replies with a final verdict
+ * (accept, reject, discard, tempfail or a custom reply code), later handlers are not called for the step.
+ * Message modifications of all handlers are sent in one batch together with the final reply at EOM,
+ * they are dropped if the message is rejected, discarded or temporarily failed.
+ *
+ * <p>A handler may reply asynchronously, e.g. from registered pending work: the chain waits for its reply
+ * before calling the next handler, commands arriving meanwhile are queued and processed once the step
+ * is completed. A handler is not waited for on a step it has negotiated without reply, SMFIC_ABORT
+ * abandons the reply the chain is waiting for. Pending work registered by a handler belongs to the chain's session,
+ * when the stage misses its deadline the work is cancelled and the awaited reply is abandoned.
+ *
+ * <p>The chain negotiates the union of the handlers' actions and macros. A step (or a reply to a step)
+ * is skipped only if every handler skips it, handlers that don't need a step aren't called for it.
+ * Optional features (SMFIP_SKIP, SMFIP_RCPT_REJ, SMFIP_HDR_LEADSPC) are requested if any handler requests them.
+ */
+public final class MilterHandlerChain extends AbstractMilterHandler {
+
+  public static final class Builder {
+    private final List<MilterHandler> handlers = new ArrayList<>();
+
+    private Actions       actions;
+    private ProtocolSteps protocolSteps;
+    private MilterMacros  milterMacros;
+    private int[]         handlerSteps;
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder add(MilterHandler handler) {
+      handlers.add(Objects.requireNonNull(handler, "handler"));
+      return this;
+    }
+
+    public MilterHandlerChain build() {
+      if (handlers.isEmpty()) {
+        throw new IllegalStateException("handler chain is empty");
+      }
+
+      int actionsBitmap = 0;
+      int stepsAnd      = ~0;
+      int stepsOr       = 0;
+      milterMacros = MilterMacros.instance();
+      handlerSteps = new int[handlers.size()];
+      for (int i = 0; i < handlers.size(); i++) {
+        MilterContext probe = handlers.get(i).createContext(new CapturingSender(null));
+        handlerSteps[i] = probe.milterProtocolSteps().bitmap();
+        actionsBitmap |= probe.milterActions().bitmap();
+        stepsAnd &= handlerSteps[i];
+        stepsOr  |= handlerSteps[i];
+        milterMacros = milterMacros.merge(probe.milterMacros());
+      }
+
+      actions       = new Actions(ByteArrays.intToByteArray(actionsBitmap), 0);
+      protocolSteps = steps((stepsAnd & (NO_STEP_MASK | NO_REPLY_MASK)) | (stepsOr & ~(NO_STEP_MASK | NO_REPLY_MASK)));
+      return new MilterHandlerChain(this);
+    }
+  }
+
+  @FunctionalInterface
+  private interface Callback {
+    void call(MilterHandler handler, MilterContext context) throws MilterException;
+  }
+
+  @FunctionalInterface
+  private interface Task {
+    void run() throws MilterException;
+  }
+
+  private static final class CapturingSender implements MilterPacketSender {
+    private final List<MilterPacket>   packets = new ArrayList<>(4);
+    private final @Nullable ChainState state;
+
+    private boolean replied;
+
+    CapturingSender(@Nullable ChainState state) {
+      this.state = state;
+    }
+
+    @Override public void close() {
+      // do nothing
+    }
+
+    @Override public void send(MilterPacket packet) {
+      if (state == null) {
+        packets.add(packet);
+        return;
+      }
+      if (packet.command() == SMFIR_PROGRESS.code()) {
+        try {
+          state.context.sendPacket(packet);
+        } catch (MilterException ex) {
+          Log.info().log(MilterHandlerChain.class, () -> format("[%s] can't send progress", state.context.id()), ex);
+        }
+        return;
+      }
+      Step step;
+      synchronized (state) {
+        packets.add(packet);
+        step = isReply(packet) ? state.replied(this) : null;
+      }
+      if (step != null) {
+        step.resume();
+      }
+    }
+  }
+
+  /**
+   * Context of a chained handler, pending work is registered in the context of the chain.
+   */
+  private static final class HandlerContext implements MilterContext {
+    private final MilterContext chainContext;
+    private final MilterContext delegate;
+
+    HandlerContext(MilterContext chainContext, MilterContext delegate) {
+      this.chainContext = chainContext;
+      this.delegate     = delegate;
+    }
+
+    @Override public MilterHandler handler() {
+      return delegate.handler();
+    }
+
+    @Override public void addPendingWork(Future<?> work) {
+      chainContext.addPendingWork(work);
+    }
+
+    @Override public boolean cancelPendingWork() {
+      return chainContext.cancelPendingWork();
+    }
+
+    @Override public void destroy() {
+      delegate.destroy();
+    }
+
+    @Override public Actions getMtaActions() {
+      return delegate.getMtaActions();
+    }
+
+    @Override public ProtocolSteps getMtaProtocolSteps() {
+      return delegate.getMtaProtocolSteps();
+    }
+
+    @Override public int getMtaProtocolVersion() {
+      return delegate.getMtaProtocolVersion();
+    }
+
+    @Override public ProtocolSteps getSessionProtocolSteps() {
+      return delegate.getSessionProtocolSteps();
+    }
+
+    @Override public int getSessionProtocolVersion() {
+      return delegate.getSessionProtocolVersion();
+    }
+
+    @Override public CommandCode getSessionStep() {
+      return delegate.getSessionStep();
+    }
+
+    @Override public UUID id() {
+      return delegate.id();
+    }
+
+    @Override public Actions milterActions() {
+      return delegate.milterActions();
+    }
+
+    @Override public MilterMacros milterMacros() {
+      return delegate.milterMacros();
+    }
+
+    @Override public ProtocolSteps milterProtocolSteps() {
+      return delegate.milterProtocolSteps();
+    }
+
+    @Override public int milterProtocolVersion() {
+      return delegate.milterProtocolVersion();
+    }
+
+    @Override public void sendContinue() throws MilterException {
+      delegate.sendContinue();
+    }
+
+    @Override public void sendPacket(MilterPacket packet) throws MilterException {
+      delegate.sendPacket(packet);
+    }
+
+    @Override public void sendPackets(List<MilterPacket> packets) throws MilterException {
+      delegate.sendPackets(packets);
+    }
+
+    @Override public void setMtaActions(Actions mtaActions) {
+      delegate.setMtaActions(mtaActions);
+    }
+
+    @Override public void setMtaProtocolSteps(ProtocolSteps mtaProtocolSteps) {
+      delegate.setMtaProtocolSteps(mtaProtocolSteps);
+    }
+
+    @Override public void setMtaProtocolVersion(int mtaProtocolVersion) {
+      delegate.setMtaProtocolVersion(mtaProtocolVersion);
+    }
+
+    @Override public void setSessionProtocolSteps(ProtocolSteps sessionProtocolSteps) {
+      delegate.setSessionProtocolSteps(sessionProtocolSteps);
+    }
+
+    @Override public void setSessionProtocolVersion(int sessionProtocolVersion) {
+      delegate.setSessionProtocolVersion(sessionProtocolVersion);
+    }
+
+    @Override public void setSessionStep(CommandCode sessionStep) {
+      delegate.setSessionStep(sessionStep);
+    }
+
+    @Override public <T> Attribute<T> attr(AttributeKey<T> key) {
+      return delegate.attr(key);
+    }
+
+    @Override public <T> boolean hasAttr(AttributeKey<T> key) {
+      return delegate.hasAttr(key);
+    }
+  }
+
+  private static final class ChainState {
+    private final MilterContext      context;
+    private final MilterContext[]    contexts;
+    private final CapturingSender[]  senders;
+    private final boolean[]          bodySkipped;
+    private final List<MilterPacket> modifications = new ArrayList<>();
+    private final Deque<Task>        backlog       = new ArrayDeque<>();
+
+    private @Nullable Step                    suspended;
+    private @Nullable CompletableFuture<Void> suspension;
+    private boolean                           busy;
+
+    ChainState(MilterContext context, int size) {
+      this.context = context;
+      contexts     = new MilterContext[size];
+      senders      = new CapturingSender[size];
+      bodySkipped  = new boolean[size];
+    }
+
+    /**
+     * Processes packets captured from the handler: modifications are postponed, a final verdict is returned.
+     */
+    synchronized @Nullable MilterPacket collect(int index) {
+      List<MilterPacket> packets = senders[index].packets;
+      MilterPacket verdict = null;
+      try {
+        for (MilterPacket packet : packets) {
+          int code = packet.command();
+          if (code == SMFIR_CONTINUE.code()) {
+            continue;
+          }
+          if (code == SMFIR_SKIP.code()) {
+            bodySkipped[index] = true;
+          } else if (ResponseCode.valueOf(code).acceptReject()) {
+            verdict = packet;
+          } else {
+            modifications.add(packet);
+          }
+        }
+      } finally {
+        packets.clear();
+      }
+      return verdict;
+    }
+
+    /**
+     * Returns the work to register if the step has to wait for the reply of the handler it has just called,
+     * the work is cancelled if the stage misses its deadline.
+     */
+    synchronized @Nullable CompletableFuture<Void> await(Step step, boolean expectsReply) {
+      if (!expectsReply || senders[step.index].replied) {
+        return null;
+      }
+      CompletableFuture<Void> work = new CompletableFuture<>();
+      work.whenComplete((r, ex) -> {
+        if (work.isCancelled()) {
+          expired(step);
+        }
+      });
+      suspended  = step;
+      suspension = work;
+      return work;
+    }
+
+    /**
+     * Abandons the reply of the step after the stage has missed its deadline.
+     */
+    synchronized void expired(Step step) {
+      if (suspended != step) {
+        return;
+      }
+      Log.debug().log(MilterHandlerChain.class, () -> format("[%s] %s: reply of handler #%s has been abandoned after"
+          + " the deadline", context.id(), step.step, step.index));
+      abandon();
+    }
+
+    /**
+     * Drops the awaited reply and the queued commands.
+     */
+    synchronized void abandon() {
+      CompletableFuture<Void> work = suspension;
+      suspended  = null;
+      suspension = null;
+      backlog.clear();
+      busy = false;
+      if (work != null) {
+        work.complete(null);
+      }
+    }
+
+    /**
+     * Marks the handler as replied, returns the step waiting for the reply.
+     */
+    synchronized @Nullable Step replied(CapturingSender sender) {
+      sender.replied = true;
+      Step step = suspended;
+      if (step == null || senders[step.index] != sender) {
+        return null;
+      }
+      CompletableFuture<Void> work = suspension;
+      suspended  = null;
+      suspension = null;
+      if (work != null) {
+        work.complete(null);
+      }
+      return step;
+    }
+
+    synchronized void resetMessage() {
+      Arrays.fill(bodySkipped, false);
+      modifications.clear();
+      for (CapturingSender sender : senders) {
+        sender.packets.clear();
+      }
+    }
+  }
+
+  /**
+   * Calls handlers for one step in order, suspended while a handler's reply is pending.
+   */
+  private final class Step implements Task {
+    private final MilterContext context;
+    private final ChainState    state;
+    private final CommandCode   step;
+    private final Callback      callback;
+
+    private int index;
+
+    Step(MilterContext context, ChainState state, CommandCode step, Callback callback) {
+      this.context  = context;
+      this.state    = state;
+      this.step     = step;
+      this.callback = callback;
+    }
+
+    @Override public void run() throws MilterException {
+      for (; index < handlers.length; index++) {
+        if ((handlerSteps[index] & step.noStepBit()) != 0 || (step == SMFIC_BODY && state.bodySkipped[index])) {
+          continue;
+        }
+        MilterContext ctx = state.contexts[index];
+        ctx.setSessionStep(step);
+        synchronized (state) {
+          state.senders[index].replied = false;
+          state.senders[index].packets.clear();
+        }
+        callback.call(handlers[index], ctx);
+        CompletableFuture<Void> suspension = state.await(this, (handlerSteps[index] & step.noReplyBit()) == 0);
+        if (suspension != null) {
+          context.addPendingWork(suspension);
+          return;
+        }
+        if (collected()) {
+          return;
+        }
+      }
+      reply(null);
+    }
+
+    void resume() {
+      execute(context, state, () -> {
+        if (!collected()) {
+          index++;
+          run();
+        }
+      });
+    }
+
+    private boolean collected() throws MilterException {
+      MilterPacket verdict = state.collect(index);
+      if (verdict == null) {
+        return false;
+      }
+      final int handler = index;
+      Log.debug().log(MilterHandlerChain.class, () -> format("[%s] %s: handler #%s replied %s", context.id(), step, handler, verdict));
+      reply(verdict);
+      return true;
+    }
+
+    private void reply(@Nullable MilterPacket verdict) throws MilterException {
+      try {
+        sendVerdict(context, state, step, verdict);
+      } finally {
+        if (step == SMFIC_EOB) {
+          state.resetMessage();
+        }
+      }
+    }
+  }
+
+  private static final int NO_STEP_MASK = ProtocolSteps.NO_CONNECT
+      | ProtocolSteps.NO_HELO
+      | ProtocolSteps.NO_MAIL_FROM
+      | ProtocolSteps.NO_RECIPIENTS
+      | ProtocolSteps.NO_BODY
+      | ProtocolSteps.NO_HEADERS
+      | ProtocolSteps.NO_EOH
+      | ProtocolSteps.NO_UNKNOWN
+      | ProtocolSteps.NO_DATA;
+
+  private static final int NO_REPLY_MASK = ProtocolSteps.NO_REPLY_FOR_CONNECT
+      | ProtocolSteps.NO_REPLY_FOR_HELO
+      | ProtocolSteps.NO_REPLY_FOR_MAIL_FROM
+      | ProtocolSteps.NO_REPLY_FOR_RECIPIENTS
+      | ProtocolSteps.NO_REPLY_FOR_DATA
+      | ProtocolSteps.NO_REPLY_FOR_UNKNOWN
+      | ProtocolSteps.NO_REPLY_FOR_HEADERS
+      | ProtocolSteps.NO_REPLY_FOR_EOH
+      | ProtocolSteps.NO_REPLY_FOR_BODY;
+
+  private static final AttributeKey<ChainState> CHAIN_STATE = AttributeKey.valueOf(MilterHandlerChain.class, "chainState");
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private static boolean isReply(MilterPacket packet) {
+    int code = packet.command();
+    return code == SMFIR_CONTINUE.code() || code == SMFIR_SKIP.code() || ResponseCode.valueOf(code).acceptReject();
+  }
+
+  private static ProtocolSteps steps(int bitmap) {
+    return new ProtocolSteps(ByteArrays.intToByteArray(bitmap), 0);
+  }
+
+  private final MilterHandler[] handlers;
+  private final int[]           handlerSteps;
+
+  private MilterHandlerChain(Builder builder) {
+    super(builder.actions, builder.protocolSteps, builder.milterMacros);
+    handlers     = builder.handlers.toArray(new MilterHandler[0]);
+    handlerSteps = builder.handlerSteps;
+  }
+
+  @Override public void abort(MilterContext context, @Nullable MilterPacket packet) throws MilterException {
+    ChainState state = state(context);
+    synchronized (state) {
+      Step suspended = state.suspended;
+      if (suspended != null) {
+        Log.debug().log(getClass(), () -> format("[%s] %s: reply of handler #%s has been abandoned", context.id()
+            , suspended.step, suspended.index));
+        state.abandon();
+      }
+    }
+    submit(state, () -> {
+      try {
+        for (int i = 0; i < handlers.length; i++) {
+          state.contexts[i].setSessionStep(SMFIC_ABORT);
+          handlers[i].abort(state.contexts[i], packet);
+        }
+      } finally {
+        state.resetMessage();
+      }
+    });
+  }
+
+  @Override public void body(MilterContext context, byte[] bodyChunk) throws MilterException {
+    dispatch(context, SMFIC_BODY, (handler, ctx) -> handler.body(ctx, bodyChunk));
+  }
+
+  @Override public void connect(MilterContext context, String hostname, int family, int port, @Nullable SocketAddress address)
+      throws MilterException {
+    dispatch(context, SMFIC_CONNECT, (handler, ctx) -> handler.connect(ctx, hostname, family, port, address));
+  }
+
+  @Override public void data(MilterContext context, byte[] payload) throws MilterException {
+    dispatch(context, SMFIC_DATA, (handler, ctx) -> handler.data(ctx, payload));
+  }
+
+  @Override public void envfrom(MilterContext context, List<String> from) throws MilterException {
+    dispatch(context, SMFIC_MAIL, (handler, ctx) -> handler.envfrom(ctx, from));
+  }
+
+  @Override public void envrcpt(MilterContext context, List<String> recipients) throws MilterException {
+    dispatch(context, SMFIC_RCPT, (handler, ctx) -> handler.envrcpt(ctx, recipients));
+  }
+
+  @Override public void eoh(MilterContext context) throws MilterException {
+    dispatch(context, SMFIC_EOH, MilterHandler::eoh);
+  }
+
+  @Override public void eom(MilterContext context, @Nullable byte[] bodyChunk) throws MilterException {
+    dispatch(context, SMFIC_EOB, (handler, ctx) -> handler.eom(ctx, bodyChunk));
+  }
+
+  @Override public void header(MilterContext context, String headerName, String headerValue) throws MilterException {
+    dispatch(context, SMFIC_HEADER, (handler, ctx) -> handler.header(ctx, headerName, headerValue));
+  }
+
+  @Override public void helo(MilterContext context, String helohost) throws MilterException {
+    dispatch(context, SMFIC_HELO, (handler, ctx) -> handler.helo(ctx, helohost));
+  }
+
+  @Override public void macro(MilterContext context, int type, Map<String, String> macros) {
+    ChainState state = state(context);
+    submitQuietly(context, state, () -> {
+      for (int i = 0; i < handlers.length; i++) {
+        try {
+          handlers[i].macro(state.contexts[i], type, macros);
+        } catch (MilterException ex) {
+          Log.info().log(getClass(), () -> format("[%s] can't process macros %s", context.id(), macros), ex);
+        }
+      }
+    });
+  }
+
+  @Override public void optneg(MilterContext context, int mtaProtocolVersion, Actions mtaActions, ProtocolSteps mtaProtocolSteps)
+      throws MilterException {
+    context.attr(CHAIN_STATE).set(null);
+    super.optneg(context, mtaProtocolVersion, mtaActions, mtaProtocolSteps);
+  }
+
+  @Override public void quit(MilterContext context) {
+    ChainState state = context.attr(CHAIN_STATE).getAndSet(null);
+    if (state == null) {
+      return;
+    }
+    state.abandon();
+    for (int i = 0; i < handlers.length; i++) {
+      try {
+        handlers[i].closeSession(state.contexts[i]);
+      } catch (RuntimeException ex) {
+        Log.info().log(getClass(), () -> format("[%s] can't close handler session", context.id()), ex);
+      }
+    }
+  }
+
+  @Override public void quitNc(MilterContext context) {
+    ChainState state = state(context);
+    submitQuietly(context, state, () -> {
+      try {
+        for (int i = 0; i < handlers.length; i++) {
+          handlers[i].quitNc(state.contexts[i]);
+        }
+      } finally {
+        state.resetMessage();
+      }
+    });
+  }
+
+  @Override public void unknown(MilterContext context, byte[] payload) throws MilterException {
+    dispatch(context, SMFIC_UNKNOWN, (handler, ctx) -> handler.unknown(ctx, payload));
+  }
+
+  private void dispatch(MilterContext context, CommandCode step, Callback callback) throws MilterException {
+    ChainState state = state(context);
+    submit(state, new Step(context, state, step, callback));
+  }
+
+  /**
+   * Runs the task at once, or queues it if a step is waiting for a handler's reply.
+   */
+  private static void submit(ChainState state, Task task) throws MilterException {
+    synchronized (state) {
+      if (state.busy) {
+        state.backlog.addLast(task);
+        return;
+      }
+      state.busy = true;
+    }
+    run(state, task);
+  }
+
+  private void submitQuietly(MilterContext context, ChainState state, Task task) {
+    try {
+      submit(state, task);
+    } catch (MilterException ex) {
+      Log.info().log(getClass(), () -> format("[%s] can't process queued command", context.id()), ex);
+    }
+  }
+
+  /**
+   * Continues a step after the awaited reply has arrived, on the thread the reply was sent from.
+   */
+  private void execute(MilterContext context, ChainState state, Task task) {
+    try {
+      run(state, task);
+    } catch (MilterException | RuntimeException ex) {
+      Log.info().log(getClass(), () -> format("[%s] unable to process handler reply", context.id()), ex);
+      abortSession(context, null);
+    }
+  }
+
+  /**
+   * Runs the task and then the queued tasks until a step has to wait for a handler's reply.
+   */
+  private static void run(ChainState state, Task task) throws MilterException {
+    Task next = task;
+    while (next != null) {
+      try {
+        next.run();
+      } catch (MilterException | RuntimeException ex) {
+        state.abandon();
+        throw ex;
+      }
+      synchronized (state) {
+        if (state.suspended != null) {
+          return;
+        }
+        next = state.backlog.pollFirst();
+        if (next == null) {
+          state.busy = false;
+        }
+      }
+    }
+  }
+
+  private void sendVerdict(MilterContext context, ChainState state, CommandCode step, @Nullable MilterPacket reply)
+      throws MilterException {
+    MilterPacket verdict = reply;
+    if (verdict == null) {
+      verdict = (step == SMFIC_BODY && isBodySkipped(context, state)) ? MilterPackets.SMFIS_SKIP : MilterPackets.SMFIS_CONTINUE;
+    } else if (verdict.command() != SMFIR_ACCEPT.code()) {
+      state.modifications.clear();
+    }
+
+    if (state.modifications.isEmpty()) {
+      context.sendPacket(verdict);
+    } else {
+      List<MilterPacket> packets = new ArrayList<>(state.modifications.size() + 1);
+      packets.addAll(state.modifications);
+      packets.add(verdict);
+      state.modifications.clear();
+      context.sendPackets(packets);
+    }
+  }
+
+  private boolean isBodySkipped(MilterContext context, ChainState state) {
+    ProtocolSteps sessionSteps = context.getSessionProtocolSteps();
+    if (sessionSteps == null || (sessionSteps.bitmap() & ProtocolSteps.UNDERSTAND_SKIP) == 0) {
+      return false;
+    }
+    for (int i = 0; i < handlers.length; i++) {
+      if (!state.bodySkipped[i] && (handlerSteps[i] & ProtocolSteps.NO_BODY) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private ChainState state(MilterContext context) {
+    Attribute<ChainState> attribute = context.attr(CHAIN_STATE);
+    ChainState state = attribute.get();
+    if (state == null) {
+      state = new ChainState(context, handlers.length);
+      for (int i = 0; i < handlers.length; i++) {
+        state.senders[i]  = new CapturingSender(state);
+        state.contexts[i] = new HandlerContext(context, handlers[i].createContext(state.senders[i]));
+        negotiated(context, state.contexts[i]);
+      }
+      attribute.set(state);
+    }
+    return state;
+  }
+
+  /**
+   * Copies negotiated values to the handler context. NR bits are cleared in the handler's session steps,
+   * so that every reply reaches the chain which decides what is sent to the MTA.
+   */
+  private static void negotiated(MilterContext context, MilterContext handlerContext) {
+    int           handlerSteps = handlerContext.milterProtocolSteps().bitmap();
+    ProtocolSteps mtaSteps     = context.getMtaProtocolSteps();
+    if (mtaSteps != null) {
+      handlerSteps &= mtaSteps.bitmap();
+      handlerContext.setMtaProtocolSteps(mtaSteps);
+    }
+    handlerContext.setSessionProtocolSteps(steps(handlerSteps & ~NO_REPLY_MASK));
+    handlerContext.setMtaProtocolVersion(context.getMtaProtocolVersion());
+    handlerContext.setSessionProtocolVersion(context.getSessionProtocolVersion());
+    if (context.getMtaActions() != null) {
+      handlerContext.setMtaActions(context.getMtaActions());
+    }
+  }
+}
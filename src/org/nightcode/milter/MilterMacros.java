@@ -1,7 +1,11 @@
 package org.nightcode.milter;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
+import org.jetbrains.annotations.Nullable;
 import org.nightcode.milter.util.ByteArrays;
 
 public final class MilterMacros {
@@ -81,6 +85,30 @@ public final class MilterMacros {
     macrosList = builder.list;
   }
 
+  /**
+   * Returns {@code true} if macros are requested for the given place.
+   *
+   * @param place macro place
+   * @return {@code true} if macros are requested for the place
+   */
+  public boolean contains(MacroPlace place) {
+    return macrosList[place.index()] != null;
+  }
+
+  /**
+   * Returns macros requested either by this or by the other instance.
+   *
+   * @param other milter macros
+   * @return merged milter macros
+   */
+  public MilterMacros merge(MilterMacros other) {
+    Builder builder = builder();
+    for (MacroPlace place : MacroPlace.values()) {
+      builder.setMacros(place, merge(macrosList[place.index()], other.macrosList[place.index()]));
+    }
+    return builder.build();
+  }
+
   public byte[] array() {
     int length = 0;
     for (int i = 0; i < MacroPlace.MAX_MACROS_ENTRIES; i++) {
@@ -107,4 +135,16 @@ public final class MilterMacros {
 
     return buffer;
   }
+
+  private static @Nullable String merge(@Nullable String first, @Nullable String second) {
+    if (first == null) {
+      return second;
+    }
+    if (second == null) {
+      return first;
+    }
+    Set<String> names = new LinkedHashSet<>(Arrays.asList(first.trim().split("\\s+")));
+    names.addAll(Arrays.asList(second.trim().split("\\s+")));
+    return String.join(" ", names);
+  }
 }
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter;
+
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.util.List;
+
+import org.jetbrains.annotations.Nullable;
+
+import static org.nightcode.milter.ProtocolSteps.NO_BODY;
+import static org.nightcode.milter.ProtocolSteps.NO_CONNECT;
+import static org.nightcode.milter.ProtocolSteps.NO_DATA;
+import static org.nightcode.milter.ProtocolSteps.NO_EOH;
+import static org.nightcode.milter.ProtocolSteps.NO_HEADERS;
+import static org.nightcode.milter.ProtocolSteps.NO_HELO;
+import static org.nightcode.milter.ProtocolSteps.NO_MAIL_FROM;
+import static org.nightcode.milter.ProtocolSteps.NO_RECIPIENTS;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY_FOR_BODY;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY_FOR_CONNECT;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY_FOR_DATA;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY_FOR_EOH;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY_FOR_HEADERS;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY_FOR_HELO;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY_FOR_MAIL_FROM;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY_FOR_RECIPIENTS;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY_FOR_UNKNOWN;
+import static org.nightcode.milter.ProtocolSteps.NO_UNKNOWN;
+
+/**
+ * Derives protocol steps from the callbacks a handler overrides. A step whose callback isn't
+ * overridden is skipped, a step whose callback is annotated with {@link NoReply} (or isn't overridden
+ * but has requested macros) is negotiated without reply. The header step of a {@link HeaderBatchHandler}
+ * which doesn't override {@code header} is negotiated without reply, so that headers are delivered in batches.
+ */
+enum ProtocolStepsInspector {
+  CONNECT("connect", new Class<?>[] {MilterContext.class, String.class, int.class, int.class, SocketAddress.class}
+      , NO_CONNECT, NO_REPLY_FOR_CONNECT, MacroPlace.SMFIM_CONNECT),
+  HELO("helo", new Class<?>[] {MilterContext.class, String.class}, NO_HELO, NO_REPLY_FOR_HELO, MacroPlace.SMFIM_HELO),
+  ENVFROM("envfrom", new Class<?>[] {MilterContext.class, List.class}, NO_MAIL_FROM, NO_REPLY_FOR_MAIL_FROM, MacroPlace.SMFIM_ENVFROM),
+  ENVRCPT("envrcpt", new Class<?>[] {MilterContext.class, List.class}, NO_RECIPIENTS, NO_REPLY_FOR_RECIPIENTS, MacroPlace.SMFIM_ENVRCPT),
+  DATA("data", new Class<?>[] {MilterContext.class, byte[].class}, NO_DATA, NO_REPLY_FOR_DATA, MacroPlace.SMFIM_DATA),
+  HEADER("header", new Class<?>[] {MilterContext.class, String.class, String.class}, NO_HEADERS, NO_REPLY_FOR_HEADERS, null),
+  EOH("eoh", new Class<?>[] {MilterContext.class}, NO_EOH, NO_REPLY_FOR_EOH, MacroPlace.SMFIM_EOH),
+  BODY("body", new Class<?>[] {MilterContext.class, byte[].class}, NO_BODY, NO_REPLY_FOR_BODY, null),
+  UNKNOWN("unknown", new Class<?>[] {MilterContext.class, byte[].class}, NO_UNKNOWN, NO_REPLY_FOR_UNKNOWN, null);
+
+  static ProtocolSteps inspect(Class<? extends AbstractMilterHandler> handlerClass, MilterMacros milterMacros) {
+    int bitmap = 0;
+    for (ProtocolStepsInspector step : values()) {
+      Method method;
+      try {
+        method = handlerClass.getMethod(step.methodName, step.parameterTypes);
+      } catch (NoSuchMethodException ex) {
+        throw new IllegalStateException("unable to inspect callback " + step.methodName, ex);
+      }
+      boolean overridden = method.getDeclaringClass() != AbstractMilterHandler.class;
+      if (overridden) {
+        if (method.isAnnotationPresent(NoReply.class)) {
+          bitmap |= step.noReplyBit;
+        }
+      } else if (step == HEADER && HeaderBatchHandler.class.isAssignableFrom(handlerClass)) {
+        bitmap |= step.noReplyBit;
+      } else if (step.macroPlace != null && milterMacros.contains(step.macroPlace)) {
+        bitmap |= step.noReplyBit;
+      } else {
+        bitmap |= step.noStepBit;
+      }
+    }
+
+    byte[] buffer = new byte[4];
+    buffer[0] = (byte) (bitmap >>> 24);
+    buffer[1] = (byte) (bitmap >>> 16);
+    buffer[2] = (byte) (bitmap >>>  8);
+    buffer[3] = (byte) bitmap;
+    return new ProtocolSteps(buffer, 0);
+  }
+
+  private final String     methodName;
+  private final Class<?>[] parameterTypes;
+  private final int        noStepBit;
+  private final int        noReplyBit;
+
+  private final @Nullable MacroPlace macroPlace;
+
+  ProtocolStepsInspector(String methodName, Class<?>[] parameterTypes, int noStepBit, int noReplyBit,
+                         @Nullable MacroPlace macroPlace) {
+    this.methodName     = methodName;
+    this.parameterTypes = parameterTypes;
+    this.noStepBit      = noStepBit;
+    this.noReplyBit     = noReplyBit;
+    this.macroPlace     = macroPlace;
+  }
+}
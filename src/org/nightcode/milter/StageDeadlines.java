@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter;
+
+import java.util.Arrays;
+
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.MilterPackets;
+
+import static org.nightcode.milter.ResponseCode.SMFIR_ACCEPT;
+import static org.nightcode.milter.ResponseCode.SMFIR_CONTINUE;
+import static org.nightcode.milter.ResponseCode.SMFIR_TEMPFAIL;
+
+/**
+ * Per-stage reply deadlines. When a reply to a command is still pending once its deadline
+ * has passed, pending work registered with {@link MilterContext#addPendingWork} is cancelled,
+ * the fallback verdict is sent to the MTA and a late reply of the handler is dropped.
+ * Deadlines should be set below the MTA's timeouts (e.g. Postfix {@code milter_command_timeout}
+ * and {@code milter_content_timeout}) so the MTA gets the fallback instead of applying
+ * {@code milter_default_action}.
+ *
+ * <p>Cancelled work must not reply. A handler replying asynchronously without registered work
+ * must still reply once to an expired stage: replies sent outside of a callback are matched to
+ * stages in order, so that the late reply is dropped instead of answering a later command.
+ *
+ * <p>Deadlines and progress keepalives are handled on the channel's event loop, so they only apply
+ * to handlers replying asynchronously; a callback blocking the event loop can't be interrupted.
+ */
+public final class StageDeadlines {
+
+  public static final class Builder {
+    private final long[]         deadlinesMs = new long[CODES_LENGTH];
+    private final MilterPacket[] fallbacks   = new MilterPacket[CODES_LENGTH];
+
+    private MilterPacket fallback = MilterPackets.SMFIS_TEMPFAIL;
+    private long         progressIntervalMs;
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder deadline(CommandCode command, long deadlineMs) {
+      if (deadlineMs < 0) {
+        throw new IllegalArgumentException("deadline must not be negative: " + deadlineMs);
+      }
+      deadlinesMs[command.code()] = deadlineMs;
+      return this;
+    }
+
+    /**
+     * Sets the fallback verdict for all stages, SMFIR_TEMPFAIL by default.
+     *
+     * @param fallback SMFIR_CONTINUE, SMFIR_TEMPFAIL or SMFIR_ACCEPT packet
+     * @return the current {@link Builder} instance
+     */
+    public Builder fallback(MilterPacket fallback) {
+      this.fallback = checkFallback(fallback);
+      return this;
+    }
+
+    public Builder fallback(CommandCode command, MilterPacket fallback) {
+      fallbacks[command.code()] = checkFallback(fallback);
+      return this;
+    }
+
+    /**
+     * Enables SMFIR_PROGRESS keepalives: while the reply to SMFIC_EOB is pending
+     * and nothing has been sent for the interval, a progress packet is sent to the MTA.
+     *
+     * @param progressIntervalMs keepalive interval, {@code 0} disables keepalives
+     * @return the current {@link Builder} instance
+     */
+    public Builder progressInterval(long progressIntervalMs) {
+      if (progressIntervalMs < 0) {
+        throw new IllegalArgumentException("progress interval must not be negative: " + progressIntervalMs);
+      }
+      this.progressIntervalMs = progressIntervalMs;
+      return this;
+    }
+
+    public StageDeadlines build() {
+      return new StageDeadlines(this);
+    }
+  }
+
+  private static final int CODES_LENGTH = 'U' + 1;
+
+  private static final StageDeadlines NONE = builder().build();
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static StageDeadlines none() {
+    return NONE;
+  }
+
+  private static MilterPacket checkFallback(MilterPacket fallback) {
+    int code = fallback.command();
+    if (code != SMFIR_CONTINUE.code() && code != SMFIR_TEMPFAIL.code() && code != SMFIR_ACCEPT.code()) {
+      throw new IllegalArgumentException("fallback must be continue, tempfail or accept: " + fallback);
+    }
+    return fallback;
+  }
+
+  private final long[]         deadlinesMs;
+  private final MilterPacket[] fallbacks;
+  private final long           progressIntervalMs;
+
+  private StageDeadlines(Builder builder) {
+    deadlinesMs        = builder.deadlinesMs.clone();
+    fallbacks          = builder.fallbacks.clone();
+    progressIntervalMs = builder.progressIntervalMs;
+    for (int i = 0; i < fallbacks.length; i++) {
+      if (fallbacks[i] == null) {
+        fallbacks[i] = builder.fallback;
+      }
+    }
+  }
+
+  /**
+   * Returns the deadline of the reply to the command.
+   *
+   * @param command command code
+   * @return deadline in milliseconds or {@code 0} if the stage has no deadline
+   */
+  public long deadlineMs(int command) {
+    return (command >= 0 && command < CODES_LENGTH) ? deadlinesMs[command] : 0;
+  }
+
+  public MilterPacket fallback(int command) {
+    return (command >= 0 && command < CODES_LENGTH) ? fallbacks[command] : MilterPackets.SMFIS_TEMPFAIL;
+  }
+
+  public long progressIntervalMs() {
+    return progressIntervalMs;
+  }
+
+  @Override public String toString() {
+    return "StageDeadlines{deadlinesMs=" + Arrays.toString(deadlinesMs) + ", progressIntervalMs=" + progressIntervalMs + '}';
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Envelope, macros, headers and body of a message collected by {@link WholeMessageMilterHandler}.
+ * An instance is reused for all messages of a session, so it must not be retained
+ * after {@link WholeMessageMilterHandler#onMessage} returns.
+ */
+public final class WholeMessage {
+
+  private static final int INITIAL_BODY_CAPACITY = 8192;
+  private static final int RETAINED_BODY_CAPACITY = 1 << 20;
+
+  private final Map<String, String> connectionMacros = new HashMap<>();
+  private final Map<String, String> messageMacros    = new HashMap<>();
+
+  private final List<String>       envfrom      = new ArrayList<>();
+  private final List<List<String>> recipients   = new ArrayList<>();
+  private final List<String>       headerNames  = new ArrayList<>();
+  private final List<String>       headerValues = new ArrayList<>();
+
+  private @Nullable String        hostname;
+  private int                     family;
+  private int                     port;
+  private @Nullable SocketAddress address;
+  private @Nullable String        helo;
+
+  private byte[] body = new byte[INITIAL_BODY_CAPACITY];
+  private int    bodyLength;
+
+  WholeMessage() {
+    // do nothing
+  }
+
+  public @Nullable String hostname() {
+    return hostname;
+  }
+
+  public int family() {
+    return family;
+  }
+
+  public int port() {
+    return port;
+  }
+
+  public @Nullable SocketAddress address() {
+    return address;
+  }
+
+  public @Nullable String helo() {
+    return helo;
+  }
+
+  /**
+   * Returns the value of the macro, values sent for the current message take precedence
+   * over values sent for the connection.
+   *
+   * @param name macro name, e.g. {@code "i"} or {@code "{auth_authen}"}
+   * @return macro value or {@code null}
+   */
+  public @Nullable String macro(String name) {
+    String value = messageMacros.get(name);
+    return value != null ? value : connectionMacros.get(name);
+  }
+
+  /**
+   * Returns MAIL FROM arguments, the sender address is the first one.
+   *
+   * @return MAIL FROM arguments
+   */
+  public List<String> envfrom() {
+    return Collections.unmodifiableList(envfrom);
+  }
+
+  /**
+   * Returns RCPT TO arguments of every recipient, the recipient address is the first one.
+   *
+   * @return RCPT TO arguments
+   */
+  public List<List<String>> recipients() {
+    return Collections.unmodifiableList(recipients);
+  }
+
+  public int headerCount() {
+    return headerNames.size();
+  }
+
+  public String headerName(int index) {
+    return headerNames.get(index);
+  }
+
+  public String headerValue(int index) {
+    return headerValues.get(index);
+  }
+
+  /**
+   * Returns the value of the first header with the given name (case insensitive).
+   *
+   * @param name header name
+   * @return header value or {@code null}
+   */
+  public @Nullable String header(String name) {
+    for (int i = 0; i < headerNames.size(); i++) {
+      if (headerNames.get(i).equalsIgnoreCase(name)) {
+        return headerValues.get(i);
+      }
+    }
+    return null;
+  }
+
+  public int bodyLength() {
+    return bodyLength;
+  }
+
+  /**
+   * Returns a read-only view of the message body.
+   *
+   * @return message body
+   */
+  public ByteBuffer body() {
+    return ByteBuffer.wrap(body, 0, bodyLength).asReadOnlyBuffer();
+  }
+
+  void connect(String hostname, int family, int port, @Nullable SocketAddress address) {
+    this.hostname = hostname;
+    this.family   = family;
+    this.port     = port;
+    this.address  = address;
+  }
+
+  void helo(String helo) {
+    this.helo = helo;
+  }
+
+  void macros(boolean connectionLevel, Map<String, String> macros) {
+    (connectionLevel ? connectionMacros : messageMacros).putAll(macros);
+  }
+
+  void envfrom(List<String> args) {
+    envfrom.clear();
+    envfrom.addAll(args);
+  }
+
+  void envrcpt(List<String> args) {
+    recipients.add(args);
+  }
+
+  void header(String name, String value) {
+    headerNames.add(name);
+    headerValues.add(value);
+  }
+
+  void body(byte[] chunk) {
+    if (bodyLength + chunk.length > body.length) {
+      body = Arrays.copyOf(body, Math.max(body.length << 1, bodyLength + chunk.length));
+    }
+    System.arraycopy(chunk, 0, body, bodyLength, chunk.length);
+    bodyLength += chunk.length;
+  }
+
+  /**
+   * Discards the data of the current message, connection data is retained.
+   */
+  void resetMessage() {
+    messageMacros.clear();
+    envfrom.clear();
+    recipients.clear();
+    headerNames.clear();
+    headerValues.clear();
+    if (body.length > RETAINED_BODY_CAPACITY) {
+      body = new byte[INITIAL_BODY_CAPACITY];
+    }
+    bodyLength = 0;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter;
+
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.codec.MilterPacket;
+
+import static org.nightcode.milter.CommandCode.SMFIC_CONNECT;
+import static org.nightcode.milter.CommandCode.SMFIC_HELO;
+
+/**
+ * Base class of milters that decide at the end of a message only. All intermediate steps are
+ * negotiated without reply (if the MTA supports it), the envelope, macros, headers and body
+ * are collected into a per-session {@link WholeMessage} and passed to {@link #onMessage} at EOM.
+ */
+public abstract class WholeMessageMilterHandler extends AbstractMilterHandler {
+
+  private static final AttributeKey<WholeMessage> WHOLE_MESSAGE
+      = AttributeKey.valueOf(WholeMessageMilterHandler.class, "wholeMessage");
+
+  public static final ProtocolSteps PROTOCOL_STEPS = ProtocolSteps.builder()
+      .noReplyForConnect()
+      .noReplyForHelo()
+      .noReplyForMailFrom()
+      .noReplyForRecipients()
+      .noReplyForData()
+      .noReplyForHeaders()
+      .noReplyForEoh()
+      .noReplyForBodyChunk()
+      .noUnknownCommands()
+      .build();
+
+  protected WholeMessageMilterHandler(Actions milterActions) {
+    super(milterActions, PROTOCOL_STEPS);
+  }
+
+  protected WholeMessageMilterHandler(Actions milterActions, MilterMacros milterMacros) {
+    super(milterActions, PROTOCOL_STEPS, milterMacros);
+  }
+
+  /**
+   * Called at the end of every message. Implementations are responsible for the final reply
+   * ({@link MilterContext#sendContinue()}, {@link MilterContext#sendPacket(MilterPacket)})
+   * and may modify the message with {@link #messageModificationService} before replying.
+   *
+   * @param context milter context
+   * @param message collected message, valid only until the method returns
+   * @throws MilterException if an error occurs
+   */
+  protected abstract void onMessage(MilterContext context, WholeMessage message) throws MilterException;
+
+  @Override public void abort(MilterContext context, @Nullable MilterPacket packet) {
+    message(context).resetMessage();
+  }
+
+  @Override public void body(MilterContext context, byte[] bodyChunk) throws MilterException {
+    message(context).body(bodyChunk);
+    context.sendContinue();
+  }
+
+  @Override public void connect(MilterContext context, String hostname, int family, int port, @Nullable SocketAddress address)
+      throws MilterException {
+    message(context).connect(hostname, family, port, address);
+    context.sendContinue();
+  }
+
+  @Override public void envfrom(MilterContext context, List<String> from) throws MilterException {
+    message(context).envfrom(from);
+    context.sendContinue();
+  }
+
+  @Override public void envrcpt(MilterContext context, List<String> recipients) throws MilterException {
+    message(context).envrcpt(recipients);
+    context.sendContinue();
+  }
+
+  @Override public void eom(MilterContext context, @Nullable byte[] bodyChunk) throws MilterException {
+    WholeMessage message = message(context);
+    if (bodyChunk != null) {
+      message.body(bodyChunk);
+    }
+    try {
+      onMessage(context, message);
+    } finally {
+      message.resetMessage();
+    }
+  }
+
+  @Override public void header(MilterContext context, String headerName, String headerValue) throws MilterException {
+    message(context).header(headerName, headerValue);
+    context.sendContinue();
+  }
+
+  @Override public void helo(MilterContext context, String helohost) throws MilterException {
+    message(context).helo(helohost);
+    context.sendContinue();
+  }
+
+  @Override public void macro(MilterContext context, int type, Map<String, String> macros) {
+    message(context).macros(type == SMFIC_CONNECT.code() || type == SMFIC_HELO.code(), macros);
+  }
+
+  @Override public void quit(MilterContext context) {
+    context.attr(WHOLE_MESSAGE).set(null);
+  }
+
+  private static WholeMessage message(MilterContext context) {
+    Attribute<WholeMessage> attribute = context.attr(WHOLE_MESSAGE);
+    WholeMessage message = attribute.get();
+    if (message == null) {
+      message = new WholeMessage();
+      attribute.set(message);
+    }
+    return message;
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.check;
+
+/**
+ * Independent per-message check evaluated by {@link ParallelChecks}.
+ *
+ * @param <T> type of the checked message
+ */
+@FunctionalInterface
+public interface Check<T> {
+
+  /**
+   * Checks the message. The method is called from an executor thread, the message must not
+   * be modified by the check.
+   *
+   * @param message message
+   * @return check result
+   * @throws Exception if the check failed, the fallback result of the check is used
+   */
+  CheckResult check(T message) throws Exception;
+}
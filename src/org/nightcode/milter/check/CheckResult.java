@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.check;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.nightcode.milter.MessageModificationService;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.MilterPackets;
+
+/**
+ * Verdict and modifications produced by a {@link Check}.
+ */
+public final class CheckResult {
+
+  public static final class Builder {
+    private final List<Modification> modifications = new ArrayList<>();
+
+    private MilterPacket verdict = MilterPackets.SMFIS_CONTINUE;
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder verdict(MilterPacket verdict) {
+      if (!ResponseCode.valueOf(verdict.command()).acceptReject()) {
+        throw new IllegalArgumentException("not an accept/reject response: " + verdict);
+      }
+      this.verdict = verdict;
+      return this;
+    }
+
+    public Builder addHeader(String name, String value) {
+      return modification((context, service) -> service.addHeader(context, name, value));
+    }
+
+    public Builder modification(Modification modification) {
+      modifications.add(Objects.requireNonNull(modification, "modification"));
+      return this;
+    }
+
+    public CheckResult build() {
+      return new CheckResult(this);
+    }
+  }
+
+  public static final CheckResult CONTINUE = builder().build();
+  public static final CheckResult REJECT   = builder().verdict(MilterPackets.SMFIS_REJECT).build();
+  public static final CheckResult TEMPFAIL = builder().verdict(MilterPackets.SMFIS_TEMPFAIL).build();
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final MilterPacket       verdict;
+  private final List<Modification> modifications;
+
+  private CheckResult(Builder builder) {
+    verdict       = builder.verdict;
+    modifications = builder.modifications.isEmpty()
+        ? Collections.emptyList()
+        : Collections.unmodifiableList(new ArrayList<>(builder.modifications));
+  }
+
+  CheckResult(MilterPacket verdict, List<Modification> modifications) {
+    this.verdict       = verdict;
+    this.modifications = Collections.unmodifiableList(modifications);
+  }
+
+  public MilterPacket verdict() {
+    return verdict;
+  }
+
+  public List<Modification> modifications() {
+    return modifications;
+  }
+
+  /**
+   * Applies modifications and sends the verdict. Modifications are applied only if the verdict
+   * is continue or accept.
+   *
+   * @param context milter context
+   * @param service message modification service
+   * @throws MilterException if modifications or the verdict can't be sent
+   */
+  public void reply(MilterContext context, MessageModificationService service) throws MilterException {
+    int code = verdict.command();
+    if (code == ResponseCode.SMFIR_CONTINUE.code() || code == ResponseCode.SMFIR_ACCEPT.code()) {
+      for (Modification modification : modifications) {
+        modification.apply(context, service);
+      }
+    }
+    context.sendPacket(verdict);
+  }
+
+  @Override public String toString() {
+    return "CheckResult{verdict=" + verdict + ", modifications=" + modifications.size() + '}';
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.check;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.MilterPackets;
+
+import static org.nightcode.milter.ResponseCode.SMFIR_ACCEPT;
+import static org.nightcode.milter.ResponseCode.SMFIR_CONTINUE;
+import static org.nightcode.milter.ResponseCode.SMFIR_DISCARD;
+import static org.nightcode.milter.ResponseCode.SMFIR_TEMPFAIL;
+
+/**
+ * Merges results of the checks into one result.
+ */
+@FunctionalInterface
+public interface MergePolicy {
+
+  /**
+   * The most severe verdict wins (reject, discard, tempfail, continue, accept in this order),
+   * modifications of all checks are kept.
+   *
+   * @return merge policy
+   */
+  static MergePolicy mostSevere() {
+    return results -> {
+      MilterPacket       verdict       = MilterPackets.SMFIS_ACCEPT;
+      List<Modification> modifications = new ArrayList<>();
+      for (CheckResult result : results) {
+        if (severity(result.verdict()) > severity(verdict)) {
+          verdict = result.verdict();
+        }
+        modifications.addAll(result.modifications());
+      }
+      return new CheckResult(results.isEmpty() ? MilterPackets.SMFIS_CONTINUE : verdict, modifications);
+    };
+  }
+
+  /**
+   * The first verdict other than continue in the order the checks were declared wins,
+   * modifications of all checks are kept.
+   *
+   * @return merge policy
+   */
+  static MergePolicy firstDecisive() {
+    return results -> {
+      MilterPacket       verdict       = MilterPackets.SMFIS_CONTINUE;
+      List<Modification> modifications = new ArrayList<>();
+      for (CheckResult result : results) {
+        if (verdict.command() == SMFIR_CONTINUE.code()) {
+          verdict = result.verdict();
+        }
+        modifications.addAll(result.modifications());
+      }
+      return new CheckResult(verdict, modifications);
+    };
+  }
+
+  /**
+   * Returns severity of the verdict used by {@link #mostSevere()}.
+   *
+   * @param verdict accept/reject response
+   * @return severity
+   */
+  static int severity(MilterPacket verdict) {
+    int code = verdict.command();
+    if (code == SMFIR_ACCEPT.code()) {
+      return 0;
+    } else if (code == SMFIR_CONTINUE.code()) {
+      return 1;
+    } else if (code == SMFIR_TEMPFAIL.code()) {
+      return 2;
+    } else if (code == SMFIR_DISCARD.code()) {
+      return 3;
+    }
+    return 4;
+  }
+
+  /**
+   * Merges results listed in the order the checks were declared.
+   *
+   * @param results check results
+   * @return merged result
+   */
+  CheckResult merge(List<CheckResult> results);
+}
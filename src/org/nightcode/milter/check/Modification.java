@@ -0,0 +1,28 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.check;
+
+import org.nightcode.milter.MessageModificationService;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+
+/**
+ * Message modification requested by a check, applied in the handler thread after checks are merged.
+ */
+@FunctionalInterface
+public interface Modification {
+
+  void apply(MilterContext context, MessageModificationService service) throws MilterException;
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.check;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.nightcode.milter.MessageModificationService;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+import org.nightcode.milter.util.Log;
+
+import static java.lang.String.format;
+
+/**
+ * Evaluates independent per-message checks in parallel, so that the latency of the evaluation
+ * is the maximum of the checks' latencies instead of their sum. Every check has its own deadline
+ * measured from the start of the evaluation, a check that fails or misses its deadline contributes
+ * its fallback result. Results are merged by {@link MergePolicy} in the order the checks were declared.
+ *
+ * <p>{@link #evaluateAsync} doesn't block the calling thread and replies through the milter context once
+ * all checks are completed or timed out, it should be used from milter callbacks which run on the I/O thread.
+ * {@link #evaluate} blocks the calling thread for up to the longest check deadline.
+ *
+ * <p>A timed out check is not interrupted, it keeps running in the executor and its result is ignored.
+ * The message passed to the checks must not be modified or reused (e.g. a {@link org.nightcode.milter.WholeMessage}
+ * reset for the next message) until all checks have finished, timed out ones included: pass a copy
+ * of the message if checks may miss their deadlines.
+ *
+ * @param <T> type of the checked message
+ */
+public final class ParallelChecks<T> {
+
+  public static final class Builder<T> {
+    private final List<Entry<T>> entries = new ArrayList<>();
+
+    private Executor                 executor    = ForkJoinPool.commonPool();
+    private ScheduledExecutorService scheduler;
+    private MergePolicy              mergePolicy = MergePolicy.mostSevere();
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder<T> check(String name, Check<T> check, long timeoutMs) {
+      return check(name, check, timeoutMs, CheckResult.CONTINUE);
+    }
+
+    public Builder<T> check(String name, Check<T> check, long timeoutMs, CheckResult fallback) {
+      if (timeoutMs <= 0) {
+        throw new IllegalArgumentException("check timeout must be positive: " + timeoutMs);
+      }
+      entries.add(new Entry<>(Objects.requireNonNull(name, "name"), Objects.requireNonNull(check, "check")
+          , timeoutMs, Objects.requireNonNull(fallback, "fallback")));
+      return this;
+    }
+
+    /**
+     * Sets executor the checks are run by, {@link ForkJoinPool#commonPool()} by default.
+     * Checks doing blocking I/O should be given a dedicated executor.
+     *
+     * @param executor executor
+     * @return the current {@link Builder} instance
+     */
+    public Builder<T> executor(Executor executor) {
+      this.executor = Objects.requireNonNull(executor, "executor");
+      return this;
+    }
+
+    /**
+     * Sets scheduler the deadlines of {@link #evaluateAsync} are tracked by, a shared daemon thread by default.
+     *
+     * @param scheduler scheduler
+     * @return the current {@link Builder} instance
+     */
+    public Builder<T> scheduler(ScheduledExecutorService scheduler) {
+      this.scheduler = Objects.requireNonNull(scheduler, "scheduler");
+      return this;
+    }
+
+    public Builder<T> mergePolicy(MergePolicy mergePolicy) {
+      this.mergePolicy = Objects.requireNonNull(mergePolicy, "merge policy");
+      return this;
+    }
+
+    public ParallelChecks<T> build() {
+      if (entries.isEmpty()) {
+        throw new IllegalStateException("no checks declared");
+      }
+      return new ParallelChecks<>(this);
+    }
+  }
+
+  private static final class Entry<T> {
+    private final String      name;
+    private final Check<T>    check;
+    private final long        timeoutMs;
+    private final CheckResult fallback;
+
+    private Entry(String name, Check<T> check, long timeoutMs, CheckResult fallback) {
+      this.name      = name;
+      this.check     = check;
+      this.timeoutMs = timeoutMs;
+      this.fallback  = fallback;
+    }
+  }
+
+  private enum DefaultScheduler {
+    ;
+
+    private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "jmilter-checks-deadline");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public static <T> Builder<T> builder() {
+    return new Builder<>();
+  }
+
+  private final List<Entry<T>>           entries;
+  private final Executor                 executor;
+  private final ScheduledExecutorService scheduler;
+  private final MergePolicy              mergePolicy;
+
+  private ParallelChecks(Builder<T> builder) {
+    entries     = new ArrayList<>(builder.entries);
+    executor    = builder.executor;
+    scheduler   = builder.scheduler != null ? builder.scheduler : DefaultScheduler.INSTANCE;
+    mergePolicy = builder.mergePolicy;
+  }
+
+  /**
+   * Runs all checks without blocking the calling thread. Once all checks are completed or timed out
+   * the merged result is sent through the context (see {@link CheckResult#reply}). The returned future
+   * is registered as pending work of the context, a cancelled evaluation doesn't reply.
+   *
+   * @param context milter context
+   * @param service message modification service
+   * @param message message, it must not be modified or reused until all checks have finished
+   * @return the CompletableFuture representing merged result
+   */
+  public CompletableFuture<CheckResult> evaluateAsync(MilterContext context, MessageModificationService service, T message) {
+    List<CompletableFuture<CheckResult>> futures = new ArrayList<>(entries.size());
+    for (Entry<T> entry : entries) {
+      CompletableFuture<CheckResult> future  = CompletableFuture.supplyAsync(() -> run(entry, message), executor);
+      ScheduledFuture<?>             timeout = scheduler.schedule(() -> {
+        if (future.complete(entry.fallback)) {
+          Log.info().log(getClass(), () -> format("[%s] check '%s' has not completed within %s ms", context.id(), entry.name
+              , entry.timeoutMs));
+        }
+      }, entry.timeoutMs, TimeUnit.MILLISECONDS);
+      future.whenComplete((r, ex) -> timeout.cancel(false));
+      futures.add(future);
+    }
+
+    CompletableFuture<CheckResult> result = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+        .thenApply(v -> {
+          List<CheckResult> results = new ArrayList<>(futures.size());
+          for (CompletableFuture<CheckResult> future : futures) {
+            results.add(future.join());
+          }
+          return mergePolicy.merge(results);
+        });
+    context.addPendingWork(result);
+    result.thenAccept(merged -> {
+      try {
+        merged.reply(context, service);
+      } catch (MilterException ex) {
+        Log.info().log(getClass(), () -> format("[%s] can't send result of checks", context.id()), ex);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Runs all checks and waits for their results, see {@link #evaluateAsync} for callers on the I/O thread.
+   *
+   * @param message message
+   * @return merged result
+   */
+  public CheckResult evaluate(T message) {
+    long start = System.nanoTime();
+
+    List<CompletableFuture<CheckResult>> futures = new ArrayList<>(entries.size());
+    for (Entry<T> entry : entries) {
+      futures.add(CompletableFuture.supplyAsync(() -> run(entry, message), executor));
+    }
+
+    List<CheckResult> results = new ArrayList<>(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      Entry<T>                       entry  = entries.get(i);
+      CompletableFuture<CheckResult> future = futures.get(i);
+      long remaining = TimeUnit.MILLISECONDS.toNanos(entry.timeoutMs) - (System.nanoTime() - start);
+      CheckResult result;
+      try {
+        result = future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException ex) {
+        future.cancel(false);
+        Log.info().log(getClass(), () -> format("check '%s' has not completed within %s ms", entry.name, entry.timeoutMs));
+        result = entry.fallback;
+      } catch (ExecutionException ex) {
+        Log.info().log(getClass(), () -> format("check '%s' failed", entry.name), ex.getCause());
+        result = entry.fallback;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        result = entry.fallback;
+      }
+      results.add(result);
+    }
+
+    return mergePolicy.merge(results);
+  }
+
+  private CheckResult run(Entry<T> entry, T message) {
+    try {
+      CheckResult result = entry.check.check(message);
+      return result != null ? result : entry.fallback;
+    } catch (Exception ex) {
+      Log.info().log(getClass(), () -> format("check '%s' failed", entry.name), ex);
+      return entry.fallback;
+    }
+  }
+}
@@ -0,0 +1,370 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.nightcode.milter.util.ExecutorUtils;
+import org.nightcode.milter.util.Futures;
+import org.nightcode.milter.util.Log;
+import org.nightcode.milter.util.Metrics;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.util.ExecutorUtils.namedThreadFactory;
+
+/**
+ * Session factory that spreads sessions over several milter endpoints, one {@link MilterSessionFactory} per endpoint.
+ *
+ * <p>An endpoint is picked with the power of two choices: two random healthy endpoints are compared and the one
+ * with fewer open and connecting sessions wins. A failed connect or SMFIC_OPTNEG (refused connection, timeout)
+ * counts against the endpoint and {@link #createSession()} is retried on another one. After
+ * {@code failureThreshold} consecutive failures the endpoint is ejected for the ejection time, doubled on every
+ * further ejection up to {@code maxEjectionTime}. Once the ejection time has passed a background probe opens a
+ * session to the endpoint and returns it to rotation if the negotiation succeeds. If no endpoint is healthy the
+ * ejected ones are tried anyway.
+ *
+ * <p>The factory can back a {@link MilterSessionPool} to reuse the balanced sessions.
+ */
+public final class BalancingSessionFactory implements MilterSessionFactory {
+
+  public static final class Builder {
+    private final List<MilterSessionFactory> endpoints = new ArrayList<>();
+
+    private int  maxAttempts      = 3;
+    private int  failureThreshold = 1;
+    private long ejectionTimeMs   = 1_000;
+    private long maxEjectionMs    = 30_000;
+    private long probeIntervalMs  = 500;
+
+    private Builder() {
+      // do nothing
+    }
+
+    /**
+     * Adds an endpoint.
+     *
+     * @param sessionFactory session factory of the endpoint, closed with this factory
+     * @return the current {@link Builder} instance
+     */
+    public Builder endpoint(MilterSessionFactory sessionFactory) {
+      endpoints.add(sessionFactory);
+      return this;
+    }
+
+    /**
+     * Sets the number of endpoints {@link #createSession()} tries before it fails, 3 by default.
+     *
+     * @param maxAttempts maximum number of attempts
+     * @return the current {@link Builder} instance
+     */
+    public Builder maxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * Sets the number of consecutive failures that eject an endpoint, 1 by default.
+     *
+     * @param failureThreshold number of consecutive failures
+     * @return the current {@link Builder} instance
+     */
+    public Builder failureThreshold(int failureThreshold) {
+      this.failureThreshold = failureThreshold;
+      return this;
+    }
+
+    /**
+     * Sets the time an endpoint is ejected for the first time, 1 second by default.
+     *
+     * @param ejectionTimeMs ejection time
+     * @return the current {@link Builder} instance
+     */
+    public Builder ejectionTime(long ejectionTimeMs) {
+      this.ejectionTimeMs = ejectionTimeMs;
+      return this;
+    }
+
+    /**
+     * Sets the upper bound of the doubled ejection time, 30 seconds by default.
+     *
+     * @param maxEjectionMs maximum ejection time
+     * @return the current {@link Builder} instance
+     */
+    public Builder maxEjectionTime(long maxEjectionMs) {
+      this.maxEjectionMs = maxEjectionMs;
+      return this;
+    }
+
+    /**
+     * Sets how often ejected endpoints are checked for a probe, 500 milliseconds by default.
+     *
+     * @param probeIntervalMs probe interval
+     * @return the current {@link Builder} instance
+     */
+    public Builder probeInterval(long probeIntervalMs) {
+      this.probeIntervalMs = probeIntervalMs;
+      return this;
+    }
+
+    public BalancingSessionFactory build() {
+      if (endpoints.isEmpty()) {
+        throw new IllegalStateException("at least one endpoint should be specified");
+      }
+      if (maxAttempts < 1 || failureThreshold < 1) {
+        throw new IllegalArgumentException(format("invalid maxAttempts=%s or failureThreshold=%s", maxAttempts, failureThreshold));
+      }
+      if (ejectionTimeMs <= 0 || maxEjectionMs < ejectionTimeMs || probeIntervalMs <= 0) {
+        throw new IllegalArgumentException("ejection and probe times must be positive, maxEjectionTime >= ejectionTime");
+      }
+      return new BalancingSessionFactory(this);
+    }
+  }
+
+  static final class Endpoint {
+    final MilterSessionFactory sessionFactory;
+    final int                  index;
+
+    /**
+     * Open sessions and connects in progress.
+     */
+    final AtomicInteger load     = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+    final AtomicBoolean probing  = new AtomicBoolean();
+
+    volatile boolean ejected;
+    volatile long    ejectedUntilNanos;
+    int              ejections;
+
+    Endpoint(MilterSessionFactory sessionFactory, int index) {
+      this.sessionFactory = sessionFactory;
+      this.index          = index;
+    }
+  }
+
+  private static final LongAdder EJECTIONS = Metrics.counter("jmilter.balancer.ejections");
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final List<Endpoint>           endpoints;
+  private final int                      maxAttempts;
+  private final int                      failureThreshold;
+  private final long                     ejectionTimeNanos;
+  private final long                     maxEjectionNanos;
+  private final ScheduledExecutorService executor;
+  private final AtomicBoolean            closed = new AtomicBoolean();
+
+  private BalancingSessionFactory(Builder builder) {
+    List<Endpoint> list = new ArrayList<>(builder.endpoints.size());
+    for (MilterSessionFactory sessionFactory : builder.endpoints) {
+      list.add(new Endpoint(sessionFactory, list.size()));
+    }
+    this.endpoints         = Collections.unmodifiableList(list);
+    this.maxAttempts       = builder.maxAttempts;
+    this.failureThreshold  = builder.failureThreshold;
+    this.ejectionTimeNanos = TimeUnit.MILLISECONDS.toNanos(builder.ejectionTimeMs);
+    this.maxEjectionNanos  = TimeUnit.MILLISECONDS.toNanos(builder.maxEjectionMs);
+
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, namedThreadFactory("jmilter-balancer"));
+    scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    executor = scheduler;
+    executor.scheduleWithFixedDelay(this::probe, builder.probeIntervalMs, builder.probeIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override public CompletableFuture<MilterSession> createSession() {
+    if (closed.get()) {
+      return Futures.failedFuture(new IllegalStateException("session factory has been closed"));
+    }
+    CompletableFuture<MilterSession> resultFuture = new CompletableFuture<>();
+    attempt(new boolean[endpoints.size()], 1, null, resultFuture);
+    return resultFuture;
+  }
+
+  /**
+   * Closes the endpoint session factories.
+   */
+  @Override public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    ExecutorUtils.shutdown(executor);
+    for (Endpoint endpoint : endpoints) {
+      endpoint.sessionFactory.close();
+    }
+  }
+
+  @Override public CompletableFuture<Void> shutdownGracefully() {
+    if (closed.compareAndSet(false, true)) {
+      ExecutorUtils.shutdown(executor);
+    }
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[endpoints.size()];
+    for (Endpoint endpoint : endpoints) {
+      futures[endpoint.index] = endpoint.sessionFactory.shutdownGracefully();
+    }
+    return CompletableFuture.allOf(futures);
+  }
+
+  /**
+   * @return number of endpoints that are not ejected
+   */
+  public int healthyEndpoints() {
+    int healthy = 0;
+    for (Endpoint endpoint : endpoints) {
+      if (!endpoint.ejected) {
+        healthy++;
+      }
+    }
+    return healthy;
+  }
+
+  List<Endpoint> endpoints() {
+    return endpoints;
+  }
+
+  private void attempt(boolean[] tried, int attempt, Throwable lastCause, CompletableFuture<MilterSession> resultFuture) {
+    Endpoint endpoint = select(tried);
+    if (endpoint == null || closed.get()) {
+      resultFuture.completeExceptionally(lastCause != null ? lastCause : new IllegalStateException("no milter endpoint available"));
+      return;
+    }
+    tried[endpoint.index] = true;
+
+    open(endpoint).whenComplete((session, ex) -> {
+      if (ex == null) {
+        resultFuture.complete(session);
+      } else if (attempt < maxAttempts) {
+        Log.debug().log(getClass(), () -> format("endpoint #%s failed, retrying on another endpoint", endpoint.index), ex);
+        attempt(tried, attempt + 1, ex, resultFuture);
+      } else {
+        resultFuture.completeExceptionally(ex);
+      }
+    });
+  }
+
+  /**
+   * Power of two choices among the healthy endpoints that haven't been tried yet,
+   * among the ejected ones if there is no such endpoint.
+   */
+  private Endpoint select(boolean[] tried) {
+    Endpoint selected = select(tried, false);
+    return selected != null ? selected : select(tried, true);
+  }
+
+  private Endpoint select(boolean[] tried, boolean ejected) {
+    Endpoint[] candidates = new Endpoint[endpoints.size()];
+    int        count      = 0;
+    for (Endpoint endpoint : endpoints) {
+      if (!tried[endpoint.index] && endpoint.ejected == ejected) {
+        candidates[count++] = endpoint;
+      }
+    }
+    if (count < 2) {
+      return candidates[0];
+    }
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first  = random.nextInt(count);
+    int second = random.nextInt(count - 1);
+    if (second >= first) {
+      second++;
+    }
+    return candidates[second].load.get() < candidates[first].load.get() ? candidates[second] : candidates[first];
+  }
+
+  private CompletableFuture<MilterSession> open(Endpoint endpoint) {
+    endpoint.load.incrementAndGet();
+    CompletableFuture<MilterSession> future = endpoint.sessionFactory.createSession();
+    return future.whenComplete((session, ex) -> {
+      if (ex != null) {
+        endpoint.load.decrementAndGet();
+        onFailure(endpoint, ex);
+        return;
+      }
+      onSuccess(endpoint);
+      if (session instanceof MilterSessionImpl) {
+        ((MilterSessionImpl) session).closeFuture().whenComplete((r, t) -> endpoint.load.decrementAndGet());
+      } else {
+        endpoint.load.decrementAndGet();
+      }
+    });
+  }
+
+  private void onSuccess(Endpoint endpoint) {
+    endpoint.failures.set(0);
+    if (endpoint.ejected) {
+      synchronized (endpoint) {
+        endpoint.ejected   = false;
+        endpoint.ejections = 0;
+      }
+      Log.info().log(getClass(), () -> format("endpoint #%s has been returned to rotation", endpoint.index));
+    }
+  }
+
+  private void onFailure(Endpoint endpoint, Throwable cause) {
+    if (endpoint.failures.incrementAndGet() >= failureThreshold) {
+      eject(endpoint, cause);
+    }
+  }
+
+  private void eject(Endpoint endpoint, Throwable cause) {
+    long ejectionNanos;
+    synchronized (endpoint) {
+      ejectionNanos = Math.min(ejectionTimeNanos << Math.min(endpoint.ejections, 30), maxEjectionNanos);
+      endpoint.ejections++;
+      endpoint.ejectedUntilNanos = System.nanoTime() + ejectionNanos;
+      endpoint.ejected           = true;
+    }
+    endpoint.failures.set(0);
+    EJECTIONS.increment();
+    Log.warn().log(getClass(), () -> format("endpoint #%s has been ejected for %s ms", endpoint.index
+        , TimeUnit.NANOSECONDS.toMillis(ejectionNanos)), cause);
+  }
+
+  /**
+   * Probes the ejected endpoints whose ejection time has passed with a new session.
+   */
+  void probe() {
+    long now = System.nanoTime();
+    for (Endpoint endpoint : endpoints) {
+      if (!endpoint.ejected || now - endpoint.ejectedUntilNanos < 0 || !endpoint.probing.compareAndSet(false, true)) {
+        continue;
+      }
+      Log.debug().log(getClass(), () -> format("probing endpoint #%s", endpoint.index));
+      endpoint.sessionFactory.createSession().whenComplete((session, ex) -> {
+        try {
+          if (ex == null) {
+            session.quit();
+            onSuccess(endpoint);
+          } else {
+            eject(endpoint, ex);
+          }
+        } finally {
+          endpoint.probing.set(false);
+        }
+      });
+    }
+  }
+}
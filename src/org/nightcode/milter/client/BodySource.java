@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.jetbrains.annotations.Nullable;
+
+import static org.nightcode.milter.util.MilterPackets.MILTER_CHUNK_SIZE;
+
+/**
+ * Source of the message body sent to the milter as SMFIC_BODY chunks.
+ *
+ * <p>Chunks are pulled on the I/O thread of the session as the milter accepts the previous ones,
+ * implementations must not block.
+ */
+@FunctionalInterface
+public interface BodySource {
+
+  static BodySource empty() {
+    return () -> null;
+  }
+
+  static BodySource of(byte[] body) {
+    return of(ByteBuffer.wrap(body));
+  }
+
+  static BodySource of(ByteBuffer body) {
+    ByteBuffer buffer = body.duplicate();
+    return () -> {
+      if (!buffer.hasRemaining()) {
+        return null;
+      }
+      byte[] chunk = new byte[Math.min(buffer.remaining(), MILTER_CHUNK_SIZE)];
+      buffer.get(chunk);
+      return chunk;
+    };
+  }
+
+  /**
+   * Reads the body from the given stream, which should not block (e.g. a file or an in-memory stream).
+   *
+   * @param in body stream
+   * @return body source that reads up to MILTER_CHUNK_SIZE bytes per chunk
+   */
+  static BodySource of(InputStream in) {
+    return () -> {
+      byte[] chunk = new byte[MILTER_CHUNK_SIZE];
+      int    length = 0;
+      int    read;
+      while (length < chunk.length && (read = in.read(chunk, length, chunk.length - length)) != -1) {
+        length += read;
+      }
+      if (length == 0) {
+        return null;
+      }
+      return length == chunk.length ? chunk : Arrays.copyOf(chunk, length);
+    };
+  }
+
+  /**
+   * @return next body chunk up to MILTER_CHUNK_SIZE (65535) bytes, {@code null} at the end of the body
+   * @throws IOException if the body can not be read
+   */
+  @Nullable byte[] nextChunk() throws IOException;
+}
@@ -0,0 +1,334 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.kqueue.AbstractKQueueStreamChannel;
+import io.netty.channel.nio.AbstractNioByteChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.codec.Int32LenFrameEncoder;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.Log;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.CommandCode.SMFIC_BODY;
+import static org.nightcode.milter.ResponseCode.SMFIR_CONTINUE;
+import static org.nightcode.milter.ResponseCode.SMFIR_PROGRESS;
+import static org.nightcode.milter.ResponseCode.SMFIR_SKIP;
+import static org.nightcode.milter.util.MilterPackets.MILTER_CHUNK_SIZE;
+
+/**
+ * Streams a message body as SMFIC_BODY chunks of up to MILTER_CHUNK_SIZE bytes.
+ *
+ * <p>Chunks are written already framed right below the frame encoder, so the body is never copied
+ * into intermediate arrays: buffers are sent as retained slices and files as file regions on the
+ * transports that support them. Chunks are pipelined while the channel is writable and at most
+ * {@link #MAX_CHUNKS_IN_FLIGHT} of them wait for a reply, writing stops as soon as the milter
+ * replies with SMFIR_SKIP or any accept/reject action other than SMFIR_CONTINUE.
+ *
+ * <p>IMPORTANT! not thread safe, used on the I/O thread of the session only
+ */
+class BodyStream implements MilterCallback {
+
+  static final int MAX_CHUNKS_IN_FLIGHT = 16;
+
+  private static final int FRAME_HEADER_LENGTH = 5;
+
+  /**
+   * Source of the body chunks, each chunk is a {@link ByteBuf} or a {@link FileRegion}.
+   */
+  interface Chunks {
+
+    @Nullable Object next(Channel channel, boolean fileRegion) throws IOException;
+
+    void close();
+  }
+
+  static Chunks of(ByteBuf body) {
+    return new Chunks() {
+      @Override public @Nullable Object next(Channel channel, boolean fileRegion) {
+        if (!body.isReadable()) {
+          return null;
+        }
+        return body.readRetainedSlice(Math.min(body.readableBytes(), MILTER_CHUNK_SIZE));
+      }
+
+      @Override public void close() {
+        ReferenceCountUtil.safeRelease(body);
+      }
+    };
+  }
+
+  static Chunks of(InputStream in) {
+    return new Chunks() {
+      @Override public @Nullable Object next(Channel channel, boolean fileRegion) throws IOException {
+        ByteBuf chunk = channel.alloc().buffer(MILTER_CHUNK_SIZE, MILTER_CHUNK_SIZE);
+        try {
+          while (chunk.isWritable() && chunk.writeBytes(in, chunk.writableBytes()) != -1) {
+            // read until the chunk is full or the stream ends
+          }
+        } catch (IOException ex) {
+          chunk.release();
+          throw ex;
+        }
+        if (!chunk.isReadable()) {
+          chunk.release();
+          return null;
+        }
+        return chunk;
+      }
+
+      @Override public void close() {
+        // the stream is owned by the caller
+      }
+    };
+  }
+
+  static Chunks of(FileChannel file) throws IOException {
+    long start = file.position();
+    long end   = file.size();
+    return new Chunks() {
+      private long position = start;
+
+      @Override public @Nullable Object next(Channel channel, boolean fileRegion) throws IOException {
+        if (position >= end) {
+          return null;
+        }
+        int length = (int) Math.min(end - position, MILTER_CHUNK_SIZE);
+        Object chunk;
+        if (fileRegion) {
+          chunk = new DefaultFileRegion(file, position, length) {
+            @Override protected void deallocate() {
+              // the file is owned by the caller
+            }
+          };
+        } else {
+          ByteBuf buffer = channel.alloc().buffer(length, length);
+          try {
+            while (buffer.isWritable()) {
+              if (buffer.writeBytes(file, position + buffer.writerIndex(), buffer.writableBytes()) == -1) {
+                throw new IOException(format("unexpected end of file at %s", position + buffer.writerIndex()));
+              }
+            }
+          } catch (IOException ex) {
+            buffer.release();
+            throw ex;
+          }
+          chunk = buffer;
+        }
+        position += length;
+        return chunk;
+      }
+
+      @Override public void close() {
+        // the file is owned by the caller
+      }
+    };
+  }
+
+  private static boolean supportsFileRegion(Channel channel) {
+    return channel instanceof AbstractNioByteChannel
+        || channel instanceof AbstractEpollStreamChannel
+        || channel instanceof AbstractKQueueStreamChannel;
+  }
+
+  private final MilterSession                     session;
+  private final Chunks                            chunks;
+  private final boolean                           needReply;
+  private final CompletableFuture<MilterResponse> responseFuture;
+  private final List<MilterPacket>                responses = new ArrayList<>();
+
+  private ChannelHandlerContext ctx;
+  private ChannelHandlerContext frameCtx;
+  private ResponseHandler       responseHandler;
+  private boolean               fileRegion;
+
+  private int          inFlight;
+  private boolean      exhausted;
+  private MilterPacket verdict;
+
+  private ChannelFuture lastWrite;
+
+  BodyStream(MilterSession session, Chunks chunks, boolean needReply, CompletableFuture<MilterResponse> responseFuture) {
+    this.session        = session;
+    this.chunks         = chunks;
+    this.needReply      = needReply;
+    this.responseFuture = responseFuture;
+  }
+
+  void start(ChannelHandlerContext context, ResponseHandler handler) {
+    this.ctx             = context;
+    this.responseHandler = handler;
+    this.frameCtx        = context.pipeline().context(Int32LenFrameEncoder.class);
+    this.fileRegion      = frameCtx != null && supportsFileRegion(context.channel());
+    writeChunks();
+  }
+
+  /**
+   * Continues writing once the channel becomes writable again.
+   */
+  void resume() {
+    if (!isStopped()) {
+      writeChunks();
+    }
+  }
+
+  @Override public boolean isFinalAction(MilterPacket packet) {
+    ResponseCode r = ResponseCode.valueOf(packet.command());
+    return r.acceptReject() || r == SMFIR_SKIP;
+  }
+
+  @Override public void onAction(MilterPacket packet) {
+    if (responseFuture.isDone()) {
+      return;
+    }
+    ResponseCode r = ResponseCode.valueOf(packet.command());
+    if (r == SMFIR_PROGRESS) {
+      return;
+    }
+    if (!isFinalAction(packet)) {
+      responses.add(packet);
+      return;
+    }
+
+    inFlight--;
+    if (r != SMFIR_CONTINUE && verdict == null) {
+      Log.debug().log(getClass(), () -> format("[%s] body streaming has been stopped with %s", session.id(), packet));
+      verdict = packet;
+    }
+
+    if (inFlight == 0 && isStopped()) {
+      responses.add(verdict != null ? verdict : packet);
+      complete();
+      return;
+    }
+    writeChunks();
+  }
+
+  @Override public void onFailure(Throwable cause) {
+    fail(cause);
+  }
+
+  @Override public String toString() {
+    return "BodyStream{"
+        + "session=" + session.id()
+        + ", inFlight=" + inFlight
+        + ", exhausted=" + exhausted
+        + '}';
+  }
+
+  private boolean isStopped() {
+    return exhausted || verdict != null || responseFuture.isDone();
+  }
+
+  private void writeChunks() {
+    Channel channel = ctx.channel();
+    boolean written = false;
+    try {
+      while (!isStopped() && channel.isWritable() && (!needReply || inFlight < MAX_CHUNKS_IN_FLIGHT)) {
+        Object chunk = chunks.next(channel, fileRegion);
+        if (chunk == null) {
+          exhausted = true;
+          break;
+        }
+        writeChunk(chunk);
+        written = true;
+      }
+    } catch (Exception ex) {
+      fail(ex);
+      return;
+    }
+
+    if (written) {
+      (frameCtx != null ? frameCtx : ctx).flush();
+    }
+    if (exhausted && !needReply && lastWrite != null) {
+      lastWrite.addListener(future -> {
+        if (future.isSuccess()) {
+          complete();
+        }
+      });
+    } else if (exhausted && inFlight == 0) {
+      complete();
+    }
+  }
+
+  private void writeChunk(Object chunk) {
+    if (needReply) {
+      responseHandler.expectReply(ctx, this, SMFIC_BODY);
+      inFlight++;
+    }
+
+    if (frameCtx == null) {
+      ByteBuf buffer = (ByteBuf) chunk;
+      try {
+        lastWrite = ctx.write(new MilterPacket(SMFIC_BODY, ByteBufUtil.getBytes(buffer))).addListener(this::writeListener);
+      } finally {
+        buffer.release();
+      }
+      return;
+    }
+
+    int     length = chunk instanceof ByteBuf ? ((ByteBuf) chunk).readableBytes() : (int) ((FileRegion) chunk).count();
+    ByteBuf header = ctx.channel().alloc().buffer(FRAME_HEADER_LENGTH);
+    header.writeInt(length + 1);
+    header.writeByte(SMFIC_BODY.code());
+    frameCtx.write(header).addListener(this::writeListener);
+    lastWrite = frameCtx.write(chunk).addListener(this::writeListener);
+  }
+
+  private void writeListener(Future<? super Void> future) {
+    if (!future.isSuccess()) {
+      fail(future.cause());
+    }
+  }
+
+  private void complete() {
+    if (responseFuture.isDone()) {
+      return;
+    }
+    chunks.close();
+    responseHandler.endStream(this);
+    responseFuture.complete(MilterResponse.of(session, responses));
+  }
+
+  private void fail(Throwable cause) {
+    if (responseFuture.isDone()) {
+      return;
+    }
+    chunks.close();
+    if (responseHandler != null) {
+      responseHandler.endStream(this);
+    }
+    responseFuture.completeExceptionally(cause);
+  }
+}
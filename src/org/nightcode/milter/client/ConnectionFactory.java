@@ -14,13 +14,14 @@
 
 package org.nightcode.milter.client;
 
+import java.io.Closeable;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.unix.DomainSocketAddress;
 
-public interface ConnectionFactory<A extends SocketAddress> {
+public interface ConnectionFactory<A extends SocketAddress> extends Closeable {
 
   static ConnectionFactory<InetSocketAddress> tcpIpFactory(InetSocketAddress address) {
     return new TcpIpConnectionFactory(address);
@@ -30,7 +31,21 @@ public interface ConnectionFactory<A extends SocketAddress> {
     return new UnixSocketConnectionFactory(address);
   }
 
+  /**
+   * Returns a bootstrap for a new connection. Bootstraps returned by the built-in factories
+   * are clones of one template and share its event loop group.
+   *
+   * @return bootstrap
+   * @throws IllegalStateException if the factory has been closed
+   */
   Bootstrap create();
 
   A remoteAddress();
+
+  /**
+   * Releases resources shared by the created bootstraps, e.g. the event loop group.
+   */
+  @Override default void close() {
+    // do nothing
+  }
 }
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.CommandCode;
+import org.nightcode.milter.ProtocolFamily;
+
+/**
+ * SMTP envelope of a message submitted with {@link MilterSession#process(Envelope, Headers, BodySource)}:
+ * connection information, HELO name, sender, recipients and the macros sent along with each command.
+ *
+ * <p>Connection information and HELO name are optional, leave them unset when the message is not the first
+ * one of the SMTP connection and they have already been sent.
+ */
+public final class Envelope {
+
+  static final class Connect {
+    final String         hostname;
+    final ProtocolFamily family;
+    final int            port;
+    final String         address;
+
+    Connect(String hostname, ProtocolFamily family, int port, String address) {
+      this.hostname = hostname;
+      this.family   = family;
+      this.port     = port;
+      this.address  = address;
+    }
+  }
+
+  public static final class Builder {
+    private final List<List<String>>       recipients = new ArrayList<>();
+    private final Map<CommandCode, Macros> macros     = new EnumMap<>(CommandCode.class);
+
+    private Connect      connect;
+    private String       helo;
+    private List<String> sender;
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder connect(String hostname, ProtocolFamily family, int port, String address) {
+      this.connect = new Connect(hostname, family, port, address);
+      return this;
+    }
+
+    public Builder helo(String helo) {
+      this.helo = helo;
+      return this;
+    }
+
+    /**
+     * @param args sender with &lt;&gt; qualification at index 0, ESMTP arguments, if any, after it
+     * @return this builder
+     */
+    public Builder sender(List<String> args) {
+      this.sender = args;
+      return this;
+    }
+
+    /**
+     * @param args recipient with &lt;&gt; qualification at index 0, ESMTP arguments, if any, after it
+     * @return this builder
+     */
+    public Builder recipient(List<String> args) {
+      Objects.requireNonNull(args, "recipient");
+      recipients.add(args);
+      return this;
+    }
+
+    /**
+     * @param command command for which these macros apply
+     * @param value   macros sent right before the command
+     * @return this builder
+     */
+    public Builder macros(CommandCode command, Macros value) {
+      macros.put(command, value);
+      return this;
+    }
+
+    public Envelope build() {
+      if (sender == null || sender.isEmpty()) {
+        throw new IllegalStateException("sender must be specified");
+      }
+      if (recipients.isEmpty()) {
+        throw new IllegalStateException("at least one recipient must be specified");
+      }
+      return new Envelope(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final @Nullable Connect        connect;
+  private final @Nullable String         helo;
+  private final List<String>             sender;
+  private final List<List<String>>       recipients;
+  private final Map<CommandCode, Macros> macros;
+
+  private Envelope(Builder builder) {
+    this.connect    = builder.connect;
+    this.helo       = builder.helo;
+    this.sender     = builder.sender;
+    this.recipients = Collections.unmodifiableList(new ArrayList<>(builder.recipients));
+    this.macros     = new EnumMap<>(builder.macros);
+  }
+
+  public @Nullable String helo() {
+    return helo;
+  }
+
+  public List<String> sender() {
+    return sender;
+  }
+
+  public List<List<String>> recipients() {
+    return recipients;
+  }
+
+  @Nullable Connect connect() {
+    return connect;
+  }
+
+  @Nullable Macros macros(CommandCode command) {
+    return macros.get(command);
+  }
+}
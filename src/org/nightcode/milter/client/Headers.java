@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Message headers in the order they are sent to the milter.
+ */
+public final class Headers {
+
+  static final class Header {
+    final String name;
+    final String value;
+
+    Header(String name, String value) {
+      this.name  = name;
+      this.value = value;
+    }
+  }
+
+  public static final class Builder {
+    private final List<Header> headers = new ArrayList<>();
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder add(String name, String value) {
+      Objects.requireNonNull(name, "header name");
+      Objects.requireNonNull(value, "header value");
+      headers.add(new Header(name, value));
+      return this;
+    }
+
+    public Headers build() {
+      return new Headers(this);
+    }
+  }
+
+  private static final Headers EMPTY = new Headers(Collections.emptyList());
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static Headers empty() {
+    return EMPTY;
+  }
+
+  private final List<Header> headers;
+
+  private Headers(Builder builder) {
+    this(Collections.unmodifiableList(new ArrayList<>(builder.headers)));
+  }
+
+  private Headers(List<Header> headers) {
+    this.headers = headers;
+  }
+
+  public int size() {
+    return headers.size();
+  }
+
+  public boolean isEmpty() {
+    return headers.isEmpty();
+  }
+
+  Header get(int index) {
+    return headers.get(index);
+  }
+}
@@ -14,45 +14,130 @@
 
 package org.nightcode.milter.client;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
-public final class Macros {
+import org.nightcode.milter.CommandCode;
+import org.nightcode.milter.codec.MilterPacket;
 
-  static final class Pair {
-    final String key;
-    final String value;
+import static org.nightcode.milter.CommandCode.SMFIC_MACRO;
+import static org.nightcode.milter.util.MilterPackets.ZERO_TERM_LENGTH;
 
-    Pair(String key, String value) {
-      this.key   = key;
-      this.value = value;
-    }
-  }
+/**
+ * Immutable list of macros encoded once into the SMFIC_MACRO wire format: NUL-terminated
+ * UTF-8 names and values. Connection-level macros can be built once and shared between
+ * messages, per-message values are appended with {@link #with(String, String)} which
+ * only encodes the new pair.
+ */
+public final class Macros {
 
   public static final class Builder {
-    private final List<Pair> pairs = new ArrayList<>();
+    private final List<byte[]> parts = new ArrayList<>();
+    private int length;
+
+    private Builder() {
+      // do nothing
+    }
 
     public Builder add(String key, String value) {
-      pairs.add(new Pair(key, value));
+      byte[] k = key.getBytes(StandardCharsets.UTF_8);
+      byte[] v = value.getBytes(StandardCharsets.UTF_8);
+      parts.add(k);
+      parts.add(v);
+      length += k.length + ZERO_TERM_LENGTH + v.length + ZERO_TERM_LENGTH;
       return this;
     }
 
     public Macros build() {
-      return new Macros(this);
+      byte[] encoded = new byte[length];
+      int    offset  = 0;
+      for (byte[] part : parts) {
+        offset = copy(part, encoded, offset);
+      }
+      return new Macros(encoded);
     }
   }
 
+  private static final Macros EMPTY = new Macros(new byte[0]);
+
   public static Builder builder() {
     return new Builder();
   }
 
-  private final List<Pair> pairs;
+  public static Macros empty() {
+    return EMPTY;
+  }
 
-  private Macros(Builder builder) {
-    this.pairs = builder.pairs;
+  private static int copy(byte[] src, byte[] dst, int offset) {
+    System.arraycopy(src, 0, dst, offset, src.length);
+    return offset + src.length + ZERO_TERM_LENGTH;
   }
 
-  List<Pair> pairs() {
-    return pairs;
+  private final byte[] encoded;
+
+  /**
+   * SMFIC_MACRO packets already built for a command, indexed by ordinal.
+   */
+  private final MilterPacket[] packets = new MilterPacket[CommandCode.values().length];
+
+  private Macros(byte[] encoded) {
+    this.encoded = encoded;
+  }
+
+  /**
+   * Returns new macros with the given pair appended, these macros are left intact.
+   *
+   * @param key   macro name
+   * @param value macro value
+   * @return new macros
+   */
+  public Macros with(String key, String value) {
+    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    byte[] v = value.getBytes(StandardCharsets.UTF_8);
+
+    byte[] result = new byte[encoded.length + k.length + ZERO_TERM_LENGTH + v.length + ZERO_TERM_LENGTH];
+    System.arraycopy(encoded, 0, result, 0, encoded.length);
+    copy(v, result, copy(k, result, encoded.length));
+    return new Macros(result);
+  }
+
+  /**
+   * Returns new macros with the given macros appended, these macros are left intact.
+   *
+   * @param other macros to append
+   * @return new macros
+   */
+  public Macros with(Macros other) {
+    if (other.encoded.length == 0) {
+      return this;
+    }
+    byte[] result = new byte[encoded.length + other.encoded.length];
+    System.arraycopy(encoded, 0, result, 0, encoded.length);
+    System.arraycopy(other.encoded, 0, result, encoded.length, other.encoded.length);
+    return new Macros(result);
+  }
+
+  /**
+   * @return length of the encoded macros in bytes
+   */
+  public int encodedLength() {
+    return encoded.length;
+  }
+
+  /**
+   * Returns the SMFIC_MACRO packet for the given command. The packet is built on the first call
+   * and reused afterwards, concurrent first calls may build it more than once.
+   */
+  MilterPacket packet(CommandCode code) {
+    MilterPacket packet = packets[code.ordinal()];
+    if (packet == null) {
+      byte[] payload = new byte[1 + encoded.length];
+      payload[0] = (byte) code.code();
+      System.arraycopy(encoded, 0, payload, 1, encoded.length);
+      packet = new MilterPacket(SMFIC_MACRO, payload);
+      packets[code.ordinal()] = packet;
+    }
+    return packet;
   }
 }
@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.util.List;
+
+import org.nightcode.milter.CommandCode;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.codec.MilterPacket;
+
+/**
+ * Aggregated outcome of a message submitted with {@link MilterSession#process(Envelope, Headers, BodySource)}.
+ */
+public final class MessageResult {
+
+  private final MilterSession      session;
+  private final CommandCode        command;
+  private final MilterPacket       verdict;
+  private final List<MilterPacket> modifications;
+  private final List<List<String>> rejectedRecipients;
+
+  MessageResult(MilterSession session, CommandCode command, MilterPacket verdict, List<MilterPacket> modifications,
+                List<List<String>> rejectedRecipients) {
+    this.session            = session;
+    this.command            = command;
+    this.verdict            = verdict;
+    this.modifications      = modifications;
+    this.rejectedRecipients = rejectedRecipients;
+  }
+
+  /**
+   * @return command the verdict has been received for, SMFIC_EOB unless the milter stopped the message early
+   */
+  public CommandCode command() {
+    return command;
+  }
+
+  /**
+   * @return final accept/reject action of the milter
+   */
+  public MilterPacket verdict() {
+    return verdict;
+  }
+
+  public ResponseCode verdictCode() {
+    return ResponseCode.valueOf(verdict.command());
+  }
+
+  /**
+   * @return modification actions received at the end of the message, in the order they arrived
+   */
+  public List<MilterPacket> modifications() {
+    return modifications;
+  }
+
+  /**
+   * @return arguments of the recipients the milter has rejected or temporarily failed
+   */
+  public List<List<String>> rejectedRecipients() {
+    return rejectedRecipients;
+  }
+
+  public MilterSession session() {
+    return session;
+  }
+
+  @Override public String toString() {
+    return "MessageResult{"
+        + "command=" + command
+        + ", verdict=" + verdict
+        + ", modifications=" + modifications.size()
+        + ", rejectedRecipients=" + rejectedRecipients.size()
+        + '}';
+  }
+}
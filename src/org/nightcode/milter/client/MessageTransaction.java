@@ -0,0 +1,279 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.Future;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.CommandCode;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.Log;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.CommandCode.SMFIC_ABORT;
+import static org.nightcode.milter.CommandCode.SMFIC_BODY;
+import static org.nightcode.milter.CommandCode.SMFIC_CONNECT;
+import static org.nightcode.milter.CommandCode.SMFIC_DATA;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_EOH;
+import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
+import static org.nightcode.milter.CommandCode.SMFIC_HELO;
+import static org.nightcode.milter.CommandCode.SMFIC_MAIL;
+import static org.nightcode.milter.CommandCode.SMFIC_RCPT;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY;
+import static org.nightcode.milter.ResponseCode.SMFIR_CONTINUE;
+import static org.nightcode.milter.ResponseCode.SMFIR_PROGRESS;
+import static org.nightcode.milter.ResponseCode.SMFIR_REJECT;
+import static org.nightcode.milter.ResponseCode.SMFIR_REPLYCODE;
+import static org.nightcode.milter.ResponseCode.SMFIR_SKIP;
+import static org.nightcode.milter.ResponseCode.SMFIR_TEMPFAIL;
+import static org.nightcode.milter.client.MilterPacketFactory.createAbort;
+import static org.nightcode.milter.client.MilterPacketFactory.createBodyChunk;
+import static org.nightcode.milter.client.MilterPacketFactory.createConnect;
+import static org.nightcode.milter.client.MilterPacketFactory.createData;
+import static org.nightcode.milter.client.MilterPacketFactory.createEnvfrom;
+import static org.nightcode.milter.client.MilterPacketFactory.createEnvrcpt;
+import static org.nightcode.milter.client.MilterPacketFactory.createHeader;
+import static org.nightcode.milter.client.MilterPacketFactory.createHelo;
+import static org.nightcode.milter.client.MilterPacketFactory.createMacro;
+
+/**
+ * Runs a whole message through a session. Commands the milter will not reply to are written
+ * together with the next command that needs a reply as one message, so a message costs one
+ * write and one flush per reply instead of one request per command. Skipped steps are never
+ * sent, the transaction stops at the first accept/reject action other than continue and
+ * resets the milter with SMFIC_ABORT in that case.
+ *
+ * <p>Replies are handled on the I/O thread of the session.
+ */
+class MessageTransaction implements MilterCallback {
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private enum Phase {
+    CONNECT, HELO, MAIL, RCPT, DATA, HEADER, EOH, BODY, EOB, DONE
+  }
+
+  private final MilterSession                    session;
+  private final Channel                          channel;
+  private final Envelope                         envelope;
+  private final Headers                          headers;
+  private final BodySource                       body;
+  private final CompletableFuture<MessageResult> resultFuture;
+
+  private final List<MilterPacket> modifications = new ArrayList<>();
+  private final List<List<String>> rejectedRecipients = new ArrayList<>();
+
+  private Phase       phase = Phase.CONNECT;
+  private int         index;
+  private CommandCode command;
+  private int         recipient;
+
+  MessageTransaction(MilterSession session, Channel channel, Envelope envelope, Headers headers, BodySource body,
+                     CompletableFuture<MessageResult> resultFuture) {
+    this.session      = session;
+    this.channel      = channel;
+    this.envelope     = envelope;
+    this.headers      = headers;
+    this.body         = body;
+    this.resultFuture = resultFuture;
+  }
+
+  public void execute() {
+    if (channel.eventLoop().inEventLoop()) {
+      writeNext();
+    } else {
+      channel.eventLoop().execute(this::writeNext);
+    }
+  }
+
+  @Override public boolean isFinalAction(MilterPacket packet) {
+    ResponseCode r = ResponseCode.valueOf(packet.command());
+    return r.acceptReject() || r == SMFIR_SKIP;
+  }
+
+  @Override public void onAction(MilterPacket packet) {
+    if (resultFuture.isDone()) {
+      return;
+    }
+    ResponseCode r = ResponseCode.valueOf(packet.command());
+    if (r == SMFIR_PROGRESS) {
+      return;
+    }
+    if (!isFinalAction(packet)) {
+      modifications.add(packet);
+      return;
+    }
+
+    if (command == SMFIC_EOB) {
+      complete(packet);
+    } else if (r == SMFIR_CONTINUE) {
+      writeNext();
+    } else if (r == SMFIR_SKIP) {
+      if (phase == Phase.BODY) {
+        phase = Phase.EOB;
+      }
+      writeNext();
+    } else if (command == SMFIC_RCPT && (r == SMFIR_REJECT || r == SMFIR_TEMPFAIL || r == SMFIR_REPLYCODE)) {
+      rejectedRecipients.add(envelope.recipients().get(recipient));
+      if (rejectedRecipients.size() == envelope.recipients().size()) {
+        abort(packet);
+      } else {
+        writeNext();
+      }
+    } else {
+      abort(packet);
+    }
+  }
+
+  @Override public void onFailure(Throwable cause) {
+    resultFuture.completeExceptionally(cause);
+  }
+
+  @Override public String toString() {
+    return "MessageTransaction{"
+        + "session=" + session.id()
+        + ", phase=" + phase
+        + ", command=" + command
+        + '}';
+  }
+
+  private void writeNext() {
+    List<MilterPacket> packets = new ArrayList<>();
+    CommandCode        next;
+    try {
+      do {
+        next = nextCommand(packets);
+      } while (next == null || !needReply(next));
+    } catch (Exception ex) {
+      if (command != null) {
+        channel.writeAndFlush(new MilterMessage(SMFIC_ABORT, new MilterPacket[] {createAbort()}, null));
+      }
+      resultFuture.completeExceptionally(ex);
+      return;
+    }
+
+    command = next;
+    MilterMessage message = new MilterMessage(next, packets.toArray(new MilterPacket[0]), this);
+    channel.writeAndFlush(message).addListener(this::writeListener);
+  }
+
+  /**
+   * Appends packets of the next step to the given list.
+   *
+   * @return command of the step or {@code null} if the step has been skipped
+   */
+  private @Nullable CommandCode nextCommand(List<MilterPacket> packets) throws Exception {
+    switch (phase) {
+      case CONNECT:
+        phase = Phase.HELO;
+        Envelope.Connect connect = envelope.connect();
+        if (connect == null) {
+          return null;
+        }
+        return step(packets, SMFIC_CONNECT, () -> createConnect(connect.hostname, connect.family, connect.port, connect.address));
+      case HELO:
+        phase = Phase.MAIL;
+        String helo = envelope.helo();
+        if (helo == null) {
+          return null;
+        }
+        return step(packets, SMFIC_HELO, () -> createHelo(helo));
+      case MAIL:
+        phase = Phase.RCPT;
+        return step(packets, SMFIC_MAIL, () -> createEnvfrom(envelope.sender()));
+      case RCPT:
+        recipient = index++;
+        if (index == envelope.recipients().size()) {
+          phase = Phase.DATA;
+          index = 0;
+        }
+        return step(packets, SMFIC_RCPT, () -> createEnvrcpt(envelope.recipients().get(recipient)));
+      case DATA:
+        phase = headers.isEmpty() ? Phase.EOH : Phase.HEADER;
+        return step(packets, SMFIC_DATA, () -> createData(EMPTY));
+      case HEADER:
+        Headers.Header header = headers.get(index++);
+        if (index == headers.size()) {
+          phase = Phase.EOH;
+          index = 0;
+        }
+        return step(packets, SMFIC_HEADER, () -> createHeader(header.name, header.value));
+      case EOH:
+        phase = Phase.BODY;
+        return step(packets, SMFIC_EOH, MilterPacketFactory::createEoh);
+      case BODY:
+        if (skipped(SMFIC_BODY)) {
+          phase = Phase.EOB;
+          return null;
+        }
+        byte[] chunk = body.nextChunk();
+        if (chunk == null) {
+          phase = Phase.EOB;
+          return null;
+        }
+        return step(packets, SMFIC_BODY, () -> createBodyChunk(chunk));
+      case EOB:
+        phase = Phase.DONE;
+        return step(packets, SMFIC_EOB, MilterPacketFactory::createEob);
+      default:
+        throw new IllegalStateException(format("[%s] message has already been sent", session.id()));
+    }
+  }
+
+  private @Nullable CommandCode step(List<MilterPacket> packets, CommandCode code, Supplier<MilterPacket> supplier) {
+    Macros macros = envelope.macros(code);
+    if (macros != null) {
+      packets.add(createMacro(code, macros));
+    }
+    if (skipped(code)) {
+      return null;
+    }
+    packets.add(supplier.get());
+    return code;
+  }
+
+  private boolean skipped(CommandCode code) {
+    return (session.milterProtocolSteps().bitmap() & code.noStepBit()) != 0;
+  }
+
+  private boolean needReply(CommandCode code) {
+    return (code.noReplyBit() & session.milterProtocolSteps().bitmap()) == 0 && code.noReplyBit() != NO_REPLY;
+  }
+
+  private void writeListener(Future<? super Void> future) {
+    if (!future.isSuccess()) {
+      resultFuture.completeExceptionally(future.cause());
+    }
+  }
+
+  private void abort(MilterPacket verdict) {
+    Log.debug().log(getClass(), () -> format("[%s] message has been stopped at %s with %s", session.id(), command, verdict));
+    channel.writeAndFlush(new MilterMessage(SMFIC_ABORT, new MilterPacket[] {createAbort()}, null));
+    complete(verdict);
+  }
+
+  private void complete(MilterPacket verdict) {
+    resultFuture.complete(new MessageResult(session, command, verdict, Collections.unmodifiableList(modifications),
+        Collections.unmodifiableList(rejectedRecipients)));
+  }
+}
@@ -33,7 +33,6 @@ import static org.nightcode.milter.CommandCode.SMFIC_EOB;
 import static org.nightcode.milter.CommandCode.SMFIC_EOH;
 import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
 import static org.nightcode.milter.CommandCode.SMFIC_HELO;
-import static org.nightcode.milter.CommandCode.SMFIC_MACRO;
 import static org.nightcode.milter.CommandCode.SMFIC_MAIL;
 import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
 import static org.nightcode.milter.CommandCode.SMFIC_QUIT;
@@ -43,8 +42,6 @@ import static org.nightcode.milter.util.MilterPackets.MILTER_CHUNK_SIZE;
 import static org.nightcode.milter.util.MilterPackets.ZERO_TERM;
 import static org.nightcode.milter.util.MilterPackets.ZERO_TERM_LENGTH;
 import static org.nightcode.milter.util.MilterPackets.createZeroTerm;
-import static org.nightcode.milter.util.MilterPackets.getLengthSafe;
-import static org.nightcode.milter.util.MilterPackets.safeCopy;
 
 public enum MilterPacketFactory {
   ;
@@ -127,9 +124,9 @@ public enum MilterPacketFactory {
   }
 
   public static MilterPacket createHelo(String helo) {
-    byte[] payload = new byte[helo.length() + ZERO_TERM_LENGTH];
-
     byte[] h = helo.getBytes(StandardCharsets.UTF_8);
+
+    byte[] payload = new byte[h.length + ZERO_TERM_LENGTH];
     System.arraycopy(h, 0, payload,  0, h.length);
     payload[h.length] = ZERO_TERM;
 
@@ -137,12 +134,7 @@ public enum MilterPacketFactory {
   }
 
   public static MilterPacket createMacro(CommandCode code, Macros macros) {
-    byte[] payload = new byte[1 + zeroTermLength(macros)];
-
-    payload[0] = (byte) code.code();
-    writeZeroTerm(macros, payload, 1);
-
-    return new MilterPacket(SMFIC_MACRO, payload);
+    return macros.packet(code);
   }
 
   public static MilterPacket createOptneg(int version, Actions actions, ProtocolSteps steps) {
@@ -162,27 +154,4 @@ public enum MilterPacketFactory {
   public static MilterPacket createQuitNc() {
     return new MilterPacket(SMFIC_QUIT_NC);
   }
-
-  private static int zeroTermLength(Macros args) {
-    int length = 0;
-    for (Macros.Pair pair : args.pairs()) {
-      length += getLengthSafe(pair.key);
-      length += ZERO_TERM_LENGTH;
-      length += getLengthSafe(pair.value);
-      length += ZERO_TERM_LENGTH;
-    }
-    return length;
-  }
-
-  private static void writeZeroTerm(Macros args, byte[] dst, int offset) {
-    int length = zeroTermLength(args);
-    if (offset + length > dst.length) {
-      throw new IllegalArgumentException(format("invalid supplied buffer length %s for offset %s and data length %s bytes"
-          , dst.length, offset, length));
-    }
-    for (Macros.Pair pair : args.pairs()) {
-      offset = safeCopy(pair.key, dst, offset);
-      offset = safeCopy(pair.value, dst, offset);
-    }
-  }
 }
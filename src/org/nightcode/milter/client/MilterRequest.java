@@ -18,20 +18,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.handler.timeout.ReadTimeoutException;
 import io.netty.util.concurrent.Future;
-import io.netty.util.concurrent.ScheduledFuture;
-import org.jetbrains.annotations.TestOnly;
 import org.nightcode.milter.CommandCode;
 import org.nightcode.milter.ResponseCode;
 import org.nightcode.milter.codec.MilterPacket;
-import org.nightcode.milter.util.Log;
 
-import static java.lang.String.format;
 import static org.nightcode.milter.ProtocolSteps.NO_REPLY;
 
 class MilterRequest implements MilterCallback {
@@ -44,8 +38,6 @@ class MilterRequest implements MilterCallback {
   private final CompletableFuture<MilterResponse> responseFuture;
   private final List<MilterPacket>                responses;
 
-  private ScheduledFuture<?> timeoutFuture;
-
   MilterRequest(CommandCode command, MilterPacket[] packets, MilterSession session, Channel channel,
                 CompletableFuture<MilterResponse> responseFuture) {
     this.command        = command;
@@ -66,10 +58,7 @@ class MilterRequest implements MilterCallback {
   private void writeListener(Future<? super Void> future) {
     if (future.isSuccess() && !needReply) {
       responseFuture.complete(MilterResponse.of(session));
-    } else if (future.isSuccess()) {
-      timeoutFuture = channel.eventLoop().schedule(this::onTimeout, command.responseTimeoutMs(), TimeUnit.MILLISECONDS);
-      responseFuture.whenComplete((r, t) -> timeoutFuture.cancel(true));
-    } else {
+    } else if (!future.isSuccess()) {
       completeExceptionally(future.cause());
     }
   }
@@ -87,9 +76,6 @@ class MilterRequest implements MilterCallback {
   }
 
   @Override public void onFailure(Throwable cause) {
-    if (timeoutFuture != null) {
-      timeoutFuture.cancel(true);
-    }
     completeExceptionally(cause);
   }
 
@@ -100,20 +86,10 @@ class MilterRequest implements MilterCallback {
         + '}';
   }
 
-  @TestOnly
-  ScheduledFuture<?> timeoutFuture() {
-    return timeoutFuture;
-  }
-
   private boolean needReply() {
     return (command.noReplyBit() & session.milterProtocolSteps().bitmap()) == 0 && command.noReplyBit() != NO_REPLY;
   }
 
-  private void onTimeout() {
-    Log.warn().log(getClass(), format("[%s] %s packet has not arrived within %s ms", session.id(), command, command.responseTimeoutMs()));
-    completeExceptionally(ReadTimeoutException.INSTANCE);
-  }
-
   private void completeExceptionally(Throwable cause) {
     responseFuture.completeExceptionally(cause);
   }
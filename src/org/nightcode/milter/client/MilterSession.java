@@ -14,9 +14,12 @@
 
 package org.nightcode.milter.client;
 
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
+import io.netty.buffer.ByteBuf;
 import org.nightcode.milter.Actions;
 import org.nightcode.milter.CommandCode;
 import org.nightcode.milter.ProtocolFamily;
@@ -38,12 +41,50 @@ public interface MilterSession extends Comparable<MilterSession> {
    * Body chunk
    * Expected response: Accept/reject action
    *
-   * @param buffer up to MILTER_CHUNK_SIZE (65535) bytes
+   * @param buffer body chunk, a buffer larger than MILTER_CHUNK_SIZE (65535) bytes is streamed
+   *               as {@link #body(ByteBuf)} does
    *
    * @return the CompletableFuture representing operation result
    */
   CompletableFuture<MilterResponse> body(byte[] buffer);
 
+  /**
+   * 'B' SMFIC_BODY
+   * Streams the body as chunks of up to MILTER_CHUNK_SIZE (65535) bytes. Chunks are pipelined while
+   * the channel is writable and streaming stops as soon as the milter replies with SMFIR_SKIP or
+   * an accept/reject action other than SMFIR_CONTINUE, the returned response ends with that action.
+   * No other command should be sent until the returned CompletableFuture completes.
+   *
+   * @param buffer readable bytes of the buffer are sent as retained slices, the buffer is released
+   *               once the body has been sent or the operation fails
+   *
+   * @return the CompletableFuture representing operation result
+   */
+  CompletableFuture<MilterResponse> body(ByteBuf buffer);
+
+  /**
+   * 'B' SMFIC_BODY
+   * Streams the body read from the stream, see {@link #body(ByteBuf)}. The stream is read on the
+   * I/O thread of the session straight into pooled buffers, it should not block and isn't closed.
+   *
+   * @param in body stream
+   *
+   * @return the CompletableFuture representing operation result
+   */
+  CompletableFuture<MilterResponse> body(InputStream in);
+
+  /**
+   * 'B' SMFIC_BODY
+   * Streams the file from its current position to its end, see {@link #body(ByteBuf)}. On socket
+   * transports the chunks are sent as file regions without copying the file to user space.
+   * The file isn't closed and its position isn't changed.
+   *
+   * @param file body file
+   *
+   * @return the CompletableFuture representing operation result
+   */
+  CompletableFuture<MilterResponse> body(FileChannel file);
+
   /**
    * 'C' SMFIC_CONNECT
    * SMTP connection information
@@ -269,8 +310,28 @@ public interface MilterSession extends Comparable<MilterSession> {
    */
   CompletableFuture<MilterResponse> data(byte[] payload, Macros macros);
 
+  /**
+   * Sends a whole message: connection information and HELO name when the envelope has them, then
+   * MAIL, RCPT, DATA, headers, end of headers, body and end of body. Steps skipped by the milter are
+   * not sent and commands the milter does not reply to are pipelined with the next one. Processing
+   * stops at the first accept/reject action other than SMFIR_CONTINUE, SMFIC_ABORT is sent in that case.
+   * A rejected recipient only stops the message if all recipients have been rejected.
+   *
+   * @param envelope message envelope
+   * @param headers  message headers
+   * @param body     message body
+   *
+   * @return the CompletableFuture representing the verdict and the modifications requested by the milter
+   */
+  CompletableFuture<MessageResult> process(Envelope envelope, Headers headers, BodySource body);
+
   String id();
 
+  /**
+   * @return {@code true} if the connection to the milter is open
+   */
+  boolean isActive();
+
   int protocolVersion();
 
   Actions milterActions();
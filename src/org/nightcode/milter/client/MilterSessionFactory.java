@@ -19,6 +19,9 @@ import java.util.concurrent.CompletableFuture;
 
 public interface MilterSessionFactory extends Closeable {
 
+  /**
+   * Closes the sessions and, once they are closed, the connection factory with its event loop group.
+   */
   @Override void close();
 
   CompletableFuture<MilterSession> createSession();
@@ -15,6 +15,8 @@
 package org.nightcode.milter.client;
 
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentSkipListSet;
@@ -29,6 +31,7 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.timeout.ReadTimeoutException;
 import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.ScheduledFuture;
@@ -141,6 +144,8 @@ class MilterSessionFactoryImpl<A extends SocketAddress> implements MilterSession
 
   static final AttributeKey<MilterSession> SESSION_KEY = AttributeKey.newInstance("session");
 
+  private static final int MAX_CONSOLIDATED_FLUSHES = 256;
+
   private static String id(ChannelHandlerContext ctx) {
     return ctx.channel().id().asLongText();
   }
@@ -165,11 +170,16 @@ class MilterSessionFactoryImpl<A extends SocketAddress> implements MilterSession
     if (!shutdown.compareAndSet(false, true)) {
       return;
     }
-    final int todo = channels.size();
+    shutdownFuture.whenComplete((v, ex) -> factory.close());
+    final List<Channel> todo = new ArrayList<>(channels);
+    if (todo.isEmpty()) {
+      shutdownFuture.complete(null);
+      return;
+    }
     final AtomicInteger done = new AtomicInteger(0);
-    for (Channel channel : channels) {
+    for (Channel channel : todo) {
       channel.close().addListener((ChannelFutureListener) future -> {
-        if (done.incrementAndGet() == todo) {
+        if (done.incrementAndGet() == todo.size()) {
           shutdownFuture.complete(null);
         }
       });
@@ -178,6 +188,10 @@ class MilterSessionFactoryImpl<A extends SocketAddress> implements MilterSession
 
   @Override public CompletableFuture<MilterSession> createSession() {
     CompletableFuture<MilterSession> resultFuture = new CompletableFuture<>();
+    if (shutdown.get()) {
+      resultFuture.completeExceptionally(new IllegalStateException("session factory has been closed"));
+      return resultFuture;
+    }
 
     Bootstrap bootstrap = factory.create();
     bootstrap.handler(new SessionInitializer(this::createOptnegHandler));
@@ -209,6 +223,8 @@ class MilterSessionFactoryImpl<A extends SocketAddress> implements MilterSession
 
     MilterSession session = channel.attr(SESSION_KEY).get();
 
+    // consolidates flushes of pipelined requests written from outside the event loop
+    channel.pipeline().addLast("flushConsolidation", new FlushConsolidationHandler(MAX_CONSOLIDATED_FLUSHES, true));
     channel.pipeline().addLast("milterResponseHandler", new ResponseHandler());
 
     Log.debug().log(getClass(), () -> format("[%s] connection %s established", channel.id().asLongText(), channel));
@@ -14,11 +14,17 @@
 
 package org.nightcode.milter.client;
 
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Supplier;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -32,6 +38,7 @@ import org.nightcode.milter.util.Futures;
 import org.nightcode.milter.util.Log;
 
 import static java.lang.String.format;
+import static org.nightcode.milter.CommandCode.SMFIC_BODY;
 import static org.nightcode.milter.client.MilterPacketFactory.createBodyChunk;
 import static org.nightcode.milter.client.MilterPacketFactory.createConnect;
 import static org.nightcode.milter.client.MilterPacketFactory.createData;
@@ -40,6 +47,7 @@ import static org.nightcode.milter.client.MilterPacketFactory.createEnvrcpt;
 import static org.nightcode.milter.client.MilterPacketFactory.createHeader;
 import static org.nightcode.milter.client.MilterPacketFactory.createHelo;
 import static org.nightcode.milter.client.MilterPacketFactory.createMacro;
+import static org.nightcode.milter.util.MilterPackets.MILTER_CHUNK_SIZE;
 
 class MilterSessionImpl implements MilterSession {
 
@@ -86,9 +94,24 @@ class MilterSessionImpl implements MilterSession {
   }
 
   @Override public CompletableFuture<MilterResponse> body(byte[] buffer) {
+    if (buffer.length > MILTER_CHUNK_SIZE) {
+      return body(Unpooled.wrappedBuffer(buffer));
+    }
     return send(() -> createBodyChunk(buffer));
   }
 
+  @Override public CompletableFuture<MilterResponse> body(ByteBuf buffer) {
+    return stream(() -> BodyStream.of(buffer));
+  }
+
+  @Override public CompletableFuture<MilterResponse> body(InputStream in) {
+    return stream(() -> BodyStream.of(in));
+  }
+
+  @Override public CompletableFuture<MilterResponse> body(FileChannel file) {
+    return stream(() -> BodyStream.of(file));
+  }
+
   @Override public CompletableFuture<MilterResponse> connect(String hostname, ProtocolFamily family, int port, String address) {
     return send(() -> createConnect(hostname, family, port, address));
   }
@@ -167,10 +190,20 @@ class MilterSessionImpl implements MilterSession {
     return send(macros, () -> createData(payload));
   }
 
+  @Override public CompletableFuture<MessageResult> process(Envelope envelope, Headers headers, BodySource body) {
+    CompletableFuture<MessageResult> resultFuture = new CompletableFuture<>();
+    new MessageTransaction(this, channel, envelope, headers, body, resultFuture).execute();
+    return resultFuture;
+  }
+
   @Override public String id() {
     return channel.id().asLongText();
   }
 
+  @Override public boolean isActive() {
+    return channel.isActive();
+  }
+
   @Override public int protocolVersion() {
     return protocolVersion;
   }
@@ -208,6 +241,56 @@ class MilterSessionImpl implements MilterSession {
     }
   }
 
+  /**
+   * @return the CompletableFuture completed with the number of requests waiting for a reply
+   */
+  CompletableFuture<Integer> inFlight() {
+    CompletableFuture<Integer> future = new CompletableFuture<>();
+    try {
+      channel.eventLoop().execute(() -> {
+        ResponseHandler responseHandler = channel.pipeline().get(ResponseHandler.class);
+        future.complete(responseHandler != null ? responseHandler.inFlight() : 0);
+      });
+    } catch (RejectedExecutionException ex) {
+      future.completeExceptionally(ex);
+    }
+    return future;
+  }
+
+  /**
+   * @return the CompletableFuture completed once the connection to the milter is closed
+   */
+  CompletableFuture<Void> closeFuture() {
+    return closeFuture;
+  }
+
+  CompletableFuture<MilterResponse> stream(Callable<BodyStream.Chunks> supplier) {
+    try {
+      BodyStream.Chunks chunks = supplier.call();
+      if ((milterProtocolSteps.bitmap() & SMFIC_BODY.noStepBit()) != 0) {
+        Log.debug().log(getClass()
+            , format("[%s] noStep bit has non-zero value for %s but attempt to send packet has been caught", id(), SMFIC_BODY));
+        chunks.close();
+        return CompletableFuture.completedFuture(MilterResponse.of(this));
+      }
+
+      CompletableFuture<MilterResponse> responseFuture = new CompletableFuture<>();
+
+      boolean    needReply = (SMFIC_BODY.noReplyBit() & milterProtocolSteps.bitmap()) == 0;
+      BodyStream stream    = new BodyStream(this, chunks, needReply, responseFuture);
+      channel.writeAndFlush(stream).addListener(future -> {
+        if (!future.isSuccess()) {
+          chunks.close();
+          responseFuture.completeExceptionally(future.cause());
+        }
+      });
+
+      return responseFuture;
+    } catch (Exception ex) {
+      return Futures.failedFuture(ex);
+    }
+  }
+
   CompletableFuture<MilterResponse> send(Macros macros, Supplier<MilterPacket> supplier) {
     try {
       MilterPacket packet  = supplier.get();
@@ -0,0 +1,389 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.nightcode.milter.util.ExecutorUtils;
+import org.nightcode.milter.util.Futures;
+import org.nightcode.milter.util.Log;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.util.ExecutorUtils.namedThreadFactory;
+
+/**
+ * Pool of negotiated milter sessions to one endpoint, the endpoint of the given {@link MilterSessionFactory}.
+ * A session is {@link #lease() leased} for one SMTP session (one or more messages) and is returned to the pool
+ * with SMFIC_ABORT and SMFIC_QUIT_NC, so the next lease starts a new SMTP session on the same connection
+ * without the connect and SMFIC_OPTNEG round trips.
+ *
+ * <p>The pool keeps at least {@code minIdle} idle sessions and at most {@code maxSize} sessions in total.
+ * Once per health check interval closed sessions are dropped, sessions idle for longer than the idle timeout
+ * are closed (down to {@code minIdle}) and the pool is refilled up to {@code minIdle}.
+ */
+public final class MilterSessionPool implements Closeable {
+
+  public static final class Builder {
+    private MilterSessionFactory sessionFactory;
+    private int                  minIdle;
+    private int                  maxSize               = 8;
+    private long                 idleTimeoutMs         = 60_000;
+    private long                 healthCheckIntervalMs = 5_000;
+    private long                 leaseTimeoutMs        = 5_000;
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder sessionFactory(MilterSessionFactory sessionFactory) {
+      this.sessionFactory = sessionFactory;
+      return this;
+    }
+
+    /**
+     * Sets the number of idle sessions kept warm, 0 by default.
+     *
+     * @param minIdle minimum number of idle sessions
+     * @return the current {@link Builder} instance
+     */
+    public Builder minIdle(int minIdle) {
+      this.minIdle = minIdle;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of sessions, idle and leased, 8 by default.
+     *
+     * @param maxSize maximum number of sessions
+     * @return the current {@link Builder} instance
+     */
+    public Builder maxSize(int maxSize) {
+      this.maxSize = maxSize;
+      return this;
+    }
+
+    public Builder idleTimeout(long idleTimeoutMs) {
+      this.idleTimeoutMs = idleTimeoutMs;
+      return this;
+    }
+
+    public Builder healthCheckInterval(long healthCheckIntervalMs) {
+      this.healthCheckIntervalMs = healthCheckIntervalMs;
+      return this;
+    }
+
+    /**
+     * Sets how long {@link #lease()} waits for a session when all sessions are leased, 5 s by default.
+     *
+     * @param leaseTimeoutMs lease timeout
+     * @return the current {@link Builder} instance
+     */
+    public Builder leaseTimeout(long leaseTimeoutMs) {
+      this.leaseTimeoutMs = leaseTimeoutMs;
+      return this;
+    }
+
+    public MilterSessionPool build() {
+      if (sessionFactory == null) {
+        throw new IllegalStateException("MilterSessionFactory should be initialized");
+      }
+      if (minIdle < 0 || maxSize < 1 || minIdle > maxSize) {
+        throw new IllegalArgumentException(format("invalid pool size: minIdle=%s, maxSize=%s", minIdle, maxSize));
+      }
+      if (idleTimeoutMs <= 0 || healthCheckIntervalMs <= 0 || leaseTimeoutMs <= 0) {
+        throw new IllegalArgumentException("timeouts must be positive");
+      }
+      return new MilterSessionPool(this);
+    }
+  }
+
+  /**
+   * Session leased from the pool. Closing the lease returns the session to the pool.
+   */
+  public final class Lease implements AutoCloseable {
+    private final MilterSession session;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Lease(MilterSession session) {
+      this.session = session;
+    }
+
+    public MilterSession session() {
+      return session;
+    }
+
+    /**
+     * Resets the session with SMFIC_ABORT and SMFIC_QUIT_NC and returns it to the pool.
+     * A session with requests still waiting for a reply (e.g. abandoned after a timeout) is closed instead,
+     * otherwise those replies would be taken for the replies to the next lessee's requests.
+     */
+    @Override public void close() {
+      if (released.compareAndSet(false, true)) {
+        session.abort()
+            .thenCompose(r -> session.quitNc())
+            .thenCompose(r -> inFlight(session))
+            .whenComplete((inFlight, ex) -> {
+              if (ex == null && inFlight == 0 && session.isActive()) {
+                release(session);
+              } else {
+                if (ex == null && inFlight > 0) {
+                  Log.debug().log(getClass(), () -> format("[%s] %s requests are waiting for a reply, closing session"
+                      , session.id(), inFlight));
+                }
+                discard(session);
+              }
+            });
+      }
+    }
+
+    /**
+     * Closes the session instead of returning it to the pool, e.g. after a failed command.
+     */
+    public void invalidate() {
+      if (released.compareAndSet(false, true)) {
+        discard(session);
+      }
+    }
+  }
+
+  private static final class IdleSession {
+    private final MilterSession session;
+    private final long          idleSinceNanos;
+
+    private IdleSession(MilterSession session, long idleSinceNanos) {
+      this.session        = session;
+      this.idleSinceNanos = idleSinceNanos;
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final MilterSessionFactory     sessionFactory;
+  private final int                      minIdle;
+  private final int                      maxSize;
+  private final long                     idleTimeoutNanos;
+  private final long                     leaseTimeoutMs;
+  private final ScheduledExecutorService executor;
+
+  private final Deque<IdleSession>                      idle    = new ArrayDeque<>();
+  private final Deque<CompletableFuture<MilterSession>> waiters = new ArrayDeque<>();
+
+  private int     size;
+  private boolean closed;
+
+  private MilterSessionPool(Builder builder) {
+    sessionFactory   = builder.sessionFactory;
+    minIdle          = builder.minIdle;
+    maxSize          = builder.maxSize;
+    idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(builder.idleTimeoutMs);
+    leaseTimeoutMs   = builder.leaseTimeoutMs;
+
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, namedThreadFactory("jmilter-session-pool"));
+    scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    executor = scheduler;
+    executor.scheduleWithFixedDelay(this::healthCheck, builder.healthCheckIntervalMs, builder.healthCheckIntervalMs
+        , TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Opens sessions until the pool holds {@code minIdle} idle sessions.
+   *
+   * @return future completed once the sessions are open
+   */
+  public CompletableFuture<Void> warm() {
+    List<CompletableFuture<MilterSession>> futures = new ArrayList<>();
+    synchronized (this) {
+      while (!closed && idle.size() + futures.size() < minIdle && size < maxSize) {
+        size++;
+        futures.add(open().thenApply(session -> {
+          release(session);
+          return session;
+        }));
+      }
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /**
+   * Leases a session, waits up to the lease timeout if all sessions are leased.
+   *
+   * @return the CompletableFuture representing the leased session
+   */
+  public CompletableFuture<Lease> lease() {
+    CompletableFuture<MilterSession> future;
+    synchronized (this) {
+      if (closed) {
+        return Futures.failedFuture(new IllegalStateException("session pool has been closed"));
+      }
+      IdleSession idleSession;
+      while ((idleSession = idle.pollLast()) != null) {
+        if (idleSession.session.isActive()) {
+          return CompletableFuture.completedFuture(new Lease(idleSession.session));
+        }
+        size--;
+      }
+      if (size < maxSize) {
+        size++;
+        future = open();
+      } else {
+        future = new CompletableFuture<>();
+        waiters.addLast(future);
+        CompletableFuture<MilterSession> waiter = future;
+        executor.schedule(() -> {
+          if (removeWaiter(waiter)) {
+            waiter.completeExceptionally(new TimeoutException("no session has been released within " + leaseTimeoutMs + " ms"));
+          }
+        }, leaseTimeoutMs, TimeUnit.MILLISECONDS);
+      }
+    }
+    return future.thenApply(Lease::new);
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized int idle() {
+    return idle.size();
+  }
+
+  /**
+   * Closes idle sessions; leased sessions are closed once released.
+   */
+  @Override public void close() {
+    List<IdleSession> toClose;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      toClose = new ArrayList<>(idle);
+      idle.clear();
+      size -= toClose.size();
+      for (CompletableFuture<MilterSession> waiter : waiters) {
+        waiter.completeExceptionally(new IllegalStateException("session pool has been closed"));
+      }
+      waiters.clear();
+    }
+    for (IdleSession idleSession : toClose) {
+      idleSession.session.quit();
+    }
+    ExecutorUtils.shutdown(executor);
+  }
+
+  void healthCheck() {
+    List<MilterSession> toClose = new ArrayList<>();
+    synchronized (this) {
+      long now = System.nanoTime();
+      for (Iterator<IdleSession> iterator = idle.iterator(); iterator.hasNext();) {
+        IdleSession idleSession = iterator.next();
+        if (!idleSession.session.isActive()) {
+          iterator.remove();
+          size--;
+        } else if (idle.size() > minIdle && now - idleSession.idleSinceNanos > idleTimeoutNanos) {
+          iterator.remove();
+          size--;
+          toClose.add(idleSession.session);
+        }
+      }
+    }
+    for (MilterSession session : toClose) {
+      Log.debug().log(getClass(), () -> format("[%s] idle session has been evicted", session.id()));
+      session.quit();
+    }
+    warm();
+  }
+
+  private CompletableFuture<MilterSession> open() {
+    CompletableFuture<MilterSession> future = sessionFactory.createSession();
+    future.whenComplete((session, ex) -> {
+      if (ex != null) {
+        Log.info().log(getClass(), () -> "unable to open milter session", ex);
+        synchronized (this) {
+          size--;
+        }
+      }
+    });
+    return future;
+  }
+
+  private void release(MilterSession session) {
+    CompletableFuture<MilterSession> waiter;
+    synchronized (this) {
+      if (closed) {
+        size--;
+        waiter = null;
+      } else {
+        waiter = waiters.pollFirst();
+        if (waiter == null) {
+          idle.addLast(new IdleSession(session, System.nanoTime()));
+          return;
+        }
+      }
+    }
+    if (waiter == null) {
+      session.quit();
+    } else if (!waiter.complete(session)) {
+      release(session);
+    }
+  }
+
+  private void discard(MilterSession session) {
+    CompletableFuture<MilterSession> waiter = null;
+    synchronized (this) {
+      size--;
+      if (!closed && !waiters.isEmpty()) {
+        // open a replacement for a session waiting lease
+        waiter = waiters.pollFirst();
+        size++;
+      }
+    }
+    session.quit();
+    if (waiter != null) {
+      CompletableFuture<MilterSession> target = waiter;
+      open().whenComplete((replacement, ex) -> {
+        if (ex != null) {
+          target.completeExceptionally(ex);
+        } else if (!target.complete(replacement)) {
+          release(replacement);
+        }
+      });
+    }
+  }
+
+  private static CompletableFuture<Integer> inFlight(MilterSession session) {
+    if (session instanceof MilterSessionImpl) {
+      return ((MilterSessionImpl) session).inFlight();
+    }
+    return CompletableFuture.completedFuture(0);
+  }
+
+  private synchronized boolean removeWaiter(CompletableFuture<MilterSession> waiter) {
+    return waiters.remove(waiter);
+  }
+}
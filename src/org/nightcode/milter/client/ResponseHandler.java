@@ -14,49 +14,99 @@
 
 package org.nightcode.milter.client;
 
+import java.util.concurrent.TimeUnit;
+
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import io.netty.handler.timeout.ReadTimeoutException;
 import io.netty.util.concurrent.PromiseCombiner;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.CommandCode;
 import org.nightcode.milter.codec.MilterPacket;
 import org.nightcode.milter.util.Log;
 
 import static java.lang.String.format;
+import static org.nightcode.milter.ResponseCode.SMFIR_PROGRESS;
 
 /**
- * IMPORTANT! not thread safe
+ * Writes milter messages and routes replies to their callbacks. Requests are pipelined:
+ * callbacks of the requests waiting for a reply are kept in write order and replies are
+ * matched to them in that order, messages that need no reply are written right away.
+ *
+ * <p>Response timeouts are tracked here as well: every pending callback has a deadline slot
+ * next to it and a single task per channel fires at the earliest deadline, fails the expired
+ * callbacks and reschedules itself for the next one. SMFIR_PROGRESS moves the deadline of
+ * the callback it has been received for. A missed deadline makes the connection unusable, since the reply
+ * could still arrive and would be matched to the next request: all pending callbacks are failed
+ * and the channel is closed.
+ *
+ * <p>No message is accepted while a {@link BodyStream} is writing its chunks, the chunks' callbacks
+ * would otherwise be interleaved with the callback of the message.
+ *
+ * <p>IMPORTANT! not thread safe
  */
 class ResponseHandler extends ChannelDuplexHandler {
 
+  private static final int  INITIAL_CAPACITY = 16;
+  private static final long NO_DEADLINE      = Long.MAX_VALUE;
+
   private static String id(ChannelHandlerContext ctx) {
     return ctx.channel().id().asLongText();
   }
 
-  private MilterCallback callback;
+  private static long deadline(ChannelHandlerContext ctx, @Nullable CommandCode command) {
+    long timeoutMs = command != null ? command.responseTimeoutMs() : 0;
+    if (timeoutMs <= 0) {
+      return NO_DEADLINE;
+    }
+    return ctx.executor().ticker().nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+  }
+
+  private MilterCallback[] callbacks = new MilterCallback[INITIAL_CAPACITY];
+  private CommandCode[]    commands  = new CommandCode[INITIAL_CAPACITY];
+  private long[]           deadlines = new long[INITIAL_CAPACITY];
+  private int              head;
+  private int              size;
+
+  private ScheduledFuture<?> sweepFuture;
+  private long               sweepDeadline;
+
+  private BodyStream bodyStream;
 
   @Override public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
-    if (msg instanceof MilterMessage) {
+    if (bodyStream != null && (msg instanceof MilterMessage || msg instanceof BodyStream)) {
+      promise.setFailure(new IllegalStateException("[" + id(ctx) + "] body is being streamed, no other message can be written"));
+    } else if (msg instanceof MilterMessage) {
       write(ctx, (MilterMessage) msg, promise);
+    } else if (msg instanceof BodyStream) {
+      bodyStream = (BodyStream) msg;
+      promise.trySuccess();
+      bodyStream.start(ctx, this);
     } else {
       promise.setFailure(new IllegalArgumentException("[" + id(ctx) + "] unsupported message type " + msg.getClass()));
     }
   }
 
   @Override public void channelRead(ChannelHandlerContext ctx, Object msg) {
-    MilterCallback tmpCallback = callback;
-    if (tmpCallback == null) {
+    if (size == 0) {
       Log.warn().log(getClass(), format("[%s] received packet %s but no callback has been registered", id(ctx), msg));
       return;
     }
+    MilterCallback tmpCallback = callbacks[head];
 
     try {
       MilterPacket packet = (MilterPacket) msg;
       if (tmpCallback.isFinalAction(packet)) {
         Log.debug().log(getClass(), () -> format("[%s] received final action %s", id(ctx), packet));
-        callback = null;
+        pollFirst();
       } else {
         Log.debug().log(getClass(), () -> format("[%s] received non-final action %s", id(ctx), packet));
+        if (packet.command() == SMFIR_PROGRESS.code() && deadlines[head] != NO_DEADLINE) {
+          deadlines[head] = deadline(ctx, commands[head]);
+        }
       }
       tmpCallback.onAction(packet);
     } catch (Exception ex) {
@@ -65,31 +115,52 @@ class ResponseHandler extends ChannelDuplexHandler {
   }
 
   @Override public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-    MilterCallback tmpCallback = callback;
-    if (tmpCallback != null) {
-      tmpCallback.onFailure(cause);
-    }
-    callback = null;
+    failAll(cause);
     ctx.close();
   }
 
   @Override public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-    MilterCallback tmpCallback = callback;
-    if (tmpCallback != null) {
-      tmpCallback.onFailure(new ChannelException("[" + id(ctx) + "] connection to Milter has been closed"));
-    }
-    callback = null;
+    failAll(new ChannelException("[" + id(ctx) + "] connection to Milter has been closed"));
     super.channelInactive(ctx);
   }
 
+  @Override public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    if (bodyStream != null && ctx.channel().isWritable()) {
+      bodyStream.resume();
+    }
+    super.channelWritabilityChanged(ctx);
+  }
+
+  /**
+   * Registers a callback for a request written past this handler, e.g. a body chunk of a {@link BodyStream}.
+   */
+  void expectReply(ChannelHandlerContext ctx, MilterCallback callback, CommandCode command) {
+    addLast(ctx, callback, command);
+  }
+
+  void endStream(BodyStream stream) {
+    if (bodyStream == stream) {
+      bodyStream = null;
+    }
+  }
+
+  int inFlight() {
+    return size;
+  }
+
   private void write(ChannelHandlerContext ctx, MilterMessage message, ChannelPromise promise) {
+    MilterCallback callback = message.callback();
     if (callback != null) {
-      promise.tryFailure(new IllegalStateException(format("[%s] previous request %s wasn't correctly completed", id(ctx), callback)));
-      return;
+      addLast(ctx, callback, message.command());
+      if (!promise.isVoid()) {
+        promise.addListener(future -> {
+          if (!future.isSuccess()) {
+            remove(callback);
+          }
+        });
+      }
     }
 
-    callback = message.callback();
-
     if (message.packets().length == 1) {
       Log.debug().log(getClass(), () -> format("[%s] writing command %s", id(ctx), message.packets()[0]));
       ctx.writeAndFlush(message.packets()[0], promise);
@@ -103,4 +174,117 @@ class ResponseHandler extends ChannelDuplexHandler {
       ctx.flush();
     }
   }
+
+  private void addLast(ChannelHandlerContext ctx, MilterCallback callback, @Nullable CommandCode command) {
+    if (size == callbacks.length) {
+      grow();
+    }
+    long deadline = deadline(ctx, command);
+    int  index    = (head + size++) & (callbacks.length - 1);
+    callbacks[index] = callback;
+    commands[index]  = command;
+    deadlines[index] = deadline;
+
+    if (deadline != NO_DEADLINE && (sweepFuture == null || deadline < sweepDeadline)) {
+      scheduleSweep(ctx, deadline);
+    }
+  }
+
+  private void pollFirst() {
+    callbacks[head] = null;
+    commands[head]  = null;
+    head = (head + 1) & (callbacks.length - 1);
+    size--;
+  }
+
+  private void remove(MilterCallback callback) {
+    int mask = callbacks.length - 1;
+    for (int i = 0; i < size; i++) {
+      if (callbacks[(head + i) & mask] == callback) {
+        for (int j = i; j < size - 1; j++) {
+          int to   = (head + j) & mask;
+          int from = (head + j + 1) & mask;
+          callbacks[to] = callbacks[from];
+          commands[to]  = commands[from];
+          deadlines[to] = deadlines[from];
+        }
+        int last = (head + size - 1) & mask;
+        callbacks[last] = null;
+        commands[last]  = null;
+        size--;
+        return;
+      }
+    }
+  }
+
+  private void grow() {
+    int              capacity     = callbacks.length << 1;
+    MilterCallback[] newCallbacks = new MilterCallback[capacity];
+    CommandCode[]    newCommands  = new CommandCode[capacity];
+    long[]           newDeadlines = new long[capacity];
+    int              mask         = callbacks.length - 1;
+    for (int i = 0; i < size; i++) {
+      newCallbacks[i] = callbacks[(head + i) & mask];
+      newCommands[i]  = commands[(head + i) & mask];
+      newDeadlines[i] = deadlines[(head + i) & mask];
+    }
+    callbacks = newCallbacks;
+    commands  = newCommands;
+    deadlines = newDeadlines;
+    head      = 0;
+  }
+
+  private void failAll(Throwable cause) {
+    cancelSweep();
+    while (size > 0) {
+      MilterCallback tmpCallback = callbacks[head];
+      pollFirst();
+      tmpCallback.onFailure(cause);
+    }
+  }
+
+  private void scheduleSweep(ChannelHandlerContext ctx, long deadline) {
+    cancelSweep();
+    sweepDeadline = deadline;
+    long delay = deadline - ctx.executor().ticker().nanoTime();
+    sweepFuture = ctx.executor().schedule(() -> sweep(ctx), Math.max(delay, 0), TimeUnit.NANOSECONDS);
+  }
+
+  private void cancelSweep() {
+    if (sweepFuture != null) {
+      sweepFuture.cancel(false);
+      sweepFuture = null;
+    }
+  }
+
+  /**
+   * Fails all pending callbacks and closes the channel if a deadline has passed, otherwise
+   * reschedules itself for the earliest deadline.
+   */
+  private void sweep(ChannelHandlerContext ctx) {
+    sweepFuture = null;
+    long now  = ctx.executor().ticker().nanoTime();
+    long next = NO_DEADLINE;
+
+    for (int i = 0; i < size; i++) {
+      int  index    = (head + i) & (callbacks.length - 1);
+      long deadline = deadlines[index];
+      if (deadline == NO_DEADLINE) {
+        continue;
+      }
+      if (deadline - now <= 0) {
+        CommandCode command = commands[index];
+        Log.warn().log(getClass(), format("[%s] %s reply has not arrived within %s ms, closing connection", id(ctx), command
+            , command.responseTimeoutMs()));
+        failAll(ReadTimeoutException.INSTANCE);
+        ctx.close();
+        return;
+      } else if (deadline < next) {
+        next = deadline;
+      }
+    }
+    if (next != NO_DEADLINE) {
+      scheduleSweep(ctx, next);
+    }
+  }
 }
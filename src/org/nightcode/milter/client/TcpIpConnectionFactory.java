@@ -48,11 +48,36 @@ class TcpIpConnectionFactory implements ConnectionFactory<InetSocketAddress> {
 
   private final InetSocketAddress address;
 
+  private Bootstrap template;
+  private boolean   closed;
+
   TcpIpConnectionFactory(InetSocketAddress address) {
     this.address = address;
   }
 
-  @Override public Bootstrap create() {
+  @Override public synchronized Bootstrap create() {
+    if (closed) {
+      throw new IllegalStateException("connection factory has been closed");
+    }
+    if (template == null) {
+      template = createTemplate();
+    }
+    return template.clone();
+  }
+
+  @Override public InetSocketAddress remoteAddress() {
+    return address;
+  }
+
+  @Override public synchronized void close() {
+    closed = true;
+    if (template != null) {
+      template.config().group().shutdownGracefully();
+      template = null;
+    }
+  }
+
+  private Bootstrap createTemplate() {
     int nThreads = getInt(NETTY_NUMBER_OF_THREADS, 0);
 
     Supplier<IoHandlerFactory> factorySupplier;
@@ -87,8 +112,4 @@ class TcpIpConnectionFactory implements ConnectionFactory<InetSocketAddress> {
 
     return bootstrap;
   }
-
-  @Override public InetSocketAddress remoteAddress() {
-    return address;
-  }
 }
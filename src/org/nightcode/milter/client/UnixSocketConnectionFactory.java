@@ -43,11 +43,36 @@ class UnixSocketConnectionFactory implements ConnectionFactory<DomainSocketAddre
 
   private final DomainSocketAddress address;
 
+  private Bootstrap template;
+  private boolean   closed;
+
   UnixSocketConnectionFactory(DomainSocketAddress address) {
     this.address = address;
   }
 
-  @Override public Bootstrap create() {
+  @Override public synchronized Bootstrap create() {
+    if (closed) {
+      throw new IllegalStateException("connection factory has been closed");
+    }
+    if (template == null) {
+      template = createTemplate();
+    }
+    return template.clone();
+  }
+
+  @Override public DomainSocketAddress remoteAddress() {
+    return address;
+  }
+
+  @Override public synchronized void close() {
+    closed = true;
+    if (template != null) {
+      template.config().group().shutdownGracefully();
+      template = null;
+    }
+  }
+
+  private Bootstrap createTemplate() {
     int nThreads = getInt(NETTY_NUMBER_OF_THREADS, 0);
 
     Supplier<IoHandlerFactory> factorySupplier;
@@ -78,8 +103,4 @@ class UnixSocketConnectionFactory implements ConnectionFactory<DomainSocketAddre
 
     return bootstrap;
   }
-
-  @Override public DomainSocketAddress remoteAddress() {
-    return address;
-  }
 }
@@ -21,6 +21,8 @@ import org.nightcode.milter.util.Log;
 
 import static java.lang.String.format;
 import static org.nightcode.milter.CommandCode.SMFIC_ABORT;
+import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
+import static org.nightcode.milter.CommandCode.SMFIC_MACRO;
 
 public final class CommandEngine {
 
@@ -36,10 +38,12 @@ public final class CommandEngine {
     processors.put(commandHandler.command().code(), commandHandler);
   }
 
-  private final CommandProcessor unknownCommandProcessor;
+  private final CommandProcessor       unknownCommandProcessor;
+  private final HeaderCommandProcessor headerCommandProcessor;
 
   private CommandEngine() {
     unknownCommandProcessor = new UnknownCommandProcessor();
+    headerCommandProcessor  = new HeaderCommandProcessor();
 
     synchronized (processors) {
       addProcessor(processors, new AbortCommandProcessor());
@@ -49,7 +53,7 @@ public final class CommandEngine {
       addProcessor(processors, new EndOfBodyCommandProcessor());
       addProcessor(processors, new HeloCommandProcessor());
       addProcessor(processors, new QuitNcCommandProcessor());
-      addProcessor(processors, new HeaderCommandProcessor());
+      addProcessor(processors, headerCommandProcessor);
       addProcessor(processors, new EnvfromCommandProcessor());
       addProcessor(processors, new EndOfHeadersCommandProcessor());
       addProcessor(processors, new OptnegCommandProcessor());
@@ -66,6 +70,10 @@ public final class CommandEngine {
       processor = unknownCommandProcessor;
     }
     try {
+      int command = milterPacket.command();
+      if (command != SMFIC_HEADER.code() && command != SMFIC_MACRO.code()) {
+        headerCommandProcessor.flush(context);
+      }
       processor.submit(context, milterPacket);
     } catch (Exception ex) {
       Log.warn().log(getClass(), format("[%s] unable to process milter packet: %s", context.id(), milterPacket), ex);
@@ -73,4 +81,20 @@ public final class CommandEngine {
       context.handler().abortSession(context, milterPacket);
     }
   }
+
+  /**
+   * Delivers headers batched for {@link org.nightcode.milter.HeaderBatchHandler}, should be called
+   * when the current read batch is completed.
+   *
+   * @param context milter context
+   */
+  public void flush(MilterContext context) {
+    try {
+      headerCommandProcessor.flush(context);
+    } catch (Exception ex) {
+      Log.warn().log(getClass(), format("[%s] unable to process batched headers", context.id()), ex);
+      context.setSessionStep(SMFIC_ABORT);
+      context.handler().abortSession(context, null);
+    }
+  }
 }
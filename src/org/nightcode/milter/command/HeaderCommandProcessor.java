@@ -16,19 +16,34 @@ package org.nightcode.milter.command;
 
 import java.nio.charset.StandardCharsets;
 
+import io.netty.util.AttributeKey;
 import org.nightcode.milter.Code;
+import org.nightcode.milter.HeaderBatch;
+import org.nightcode.milter.HeaderBatchHandler;
 import org.nightcode.milter.MilterContext;
 import org.nightcode.milter.MilterException;
+import org.nightcode.milter.ProtocolSteps;
 import org.nightcode.milter.codec.MilterPacket;
 import org.nightcode.milter.util.Log;
 import org.nightcode.milter.util.MilterPackets;
 
 import static java.lang.String.format;
 import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
+import static org.nightcode.milter.ProtocolSteps.NO_REPLY_FOR_HEADERS;
 import static org.nightcode.milter.util.MilterPackets.ZERO_TERM_LENGTH;
 
 class HeaderCommandProcessor implements CommandProcessor {
 
+  private static final AttributeKey<HeaderBatch> HEADER_BATCH = AttributeKey.valueOf(HeaderCommandProcessor.class, "headerBatch");
+
+  private static boolean isBatched(MilterContext context) {
+    if (!(context.handler() instanceof HeaderBatchHandler)) {
+      return false;
+    }
+    ProtocolSteps steps = context.getSessionProtocolSteps();
+    return steps != null && (steps.bitmap() & NO_REPLY_FOR_HEADERS) != 0;
+  }
+
   @Override public Code command() {
     return SMFIC_HEADER;
   }
@@ -51,6 +66,16 @@ class HeaderCommandProcessor implements CommandProcessor {
       return;
     }
 
+    if (isBatched(context)) {
+      HeaderBatch batch = context.attr(HEADER_BATCH).get();
+      if (batch == null) {
+        batch = new HeaderBatch();
+        context.attr(HEADER_BATCH).set(batch);
+      }
+      batch.add(packet.payload(), i);
+      return;
+    }
+
     int offset = 0;
     String headerName = new String(packet.payload(), offset, i, StandardCharsets.UTF_8);
     i++;
@@ -60,4 +85,23 @@ class HeaderCommandProcessor implements CommandProcessor {
 
     context.handler().header(context, headerName, headerValue);
   }
+
+  /**
+   * Delivers pending headers to {@link HeaderBatchHandler}.
+   */
+  void flush(MilterContext context) throws MilterException {
+    if (!context.hasAttr(HEADER_BATCH)) {
+      return;
+    }
+    HeaderBatch batch = context.attr(HEADER_BATCH).get();
+    if (batch == null || batch.size() == 0) {
+      return;
+    }
+    try {
+      context.setSessionStep(SMFIC_HEADER);
+      ((HeaderBatchHandler) context.handler()).headers(context, batch);
+    } finally {
+      batch.clear();
+    }
+  }
 }
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+import java.util.Arrays;
+
+/**
+ * Streaming base64 decoder (RFC 2045). Characters outside of the base64 alphabet are ignored,
+ * decoding of a part stops at the first padding character.
+ */
+public final class Base64Decoder implements TransferDecoder {
+
+  private static final int INVALID = -1;
+  private static final int PADDING = -2;
+
+  private static final int[] DECODE_TABLE = new int[256];
+
+  static {
+    Arrays.fill(DECODE_TABLE, INVALID);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      DECODE_TABLE[alphabet.charAt(i)] = i;
+    }
+    DECODE_TABLE['='] = PADDING;
+  }
+
+  private final byte[] buffer;
+
+  private int     bits;
+  private int     count;
+  private int     position;
+  private boolean padded;
+
+  public Base64Decoder() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  public Base64Decoder(int bufferSize) {
+    if (bufferSize < 3) {
+      throw new IllegalArgumentException("buffer size must be greater than 2");
+    }
+    buffer = new byte[bufferSize];
+  }
+
+  @Override public void decode(byte[] src, int offset, int length, PartConsumer consumer) {
+    int end = offset + length;
+    for (int i = offset; i < end && !padded; i++) {
+      int value = DECODE_TABLE[src[i] & 0xFF];
+      if (value >= 0) {
+        bits = (bits << 6) | value;
+        if (++count == 4) {
+          if (position > buffer.length - 3) {
+            flush(consumer);
+          }
+          buffer[position++] = (byte) (bits >> 16);
+          buffer[position++] = (byte) (bits >> 8);
+          buffer[position++] = (byte) bits;
+          bits  = 0;
+          count = 0;
+        }
+      } else if (value == PADDING) {
+        padded = true;
+      }
+    }
+    if (padded) {
+      tail(consumer);
+    }
+    flush(consumer);
+  }
+
+  @Override public void finish(PartConsumer consumer) {
+    tail(consumer);
+    flush(consumer);
+    reset();
+  }
+
+  @Override public void reset() {
+    bits     = 0;
+    count    = 0;
+    position = 0;
+    padded   = false;
+  }
+
+  private void tail(PartConsumer consumer) {
+    if (count < 2) {
+      count = 0;
+      bits  = 0;
+      return;
+    }
+    if (position > buffer.length - 2) {
+      flush(consumer);
+    }
+    if (count == 2) {
+      buffer[position++] = (byte) (bits >> 4);
+    } else {
+      buffer[position++] = (byte) (bits >> 10);
+      buffer[position++] = (byte) (bits >> 2);
+    }
+    bits  = 0;
+    count = 0;
+  }
+
+  private void flush(PartConsumer consumer) {
+    if (position > 0) {
+      consumer.data(buffer, 0, position);
+      position = 0;
+    }
+  }
+}
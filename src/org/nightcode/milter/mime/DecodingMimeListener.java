@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+import java.util.Locale;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * {@link MimeListener} that decodes the content of leaf parts according to their
+ * {@code Content-Transfer-Encoding} and passes decoded bytes to consumers created
+ * by {@link PartConsumerFactory}. Decoders are allocated once and reused for all parts.
+ */
+public final class DecodingMimeListener implements MimeListener {
+
+  private static final String DEFAULT_CONTENT_TYPE = "text/plain";
+
+  private final PartConsumerFactory consumerFactory;
+
+  private final Base64Decoder          base64Decoder          = new Base64Decoder();
+  private final QuotedPrintableDecoder quotedPrintableDecoder = new QuotedPrintableDecoder();
+
+  private @Nullable String contentType;
+  private @Nullable String transferEncoding;
+  private @Nullable String disposition;
+
+  private int depth = -1;
+
+  private boolean                   resolved;
+  private @Nullable PartConsumer    consumer;
+  private @Nullable TransferDecoder decoder;
+
+  public DecodingMimeListener(PartConsumerFactory consumerFactory) {
+    this.consumerFactory = consumerFactory;
+  }
+
+  @Override public void partStart(int depth, long offset) {
+    this.depth       = depth;
+    contentType      = null;
+    transferEncoding = null;
+    disposition      = null;
+    resolved         = false;
+    consumer         = null;
+    decoder          = null;
+  }
+
+  @Override public void partHeader(int depth, String name, String value, long offset) {
+    if (depth != this.depth) {
+      return;
+    }
+    if (MimeHeaders.CONTENT_TYPE.equalsIgnoreCase(name)) {
+      contentType = value;
+    } else if (MimeHeaders.CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(name)) {
+      transferEncoding = value;
+    } else if (MimeHeaders.CONTENT_DISPOSITION.equalsIgnoreCase(name)) {
+      disposition = value;
+    }
+  }
+
+  @Override public void partData(int depth, byte[] data, int offset, int length, long bodyOffset) {
+    if (!resolved) {
+      resolve(depth);
+    }
+    if (consumer == null) {
+      return;
+    }
+    if (decoder != null) {
+      decoder.decode(data, offset, length, consumer);
+    } else {
+      consumer.data(data, offset, length);
+    }
+  }
+
+  @Override public void partEnd(int depth, long offset) {
+    if (depth != this.depth
+        || (!resolved && contentType != null && MimeHeaders.mediaType(contentType).startsWith("multipart/"))) {
+      return;
+    }
+    if (!resolved) {
+      resolve(depth);
+    }
+    if (consumer != null) {
+      if (decoder != null) {
+        decoder.finish(consumer);
+      }
+      consumer.end();
+    }
+    consumer   = null;
+    decoder    = null;
+    resolved   = false;
+    this.depth = -1;
+  }
+
+  private void resolve(int depth) {
+    resolved = true;
+
+    String type     = contentType != null ? MimeHeaders.mediaType(contentType) : DEFAULT_CONTENT_TYPE;
+    String fileName = disposition != null ? MimeHeaders.parameter(disposition, "filename") : null;
+    if (fileName == null && contentType != null) {
+      fileName = MimeHeaders.parameter(contentType, "name");
+    }
+
+    consumer = consumerFactory.create(depth, type, fileName);
+    if (consumer == null || transferEncoding == null) {
+      decoder = null;
+      return;
+    }
+    switch (transferEncoding.trim().toLowerCase(Locale.ROOT)) {
+      case "base64":
+        decoder = base64Decoder;
+        break;
+      case "quoted-printable":
+        decoder = quotedPrintableDecoder;
+        break;
+      default:
+        decoder = null;
+        break;
+    }
+    if (decoder != null) {
+      decoder.reset();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+import java.util.Locale;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Helpers for structured MIME header values such as {@code Content-Type} and {@code Content-Disposition}.
+ */
+public enum MimeHeaders {
+  ;
+
+  public static final String CONTENT_TYPE              = "Content-Type";
+  public static final String CONTENT_DISPOSITION       = "Content-Disposition";
+  public static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
+
+  /**
+   * Returns lower-cased value part of the header value, i.e. {@code "multipart/mixed"}
+   * for {@code "Multipart/Mixed; boundary=xyz"}.
+   *
+   * @param value header value
+   * @return lower-cased value without parameters
+   */
+  public static String mediaType(String value) {
+    int index = value.indexOf(';');
+    return (index < 0 ? value : value.substring(0, index)).trim().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Returns the value of parameter {@code name} of the header value or {@code null}
+   * if there is no such parameter. Quoted values are unquoted.
+   *
+   * @param value header value
+   * @param name parameter name (case insensitive)
+   * @return parameter value or {@code null}
+   */
+  public static @Nullable String parameter(String value, String name) {
+    int length = value.length();
+    int i = value.indexOf(';');
+    while (i >= 0 && i < length) {
+      i = skipWhitespaces(value, i + 1);
+      int nameStart = i;
+      while (i < length && value.charAt(i) != '=' && value.charAt(i) != ';') {
+        i++;
+      }
+      if (i >= length || value.charAt(i) == ';') {
+        continue;
+      }
+      boolean matched = value.substring(nameStart, i).trim().equalsIgnoreCase(name);
+      i = skipWhitespaces(value, i + 1);
+      String parameterValue;
+      if (i < length && value.charAt(i) == '"') {
+        StringBuilder builder = new StringBuilder();
+        i++;
+        while (i < length && value.charAt(i) != '"') {
+          char c = value.charAt(i++);
+          if (c == '\\' && i < length) {
+            c = value.charAt(i++);
+          }
+          builder.append(c);
+        }
+        parameterValue = builder.toString();
+        while (i < length && value.charAt(i) != ';') {
+          i++;
+        }
+      } else {
+        int valueStart = i;
+        while (i < length && value.charAt(i) != ';') {
+          i++;
+        }
+        parameterValue = value.substring(valueStart, i).trim();
+      }
+      if (matched) {
+        return parameterValue;
+      }
+    }
+    return null;
+  }
+
+  private static int skipWhitespaces(String value, int index) {
+    int i = index;
+    while (i < value.length() && Character.isWhitespace(value.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+/**
+ * Receives MIME structure events produced by {@link MimeTokenizer}.
+ *
+ * <p>The depth of the top-level part (the message body itself) is {@code 0}, parts of a multipart
+ * entity have the depth of the entity plus one. All offsets are byte offsets into the message body.
+ * Byte arrays passed to {@link #partData} are reused by the tokenizer and must not be retained.
+ */
+public interface MimeListener {
+
+  /**
+   * Called when a new part begins.
+   *
+   * @param depth nesting depth of the part
+   * @param offset body offset of the first byte of the part headers
+   */
+  default void partStart(int depth, long offset) {
+    // do nothing
+  }
+
+  /**
+   * Called for every (unfolded) header of a part. Headers of the top-level part are the message headers
+   * passed to {@link MimeTokenizer#header(String, String)}, their offset is always {@code 0}.
+   *
+   * @param depth nesting depth of the part
+   * @param name header name
+   * @param value header value without leading whitespaces
+   * @param offset body offset of the header line
+   */
+  default void partHeader(int depth, String name, String value, long offset) {
+    // do nothing
+  }
+
+  /**
+   * Called with the raw (still transfer-encoded) content of a leaf part.
+   * A content of a part may be delivered by several calls.
+   *
+   * @param depth nesting depth of the part
+   * @param data array holding the content
+   * @param offset offset of the content in {@code data}
+   * @param length length of the content
+   * @param bodyOffset body offset of the first byte of the content
+   */
+  default void partData(int depth, byte[] data, int offset, int length, long bodyOffset) {
+    // do nothing
+  }
+
+  /**
+   * Called when a part ends.
+   *
+   * @param depth nesting depth of the part
+   * @param offset body offset right after the last byte of the part
+   */
+  default void partEnd(int depth, long offset) {
+    // do nothing
+  }
+}
@@ -0,0 +1,456 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Incremental MIME structure tokenizer. Message headers are passed with {@link #header(String, String)},
+ * body chunks with {@link #write(byte[], int, int)} as they arrive from the MTA, and the end of the body
+ * is signalled with {@link #close()}. Boundary lines and header blocks may be split across chunks arbitrarily.
+ *
+ * <p>Only the current boundary line and the current part header block are buffered, the part content
+ * is passed to the {@link MimeListener} directly from the supplied chunks. An instance is not thread-safe
+ * and is reusable after {@link #reset()}.
+ */
+public final class MimeTokenizer {
+
+  private enum State {
+    HEADERS, BODY, PREAMBLE, EPILOGUE
+  }
+
+  /** Maximal supported nesting of multipart entities. */
+  public static final int MAX_DEPTH = 32;
+
+  /** Maximal size of a part header block, the rest of the block is ignored. */
+  public static final int MAX_HEADER_BLOCK = 65536;
+
+  private static final int MAX_BOUNDARY_LINE = 256;
+
+  private static final byte[] CR   = {'\r'};
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  private final MimeListener listener;
+
+  private final byte[][] boundaries = new byte[MAX_DEPTH][];
+  private final byte[]   line       = new byte[MAX_BOUNDARY_LINE];
+
+  private byte[] headerBlock = new byte[1024];
+
+  private @Nullable String contentType;
+
+  private boolean started;
+  private boolean bodyStarted;
+  private State   state;
+  private int     levels;
+  private long    position;
+
+  private int     lineLength;
+  private long    lineOffset;
+  private boolean lineStart;
+  private int     newline;
+  private long    newlineOffset;
+  private boolean pendingCr;
+
+  private int  headerBlockLength;
+  private long headerBlockOffset;
+
+  public MimeTokenizer(MimeListener listener) {
+    this.listener = listener;
+    reset();
+  }
+
+  /**
+   * Prepares the tokenizer for the next message.
+   */
+  public void reset() {
+    Arrays.fill(boundaries, null);
+    contentType       = null;
+    started           = false;
+    bodyStarted       = false;
+    state             = State.BODY;
+    levels            = 0;
+    position          = 0;
+    lineLength        = 0;
+    lineOffset        = 0;
+    lineStart         = true;
+    newline           = 0;
+    newlineOffset     = 0;
+    pendingCr         = false;
+    headerBlockLength = 0;
+    headerBlockOffset = 0;
+  }
+
+  /**
+   * Passes a message header, {@code Content-Type} defines the structure of the body.
+   * Must be called before the first body chunk.
+   *
+   * @param name header name
+   * @param value header value
+   */
+  public void header(String name, String value) {
+    if (bodyStarted) {
+      throw new IllegalStateException("message headers must precede the body");
+    }
+    ensureStarted();
+    String trimmed = value.trim();
+    if (MimeHeaders.CONTENT_TYPE.equalsIgnoreCase(name)) {
+      contentType = trimmed;
+    }
+    listener.partHeader(0, name, trimmed, 0);
+  }
+
+  /**
+   * Passes the next body chunk.
+   *
+   * @param chunk body chunk
+   */
+  public void write(byte[] chunk) {
+    write(chunk, 0, chunk.length);
+  }
+
+  /**
+   * Passes the next body chunk.
+   *
+   * @param chunk array holding the body chunk
+   * @param offset offset of the chunk in the array
+   * @param length length of the chunk
+   */
+  public void write(byte[] chunk, int offset, int length) {
+    if (!bodyStarted) {
+      startBody();
+    }
+    int end = offset + length;
+    int i   = offset;
+    long base = position - offset;
+    while (i < end) {
+      if (state == State.HEADERS) {
+        i = headers(chunk, i, end, base);
+      } else if (lineStart) {
+        i = boundaryLine(chunk, i, end, base);
+      } else {
+        i = content(chunk, i, end, base);
+      }
+    }
+    position += length;
+  }
+
+  /**
+   * Signals the end of the body, all open parts are ended.
+   */
+  public void close() {
+    if (!bodyStarted) {
+      startBody();
+    }
+    if (state == State.HEADERS) {
+      headersEnd();
+      lineLength = 0;
+      newline    = 0;
+    } else {
+      emitStashedLine(false);
+      if (pendingCr) {
+        pendingCr = false;
+        data(CR, 0, 1, position - 1);
+      }
+    }
+    if (state == State.BODY) {
+      listener.partEnd(levels, position);
+    }
+    for (int i = levels - 1; i >= 0; i--) {
+      listener.partEnd(i, position);
+      boundaries[i] = null;
+    }
+    levels = 0;
+    state  = State.EPILOGUE;
+  }
+
+  private void ensureStarted() {
+    if (!started) {
+      started = true;
+      listener.partStart(0, 0);
+    }
+  }
+
+  private void startBody() {
+    ensureStarted();
+    bodyStarted = true;
+    if (contentType != null) {
+      pushMultipart(contentType);
+      contentType = null;
+    }
+  }
+
+  private void pushMultipart(String value) {
+    String boundary = MimeHeaders.mediaType(value).startsWith("multipart/") ? MimeHeaders.parameter(value, "boundary") : null;
+    if (boundary != null && !boundary.isEmpty() && levels < MAX_DEPTH && boundary.length() < MAX_BOUNDARY_LINE - 8) {
+      boundaries[levels++] = boundary.getBytes(StandardCharsets.US_ASCII);
+      state = State.PREAMBLE;
+    } else {
+      state = State.BODY;
+    }
+  }
+
+  private int content(byte[] chunk, int from, int end, long base) {
+    int lf = from;
+    while (lf < end && chunk[lf] != '\n') {
+      lf++;
+    }
+    if (lf == end) {
+      if (pendingCr) {
+        pendingCr = false;
+        data(CR, 0, 1, base + from - 1);
+      }
+      int to = end;
+      if (chunk[end - 1] == '\r') {
+        pendingCr = true;
+        to--;
+      }
+      data(chunk, from, to, base + from);
+      return end;
+    }
+
+    int to = lf;
+    if (lf > from && chunk[lf - 1] == '\r') {
+      to--;
+      newline = 2;
+    } else if (lf == from && pendingCr) {
+      newline = 2;
+    } else {
+      newline = 1;
+    }
+    if (pendingCr) {
+      pendingCr = false;
+      if (lf > from) {
+        data(CR, 0, 1, base + from - 1);
+      }
+    }
+    data(chunk, from, to, base + from);
+    newlineOffset = base + lf + 1 - newline;
+    lineOffset    = base + lf + 1;
+    lineStart     = true;
+    lineLength    = 0;
+    return lf + 1;
+  }
+
+  private int boundaryLine(byte[] chunk, int from, int end, long base) {
+    int i = from;
+    while (i < end) {
+      byte b = chunk[i];
+      if (b == '\n') {
+        long lineEnd = base + i + 1;
+        int  level   = matchBoundary();
+        if (level != -1) {
+          delimiter(level, lineEnd);
+        } else {
+          boolean cr = lineLength > 0 && line[lineLength - 1] == '\r';
+          emitStashedLine(true);
+          newline       = cr ? 2 : 1;
+          newlineOffset = lineEnd - newline;
+          lineOffset    = lineEnd;
+        }
+        return i + 1;
+      }
+      if ((lineLength < 2 && b != '-') || lineLength == line.length) {
+        emitStashedLine(false);
+        lineStart = false;
+        return i;
+      }
+      line[lineLength++] = b;
+      i++;
+    }
+    return end;
+  }
+
+  private int headers(byte[] chunk, int from, int end, long base) {
+    int i = from;
+    while (i < end) {
+      byte b = chunk[i++];
+      if (headerBlockLength < MAX_HEADER_BLOCK) {
+        if (headerBlockLength == headerBlock.length) {
+          headerBlock = Arrays.copyOf(headerBlock, Math.min(headerBlock.length << 1, MAX_HEADER_BLOCK));
+        }
+        headerBlock[headerBlockLength++] = b;
+      }
+      if (b == '\n') {
+        long lineEnd = base + i;
+        if (lineLength == 0 || (lineLength == 1 && line[0] == '\r')) {
+          headersEnd();
+          lineStart  = true;
+          lineLength = 0;
+          lineOffset = lineEnd;
+          newline    = 0;
+          return i;
+        }
+        int level = lineLength <= line.length ? matchBoundary() : -1;
+        if (level != -1) {
+          headerBlockLength -= Math.min(headerBlockLength, lineLength + 1);
+          headersEnd();
+          delimiter(level, lineEnd);
+          return i;
+        }
+        lineLength = 0;
+        lineOffset = lineEnd;
+      } else {
+        if (lineLength < line.length) {
+          line[lineLength] = b;
+        }
+        lineLength++;
+      }
+    }
+    return end;
+  }
+
+  private void headersEnd() {
+    int depth = levels;
+    String partContentType = null;
+    int nameStart = -1;
+    int i = 0;
+    while (i < headerBlockLength) {
+      int lineEnd = i;
+      while (lineEnd < headerBlockLength && headerBlock[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      boolean folded = headerBlock[i] == ' ' || headerBlock[i] == '\t';
+      if (!folded) {
+        if (nameStart >= 0) {
+          String value = emitHeader(depth, nameStart, i);
+          if (value != null) {
+            partContentType = value;
+          }
+        }
+        nameStart = i;
+      }
+      i = lineEnd + 1;
+    }
+    if (nameStart >= 0) {
+      String value = emitHeader(depth, nameStart, Math.min(i, headerBlockLength));
+      if (value != null) {
+        partContentType = value;
+      }
+    }
+    headerBlockLength = 0;
+    if (partContentType != null) {
+      pushMultipart(partContentType);
+    } else {
+      state = State.BODY;
+    }
+  }
+
+  private @Nullable String emitHeader(int depth, int from, int to) {
+    int colon = from;
+    while (colon < to && headerBlock[colon] != ':') {
+      colon++;
+    }
+    if (colon == to) {
+      return null;
+    }
+    String name  = new String(headerBlock, from, colon - from, StandardCharsets.UTF_8).trim();
+    String value = new String(headerBlock, colon + 1, to - colon - 1, StandardCharsets.UTF_8);
+    if (value.indexOf('\n') >= 0) {
+      value = value.replace("\r\n", "").replace("\n", "");
+    }
+    value = value.trim();
+    listener.partHeader(depth, name, value, headerBlockOffset + from);
+    return MimeHeaders.CONTENT_TYPE.equalsIgnoreCase(name) ? value : null;
+  }
+
+  private int matchBoundary() {
+    int length = lineLength;
+    if (length > 0 && line[length - 1] == '\r') {
+      length--;
+    }
+    if (length < 3 || line[0] != '-' || line[1] != '-') {
+      return -1;
+    }
+    for (int level = levels - 1; level >= 0; level--) {
+      byte[] boundary = boundaries[level];
+      if (length - 2 < boundary.length) {
+        continue;
+      }
+      int i = 0;
+      while (i < boundary.length && line[i + 2] == boundary[i]) {
+        i++;
+      }
+      if (i < boundary.length) {
+        continue;
+      }
+      int rest = boundary.length + 2;
+      boolean close = rest + 1 < length && line[rest] == '-' && line[rest + 1] == '-';
+      if (close) {
+        rest += 2;
+      }
+      while (rest < length && (line[rest] == ' ' || line[rest] == '\t')) {
+        rest++;
+      }
+      if (rest == length) {
+        return close ? -2 - level : level;
+      }
+    }
+    return -1;
+  }
+
+  private void delimiter(int match, long lineEnd) {
+    boolean close   = match < -1;
+    int     level   = close ? -2 - match : match;
+    long    partEnd = newline > 0 ? newlineOffset : lineOffset;
+
+    if (state == State.HEADERS || state == State.BODY) {
+      listener.partEnd(levels, partEnd);
+    }
+    for (int i = levels - 1; i > level; i--) {
+      listener.partEnd(i, partEnd);
+      boundaries[i] = null;
+    }
+    levels = level + 1;
+
+    boolean cr = lineLength > 0 && lineLength <= line.length && line[lineLength - 1] == '\r';
+    lineLength = 0;
+    lineOffset = lineEnd;
+    lineStart  = true;
+    if (close) {
+      // the line break after a close delimiter precedes the epilogue and may belong to the next outer delimiter
+      newline       = cr ? 2 : 1;
+      newlineOffset = lineEnd - newline;
+      state         = State.EPILOGUE;
+    } else {
+      newline           = 0;
+      state             = State.HEADERS;
+      headerBlockOffset = lineEnd;
+      listener.partStart(levels, lineEnd);
+    }
+  }
+
+  private void emitStashedLine(boolean stripCr) {
+    if (newline > 0) {
+      data(CRLF, 2 - newline, 2, newlineOffset);
+      newline = 0;
+    }
+    int length = lineLength;
+    if (stripCr && length > 0 && line[length - 1] == '\r') {
+      length--;
+    }
+    data(line, 0, length, lineOffset);
+    lineLength = 0;
+  }
+
+  private void data(byte[] data, int from, int to, long bodyOffset) {
+    if (state == State.BODY && to > from) {
+      listener.partData(levels, data, from, to - from, bodyOffset);
+    }
+  }
+}
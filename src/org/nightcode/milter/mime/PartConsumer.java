@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+/**
+ * Receives the decoded content of a MIME part.
+ */
+public interface PartConsumer {
+
+  /**
+   * Called with the next portion of decoded content. The array is reused
+   * by the caller and must not be retained.
+   *
+   * @param data array holding the content
+   * @param offset offset of the content in {@code data}
+   * @param length length of the content
+   */
+  void data(byte[] data, int offset, int length);
+
+  /**
+   * Called when the part ends.
+   */
+  default void end() {
+    // do nothing
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Creates consumers of decoded content of leaf MIME parts.
+ */
+@FunctionalInterface
+public interface PartConsumerFactory {
+
+  /**
+   * Returns a consumer for the part or {@code null} if the content of the part isn't needed.
+   *
+   * @param depth nesting depth of the part
+   * @param contentType lower-cased media type of the part, {@code "text/plain"} if not specified
+   * @param fileName file name from {@code Content-Disposition} or {@code Content-Type} headers
+   * @return consumer of the decoded content or {@code null}
+   */
+  @Nullable PartConsumer create(int depth, String contentType, @Nullable String fileName);
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+/**
+ * Streaming quoted-printable decoder (RFC 2045). Soft line breaks and trailing whitespaces
+ * of encoded lines are removed, malformed escape sequences are passed through as is.
+ */
+public final class QuotedPrintableDecoder implements TransferDecoder {
+
+  private static final int MAX_PENDING_WHITESPACES = 1024;
+
+  private final byte[] buffer;
+  private final byte[] whitespaces = new byte[MAX_PENDING_WHITESPACES];
+
+  private int  position;
+  private int  whitespaceCount;
+  private int  escaped;
+  private byte firstDigit;
+
+  public QuotedPrintableDecoder() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  public QuotedPrintableDecoder(int bufferSize) {
+    if (bufferSize < 3) {
+      throw new IllegalArgumentException("buffer size must be greater than 2");
+    }
+    buffer = new byte[bufferSize];
+  }
+
+  @Override public void decode(byte[] src, int offset, int length, PartConsumer consumer) {
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      byte b = src[i];
+      if (escaped == 1) {
+        if (b == '\r' || b == ' ' || b == '\t') {
+          // soft line break, possibly with trailing whitespaces after '='
+          continue;
+        }
+        if (b == '\n') {
+          escaped = 0;
+          continue;
+        }
+        if (digit(b) < 0) {
+          escaped = 0;
+          append(consumer, (byte) '=');
+          i--;
+          continue;
+        }
+        firstDigit = b;
+        escaped    = 2;
+      } else if (escaped == 2) {
+        escaped = 0;
+        if (digit(b) < 0) {
+          append(consumer, (byte) '=');
+          append(consumer, firstDigit);
+          i--;
+          continue;
+        }
+        append(consumer, (byte) ((digit(firstDigit) << 4) | digit(b)));
+      } else if (b == ' ' || b == '\t') {
+        if (whitespaceCount == whitespaces.length) {
+          flushWhitespaces(consumer);
+        }
+        whitespaces[whitespaceCount++] = b;
+      } else if (b == '\r' || b == '\n') {
+        whitespaceCount = 0;
+        append(consumer, b);
+      } else if (b == '=') {
+        flushWhitespaces(consumer);
+        escaped = 1;
+      } else {
+        flushWhitespaces(consumer);
+        append(consumer, b);
+      }
+    }
+    flush(consumer);
+  }
+
+  @Override public void finish(PartConsumer consumer) {
+    if (escaped == 2) {
+      append(consumer, (byte) '=');
+      append(consumer, firstDigit);
+    }
+    flush(consumer);
+    reset();
+  }
+
+  @Override public void reset() {
+    position        = 0;
+    whitespaceCount = 0;
+    escaped         = 0;
+  }
+
+  private static int digit(byte b) {
+    if (b >= '0' && b <= '9') {
+      return b - '0';
+    }
+    if (b >= 'A' && b <= 'F') {
+      return b - 'A' + 10;
+    }
+    if (b >= 'a' && b <= 'f') {
+      return b - 'a' + 10;
+    }
+    return -1;
+  }
+
+  private void append(PartConsumer consumer, byte b) {
+    if (position == buffer.length) {
+      flush(consumer);
+    }
+    buffer[position++] = b;
+  }
+
+  private void flushWhitespaces(PartConsumer consumer) {
+    for (int i = 0; i < whitespaceCount; i++) {
+      append(consumer, whitespaces[i]);
+    }
+    whitespaceCount = 0;
+  }
+
+  private void flush(PartConsumer consumer) {
+    if (position > 0) {
+      consumer.data(buffer, 0, position);
+      position = 0;
+    }
+  }
+}
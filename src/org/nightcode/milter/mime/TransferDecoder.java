@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+/**
+ * Streaming decoder of a content transfer encoding. Input may be split at any byte,
+ * a decoder keeps incomplete encoded groups between calls. Implementations reuse
+ * an internal output buffer and are not thread-safe.
+ */
+public interface TransferDecoder {
+
+  int DEFAULT_BUFFER_SIZE = 8192;
+
+  /**
+   * Decodes the next portion of encoded content and passes decoded bytes to the consumer.
+   *
+   * @param src array holding encoded content
+   * @param offset offset of the content in {@code src}
+   * @param length length of the content
+   * @param consumer consumer of decoded bytes
+   */
+  void decode(byte[] src, int offset, int length, PartConsumer consumer);
+
+  /**
+   * Flushes the rest of decoded content to the consumer and resets the decoder.
+   *
+   * @param consumer consumer of decoded bytes
+   */
+  void finish(PartConsumer consumer);
+
+  /**
+   * Discards the state of the decoder.
+   */
+  void reset();
+}
@@ -0,0 +1,289 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.nightcode.milter.CommandCode;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.Log;
+import org.nightcode.milter.util.Metrics;
+import org.nightcode.milter.util.MilterPackets;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+import static org.nightcode.milter.CommandCode.SMFIC_QUIT;
+import static org.nightcode.milter.CommandCode.SMFIC_QUIT_NC;
+import static org.nightcode.milter.ResponseCode.SMFIR_ACCEPT;
+import static org.nightcode.milter.ResponseCode.SMFIR_TEMPFAIL;
+
+/**
+ * Sheds new SMTP sessions under overload. The controller measures how long the milter takes
+ * to reply to commands; if the minimum reply latency over an interval stays above the target
+ * (the CoDel signal of a standing queue), the limit of concurrent sessions is decreased
+ * multiplicatively, otherwise it's increased by one per interval. A session is admitted at its
+ * first command that expects a reply, usually SMFIC_CONNECT, or SMFIC_HELO, SMFIC_MAIL or SMFIC_EOB
+ * when earlier steps are negotiated without reply. The command of a session over the limit is answered
+ * with the configured verdict (SMFIR_ACCEPT to fail open or SMFIR_TEMPFAIL) without calling the handler,
+ * admission is tried again at the next command that expects a reply.
+ *
+ * <p>The controller is shared by all channels and is added to the session pipeline after the codecs.
+ */
+@ChannelHandler.Sharable
+public final class AdmissionController extends ChannelDuplexHandler {
+
+  public static final class Builder {
+    private long         targetDelayMs  = 100;
+    private long         intervalMs     = 1_000;
+    private int          minLimit       = 1;
+    private int          maxLimit       = 1_000;
+    private double       decreaseFactor = 0.8;
+    private MilterPacket verdict        = MilterPackets.SMFIS_TEMPFAIL;
+
+    private Builder() {
+      // do nothing
+    }
+
+    /**
+     * Sets reply latency considered acceptable, 100 ms by default.
+     *
+     * @param targetDelayMs target reply latency
+     * @return the current {@link Builder} instance
+     */
+    public Builder targetDelay(long targetDelayMs) {
+      this.targetDelayMs = targetDelayMs;
+      return this;
+    }
+
+    /**
+     * Sets the interval the minimum latency is measured over and the limit is adjusted at, 1 s by default.
+     *
+     * @param intervalMs interval
+     * @return the current {@link Builder} instance
+     */
+    public Builder interval(long intervalMs) {
+      this.intervalMs = intervalMs;
+      return this;
+    }
+
+    public Builder limits(int minLimit, int maxLimit) {
+      this.minLimit = minLimit;
+      this.maxLimit = maxLimit;
+      return this;
+    }
+
+    public Builder decreaseFactor(double decreaseFactor) {
+      this.decreaseFactor = decreaseFactor;
+      return this;
+    }
+
+    /**
+     * Sets the verdict shed sessions get, SMFIR_TEMPFAIL by default.
+     *
+     * @param verdict SMFIR_ACCEPT or SMFIR_TEMPFAIL packet
+     * @return the current {@link Builder} instance
+     */
+    public Builder verdict(MilterPacket verdict) {
+      this.verdict = verdict;
+      return this;
+    }
+
+    public AdmissionController build() {
+      if (targetDelayMs <= 0 || intervalMs <= 0) {
+        throw new IllegalArgumentException("target delay and interval must be positive");
+      }
+      if (minLimit < 1 || maxLimit < minLimit) {
+        throw new IllegalArgumentException(format("invalid limits [%s, %s]", minLimit, maxLimit));
+      }
+      if (!(decreaseFactor > 0 && decreaseFactor < 1)) {
+        throw new IllegalArgumentException("decrease factor must be in (0, 1): " + decreaseFactor);
+      }
+      if (verdict.command() != SMFIR_ACCEPT.code() && verdict.command() != SMFIR_TEMPFAIL.code()) {
+        throw new IllegalArgumentException("verdict must be accept or tempfail: " + verdict);
+      }
+      return new AdmissionController(this);
+    }
+  }
+
+  private static final class SessionState {
+    private long    commandStartNanos;
+    private boolean admitted;
+    private int     sessionSteps;
+  }
+
+  private static final AttributeKey<SessionState> SESSION_STATE = AttributeKey.valueOf(AdmissionController.class, "sessionState");
+
+  private static final LongAdder SHED_SESSIONS = Metrics.counter("jmilter.admission.shedSessions");
+  private static final LongAdder OVERLOADS     = Metrics.counter("jmilter.admission.overloadIntervals");
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final long         targetDelayNanos;
+  private final long         intervalNanos;
+  private final int          minLimit;
+  private final int          maxLimit;
+  private final double       decreaseFactor;
+  private final MilterPacket verdict;
+
+  private final AtomicInteger inFlight       = new AtomicInteger();
+  private final AtomicLong    windowStart    = new AtomicLong(System.nanoTime());
+  private final AtomicLong    windowMinNanos = new AtomicLong(Long.MAX_VALUE);
+
+  private volatile int limit;
+
+  private AdmissionController(Builder builder) {
+    targetDelayNanos = TimeUnit.MILLISECONDS.toNanos(builder.targetDelayMs);
+    intervalNanos    = TimeUnit.MILLISECONDS.toNanos(builder.intervalMs);
+    minLimit         = builder.minLimit;
+    maxLimit         = builder.maxLimit;
+    decreaseFactor   = builder.decreaseFactor;
+    verdict          = builder.verdict;
+    limit            = maxLimit;
+  }
+
+  @Override public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof MilterPacket) {
+      SessionState state   = state(ctx);
+      int          command = ((MilterPacket) msg).command();
+      state.commandStartNanos = System.nanoTime();
+      if (!state.admitted && expectsReply(command, state.sessionSteps)) {
+        if (!tryAcquire()) {
+          SHED_SESSIONS.increment();
+          Log.debug().log(getClass(), () -> format("[%s] session has been shed, limit %s", ctx.channel(), limit));
+          state.commandStartNanos = 0;
+          ctx.writeAndFlush(verdict);
+          return;
+        }
+        state.admitted = true;
+      } else if (command == SMFIC_QUIT.code() || command == SMFIC_QUIT_NC.code()) {
+        release(state);
+      }
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (msg instanceof MilterPacket) {
+      MilterPacket packet = (MilterPacket) msg;
+      SessionState state  = state(ctx);
+      if (packet.command() == SMFIC_OPTNEG.code() && packet.payload().length >= 12) {
+        state.sessionSteps = new ProtocolSteps(packet.payload(), 8).bitmap();
+      }
+      if (state.commandStartNanos != 0 && StageDeadlineTracker.isReply(packet.command())) {
+        long now = System.nanoTime();
+        onLatency(now - state.commandStartNanos, now);
+        state.commandStartNanos = 0;
+      }
+    }
+    super.write(ctx, msg, promise);
+  }
+
+  @Override public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    SessionState state = ctx.channel().attr(SESSION_STATE).getAndSet(null);
+    if (state != null) {
+      release(state);
+    }
+    super.channelInactive(ctx);
+  }
+
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  public int limit() {
+    return limit;
+  }
+
+  boolean tryAcquire() {
+    for (;;) {
+      int current = inFlight.get();
+      if (current >= limit) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Accounts reply latency, adjusts the limit once per interval.
+   */
+  void onLatency(long latencyNanos, long nowNanos) {
+    windowMinNanos.accumulateAndGet(latencyNanos, Math::min);
+    long start = windowStart.get();
+    if (nowNanos - start < intervalNanos || !windowStart.compareAndSet(start, nowNanos)) {
+      return;
+    }
+    long minNanos = windowMinNanos.getAndSet(Long.MAX_VALUE);
+    if (minNanos > targetDelayNanos) {
+      OVERLOADS.increment();
+      int decreased = Math.max(minLimit, (int) (Math.min(limit, inFlight.get()) * decreaseFactor));
+      Log.debug().log(getClass(), () -> format("minimum reply latency %s ms exceeds target, session limit %s -> %s"
+          , TimeUnit.NANOSECONDS.toMillis(minNanos), limit, decreased));
+      limit = decreased;
+    } else if (limit < maxLimit) {
+      limit++;
+    }
+  }
+
+  /**
+   * Checks that the MTA waits for a reply to the command, i.e. the command is a protocol step
+   * negotiated with reply.
+   */
+  static boolean expectsReply(int command, int sessionSteps) {
+    if (command < 'A' || command > 'U') {
+      return false;
+    }
+    CommandCode commandCode;
+    try {
+      commandCode = CommandCode.valueOf(command);
+    } catch (NoSuchElementException ex) {
+      return false;
+    }
+    int noReplyBit = commandCode.noReplyBit();
+    return commandCode != SMFIC_OPTNEG && noReplyBit != ProtocolSteps.NO_REPLY && (sessionSteps & noReplyBit) == 0;
+  }
+
+  private void release(SessionState state) {
+    if (state.admitted) {
+      state.admitted = false;
+      inFlight.decrementAndGet();
+    }
+  }
+
+  private static SessionState state(ChannelHandlerContext ctx) {
+    Attribute<SessionState> attribute = ctx.channel().attr(SESSION_STATE);
+    SessionState state = attribute.get();
+    if (state == null) {
+      state = new SessionState();
+      attribute.set(state);
+    }
+    return state;
+  }
+}
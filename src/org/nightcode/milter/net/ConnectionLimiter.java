@@ -0,0 +1,284 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.kqueue.KQueueDomainSocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.ByteArrays;
+import org.nightcode.milter.util.Log;
+import org.nightcode.milter.util.Metrics;
+import org.nightcode.milter.util.MilterPackets;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.CommandCode.SMFIC_ABORT;
+import static org.nightcode.milter.CommandCode.SMFIC_MACRO;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+import static org.nightcode.milter.CommandCode.SMFIC_QUIT;
+import static org.nightcode.milter.CommandCode.SMFIC_QUIT_NC;
+
+/**
+ * Caps the number of concurrent sessions in total and per peer. A peer is the remote IP address
+ * of a TCP connection or the uid of a unix socket peer. Limits are checked when the channel becomes
+ * active; a connection over a limit is either closed at once or gets SMFIR_TEMPFAIL in reply to
+ * its first command that expects a reply and is closed afterwards, the milter handler never sees it.
+ * SMFIC_OPTNEG of a rejected connection is answered by the limiter without any actions and
+ * protocol steps, so that the MTA sends SMFIC_CONNECT and waits for its reply.
+ *
+ * <p>Per-peer counters are striped by the hash of the peer, peers sharing a stripe share the limit.
+ * The limiter is shared by all channels and is added to the session pipeline after the codecs.
+ */
+@ChannelHandler.Sharable
+public final class ConnectionLimiter extends ChannelInboundHandlerAdapter {
+
+  public enum Rejection {
+    /** Close the connection as soon as it's accepted. */
+    CLOSE,
+    /** Negotiate the protocol, reply SMFIR_TEMPFAIL to SMFIC_CONNECT (or the first command expecting a reply) and close. */
+    TEMPFAIL
+  }
+
+  public static final class Builder {
+    private int       maxSessions        = Integer.MAX_VALUE;
+    private int       maxSessionsPerPeer = Integer.MAX_VALUE;
+    private int       stripes            = 1024;
+    private Rejection rejection          = Rejection.TEMPFAIL;
+
+    private Builder() {
+      // do nothing
+    }
+
+    /**
+     * Sets the limit of concurrent sessions in total, unlimited by default.
+     *
+     * @param maxSessions maximum number of sessions
+     * @return the current {@link Builder} instance
+     */
+    public Builder maxSessions(int maxSessions) {
+      this.maxSessions = maxSessions;
+      return this;
+    }
+
+    /**
+     * Sets the limit of concurrent sessions per remote IP address or unix peer, unlimited by default.
+     *
+     * @param maxSessionsPerPeer maximum number of sessions of one peer
+     * @return the current {@link Builder} instance
+     */
+    public Builder maxSessionsPerPeer(int maxSessionsPerPeer) {
+      this.maxSessionsPerPeer = maxSessionsPerPeer;
+      return this;
+    }
+
+    /**
+     * Sets the number of per-peer counters, rounded up to a power of two, 1024 by default.
+     *
+     * @param stripes number of counters
+     * @return the current {@link Builder} instance
+     */
+    public Builder stripes(int stripes) {
+      this.stripes = stripes;
+      return this;
+    }
+
+    public Builder rejection(Rejection rejection) {
+      this.rejection = rejection;
+      return this;
+    }
+
+    public ConnectionLimiter build() {
+      if (maxSessions < 1 || maxSessionsPerPeer < 1) {
+        throw new IllegalArgumentException(format("invalid limits %s, %s", maxSessions, maxSessionsPerPeer));
+      }
+      if (stripes < 1 || stripes > 1 << 20) {
+        throw new IllegalArgumentException("stripes must be in [1, 2^20]: " + stripes);
+      }
+      if (rejection == null) {
+        throw new IllegalArgumentException("rejection must not be null");
+      }
+      return new ConnectionLimiter(this);
+    }
+  }
+
+  private static final int REJECTED = -1;
+  private static final int REPLIED  = -2;
+
+  private static final AttributeKey<Integer> STRIPE = AttributeKey.valueOf(ConnectionLimiter.class, "stripe");
+
+  private static final LongAdder REJECTED_TOTAL    = Metrics.counter("jmilter.connections.rejectedTotal");
+  private static final LongAdder REJECTED_PER_PEER = Metrics.counter("jmilter.connections.rejectedPerPeer");
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final int       maxSessions;
+  private final int       maxSessionsPerPeer;
+  private final int       stripeMask;
+  private final Rejection rejection;
+
+  private final AtomicInteger      sessions = new AtomicInteger();
+  private final AtomicIntegerArray perPeer;
+
+  private ConnectionLimiter(Builder builder) {
+    maxSessions        = builder.maxSessions;
+    maxSessionsPerPeer = builder.maxSessionsPerPeer;
+    rejection          = builder.rejection;
+
+    int stripes = Integer.highestOneBit(builder.stripes);
+    if (stripes < builder.stripes) {
+      stripes <<= 1;
+    }
+    stripeMask = stripes - 1;
+    perPeer    = new AtomicIntegerArray(stripes);
+  }
+
+  @Override public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    Channel channel = ctx.channel();
+    int     stripe  = stripe(peerHash(channel));
+    if (!tryIncrement(sessions, maxSessions)) {
+      REJECTED_TOTAL.increment();
+      reject(ctx, "total");
+      return;
+    }
+    if (!tryIncrement(perPeer, stripe, maxSessionsPerPeer)) {
+      sessions.decrementAndGet();
+      REJECTED_PER_PEER.increment();
+      reject(ctx, "per peer");
+      return;
+    }
+    channel.attr(STRIPE).set(stripe);
+    super.channelActive(ctx);
+  }
+
+  @Override public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    Integer stripe = ctx.channel().attr(STRIPE).get();
+    if (stripe != null && stripe < 0) {
+      try {
+        if (stripe == REJECTED && msg instanceof MilterPacket) {
+          replyRejected(ctx, (MilterPacket) msg);
+        }
+      } finally {
+        ReferenceCountUtil.release(msg);
+      }
+      return;
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    Integer stripe = ctx.channel().attr(STRIPE).getAndSet(null);
+    if (stripe == null || stripe < 0) {
+      return;
+    }
+    perPeer.decrementAndGet(stripe);
+    sessions.decrementAndGet();
+    super.channelInactive(ctx);
+  }
+
+  public int sessions() {
+    return sessions.get();
+  }
+
+  int peerSessions(Channel channel) {
+    return perPeer.get(stripe(peerHash(channel)));
+  }
+
+  private static void replyRejected(ChannelHandlerContext ctx, MilterPacket packet) {
+    int command = packet.command();
+    if (command == SMFIC_OPTNEG.code()) {
+      int    mtaVersion = packet.payload().length > 3 ? packet.payload()[3] : MilterContext.PROTOCOL_VERSION;
+      byte[] payload    = new byte[12];
+      ByteArrays.intToByteArray(Math.min(mtaVersion, MilterContext.PROTOCOL_VERSION), payload, 0);
+      ctx.writeAndFlush(MilterPacket.builder().command(SMFIC_OPTNEG).payload(payload).build());
+    } else if (command == SMFIC_QUIT.code()) {
+      ctx.close();
+    } else if (command != SMFIC_MACRO.code() && command != SMFIC_ABORT.code() && command != SMFIC_QUIT_NC.code()) {
+      ctx.channel().attr(STRIPE).set(REPLIED);
+      ctx.writeAndFlush(MilterPackets.SMFIS_TEMPFAIL).addListener(ChannelFutureListener.CLOSE);
+    }
+  }
+
+  private void reject(ChannelHandlerContext ctx, String limit) {
+    Log.debug().log(getClass(), () -> format("[%s] connection has been rejected, %s session limit reached", ctx.channel(), limit));
+    if (rejection == Rejection.CLOSE) {
+      ctx.close();
+    } else {
+      ctx.channel().attr(STRIPE).set(REJECTED);
+    }
+  }
+
+  private int stripe(int hash) {
+    return (hash ^ (hash >>> 16)) & stripeMask;
+  }
+
+  private static int peerHash(Channel channel) {
+    try {
+      if (channel instanceof EpollDomainSocketChannel) {
+        return ((EpollDomainSocketChannel) channel).peerCredentials().uid();
+      }
+      if (channel instanceof KQueueDomainSocketChannel) {
+        return ((KQueueDomainSocketChannel) channel).peerCredentials().uid();
+      }
+    } catch (IOException ex) {
+      Log.debug().log(ConnectionLimiter.class, () -> format("[%s] unable to get peer credentials: %s", channel, ex));
+    }
+    SocketAddress address = channel.remoteAddress();
+    if (address instanceof InetSocketAddress) {
+      InetSocketAddress inetAddress = (InetSocketAddress) address;
+      return inetAddress.isUnresolved() ? inetAddress.getHostString().hashCode() : inetAddress.getAddress().hashCode();
+    }
+    return address != null ? address.hashCode() : 0;
+  }
+
+  private static boolean tryIncrement(AtomicInteger counter, int limit) {
+    for (;;) {
+      int current = counter.get();
+      if (current >= limit) {
+        return false;
+      }
+      if (counter.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private static boolean tryIncrement(AtomicIntegerArray counters, int index, int limit) {
+    for (;;) {
+      int current = counters.get(index);
+      if (current >= limit) {
+        return false;
+      }
+      if (counters.compareAndSet(index, current, current + 1)) {
+        return true;
+      }
+    }
+  }
+}
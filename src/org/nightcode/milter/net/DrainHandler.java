@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelGroupFuture;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.Log;
+import org.nightcode.milter.util.Metrics;
+import org.nightcode.milter.util.MilterPackets;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.CommandCode.SMFIC_ABORT;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+
+/**
+ * Keeps track of open sessions and of the ones in the middle of a message for
+ * {@link MilterGatewayManager#drain}. A message starts with the first message command (SMFIC_MAIL,
+ * or a later step if SMFIC_MAIL isn't negotiated) and ends with SMFIC_ABORT or the reply to SMFIC_EOB.
+ * While draining, new messages are answered with SMFIR_TEMPFAIL at that command, sessions negotiated
+ * without a reply to it are closed instead.
+ */
+@ChannelHandler.Sharable
+final class DrainHandler extends ChannelDuplexHandler {
+
+  private static final class SessionState {
+    private volatile boolean inMessage;
+    private boolean          eobPending;
+    private int              sessionSteps;
+  }
+
+  private static final AttributeKey<SessionState> SESSION_STATE = AttributeKey.valueOf(DrainHandler.class, "sessionState");
+
+  private static final LongAdder TEMPFAILED_MESSAGES = Metrics.counter("jmilter.drain.tempfailedMessages");
+
+  private final ChannelGroup sessions = new DefaultChannelGroup("jmilter-sessions", GlobalEventExecutor.INSTANCE);
+
+  private volatile boolean draining;
+
+  @Override public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    ctx.channel().attr(SESSION_STATE).set(new SessionState());
+    sessions.add(ctx.channel());
+    super.channelActive(ctx);
+  }
+
+  @Override public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    SessionState state = ctx.channel().attr(SESSION_STATE).get();
+    if (state != null && msg instanceof MilterPacket) {
+      int command = ((MilterPacket) msg).command();
+      if (!state.inMessage && MilterPackets.isMessageCommand(command)) {
+        if (draining) {
+          rejectMessage(ctx, state, command);
+          return;
+        }
+        state.inMessage = true;
+      }
+      if (command == SMFIC_EOB.code()) {
+        state.eobPending = true;
+      } else if (command == SMFIC_ABORT.code()) {
+        state.inMessage  = false;
+        state.eobPending = false;
+      }
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    SessionState state = ctx.channel().attr(SESSION_STATE).get();
+    if (state != null && msg instanceof MilterPacket) {
+      MilterPacket packet = (MilterPacket) msg;
+      if (packet.command() == SMFIC_OPTNEG.code() && packet.payload().length >= 12) {
+        state.sessionSteps = new ProtocolSteps(packet.payload(), 8).bitmap();
+      } else if (state.eobPending && StageDeadlineTracker.isReply(packet.command())) {
+        state.inMessage  = false;
+        state.eobPending = false;
+      }
+    }
+    super.write(ctx, msg, promise);
+  }
+
+  /**
+   * Starts answering new messages with SMFIR_TEMPFAIL.
+   */
+  void startDraining() {
+    draining = true;
+  }
+
+  int sessions() {
+    return sessions.size();
+  }
+
+  int sessionsInMessage() {
+    int count = 0;
+    for (Channel channel : sessions) {
+      SessionState state = channel.attr(SESSION_STATE).get();
+      if (state != null && state.inMessage) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  ChannelGroupFuture closeSessions() {
+    return sessions.close();
+  }
+
+  private void rejectMessage(ChannelHandlerContext ctx, SessionState state, int command) {
+    TEMPFAILED_MESSAGES.increment();
+    if (!AdmissionController.expectsReply(command, state.sessionSteps)) {
+      Log.debug().log(getClass(), () -> format("[%s] draining, closing session", ctx.channel()));
+      ctx.close();
+    } else {
+      Log.debug().log(getClass(), () -> format("[%s] draining, message has been rejected", ctx.channel()));
+      ctx.writeAndFlush(MilterPackets.SMFIS_TEMPFAIL);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+/**
+ * Outcome of {@link MilterGatewayManager#drain}.
+ */
+public final class DrainResult {
+
+  private final int drained;
+  private final int forced;
+
+  DrainResult(int drained, int forced) {
+    this.drained = drained;
+    this.forced  = forced;
+  }
+
+  /**
+   * @return number of sessions closed with no message in progress
+   */
+  public int drained() {
+    return drained;
+  }
+
+  /**
+   * @return number of sessions closed in the middle of a message once the drain timeout had passed
+   */
+  public int forced() {
+    return forced;
+  }
+
+  @Override public String toString() {
+    return "DrainResult{drained=" + drained + ", forced=" + forced + '}';
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.channel.unix.DomainSocketReadMode;
+import io.netty.channel.unix.FileDescriptor;
+import io.netty.util.ReferenceCountUtil;
+import org.nightcode.milter.util.Log;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.util.ExecutorUtils.namedThreadFactory;
+
+/**
+ * Hands the listening TCP socket of a running gateway over to a new process, so the MTA
+ * doesn't see the milter going away during a restart. The running process {@link #offer offers}
+ * its listening socket on a unix control socket, the new process {@link #takeOver takes it over}:
+ * receives the file descriptor (SCM_RIGHTS), starts serving it and acknowledges. Once acknowledged
+ * the old process stops accepting and {@link MilterGatewayManager#drain drains} its sessions.
+ *
+ * <p>Requires the netty epoll transport (Linux).
+ */
+public enum ListenerHandoff {
+  ;
+
+  private static final int ACK = 0x01;
+
+  /**
+   * Offers the listening socket of the given gateway on the control socket. The returned future
+   * completes once a new process has taken the socket over and this gateway has been drained,
+   * cancelling the future stops offering the socket.
+   *
+   * @param manager running gateway bound with the epoll transport
+   * @param controlAddress control socket address
+   * @param drainTimeout maximum time to wait for messages in progress
+   * @return result of the drain
+   * @throws InterruptedException if the current thread was interrupted while binding the control socket
+   */
+  public static CompletableFuture<DrainResult> offer(MilterGatewayManager<InetSocketAddress> manager,
+                                                     DomainSocketAddress controlAddress, Duration drainTimeout)
+      throws InterruptedException {
+    checkEpoll();
+    Channel serverChannel = manager.serverChannel();
+    if (!(serverChannel instanceof EpollServerSocketChannel) || !serverChannel.isActive()) {
+      throw new IllegalStateException("gateway isn't bound with netty epoll transport: " + serverChannel);
+    }
+    FileDescriptor fd = ((EpollServerSocketChannel) serverChannel).fd();
+
+    CompletableFuture<DrainResult> future = new CompletableFuture<>();
+    AtomicBoolean                  taken  = new AtomicBoolean();
+    EventLoopGroup                 group  = newGroup("jmilter-" + controlAddress + "-handoff");
+
+    deleteSocketFile(controlAddress);
+    Channel controlChannel = new ServerBootstrap()
+        .group(group)
+        .channel(EpollServerDomainSocketChannel.class)
+        .childHandler(new ChannelInboundHandlerAdapter() {
+          @Override public void channelActive(ChannelHandlerContext ctx) {
+            ctx.writeAndFlush(fd);
+          }
+
+          @Override public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+            if (taken.compareAndSet(false, true)) {
+              Log.info().log(ListenerHandoff.class
+                  , () -> format("listening socket %s has been taken over, draining", serverChannel.localAddress()));
+              namedThreadFactory("jmilter-" + controlAddress + "-drain").newThread(() -> {
+                try {
+                  future.complete(manager.drain(drainTimeout));
+                } catch (InterruptedException ex) {
+                  Thread.currentThread().interrupt();
+                  future.completeExceptionally(ex);
+                }
+              }).start();
+            }
+          }
+        })
+        .bind(controlAddress).sync().channel();
+
+    future.whenComplete((result, cause) -> {
+      controlChannel.close();
+      group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+      deleteSocketFile(controlAddress);
+    });
+    return future;
+  }
+
+  /**
+   * Takes over the listening socket offered on the control socket. The gateway created by the
+   * given function is bound to the received socket before the offering process is acknowledged,
+   * if binding fails the offering process keeps serving.
+   *
+   * @param controlAddress control socket address
+   * @param managerFactory creates a gateway for the given server factory
+   * @param timeout maximum time to wait for the socket and for the gateway to bind
+   * @return running gateway
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   * @throws ExecutionException if the socket wasn't received or the gateway failed to bind
+   * @throws TimeoutException if the socket wasn't received or the gateway wasn't bound in time
+   */
+  public static MilterGatewayManager<InetSocketAddress> takeOver(DomainSocketAddress controlAddress,
+      Function<ServerFactory<InetSocketAddress>, MilterGatewayManager<InetSocketAddress>> managerFactory, Duration timeout)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    checkEpoll();
+    CompletableFuture<FileDescriptor> received = new CompletableFuture<>();
+    EventLoopGroup                    group    = newGroup("jmilter-" + controlAddress + "-takeover");
+    try {
+      Channel controlChannel = new Bootstrap()
+          .group(group)
+          .channel(EpollDomainSocketChannel.class)
+          .option(EpollChannelOption.DOMAIN_SOCKET_READ_MODE, DomainSocketReadMode.FILE_DESCRIPTORS)
+          .handler(new SimpleChannelInboundHandler<FileDescriptor>() {
+            @Override protected void channelRead0(ChannelHandlerContext ctx, FileDescriptor fd) {
+              received.complete(fd);
+            }
+
+            @Override public void channelInactive(ChannelHandlerContext ctx) {
+              received.completeExceptionally(new IllegalStateException("control connection closed before handoff"));
+            }
+          })
+          .connect(controlAddress).sync().channel();
+
+      FileDescriptor fd = received.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+      MilterGatewayManager<InetSocketAddress> manager = managerFactory.apply(ServerFactory.inheritedFdFactory(fd.intValue()));
+      try {
+        manager.bind().get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+      } catch (InterruptedException | ExecutionException | TimeoutException ex) {
+        manager.close();
+        throw ex;
+      }
+
+      controlChannel.writeAndFlush(Unpooled.wrappedBuffer(new byte[] {ACK})).sync();
+      controlChannel.close().sync();
+      Log.info().log(ListenerHandoff.class, () -> format("listening socket has been taken over from %s", controlAddress));
+      return manager;
+    } finally {
+      group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+  }
+
+  private static void checkEpoll() {
+    if (!Epoll.isAvailable()) {
+      throw new IllegalStateException("netty native transport (Epoll) is required for listening socket handoff"
+          , Epoll.unavailabilityCause());
+    }
+  }
+
+  private static EventLoopGroup newGroup(String name) {
+    return new MultiThreadIoEventLoopGroup(1, namedThreadFactory(name), EpollIoHandler.newFactory());
+  }
+
+  private static void deleteSocketFile(DomainSocketAddress address) {
+    try {
+      Files.deleteIfExists(Paths.get(address.path()));
+    } catch (IOException ex) {
+      Log.debug().log(ListenerHandoff.class, () -> format("unable to delete socket file %s: %s", address.path(), ex));
+    }
+  }
+}
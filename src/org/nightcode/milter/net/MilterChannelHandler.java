@@ -14,6 +14,7 @@
 
 package org.nightcode.milter.net;
 
+import java.util.List;
 import java.util.UUID;
 
 import io.netty.channel.ChannelHandlerContext;
@@ -22,6 +23,7 @@ import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
 import org.nightcode.milter.MilterContext;
 import org.nightcode.milter.MilterHandler;
+import org.nightcode.milter.StageDeadlines;
 import org.nightcode.milter.codec.MilterPacket;
 import org.nightcode.milter.command.CommandEngine;
 import org.nightcode.milter.util.Log;
@@ -32,9 +34,11 @@ public class MilterChannelHandler extends SimpleChannelInboundHandler<MilterPack
 
   private static final class MilterPacketSenderImpl implements MilterPacketSender {
     private final ChannelHandlerContext ctx;
+    private final StageDeadlineTracker  deadlineTracker;
 
-    private MilterPacketSenderImpl(ChannelHandlerContext ctx) {
-      this.ctx = ctx;
+    private MilterPacketSenderImpl(ChannelHandlerContext ctx, StageDeadlineTracker deadlineTracker) {
+      this.ctx             = ctx;
+      this.deadlineTracker = deadlineTracker;
     }
 
     @Override public void close() {
@@ -45,26 +49,65 @@ public class MilterChannelHandler extends SimpleChannelInboundHandler<MilterPack
     }
 
     @Override public void send(MilterPacket packet) {
-      ctx.writeAndFlush(packet);
+      if (deadlineTracker.admit(packet)) {
+        ctx.writeAndFlush(packet);
+      } else {
+        Log.debug().log(getClass(), () -> format("[%s] packet has been dropped after deadline: %s", ctx.channel(), packet));
+      }
+    }
+
+    @Override public void sendBatch(List<MilterPacket> packets) {
+      if (!ctx.executor().inEventLoop()) {
+        ctx.executor().execute(() -> sendBatch(packets));
+        return;
+      }
+      for (MilterPacket packet : packets) {
+        if (deadlineTracker.admit(packet)) {
+          ctx.write(packet);
+        } else {
+          Log.debug().log(getClass(), () -> format("[%s] packet has been dropped after deadline: %s", ctx.channel(), packet));
+        }
+      }
+      ctx.flush();
     }
   }
 
-  private final MilterHandler milterHandler;
-  private final CommandEngine commandManager;
+  private final MilterHandler        milterHandler;
+  private final CommandEngine        commandManager;
+  private final StageDeadlineTracker deadlineTracker;
 
   private final AttributeKey<MilterContext> milterContextAttrKey = AttributeKey.valueOf("milterContext");
 
   public MilterChannelHandler(MilterHandler milterHandler) {
-    this.milterHandler = milterHandler;
-    this.commandManager = CommandEngine.instance();
+    this(milterHandler, StageDeadlines.none());
+  }
+
+  public MilterChannelHandler(MilterHandler milterHandler, StageDeadlines stageDeadlines) {
+    this.milterHandler   = milterHandler;
+    this.commandManager  = CommandEngine.instance();
+    this.deadlineTracker = new StageDeadlineTracker(stageDeadlines);
   }
 
   @Override protected void channelRead0(ChannelHandlerContext ctx, MilterPacket milterPacket) {
     MilterContext milterContext = getOrCreateMilterContext(ctx);
-    commandManager.submit(milterContext, milterPacket);
+    deadlineTracker.begin(ctx, milterContext, milterPacket);
+    try {
+      commandManager.submit(milterContext, milterPacket);
+    } finally {
+      deadlineTracker.dispatched();
+    }
+  }
+
+  @Override public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    MilterContext milterContext = getMilterContext(ctx);
+    if (milterContext != null) {
+      commandManager.flush(milterContext);
+    }
+    super.channelReadComplete(ctx);
   }
 
   @Override public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    deadlineTracker.cancelTimer();
     MilterContext milterContext = getMilterContext(ctx);
     if (milterContext != null) {
       milterHandler.closeSession(milterContext);
@@ -72,6 +115,18 @@ public class MilterChannelHandler extends SimpleChannelInboundHandler<MilterPack
     super.channelInactive(ctx);
   }
 
+  @Override public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+    if (evt instanceof SessionReaper.IdleSessionEvent) {
+      deadlineTracker.cancelTimer();
+      MilterContext milterContext = getMilterContext(ctx);
+      if (milterContext != null) {
+        milterHandler.abortSession(milterContext, null);
+      }
+      return;
+    }
+    super.userEventTriggered(ctx, evt);
+  }
+
   @Override public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
     MilterContext milterContext = getMilterContext(ctx);
     UUID          contextId     = (milterContext != null) ? milterContext.id() : null;
@@ -91,7 +146,7 @@ public class MilterChannelHandler extends SimpleChannelInboundHandler<MilterPack
     Attribute<MilterContext> attr          = ctx.channel().attr(milterContextAttrKey);
     MilterContext            milterContext = attr.get();
     if (milterContext == null) {
-      milterContext = milterHandler.createContext(new MilterPacketSenderImpl(ctx));
+      milterContext = milterHandler.createContext(new MilterPacketSenderImpl(ctx, deadlineTracker));
       attr.set(milterContext);
     }
     return milterContext;
@@ -16,17 +16,25 @@ package org.nightcode.milter.net;
 
 import java.io.Closeable;
 import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
+import org.jetbrains.annotations.Nullable;
 import org.nightcode.milter.MilterHandler;
+import org.nightcode.milter.StageDeadlines;
 import org.nightcode.milter.util.ExecutorUtils;
 import org.nightcode.milter.util.Log;
 
@@ -50,9 +58,11 @@ public class MilterGatewayManager<A extends SocketAddress> implements ChannelFut
   public static final int FAILED   = 0x00000004;
   public static final int CLOSING  = 0x00000008;
   public static final int CLOSED   = 0x00000010;
+  public static final int DRAINING = 0x00000020;
 
   private static final boolean FAIL_STOP_MODE       = false;
   private static final long    RECONNECT_TIMEOUT_MS = 1_000;
+  private static final long    DRAIN_POLL_MS        = 10;
 
   private volatile ChannelFuture channelFuture;
 
@@ -63,7 +73,11 @@ public class MilterGatewayManager<A extends SocketAddress> implements ChannelFut
 
   private final ServerFactory<A>         serverFactory;
   private final MilterHandler            milterHandler;
-  private final ScheduledExecutorService executor;
+  private final StageDeadlines           stageDeadlines;
+
+  private final List<Supplier<ChannelHandler>> sessionHandlers;
+  private final DrainHandler                   drainHandler = new DrainHandler();
+  private final ScheduledExecutorService       executor;
 
   private final AtomicInteger           state      = new AtomicInteger(NEW);
   private final CompletableFuture<Void> bindFuture = new CompletableFuture<>();
@@ -73,8 +87,33 @@ public class MilterGatewayManager<A extends SocketAddress> implements ChannelFut
    * @param milterHandler milter handler
    */
   public MilterGatewayManager(ServerFactory<A> serverFactory, MilterHandler milterHandler) {
-    this.serverFactory = serverFactory;
-    this.milterHandler = milterHandler;
+    this(serverFactory, milterHandler, StageDeadlines.none());
+  }
+
+  /**
+   * @param serverFactory server factory
+   * @param milterHandler milter handler
+   * @param stageDeadlines reply deadlines of the milter stages
+   */
+  public MilterGatewayManager(ServerFactory<A> serverFactory, MilterHandler milterHandler, StageDeadlines stageDeadlines) {
+    this(serverFactory, milterHandler, stageDeadlines, Collections.emptyList());
+  }
+
+  /**
+   * @param serverFactory server factory
+   * @param milterHandler milter handler
+   * @param stageDeadlines reply deadlines of the milter stages
+   * @param sessionHandlers suppliers of handlers added to every session pipeline,
+   *                        e.g. {@link AdmissionController}, {@link ConnectionLimiter}, {@link SessionReaper}
+   */
+  public MilterGatewayManager(ServerFactory<A> serverFactory, MilterHandler milterHandler, StageDeadlines stageDeadlines,
+                              List<Supplier<ChannelHandler>> sessionHandlers) {
+    this.serverFactory   = serverFactory;
+    this.milterHandler   = milterHandler;
+    this.stageDeadlines  = stageDeadlines;
+    this.sessionHandlers = new ArrayList<>();
+    this.sessionHandlers.add(() -> drainHandler);
+    this.sessionHandlers.addAll(sessionHandlers);
 
     executor = new ScheduledThreadPoolExecutor(1, namedThreadFactory("jmilter-" + serverFactory.localAddress() + "-executor"));
 
@@ -101,16 +140,11 @@ public class MilterGatewayManager<A extends SocketAddress> implements ChannelFut
   }
 
   @Override public void close() {
-    if (!state.compareAndSet(RUNNING, CLOSING) && !state.compareAndSet(FAILED, CLOSING)) {
+    if (!state.compareAndSet(RUNNING, CLOSING) && !state.compareAndSet(FAILED, CLOSING) && !state.compareAndSet(DRAINING, CLOSING)) {
       return;
     }
 
-    ChannelFuture tmpChannelFuture = channelFuture;
-    if (tmpChannelFuture != null) {
-      tmpChannelFuture.channel().closeFuture().removeListener(this);
-      tmpChannelFuture.channel().close();
-    }
-    channelFuture = null;
+    closeServerChannel();
     ExecutorUtils.shutdown(executor);
     serverBootstrap.config().group().shutdownGracefully();
     serverBootstrap.config().childGroup().shutdownGracefully();
@@ -118,16 +152,55 @@ public class MilterGatewayManager<A extends SocketAddress> implements ChannelFut
     state.set(CLOSED);
   }
 
+  /**
+   * Shuts the gateway down without cutting off messages in progress. The server channel is closed
+   * at once, sessions in the middle of a message are given up to {@code timeout} to reach their
+   * verdict while new messages are answered with SMFIR_TEMPFAIL. Remaining sessions are closed
+   * afterwards and the gateway is {@link #close() closed}.
+   *
+   * @param timeout maximum time to wait for messages in progress
+   * @return numbers of drained and forcibly closed sessions
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   */
+  public DrainResult drain(Duration timeout) throws InterruptedException {
+    if (!state.compareAndSet(RUNNING, DRAINING)) {
+      close();
+      return new DrainResult(0, 0);
+    }
+
+    drainHandler.startDraining();
+    closeServerChannel();
+
+    int  sessions   = drainHandler.sessions();
+    long deadlineNs = System.nanoTime() + timeout.toNanos();
+    while (drainHandler.sessionsInMessage() > 0 && System.nanoTime() - deadlineNs < 0) {
+      Thread.sleep(DRAIN_POLL_MS);
+    }
+    int forced = drainHandler.sessionsInMessage();
+    drainHandler.closeSessions().await();
+    close();
+
+    DrainResult result = new DrainResult(Math.max(0, sessions - forced), forced);
+    Log.info().log(getClass(), () -> format("%s has been drained: %s", serverFactory.localAddress(), result));
+    return result;
+  }
+
   public int getState() {
     return state.get();
   }
 
+  @Nullable Channel serverChannel() {
+    ChannelFuture tmpChannelFuture = channelFuture;
+    return tmpChannelFuture != null ? tmpChannelFuture.channel() : null;
+  }
+
   private void connect() {
     final CompletableFuture<Void> cf = new CompletableFuture<>();
     cf.thenAccept(v -> {
       try {
-        ChannelInitializer<Channel> initializer = new SessionInitializer(() -> new MilterChannelHandler(milterHandler));
-        channelFuture = serverBootstrap.childHandler(initializer).bind().sync()
+        ChannelInitializer<Channel> initializer
+            = new SessionInitializer(() -> new MilterChannelHandler(milterHandler, stageDeadlines), sessionHandlers);
+        channelFuture = serverFactory.bind(serverBootstrap.childHandler(initializer)).sync()
             .addListener((ChannelFutureListener) future -> {
               if (future.cause() == null && state.compareAndSet(STARTING, RUNNING)) {
                 bindFuture.complete(null);
@@ -149,6 +222,15 @@ public class MilterGatewayManager<A extends SocketAddress> implements ChannelFut
     executor.execute(() -> cf.complete(null));
   }
 
+  private void closeServerChannel() {
+    ChannelFuture tmpChannelFuture = channelFuture;
+    if (tmpChannelFuture != null) {
+      tmpChannelFuture.channel().closeFuture().removeListener(this);
+      tmpChannelFuture.channel().close();
+    }
+    channelFuture = null;
+  }
+
   private boolean isClosing() {
     return state.get() > RUNNING;
   }
@@ -16,6 +16,7 @@ package org.nightcode.milter.net;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 
 import org.nightcode.milter.codec.MilterPacket;
 
@@ -24,4 +25,16 @@ public interface MilterPacketSender extends Closeable {
   @Override void close();
 
   void send(MilterPacket packet) throws IOException;
+
+  /**
+   * Sends the packets as one batch, implementations may flush the underlying channel once.
+   *
+   * @param packets packets to send
+   * @throws IOException if an I/O error occurs
+   */
+  default void sendBatch(List<MilterPacket> packets) throws IOException {
+    for (MilterPacket packet : packets) {
+      send(packet);
+    }
+  }
 }
@@ -18,6 +18,7 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.unix.DomainSocketAddress;
 
 public interface ServerFactory<A extends SocketAddress> {
@@ -26,6 +27,17 @@ public interface ServerFactory<A extends SocketAddress> {
     return new TcpIpServerFactory(address);
   }
 
+  /**
+   * Creates a factory serving an already bound and listening TCP socket, e.g. one received
+   * from another process with {@link ListenerHandoff}. Requires the netty epoll transport.
+   *
+   * @param fd listening socket file descriptor
+   * @return server factory
+   */
+  static ServerFactory<InetSocketAddress> inheritedFdFactory(int fd) {
+    return new TcpIpServerFactory(fd);
+  }
+
   static ServerFactory<DomainSocketAddress> unixSocketFactory(DomainSocketAddress address) {
     return new UnixSocketServerFactory(address);
   }
@@ -33,4 +45,14 @@ public interface ServerFactory<A extends SocketAddress> {
   ServerBootstrap create();
 
   A localAddress();
+
+  /**
+   * Binds the server channel created by the bootstrap.
+   *
+   * @param serverBootstrap bootstrap returned by {@link #create()}
+   * @return bind future
+   */
+  default ChannelFuture bind(ServerBootstrap serverBootstrap) {
+    return serverBootstrap.bind();
+  }
 }
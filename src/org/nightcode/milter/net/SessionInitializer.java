@@ -14,6 +14,8 @@
 
 package org.nightcode.milter.net;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.function.Supplier;
 
 import io.netty.channel.Channel;
@@ -40,10 +42,21 @@ public class SessionInitializer extends ChannelInitializer<Channel> {
   private final boolean loggingEnabled;
   private final String  logLevel;
 
-  private final Supplier<ChannelHandler> responseHandler;
+  private final Supplier<ChannelHandler>       responseHandler;
+  private final List<Supplier<ChannelHandler>> sessionHandlers;
 
   public SessionInitializer(Supplier<ChannelHandler> responseHandler) {
+    this(responseHandler, Collections.emptyList());
+  }
+
+  /**
+   * @param responseHandler milter response handler supplier
+   * @param sessionHandlers suppliers of handlers added between the packet codecs and the response handler,
+   *                        e.g. {@link AdmissionController}, {@link ConnectionLimiter}, {@link SessionReaper}
+   */
+  public SessionInitializer(Supplier<ChannelHandler> responseHandler, List<Supplier<ChannelHandler>> sessionHandlers) {
     this.responseHandler = responseHandler;
+    this.sessionHandlers = sessionHandlers;
 
     loggingEnabled = getBoolean(NETTY_LOGGING_ENABLED, false);
     logLevel       = getString(NETTY_LOG_LEVEL, "DEBUG");
@@ -62,6 +75,10 @@ public class SessionInitializer extends ChannelInitializer<Channel> {
     pipeline.addLast("milterPacketDecoder", new MilterPacketDecoder());
     pipeline.addLast("milterPacketEncoder", new MilterPacketEncoder());
 
+    for (Supplier<ChannelHandler> sessionHandler : sessionHandlers) {
+      pipeline.addLast(sessionHandler.get());
+    }
+
     pipeline.addLast("milterResponseHandler", responseHandler.get());
   }
 }
@@ -0,0 +1,232 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.Log;
+import org.nightcode.milter.util.Metrics;
+import org.nightcode.milter.util.MilterPackets;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.CommandCode.SMFIC_ABORT;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+import static org.nightcode.milter.ResponseCode.SMFIR_CONTINUE;
+
+/**
+ * Closes sessions that have been idle for too long: MTAs gone without a FIN or sessions stuck
+ * in the middle of a message. Idle timeouts are set per stage of the session: before option
+ * negotiation, inside a message (from the first message command, i.e. SMFIC_MAIL unless it isn't
+ * negotiated, to the final reply to SMFIC_EOB or to SMFIC_ABORT) and between messages.
+ * Any packet read or written resets the idle time.
+ *
+ * <p>On expiry an {@link IdleSessionEvent} is fired down the pipeline, {@link MilterChannelHandler}
+ * aborts the session on it so the handler can release its resources, and the channel is closed.
+ * The reaper is shared by all channels and is added to the session pipeline after the codecs.
+ */
+@ChannelHandler.Sharable
+public final class SessionReaper extends ChannelDuplexHandler {
+
+  /**
+   * Event fired when a session is reaped, tells the stage the session was idle at.
+   */
+  public enum IdleSessionEvent {
+    BEFORE_NEGOTIATION,
+    IN_MESSAGE,
+    BETWEEN_MESSAGES
+  }
+
+  public static final class Builder {
+    private long beforeNegotiationMs;
+    private long inMessageMs;
+    private long betweenMessagesMs;
+
+    private Builder() {
+      // do nothing
+    }
+
+    /**
+     * Sets the idle timeout from the connection to SMFIC_OPTNEG.
+     *
+     * @param timeoutMs idle timeout, {@code 0} disables the timeout
+     * @return the current {@link Builder} instance
+     */
+    public Builder beforeNegotiation(long timeoutMs) {
+      this.beforeNegotiationMs = timeoutMs;
+      return this;
+    }
+
+    /**
+     * Sets the idle timeout inside a message.
+     *
+     * @param timeoutMs idle timeout, {@code 0} disables the timeout
+     * @return the current {@link Builder} instance
+     */
+    public Builder inMessage(long timeoutMs) {
+      this.inMessageMs = timeoutMs;
+      return this;
+    }
+
+    /**
+     * Sets the idle timeout between messages of a negotiated session.
+     *
+     * @param timeoutMs idle timeout, {@code 0} disables the timeout
+     * @return the current {@link Builder} instance
+     */
+    public Builder betweenMessages(long timeoutMs) {
+      this.betweenMessagesMs = timeoutMs;
+      return this;
+    }
+
+    public SessionReaper build() {
+      if (beforeNegotiationMs < 0 || inMessageMs < 0 || betweenMessagesMs < 0) {
+        throw new IllegalArgumentException("timeouts must not be negative");
+      }
+      return new SessionReaper(this);
+    }
+  }
+
+  private static final class SessionState {
+    private IdleSessionEvent stage = IdleSessionEvent.BEFORE_NEGOTIATION;
+    private boolean          eomPending;
+    private long             lastActivityNanos;
+    private Future<?>        timer;
+  }
+
+  private static final AttributeKey<SessionState> SESSION_STATE = AttributeKey.valueOf(SessionReaper.class, "sessionState");
+
+  private static final LongAdder REAPED_SESSIONS = Metrics.counter("jmilter.reaper.reapedSessions");
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final long[] timeoutsNanos = new long[IdleSessionEvent.values().length];
+
+  private SessionReaper(Builder builder) {
+    timeoutsNanos[IdleSessionEvent.BEFORE_NEGOTIATION.ordinal()] = TimeUnit.MILLISECONDS.toNanos(builder.beforeNegotiationMs);
+    timeoutsNanos[IdleSessionEvent.IN_MESSAGE.ordinal()]         = TimeUnit.MILLISECONDS.toNanos(builder.inMessageMs);
+    timeoutsNanos[IdleSessionEvent.BETWEEN_MESSAGES.ordinal()]   = TimeUnit.MILLISECONDS.toNanos(builder.betweenMessagesMs);
+  }
+
+  @Override public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    SessionState state = new SessionState();
+    state.lastActivityNanos = ctx.executor().ticker().nanoTime();
+    ctx.channel().attr(SESSION_STATE).set(state);
+    schedule(ctx, state, timeoutsNanos[state.stage.ordinal()]);
+    super.channelActive(ctx);
+  }
+
+  @Override public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    SessionState state = ctx.channel().attr(SESSION_STATE).get();
+    if (state != null && msg instanceof MilterPacket) {
+      state.lastActivityNanos = ctx.executor().ticker().nanoTime();
+      int command = ((MilterPacket) msg).command();
+      state.eomPending = command == SMFIC_EOB.code();
+      transition(ctx, state, nextStage(state.stage, command));
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    SessionState state = ctx.channel().attr(SESSION_STATE).get();
+    if (state != null && msg instanceof MilterPacket) {
+      state.lastActivityNanos = ctx.executor().ticker().nanoTime();
+      if (state.eomPending && isFinalReply(((MilterPacket) msg).command())) {
+        state.eomPending = false;
+        transition(ctx, state, IdleSessionEvent.BETWEEN_MESSAGES);
+      }
+    }
+    super.write(ctx, msg, promise);
+  }
+
+  @Override public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    SessionState state = ctx.channel().attr(SESSION_STATE).getAndSet(null);
+    if (state != null && state.timer != null) {
+      state.timer.cancel(false);
+    }
+    super.channelInactive(ctx);
+  }
+
+  private void check(ChannelHandlerContext ctx, SessionState state) {
+    state.timer = null;
+    if (ctx.channel().attr(SESSION_STATE).get() != state) {
+      return;
+    }
+    long timeoutNanos = timeoutsNanos[state.stage.ordinal()];
+    long idleNanos    = ctx.executor().ticker().nanoTime() - state.lastActivityNanos;
+    if (idleNanos < timeoutNanos) {
+      schedule(ctx, state, timeoutNanos - idleNanos);
+      return;
+    }
+    REAPED_SESSIONS.increment();
+    Log.info().log(getClass(), () -> format("[%s] session has been idle for %s ms %s, closing", ctx.channel()
+        , TimeUnit.NANOSECONDS.toMillis(idleNanos), state.stage));
+    ctx.fireUserEventTriggered(state.stage);
+    ctx.close();
+  }
+
+  private void transition(ChannelHandlerContext ctx, SessionState state, IdleSessionEvent stage) {
+    if (stage != state.stage) {
+      state.stage = stage;
+      schedule(ctx, state, timeoutsNanos[stage.ordinal()]);
+    }
+  }
+
+  private void schedule(ChannelHandlerContext ctx, SessionState state, long delayNanos) {
+    if (state.timer != null) {
+      state.timer.cancel(false);
+      state.timer = null;
+    }
+    if (delayNanos > 0) {
+      state.timer = ctx.executor().schedule(() -> check(ctx, state), delayNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private static IdleSessionEvent nextStage(IdleSessionEvent stage, int command) {
+    if (MilterPackets.isMessageCommand(command)) {
+      return IdleSessionEvent.IN_MESSAGE;
+    }
+    if (command == SMFIC_OPTNEG.code() || command == SMFIC_ABORT.code()) {
+      return IdleSessionEvent.BETWEEN_MESSAGES;
+    }
+    return stage;
+  }
+
+  /**
+   * Returns {@code true} if the packet is the final reply to SMFIC_EOB, i.e. not a modification or progress.
+   */
+  private static boolean isFinalReply(int code) {
+    if (code == SMFIR_CONTINUE.code()) {
+      return true;
+    }
+    try {
+      return ResponseCode.valueOf(code).acceptReject();
+    } catch (IllegalArgumentException | NoSuchElementException ex) {
+      return false;
+    }
+  }
+}
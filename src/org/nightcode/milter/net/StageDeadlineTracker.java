@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.Ticker;
+import org.nightcode.milter.CommandCode;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.StageDeadlines;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.Log;
+import org.nightcode.milter.util.Metrics;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+import static org.nightcode.milter.CommandCode.SMFIC_UNKNOWN;
+import static org.nightcode.milter.ResponseCode.SMFIR_ACCEPT;
+import static org.nightcode.milter.ResponseCode.SMFIR_CONTINUE;
+import static org.nightcode.milter.ResponseCode.SMFIR_CONN_FAIL;
+import static org.nightcode.milter.ResponseCode.SMFIR_DISCARD;
+import static org.nightcode.milter.ResponseCode.SMFIR_PROGRESS;
+import static org.nightcode.milter.ResponseCode.SMFIR_REJECT;
+import static org.nightcode.milter.ResponseCode.SMFIR_REPLYCODE;
+import static org.nightcode.milter.ResponseCode.SMFIR_SKIP;
+import static org.nightcode.milter.ResponseCode.SMFIR_TEMPFAIL;
+
+/**
+ * Tracks the reply to the current command of a channel against {@link StageDeadlines}
+ * and sends SMFIR_PROGRESS keepalives while the reply to SMFIC_EOB is pending.
+ * The state is a stage sequence number with PENDING and EXPIRED flags in the lowest bits,
+ * it's updated on the event loop when a command arrives and by any thread sending a packet.
+ *
+ * <p>Packets sent while the command is dispatched belong to the current stage. Packets sent later
+ * belong to the oldest stage still waiting for the handler: a stage which has missed its deadline
+ * without pending work to cancel keeps waiting for its late reply, which is dropped together with
+ * the packets preceding it, so that it's never taken for the reply to a later command.
+ */
+final class StageDeadlineTracker {
+
+  private static final long PENDING = 0x1;
+  private static final long EXPIRED = 0x2;
+
+  private static final MilterPacket PROGRESS = MilterPacket.builder().command(SMFIR_PROGRESS).build();
+
+  private static final LongAdder DEADLINE_MISSES = Metrics.counter("jmilter.stage.deadlineMisses");
+  private static final LongAdder PROGRESS_SENT   = Metrics.counter("jmilter.stage.progressSent");
+
+  static boolean isReply(int code) {
+    return code == SMFIR_CONTINUE.code()
+        || code == SMFIR_ACCEPT.code()
+        || code == SMFIR_REJECT.code()
+        || code == SMFIR_TEMPFAIL.code()
+        || code == SMFIR_DISCARD.code()
+        || code == SMFIR_REPLYCODE.code()
+        || code == SMFIR_CONN_FAIL.code()
+        || code == SMFIR_SKIP.code()
+        || code == SMFIC_OPTNEG.code();
+  }
+
+  private static boolean expectsReply(MilterContext context, int command) {
+    int noReplyBit;
+    try {
+      noReplyBit = CommandCode.valueOf(command).noReplyBit();
+    } catch (RuntimeException ex) {
+      noReplyBit = SMFIC_UNKNOWN.noReplyBit();
+    }
+    if (noReplyBit == ProtocolSteps.NO_REPLY) {
+      return false;
+    }
+    ProtocolSteps sessionSteps = context.getSessionProtocolSteps();
+    return noReplyBit == 0 || sessionSteps == null || (sessionSteps.bitmap() & noReplyBit) == 0;
+  }
+
+  private final StageDeadlines deadlines;
+  private final AtomicLong     state       = new AtomicLong();
+  private final AtomicInteger  lateReplies = new AtomicInteger();
+
+  private volatile ScheduledFuture<?> timer;
+  private volatile ScheduledFuture<?> progressTimer;
+  private volatile long               lastSentNanos;
+  private volatile Ticker             ticker = Ticker.systemTicker();
+  private volatile Thread             dispatchThread;
+
+  StageDeadlineTracker(StageDeadlines deadlines) {
+    this.deadlines = deadlines;
+  }
+
+  /**
+   * Starts a new stage, called on the event loop before the command is submitted.
+   */
+  void begin(ChannelHandlerContext ctx, MilterContext context, MilterPacket command) {
+    cancelTimer();
+    dispatchThread = Thread.currentThread();
+    int  code     = command.command();
+    long sequence = (state.get() >>> 2) + 1;
+    if (deadlines == StageDeadlines.none() || !expectsReply(context, code)) {
+      state.set(sequence << 2);
+      return;
+    }
+    long pending = (sequence << 2) | PENDING;
+    state.set(pending);
+
+    long deadlineMs = deadlines.deadlineMs(code);
+    if (deadlineMs > 0) {
+      timer = ctx.executor().schedule(() -> expire(ctx, context, pending, code), deadlineMs, TimeUnit.MILLISECONDS);
+    }
+    long progressIntervalMs = deadlines.progressIntervalMs();
+    if (progressIntervalMs > 0 && code == SMFIC_EOB.code()) {
+      ticker        = ctx.executor().ticker();
+      lastSentNanos = ticker.nanoTime();
+      progressTimer = ctx.executor().schedule(() -> progress(ctx, pending), progressIntervalMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Ends dispatching of the command started by {@link #begin}.
+   */
+  void dispatched() {
+    dispatchThread = null;
+  }
+
+  /**
+   * Returns {@code true} if the packet may be sent. Packets of a stage which missed
+   * its deadline are dropped, a reply completes the pending stage.
+   */
+  boolean admit(MilterPacket packet) {
+    boolean reply = isReply(packet.command());
+    if (Thread.currentThread() != dispatchThread) {
+      for (int late = lateReplies.get(); late > 0; late = lateReplies.get()) {
+        if (!reply || lateReplies.compareAndSet(late, late - 1)) {
+          return false;
+        }
+      }
+    }
+    for (;;) {
+      long current = state.get();
+      if ((current & EXPIRED) != 0) {
+        return false;
+      }
+      if (!reply || (current & PENDING) == 0) {
+        lastSentNanos = ticker.nanoTime();
+        return true;
+      }
+      if (state.compareAndSet(current, current & ~PENDING)) {
+        cancelTimer();
+        return true;
+      }
+    }
+  }
+
+  void cancelTimer() {
+    ScheduledFuture<?> tmpTimer = timer;
+    if (tmpTimer != null) {
+      timer = null;
+      tmpTimer.cancel(false);
+    }
+    ScheduledFuture<?> tmpProgressTimer = progressTimer;
+    if (tmpProgressTimer != null) {
+      progressTimer = null;
+      tmpProgressTimer.cancel(false);
+    }
+  }
+
+  private void expire(ChannelHandlerContext ctx, MilterContext context, long pending, int command) {
+    if (!state.compareAndSet(pending, (pending & ~PENDING) | EXPIRED)) {
+      return;
+    }
+    cancelTimer();
+    DEADLINE_MISSES.increment();
+    MilterPacket fallback = deadlines.fallback(command);
+    Log.warn().log(getClass(), () -> format("[%s] %s reply has missed deadline %s ms, sending %s", context.id()
+        , CommandCode.valueOf(command), deadlines.deadlineMs(command), fallback));
+    if (!context.cancelPendingWork()) {
+      lateReplies.incrementAndGet();
+    }
+    ctx.writeAndFlush(fallback);
+  }
+
+  /**
+   * Sends SMFIR_PROGRESS if the stage is still pending and nothing has been sent for the interval,
+   * runs on the event loop so a keepalive never lands in the middle of a batch written there.
+   */
+  private void progress(ChannelHandlerContext ctx, long pending) {
+    if (state.get() != pending || !ctx.channel().isActive()) {
+      return;
+    }
+    long intervalNanos = TimeUnit.MILLISECONDS.toNanos(deadlines.progressIntervalMs());
+    long idleNanos     = ticker.nanoTime() - lastSentNanos;
+    if (idleNanos >= intervalNanos) {
+      lastSentNanos = ticker.nanoTime();
+      PROGRESS_SENT.increment();
+      ctx.writeAndFlush(PROGRESS);
+      idleNanos = 0;
+    }
+    progressTimer = ctx.executor().schedule(() -> progress(ctx, pending), intervalNanos - idleNanos, TimeUnit.NANOSECONDS);
+  }
+}
@@ -20,6 +20,7 @@ import java.util.function.Supplier;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.IoHandlerFactory;
 import io.netty.channel.MultiThreadIoEventLoopGroup;
@@ -33,6 +34,7 @@ import io.netty.channel.kqueue.KQueueIoHandler;
 import io.netty.channel.kqueue.KQueueServerSocketChannel;
 import io.netty.channel.nio.NioIoHandler;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.Socket;
 import org.nightcode.milter.util.Log;
 
 import static org.nightcode.milter.MilterOptions.NETTY_KEEP_ALIVE;
@@ -47,9 +49,19 @@ import static org.nightcode.milter.util.Properties.getInt;
 class TcpIpServerFactory implements ServerFactory<InetSocketAddress> {
 
   private final InetSocketAddress address;
+  private final int               fd;
 
   TcpIpServerFactory(InetSocketAddress address) {
     this.address = address;
+    this.fd      = -1;
+  }
+
+  TcpIpServerFactory(int fd) {
+    if (!Epoll.isAvailable()) {
+      throw new IllegalStateException("netty native transport (Epoll) is required for inherited socket", Epoll.unavailabilityCause());
+    }
+    this.address = new Socket(fd).localAddress();
+    this.fd      = fd;
   }
 
   @Override public ServerBootstrap create() {
@@ -58,7 +70,7 @@ class TcpIpServerFactory implements ServerFactory<InetSocketAddress> {
     Supplier<IoHandlerFactory>     factorySupplier;
     Class<? extends ServerChannel> channelClass;
 
-    if (Epoll.isAvailable()) {
+    if (fd >= 0 || Epoll.isAvailable()) {
       factorySupplier = EpollIoHandler::newFactory;
       channelClass    = EpollServerSocketChannel.class;
       Log.info().log(getClass(), "initialize netty EPOLL transport");
@@ -78,7 +90,6 @@ class TcpIpServerFactory implements ServerFactory<InetSocketAddress> {
     serverBootstrap
         .group(new SingleThreadIoEventLoop(null, acceptorTf, factorySupplier.get())
             , new MultiThreadIoEventLoopGroup(nThreads, workerTf, factorySupplier.get()))
-        .channel(channelClass)
         .option(ChannelOption.SO_BACKLOG,   getInt(NETTY_SO_BACKLOG, 128))
         .option(ChannelOption.SO_REUSEADDR, getBoolean(NETTY_REUSE_ADDRESS, true))
         .childOption(ChannelOption.SO_KEEPALIVE, getBoolean(NETTY_KEEP_ALIVE, true))
@@ -87,9 +98,23 @@ class TcpIpServerFactory implements ServerFactory<InetSocketAddress> {
         .childOption(ChannelOption.ALLOCATOR,    PooledByteBufAllocator.DEFAULT)
         .localAddress(address);
 
+    if (fd >= 0) {
+      serverBootstrap.channelFactory(() -> new EpollServerSocketChannel(fd));
+    } else {
+      serverBootstrap.channel(channelClass);
+    }
+
     return serverBootstrap;
   }
 
+  @Override public ChannelFuture bind(ServerBootstrap serverBootstrap) {
+    if (fd >= 0) {
+      // the inherited socket is already bound and listening
+      return serverBootstrap.register();
+    }
+    return serverBootstrap.bind();
+  }
+
   @Override public InetSocketAddress localAddress() {
     return address;
   }
@@ -0,0 +1,633 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.proxy;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.CommandCode;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+import org.nightcode.milter.MilterMacros;
+import org.nightcode.milter.ProtocolFamily;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.check.MergePolicy;
+import org.nightcode.milter.client.Macros;
+import org.nightcode.milter.client.MilterResponse;
+import org.nightcode.milter.client.MilterSession;
+import org.nightcode.milter.client.MilterSessionPool;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.ByteArrays;
+import org.nightcode.milter.util.Log;
+import org.nightcode.milter.util.MilterPackets;
+import org.nightcode.milter.util.Metrics;
+
+import static java.lang.String.format;
+import static org.nightcode.milter.CommandCode.SMFIC_BODY;
+import static org.nightcode.milter.CommandCode.SMFIC_CONNECT;
+import static org.nightcode.milter.CommandCode.SMFIC_DATA;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_EOH;
+import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
+import static org.nightcode.milter.CommandCode.SMFIC_HELO;
+import static org.nightcode.milter.CommandCode.SMFIC_MAIL;
+import static org.nightcode.milter.CommandCode.SMFIC_RCPT;
+import static org.nightcode.milter.ResponseCode.SMFIR_ACCEPT;
+import static org.nightcode.milter.ResponseCode.SMFIR_CONTINUE;
+import static org.nightcode.milter.ResponseCode.SMFIR_PROGRESS;
+import static org.nightcode.milter.ResponseCode.SMFIR_SKIP;
+
+/**
+ * Single milter endpoint for the MTA which forwards the milter session to several backend milters,
+ * so that the MTA keeps one milter connection and one round trip per step instead of a serial chain of milters.
+ *
+ * <p>Every backend is a {@link MilterSessionPool} of negotiated sessions. A session is leased from every pool
+ * when the MTA negotiates the protocol and is returned to its pool when the MTA quits. Commands are forwarded
+ * to the backends in parallel and are replied once all backends have replied: the most severe verdict wins
+ * (see {@link MergePolicy#severity}), the message (or the connection) is accepted only when every backend
+ * has accepted it, a backend which has accepted doesn't get further commands for the message.
+ * Modifications of all backends are sent together with the verdict at EOM, they are dropped if the message
+ * is rejected, discarded or temporarily failed. Modifications received at other steps or requiring an action
+ * the MTA hasn't granted are dropped as well. A backend which fails or misses its response timeout contributes
+ * the failure verdict (SMFIR_TEMPFAIL by default) and is left out for the rest of the MTA session.
+ *
+ * <p>The proxy negotiates the union of the backends' actions, a step (or a reply to a step) is skipped only
+ * if every backend skips it. The backends' capabilities are probed once by {@link Builder#build()}.
+ * Unknown SMTP commands are not forwarded.
+ */
+public final class MilterProxyHandler extends AbstractMilterHandler {
+
+  public static final class Builder {
+    private final List<MilterSessionPool> backends = new ArrayList<>();
+
+    private MilterMacros milterMacros   = MilterMacros.instance();
+    private MilterPacket failureVerdict = MilterPackets.SMFIS_TEMPFAIL;
+    private long         probeTimeoutMs = 5_000;
+
+    private Actions       actions;
+    private ProtocolSteps protocolSteps;
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder backend(MilterSessionPool pool) {
+      backends.add(Objects.requireNonNull(pool, "pool"));
+      return this;
+    }
+
+    /**
+     * Sets macros requested from the MTA, received macros are forwarded to all backends.
+     *
+     * @param milterMacros requested macros
+     * @return the current {@link Builder} instance
+     */
+    public Builder macros(MilterMacros milterMacros) {
+      this.milterMacros = Objects.requireNonNull(milterMacros, "milter macros");
+      return this;
+    }
+
+    /**
+     * Sets the verdict of a backend which has failed or hasn't replied in time, SMFIR_TEMPFAIL by default.
+     * {@link MilterPackets#SMFIS_CONTINUE} lets messages pass when a backend is unavailable.
+     *
+     * @param failureVerdict accept/reject response
+     * @return the current {@link Builder} instance
+     */
+    public Builder failureVerdict(MilterPacket failureVerdict) {
+      Objects.requireNonNull(failureVerdict, "failure verdict");
+      if (!ResponseCode.valueOf(failureVerdict.command()).acceptReject()) {
+        throw new IllegalArgumentException("failure verdict must be an accept/reject response: " + failureVerdict);
+      }
+      this.failureVerdict = failureVerdict;
+      return this;
+    }
+
+    /**
+     * Sets how long {@link #build()} waits for a session of every backend, 5 s by default.
+     *
+     * @param probeTimeoutMs probe timeout
+     * @return the current {@link Builder} instance
+     */
+    public Builder probeTimeout(long probeTimeoutMs) {
+      this.probeTimeoutMs = probeTimeoutMs;
+      return this;
+    }
+
+    /**
+     * Leases a session from every backend to learn the actions and protocol steps negotiated by the backend.
+     *
+     * @return the proxy handler
+     */
+    public MilterProxyHandler build() {
+      if (backends.isEmpty()) {
+        throw new IllegalStateException("no backends declared");
+      }
+      if (probeTimeoutMs <= 0) {
+        throw new IllegalArgumentException("probe timeout must be positive: " + probeTimeoutMs);
+      }
+
+      int actionsBitmap = 0;
+      int stepsAnd      = ~0;
+      int stepsOr       = 0;
+      for (int i = 0; i < backends.size(); i++) {
+        MilterSession session = probe(backends.get(i), i);
+        int backendSteps = session.milterProtocolSteps().bitmap();
+        actionsBitmap |= session.milterActions().bitmap();
+        stepsAnd &= backendSteps;
+        stepsOr  |= backendSteps;
+      }
+
+      actions       = new Actions(ByteArrays.intToByteArray(actionsBitmap), 0);
+      protocolSteps = steps((stepsAnd & (NO_STEP_MASK | NO_REPLY_MASK)) | (stepsOr & ~(NO_STEP_MASK | NO_REPLY_MASK))
+          | ProtocolSteps.NO_UNKNOWN);
+      return new MilterProxyHandler(this);
+    }
+
+    private MilterSession probe(MilterSessionPool pool, int index) {
+      MilterSessionPool.Lease lease;
+      try {
+        lease = pool.lease().get(probeTimeoutMs, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted while probing backend #" + index, ex);
+      } catch (ExecutionException | TimeoutException ex) {
+        throw new IllegalStateException("unable to probe backend #" + index, ex);
+      }
+      lease.close();
+      return lease.session();
+    }
+  }
+
+  private static final class ProxyState {
+    private final List<CompletableFuture<MilterSessionPool.Lease>> leases;
+    private final List<CompletableFuture<MilterResponse>>          tails;
+    private final boolean[]                                        failed;
+    private final boolean[]                                        sessionDone;
+    private final boolean[]                                        messageDone;
+    private final boolean[]                                        bodySkipped;
+
+    ProxyState(int size) {
+      leases      = new ArrayList<>(size);
+      tails       = new ArrayList<>(size);
+      failed      = new boolean[size];
+      sessionDone = new boolean[size];
+      messageDone = new boolean[size];
+      bodySkipped = new boolean[size];
+    }
+
+    synchronized boolean isFailed(int index) {
+      return failed[index];
+    }
+
+    synchronized boolean isActive(int index, @Nullable CommandCode step) {
+      if (failed[index] || sessionDone[index]) {
+        return false;
+      }
+      if (step != null && MilterPackets.isMessageState(step) && messageDone[index]) {
+        return false;
+      }
+      return step != SMFIC_BODY || !bodySkipped[index];
+    }
+
+    /**
+     * Sends the command to the backend once the backend has replied to the previous one,
+     * so that commands reach every backend in the order they were received from the MTA.
+     */
+    CompletableFuture<MilterResponse> forward(int index, Function<MilterSession, CompletableFuture<MilterResponse>> command) {
+      CompletableFuture<MilterSessionPool.Lease> lease = leases.get(index);
+      CompletableFuture<MilterResponse> future = tails.get(index)
+          .thenCompose(r -> lease.thenCompose(l -> command.apply(l.session())));
+      tails.set(index, future);
+      return future;
+    }
+
+    synchronized void resetMessage() {
+      Arrays.fill(messageDone, false);
+      Arrays.fill(bodySkipped, false);
+    }
+
+    synchronized void resetSession() {
+      Arrays.fill(sessionDone, false);
+      resetMessage();
+    }
+
+    void release() {
+      for (int i = 0; i < leases.size(); i++) {
+        boolean invalidate = isFailed(i);
+        CompletableFuture<MilterSessionPool.Lease> lease = leases.get(i);
+        tails.get(i).whenComplete((r, ex) -> lease.thenAccept(l -> {
+          if (invalidate || ex != null) {
+            l.invalidate();
+          } else {
+            l.close();
+          }
+        }));
+      }
+    }
+  }
+
+  private static final int NO_STEP_MASK = ProtocolSteps.NO_CONNECT
+      | ProtocolSteps.NO_HELO
+      | ProtocolSteps.NO_MAIL_FROM
+      | ProtocolSteps.NO_RECIPIENTS
+      | ProtocolSteps.NO_BODY
+      | ProtocolSteps.NO_HEADERS
+      | ProtocolSteps.NO_EOH
+      | ProtocolSteps.NO_UNKNOWN
+      | ProtocolSteps.NO_DATA;
+
+  private static final int NO_REPLY_MASK = ProtocolSteps.NO_REPLY_FOR_CONNECT
+      | ProtocolSteps.NO_REPLY_FOR_HELO
+      | ProtocolSteps.NO_REPLY_FOR_MAIL_FROM
+      | ProtocolSteps.NO_REPLY_FOR_RECIPIENTS
+      | ProtocolSteps.NO_REPLY_FOR_DATA
+      | ProtocolSteps.NO_REPLY_FOR_UNKNOWN
+      | ProtocolSteps.NO_REPLY_FOR_HEADERS
+      | ProtocolSteps.NO_REPLY_FOR_EOH
+      | ProtocolSteps.NO_REPLY_FOR_BODY;
+
+  private static final int ADD_HEADER    = Actions.builder().addHeader().build().bitmap();
+  private static final int CHANGE_HEADER = Actions.builder().changeDeleteHeaders().build().bitmap();
+  private static final int REPLACE_BODY  = Actions.builder().replaceBody().build().bitmap();
+  private static final int ADD_RCPT      = Actions.builder().addRecipients().build().bitmap();
+  private static final int ADD_RCPT_PAR  = Actions.builder().addRecipientsInclArgs().build().bitmap();
+  private static final int DELETE_RCPT   = Actions.builder().deleteRecipients().build().bitmap();
+  private static final int CHANGE_FROM   = Actions.builder().changeFrom().build().bitmap();
+  private static final int QUARANTINE    = Actions.builder().quarantineEnvelope().build().bitmap();
+
+  private static final AttributeKey<ProxyState> PROXY_STATE = AttributeKey.valueOf(MilterProxyHandler.class, "proxyState");
+
+  private static final LongAdder BACKEND_FAILURES = Metrics.counter("jmilter.proxy.backend.failures");
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private static ProtocolSteps steps(int bitmap) {
+    return new ProtocolSteps(ByteArrays.intToByteArray(bitmap), 0);
+  }
+
+  private final MilterSessionPool[] backends;
+  private final MilterPacket        failureVerdict;
+
+  private MilterProxyHandler(Builder builder) {
+    super(builder.actions, builder.protocolSteps, builder.milterMacros);
+    backends       = builder.backends.toArray(new MilterSessionPool[0]);
+    failureVerdict = builder.failureVerdict;
+  }
+
+  @Override public void abort(MilterContext context, @Nullable MilterPacket packet) {
+    ProxyState state = state(context);
+    for (int i = 0; i < backends.length; i++) {
+      if (state.isActive(i, null)) {
+        state.forward(i, MilterSession::abort);
+      }
+    }
+    state.resetMessage();
+  }
+
+  @Override public void body(MilterContext context, byte[] bodyChunk) {
+    dispatch(context, SMFIC_BODY, session -> session.body(bodyChunk));
+  }
+
+  @Override public void connect(MilterContext context, String hostname, int family, int port, @Nullable SocketAddress address) {
+    ProtocolFamily protocolFamily = ProtocolFamily.SMFIA_UNKNOWN;
+    for (ProtocolFamily value : ProtocolFamily.values()) {
+      if (value.code() == family) {
+        protocolFamily = value;
+      }
+    }
+    String stringAddress;
+    if (address instanceof InetSocketAddress) {
+      stringAddress = ((InetSocketAddress) address).getAddress().getHostAddress();
+    } else if (address instanceof DomainSocketAddress) {
+      stringAddress = ((DomainSocketAddress) address).path();
+    } else {
+      stringAddress = "";
+    }
+    ProtocolFamily connectFamily = protocolFamily;
+    dispatch(context, SMFIC_CONNECT, session -> session.connect(hostname, connectFamily, port, stringAddress));
+  }
+
+  @Override public void data(MilterContext context, byte[] payload) {
+    dispatch(context, SMFIC_DATA, session -> session.data(payload));
+  }
+
+  @Override public void envfrom(MilterContext context, List<String> from) {
+    dispatch(context, SMFIC_MAIL, session -> session.envfrom(from));
+  }
+
+  @Override public void envrcpt(MilterContext context, List<String> recipients) {
+    dispatch(context, SMFIC_RCPT, session -> session.envrcpt(recipients));
+  }
+
+  @Override public void eoh(MilterContext context) {
+    dispatch(context, SMFIC_EOH, MilterSession::eoh);
+  }
+
+  @Override public void eom(MilterContext context, @Nullable byte[] bodyChunk) {
+    dispatch(context, SMFIC_EOB, session -> {
+      if (bodyChunk == null) {
+        return session.eob();
+      }
+      return session.body(bodyChunk).thenCompose(response -> {
+        MilterPacket reply = response.lastPacket();
+        if (reply != null && reply.command() != SMFIR_CONTINUE.code() && reply.command() != SMFIR_SKIP.code()) {
+          return CompletableFuture.completedFuture(response);
+        }
+        return session.eob();
+      });
+    });
+  }
+
+  @Override public void header(MilterContext context, String headerName, String headerValue) {
+    dispatch(context, SMFIC_HEADER, session -> session.header(headerName, headerValue));
+  }
+
+  @Override public void helo(MilterContext context, String helohost) {
+    dispatch(context, SMFIC_HELO, session -> session.helo(helohost));
+  }
+
+  @Override public void macro(MilterContext context, int type, Map<String, String> macros) {
+    CommandCode code;
+    try {
+      code = CommandCode.valueOf(type);
+    } catch (RuntimeException ex) {
+      Log.info().log(getClass(), () -> format("[%s] macros for unknown command %s are dropped", context.id(), type));
+      return;
+    }
+    Macros.Builder builder = Macros.builder();
+    for (Map.Entry<String, String> entry : macros.entrySet()) {
+      builder.add(entry.getKey(), entry.getValue());
+    }
+    Macros     encoded = builder.build();
+    ProxyState state   = state(context);
+    for (int i = 0; i < backends.length; i++) {
+      if (state.isActive(i, null)) {
+        state.forward(i, session -> session.macro(code, encoded));
+      }
+    }
+  }
+
+  @Override public void optneg(MilterContext context, int mtaProtocolVersion, Actions mtaActions, ProtocolSteps mtaProtocolSteps)
+      throws MilterException {
+    ProxyState previous = context.attr(PROXY_STATE).getAndSet(null);
+    if (previous != null) {
+      previous.release();
+    }
+    state(context);
+    super.optneg(context, mtaProtocolVersion, mtaActions, mtaProtocolSteps);
+  }
+
+  @Override public void quit(MilterContext context) {
+    ProxyState state = context.attr(PROXY_STATE).getAndSet(null);
+    if (state != null) {
+      state.release();
+    }
+  }
+
+  @Override public void quitNc(MilterContext context) {
+    ProxyState state = state(context);
+    for (int i = 0; i < backends.length; i++) {
+      if (!state.isFailed(i)) {
+        state.forward(i, MilterSession::quitNc);
+      }
+    }
+    state.resetSession();
+  }
+
+  private void dispatch(MilterContext context, CommandCode step, Function<MilterSession, CompletableFuture<MilterResponse>> command) {
+    ProxyState                              state   = state(context);
+    int[]                                   indexes = new int[backends.length];
+    List<CompletableFuture<MilterResponse>> futures = new ArrayList<>(backends.length);
+    for (int i = 0; i < backends.length; i++) {
+      if (state.isActive(i, step)) {
+        indexes[futures.size()] = i;
+        futures.add(state.forward(i, command));
+      }
+    }
+
+    ProtocolSteps           sessionSteps = context.getSessionProtocolSteps();
+    boolean                 expectsReply = sessionSteps == null || (sessionSteps.bitmap() & step.noReplyBit()) == 0;
+    CompletableFuture<Void> all          = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    if (expectsReply) {
+      context.addPendingWork(all);
+    }
+    all.whenComplete((r, ex) -> {
+      if (!all.isCancelled()) {
+        reply(context, state, step, indexes, futures, expectsReply);
+      }
+    });
+  }
+
+  private void reply(MilterContext context, ProxyState state, CommandCode step, int[] indexes,
+                     List<CompletableFuture<MilterResponse>> futures, boolean expectsReply) {
+    MilterPacket       verdict       = null;
+    List<MilterPacket> modifications = new ArrayList<>();
+    synchronized (state) {
+      for (int k = 0; k < futures.size(); k++) {
+        int          index          = indexes[k];
+        MilterPacket backendVerdict = collect(context, state, step, index, futures.get(k), modifications);
+        if (backendVerdict == null) {
+          continue;
+        }
+        if (backendVerdict.command() == SMFIR_SKIP.code()) {
+          state.bodySkipped[index] = true;
+          continue;
+        }
+        if (backendVerdict.command() == SMFIR_ACCEPT.code()) {
+          if (MilterPackets.isMessageState(step)) {
+            state.messageDone[index] = true;
+          } else {
+            state.sessionDone[index] = true;
+          }
+        }
+        if (verdict == null || MergePolicy.severity(backendVerdict) > MergePolicy.severity(verdict)) {
+          verdict = backendVerdict;
+        }
+      }
+
+      if (verdict != null && verdict.command() == SMFIR_ACCEPT.code() && !isAccepted(state, step)) {
+        verdict = MilterPackets.SMFIS_CONTINUE;
+      }
+      if ((verdict == null || verdict.command() == SMFIR_CONTINUE.code()) && step == SMFIC_BODY && isBodySkipped(context, state)) {
+        verdict = MilterPackets.SMFIS_SKIP;
+      }
+      if (step == SMFIC_EOB) {
+        state.resetMessage();
+      }
+    }
+
+    if (!expectsReply) {
+      // the step was negotiated without reply, only the failure bookkeeping above applies
+      return;
+    }
+    if (verdict == null) {
+      verdict = MilterPackets.SMFIS_CONTINUE;
+    }
+    if (verdict.command() != SMFIR_ACCEPT.code() && verdict.command() != SMFIR_CONTINUE.code()) {
+      modifications.clear();
+    }
+
+    MilterPacket reply = verdict;
+    Log.debug().log(getClass(), () -> format("[%s] %s: backends replied %s", context.id(), step, reply));
+    try {
+      if (modifications.isEmpty()) {
+        context.sendPacket(reply);
+      } else {
+        modifications.add(reply);
+        context.sendPackets(modifications);
+      }
+    } catch (MilterException ex) {
+      Log.info().log(getClass(), () -> format("[%s] can't send reply to %s", context.id(), step), ex);
+    }
+  }
+
+  /**
+   * Returns the verdict of the backend, modifications are added to the supplied list.
+   */
+  private @Nullable MilterPacket collect(MilterContext context, ProxyState state, CommandCode step, int index,
+                                         CompletableFuture<MilterResponse> future, List<MilterPacket> modifications) {
+    MilterResponse response;
+    try {
+      response = future.join();
+    } catch (RuntimeException ex) {
+      state.failed[index] = true;
+      BACKEND_FAILURES.increment();
+      Log.info().log(getClass(), () -> format("[%s] %s: backend #%s has failed", context.id(), step, index), ex);
+      return failureVerdict;
+    }
+
+    int          allowed = negotiatedActions(context);
+    MilterPacket verdict = null;
+    for (MilterPacket packet : response.packets()) {
+      int code = packet.command();
+      if (code == SMFIR_CONTINUE.code() || code == SMFIR_SKIP.code() || ResponseCode.valueOf(code).acceptReject()) {
+        verdict = packet;
+      } else if (code == SMFIR_PROGRESS.code()) {
+        continue;
+      } else if (step != SMFIC_EOB) {
+        Log.info().log(getClass(), () -> format("[%s] %s: modification %s of backend #%s has been dropped, modifications"
+            + " are allowed only at EOM", context.id(), step, packet, index));
+      } else if ((requiredAction(code) & allowed) == 0) {
+        Log.info().log(getClass(), () -> format("[%s] modification %s of backend #%s has been dropped, the action"
+            + " hasn't been negotiated with the MTA", context.id(), packet, index));
+      } else {
+        modifications.add(packet);
+      }
+    }
+    return verdict;
+  }
+
+  /**
+   * Returns the actions granted for the session: actions of the proxy the MTA has agreed to.
+   */
+  private static int negotiatedActions(MilterContext context) {
+    Actions mtaActions = context.getMtaActions();
+    int     milter     = context.milterActions().bitmap();
+    return mtaActions != null ? mtaActions.bitmap() & milter : milter;
+  }
+
+  /**
+   * Returns the action a modification requires, 0 for responses which aren't message modifications.
+   */
+  private static int requiredAction(int code) {
+    switch (ResponseCode.valueOf(code)) {
+      case SMFIR_ADDHEADER:
+      case SMFIR_INSHEADER:
+        return ADD_HEADER;
+      case SMFIR_CHGHEADER:
+        return CHANGE_HEADER;
+      case SMFIR_REPLBODY:
+        return REPLACE_BODY;
+      case SMFIR_ADDRCPT:
+        return ADD_RCPT;
+      case SMFIR_ADDRCPT_PAR:
+        return ADD_RCPT_PAR;
+      case SMFIR_DELRCPT:
+        return DELETE_RCPT;
+      case SMFIR_CHGFROM:
+        return CHANGE_FROM;
+      case SMFIR_QUARANTINE:
+        return QUARANTINE;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Checks that every backend which is still in the MTA session has accepted the message (or the connection).
+   */
+  private boolean isAccepted(ProxyState state, CommandCode step) {
+    boolean messageStep = MilterPackets.isMessageState(step);
+    for (int i = 0; i < backends.length; i++) {
+      if (!state.failed[i] && !state.sessionDone[i] && !(messageStep && state.messageDone[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isBodySkipped(MilterContext context, ProxyState state) {
+    ProtocolSteps sessionSteps = context.getSessionProtocolSteps();
+    if (sessionSteps == null || (sessionSteps.bitmap() & ProtocolSteps.UNDERSTAND_SKIP) == 0) {
+      return false;
+    }
+    for (int i = 0; i < backends.length; i++) {
+      if (state.failed[i] || state.sessionDone[i] || state.messageDone[i] || state.bodySkipped[i]) {
+        continue;
+      }
+      MilterSessionPool.Lease lease = state.leases.get(i).getNow(null);
+      if (lease == null || (lease.session().milterProtocolSteps().bitmap() & ProtocolSteps.NO_BODY) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private ProxyState state(MilterContext context) {
+    Attribute<ProxyState> attribute = context.attr(PROXY_STATE);
+    ProxyState state = attribute.get();
+    if (state == null) {
+      state = new ProxyState(backends.length);
+      for (MilterSessionPool backend : backends) {
+        CompletableFuture<MilterSessionPool.Lease> lease = backend.lease();
+        state.leases.add(lease);
+        state.tails.add(lease.thenApply(l -> null));
+      }
+      attribute.set(state);
+    }
+    return state;
+  }
+}
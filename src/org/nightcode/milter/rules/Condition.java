@@ -0,0 +1,30 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.rules;
+
+import org.jetbrains.annotations.Nullable;
+
+final class Condition {
+
+  final Field            field;
+  final @Nullable String headerName;
+  final Matcher          matcher;
+
+  Condition(Field field, @Nullable String headerName, Matcher matcher) {
+    this.field      = field;
+    this.headerName = headerName;
+    this.matcher    = matcher;
+  }
+}
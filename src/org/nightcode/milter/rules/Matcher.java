@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Case insensitive matcher of a rule condition.
+ */
+public final class Matcher {
+
+  enum Kind {
+    EQUAL_TO, DOMAIN, CONTAINS
+  }
+
+  /**
+   * Matches values equal to one of the given values.
+   * For envelope addresses the value is the address without angle brackets.
+   *
+   * @param values values to match
+   * @return matcher
+   */
+  public static Matcher equalTo(String... values) {
+    return new Matcher(Kind.EQUAL_TO, values);
+  }
+
+  /**
+   * Matches values whose domain is one of the given domains or their subdomain.
+   * The domain of an address is the part after '@', hostnames are used as is.
+   *
+   * @param domains domains to match
+   * @return matcher
+   */
+  public static Matcher domain(String... domains) {
+    return new Matcher(Kind.DOMAIN, domains);
+  }
+
+  /**
+   * Matches values containing one of the given substrings.
+   *
+   * @param substrings substrings to match
+   * @return matcher
+   */
+  public static Matcher contains(String... substrings) {
+    return new Matcher(Kind.CONTAINS, substrings);
+  }
+
+  private final Kind         kind;
+  private final List<String> values;
+
+  private Matcher(Kind kind, String... values) {
+    if (values.length == 0) {
+      throw new IllegalArgumentException("at least one value must be specified");
+    }
+    List<String> normalized = new ArrayList<>(values.length);
+    for (String value : values) {
+      String v = value.trim().toLowerCase(Locale.ROOT);
+      if (kind == Kind.DOMAIN && v.startsWith(".")) {
+        v = v.substring(1);
+      }
+      if (v.isEmpty()) {
+        throw new IllegalArgumentException("matcher value must not be empty");
+      }
+      normalized.add(v);
+    }
+    this.kind   = kind;
+    this.values = Collections.unmodifiableList(normalized);
+  }
+
+  Kind kind() {
+    return kind;
+  }
+
+  List<String> values() {
+    return values;
+  }
+
+  @Override public String toString() {
+    return kind.name().toLowerCase(Locale.ROOT) + Arrays.toString(values.toArray());
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A rule is a conjunction of conditions and an outcome. A rule fires as soon as all
+ * of its conditions hold, so a verdict is given at the earliest possible step.
+ *
+ * <pre>{@code
+ * Rule rule = Rule.builder("spam-from-example")
+ *     .envfrom(Matcher.domain("example.com"))
+ *     .header("Subject", Matcher.contains("viagra", "casino"))
+ *     .verdict(Verdict.REJECT)
+ *     .build();
+ * }</pre>
+ */
+public final class Rule {
+
+  public static final class Builder {
+    private final String          name;
+    private final List<Condition> conditions = new ArrayList<>();
+    private final List<String>    headers    = new ArrayList<>();
+
+    private Verdict verdict = Verdict.CONTINUE;
+
+    private Builder(String name) {
+      this.name = name;
+    }
+
+    public Builder hostname(Matcher matcher) {
+      conditions.add(new Condition(Field.HOSTNAME, null, matcher));
+      return this;
+    }
+
+    public Builder address(Matcher matcher) {
+      conditions.add(new Condition(Field.ADDRESS, null, matcher));
+      return this;
+    }
+
+    public Builder helo(Matcher matcher) {
+      conditions.add(new Condition(Field.HELO, null, matcher));
+      return this;
+    }
+
+    public Builder envfrom(Matcher matcher) {
+      conditions.add(new Condition(Field.ENVFROM, null, matcher));
+      return this;
+    }
+
+    /**
+     * The condition holds if any recipient of the message matches.
+     *
+     * @param matcher recipient matcher
+     * @return the current {@link Builder} instance
+     */
+    public Builder envrcpt(Matcher matcher) {
+      conditions.add(new Condition(Field.ENVRCPT, null, matcher));
+      return this;
+    }
+
+    /**
+     * The condition holds if any header with the given name (case insensitive) matches.
+     *
+     * @param headerName header name
+     * @param matcher header value matcher
+     * @return the current {@link Builder} instance
+     */
+    public Builder header(String headerName, Matcher matcher) {
+      conditions.add(new Condition(Field.HEADER, headerName.toLowerCase(Locale.ROOT), matcher));
+      return this;
+    }
+
+    public Builder verdict(Verdict verdict) {
+      this.verdict = verdict;
+      return this;
+    }
+
+    /**
+     * Adds a header at the end of a message the rule fired for.
+     *
+     * @param headerName header name
+     * @param headerValue header value
+     * @return the current {@link Builder} instance
+     */
+    public Builder addHeader(String headerName, String headerValue) {
+      headers.add(headerName);
+      headers.add(headerValue);
+      return this;
+    }
+
+    public Rule build() {
+      if (conditions.isEmpty()) {
+        throw new IllegalStateException("rule '" + name + "' has no conditions");
+      }
+      if (verdict != Verdict.CONTINUE && !headers.isEmpty()) {
+        throw new IllegalStateException("rule '" + name + "' adds headers but its verdict is " + verdict);
+      }
+      return new Rule(this);
+    }
+  }
+
+  public static Builder builder(String name) {
+    return new Builder(name);
+  }
+
+  private final String          name;
+  private final List<Condition> conditions;
+  private final Verdict         verdict;
+  private final List<String>    headers;
+
+  private Rule(Builder builder) {
+    name       = builder.name;
+    conditions = Collections.unmodifiableList(new ArrayList<>(builder.conditions));
+    verdict    = builder.verdict;
+    headers    = Collections.unmodifiableList(new ArrayList<>(builder.headers));
+  }
+
+  public String name() {
+    return name;
+  }
+
+  public Verdict verdict() {
+    return verdict;
+  }
+
+  List<Condition> conditions() {
+    return conditions;
+  }
+
+  /**
+   * Returns names and values of headers to add as a flat list.
+   */
+  List<String> headers() {
+    return headers;
+  }
+
+  @Override public String toString() {
+    return "Rule{" + name + ", " + verdict + '}';
+  }
+}
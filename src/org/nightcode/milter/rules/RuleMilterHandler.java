@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.rules;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.Log;
+
+import static java.lang.String.format;
+
+/**
+ * Milter handler that evaluates a {@link RuleSet}. Every callback matches its value once against
+ * the compiled rule set and replies with the verdict of the first fired rule or continues.
+ * A verdict given in response to a recipient applies to that recipient only.
+ * Headers of fired rules with {@link Verdict#CONTINUE} are added at the end of the message.
+ *
+ * <p>Protocol steps and actions are negotiated from the rule set.
+ */
+public class RuleMilterHandler extends AbstractMilterHandler {
+
+  private static final AttributeKey<RuleState> RULE_STATE = AttributeKey.valueOf(RuleMilterHandler.class, "ruleState");
+
+  private final RuleSet ruleSet;
+
+  public RuleMilterHandler(RuleSet ruleSet) {
+    super(ruleSet.actions(), ruleSet.protocolSteps());
+    this.ruleSet = ruleSet;
+  }
+
+  @Override public void abort(MilterContext context, @Nullable MilterPacket packet) {
+    ruleSet.resetMessage(state(context));
+  }
+
+  @Override public void connect(MilterContext context, String hostname, int family, int port, @Nullable SocketAddress address)
+      throws MilterException {
+    RuleState state = state(context);
+    Rule fired = ruleSet.evaluate(state, Field.HOSTNAME, null, hostname);
+    if (address != null) {
+      String value = address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null
+          ? ((InetSocketAddress) address).getAddress().getHostAddress()
+          : address.toString();
+      fired = first(fired, ruleSet.evaluate(state, Field.ADDRESS, null, value));
+    }
+    reply(context, fired);
+  }
+
+  @Override public void envfrom(MilterContext context, List<String> from) throws MilterException {
+    reply(context, from.isEmpty() ? null : ruleSet.evaluate(state(context), Field.ENVFROM, null, from.get(0)));
+  }
+
+  @Override public void envrcpt(MilterContext context, List<String> recipients) throws MilterException {
+    reply(context, recipients.isEmpty() ? null : ruleSet.evaluate(state(context), Field.ENVRCPT, null, recipients.get(0)));
+  }
+
+  @Override public void eom(MilterContext context, @Nullable byte[] bodyChunk) throws MilterException {
+    RuleState state = state(context);
+    try {
+      for (Rule rule : ruleSet.headerRules(state)) {
+        List<String> headers = rule.headers();
+        for (int i = 0; i < headers.size(); i += 2) {
+          messageModificationService.addHeader(context, headers.get(i), headers.get(i + 1));
+        }
+      }
+    } finally {
+      ruleSet.resetMessage(state);
+    }
+    context.sendContinue();
+  }
+
+  @Override public void header(MilterContext context, String headerName, String headerValue) throws MilterException {
+    reply(context, ruleSet.evaluate(state(context), Field.HEADER, headerName, headerValue));
+  }
+
+  @Override public void helo(MilterContext context, String helohost) throws MilterException {
+    reply(context, ruleSet.evaluate(state(context), Field.HELO, null, helohost));
+  }
+
+  @Override public void quit(MilterContext context) {
+    context.attr(RULE_STATE).set(null);
+  }
+
+  private @Nullable Rule first(@Nullable Rule left, @Nullable Rule right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    return ruleSet.rules().indexOf(left) <= ruleSet.rules().indexOf(right) ? left : right;
+  }
+
+  private void reply(MilterContext context, @Nullable Rule fired) throws MilterException {
+    if (fired == null) {
+      context.sendContinue();
+      return;
+    }
+    Log.debug().log(getClass(), () -> format("[%s] rule '%s' fired at %s: %s"
+        , context.id(), fired.name(), context.getSessionStep(), fired.verdict()));
+    context.sendPacket(fired.verdict().packet());
+  }
+
+  private RuleState state(MilterContext context) {
+    Attribute<RuleState> attribute = context.attr(RULE_STATE);
+    RuleState state = attribute.get();
+    if (state == null) {
+      state = ruleSet.newState();
+      attribute.set(state);
+    }
+    return state;
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.scan.PatternScanner;
+import org.nightcode.milter.scan.PatternSet;
+
+/**
+ * An ordered set of {@link Rule}s compiled into per-field decision indexes: exact values are looked up
+ * in hash tables, domains by their suffixes, substrings by a single Aho-Corasick pass.
+ * Each incoming value is matched once regardless of the number of rules.
+ *
+ * <p>The set also derives the {@link ProtocolSteps} and {@link Actions} to negotiate,
+ * so the MTA skips the steps no rule depends on.
+ */
+public final class RuleSet {
+
+  public static final class Builder {
+    private final List<Rule> rules = new ArrayList<>();
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder add(Rule rule) {
+      rules.add(rule);
+      return this;
+    }
+
+    public RuleSet build() {
+      if (rules.isEmpty()) {
+        throw new IllegalStateException("rule set is empty");
+      }
+      return new RuleSet(this);
+    }
+  }
+
+  private static final class FieldIndex {
+    private final Map<String, int[]> exact   = new HashMap<>();
+    private final Map<String, int[]> domains = new HashMap<>();
+
+    private final List<String>  patterns          = new ArrayList<>();
+    private final List<Integer> patternConditions = new ArrayList<>();
+
+    private final int id;
+
+    private @Nullable PatternSet patternSet;
+    private int[]                patternToCondition;
+
+    FieldIndex(int id) {
+      this.id = id;
+    }
+
+    void add(Matcher matcher, int condition) {
+      for (String value : matcher.values()) {
+        switch (matcher.kind()) {
+          case EQUAL_TO:
+            append(exact, value, condition);
+            break;
+          case DOMAIN:
+            append(domains, value, condition);
+            break;
+          case CONTAINS:
+            patterns.add(value);
+            patternConditions.add(condition);
+            break;
+          default:
+            throw new IllegalArgumentException("unsupported matcher " + matcher);
+        }
+      }
+    }
+
+    void compile() {
+      if (patterns.isEmpty()) {
+        return;
+      }
+      PatternSet.Builder builder = PatternSet.builder().ignoreCase();
+      patternToCondition = new int[patterns.size()];
+      for (int i = 0; i < patterns.size(); i++) {
+        patternToCondition[builder.add(patterns.get(i))] = patternConditions.get(i);
+      }
+      patternSet = builder.build();
+    }
+
+    void match(String value, String exactKey, @Nullable String domain, RuleState state) {
+      if (!exact.isEmpty()) {
+        satisfy(exact.get(exactKey), state);
+      }
+      if (!domains.isEmpty()) {
+        while (domain != null && !domain.isEmpty()) {
+          satisfy(domains.get(domain), state);
+          int dot = domain.indexOf('.');
+          domain = dot < 0 ? null : domain.substring(dot + 1);
+        }
+      }
+      if (patternSet != null) {
+        PatternScanner scanner = state.scanners[id];
+        if (scanner == null) {
+          scanner = new PatternScanner(patternSet);
+          state.scanners[id]  = scanner;
+          state.listeners[id] = (index, end) -> state.satisfy(patternToCondition[index]);
+        } else {
+          scanner.reset();
+        }
+        scanner.scan(value, state.listeners[id]);
+      }
+    }
+
+    private static void append(Map<String, int[]> map, String key, int condition) {
+      int[] conditions = map.get(key);
+      if (conditions == null) {
+        map.put(key, new int[] {condition});
+      } else {
+        int[] extended = Arrays.copyOf(conditions, conditions.length + 1);
+        extended[conditions.length] = condition;
+        map.put(key, extended);
+      }
+    }
+
+    private static void satisfy(@Nullable int[] conditions, RuleState state) {
+      if (conditions != null) {
+        for (int condition : conditions) {
+          state.satisfy(condition);
+        }
+      }
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final List<Rule> rules;
+  private final long[][]   ruleMasks;
+  private final int[]      conditionRules;
+  private final long[]     connectionMask;
+  private final int[]      headerRules;
+  private final int        conditionCount;
+
+  private final Map<Field, FieldIndex>  fieldIndexes  = new EnumMap<>(Field.class);
+  private final Map<String, FieldIndex> headerIndexes = new HashMap<>();
+
+  private final ProtocolSteps protocolSteps;
+  private final Actions       actions;
+
+  private RuleSet(Builder builder) {
+    rules = Collections.unmodifiableList(new ArrayList<>(builder.rules));
+
+    int count = 0;
+    for (Rule rule : rules) {
+      count += rule.conditions().size();
+    }
+    conditionCount = count;
+
+    int words = (conditionCount + 63) >>> 6;
+    ruleMasks      = new long[rules.size()][words];
+    connectionMask = new long[words];
+
+    conditionRules = new int[conditionCount];
+    List<Integer> withHeaders = new ArrayList<>();
+    boolean[]     usedFields  = new boolean[Field.values().length];
+
+    int condition = 0;
+    for (int r = 0; r < rules.size(); r++) {
+      Rule rule = rules.get(r);
+      for (Condition c : rule.conditions()) {
+        FieldIndex index;
+        if (c.field == Field.HEADER) {
+          index = headerIndexes.computeIfAbsent(c.headerName, k -> new FieldIndex(indexCount()));
+        } else {
+          index = fieldIndexes.computeIfAbsent(c.field, k -> new FieldIndex(indexCount()));
+        }
+        index.add(c.matcher, condition);
+
+        ruleMasks[r][condition >>> 6] |= 1L << condition;
+        if (c.field.connectionLevel()) {
+          connectionMask[condition >>> 6] |= 1L << condition;
+        }
+        conditionRules[condition] = r;
+        usedFields[c.field.ordinal()] = true;
+        condition++;
+      }
+      if (!rule.headers().isEmpty()) {
+        withHeaders.add(r);
+      }
+    }
+
+    headerRules = new int[withHeaders.size()];
+    for (int i = 0; i < headerRules.length; i++) {
+      headerRules[i] = withHeaders.get(i);
+    }
+
+    fieldIndexes.values().forEach(FieldIndex::compile);
+    headerIndexes.values().forEach(FieldIndex::compile);
+
+    ProtocolSteps.Builder steps = ProtocolSteps.builder()
+        .noData()
+        .noEoh()
+        .noBody()
+        .noUnknownCommands();
+    if (!usedFields[Field.HOSTNAME.ordinal()] && !usedFields[Field.ADDRESS.ordinal()]) {
+      steps.noConnect();
+    }
+    if (!usedFields[Field.HELO.ordinal()]) {
+      steps.noHelo();
+    }
+    if (!usedFields[Field.ENVFROM.ordinal()]) {
+      steps.noMailFrom();
+    }
+    if (!usedFields[Field.ENVRCPT.ordinal()]) {
+      steps.noRecipients();
+    }
+    if (!usedFields[Field.HEADER.ordinal()]) {
+      steps.noHeaders();
+    }
+    protocolSteps = steps.build();
+
+    Actions.Builder actionsBuilder = Actions.builder();
+    if (headerRules.length > 0) {
+      actionsBuilder.addHeader();
+    }
+    actions = actionsBuilder.build();
+  }
+
+  /**
+   * Returns the smallest set of protocol steps the rules depend on.
+   *
+   * @return protocol steps to negotiate
+   */
+  public ProtocolSteps protocolSteps() {
+    return protocolSteps;
+  }
+
+  /**
+   * Returns actions required by the rules.
+   *
+   * @return actions to negotiate
+   */
+  public Actions actions() {
+    return actions;
+  }
+
+  public List<Rule> rules() {
+    return rules;
+  }
+
+  RuleState newState() {
+    return new RuleState(conditionCount, indexCount());
+  }
+
+  private int indexCount() {
+    return fieldIndexes.size() + headerIndexes.size();
+  }
+
+  /**
+   * Matches the value of a field and returns the first rule (in declaration order) with
+   * a final verdict that fired because of this value.
+   */
+  @Nullable Rule evaluate(RuleState state, Field field, @Nullable String headerName, String value) {
+    FieldIndex index = field == Field.HEADER
+        ? headerIndexes.get(headerName != null ? headerName.toLowerCase(Locale.ROOT) : null)
+        : fieldIndexes.get(field);
+    if (index == null) {
+      return null;
+    }
+
+    String normalized = value.trim().toLowerCase(Locale.ROOT);
+    String exactKey;
+    String domain;
+    switch (field) {
+      case ENVFROM:
+      case ENVRCPT:
+        exactKey = addressOf(normalized);
+        domain   = domainOf(exactKey);
+        break;
+      case HEADER:
+        exactKey = normalized;
+        domain   = domainOf(addressOf(normalized));
+        break;
+      default:
+        if (normalized.startsWith("[") && normalized.endsWith("]")) {
+          normalized = normalized.substring(1, normalized.length() - 1);
+        }
+        exactKey = normalized;
+        domain   = normalized;
+        break;
+    }
+
+    state.newlySatisfiedCount = 0;
+    index.match(normalized, exactKey, domain, state);
+
+    Rule fired      = null;
+    int  firedIndex = Integer.MAX_VALUE;
+    for (int i = 0; i < state.newlySatisfiedCount; i++) {
+      int r = conditionRules[state.newlySatisfied[i]];
+      if (r < firedIndex && rules.get(r).verdict() != Verdict.CONTINUE && state.satisfiedAll(ruleMasks[r])) {
+        fired      = rules.get(r);
+        firedIndex = r;
+      }
+    }
+    return fired;
+  }
+
+  /**
+   * Returns rules adding headers whose conditions hold for the current message.
+   */
+  List<Rule> headerRules(RuleState state) {
+    List<Rule> result = null;
+    for (int r : headerRules) {
+      if (state.satisfiedAll(ruleMasks[r])) {
+        if (result == null) {
+          result = new ArrayList<>(headerRules.length);
+        }
+        result.add(rules.get(r));
+      }
+    }
+    return result != null ? result : Collections.emptyList();
+  }
+
+  /**
+   * Forgets conditions of the current message, conditions of the connection are retained.
+   */
+  void resetMessage(RuleState state) {
+    state.retain(connectionMask);
+  }
+
+  static @Nullable String domainOf(String address) {
+    int at = address.lastIndexOf('@');
+    return at < 0 ? null : address.substring(at + 1);
+  }
+
+  private static String addressOf(String value) {
+    int start = value.lastIndexOf('<');
+    int end   = value.lastIndexOf('>');
+    if (start >= 0 && end > start) {
+      return value.substring(start + 1, end).trim();
+    }
+    return value;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.rules;
+
+import org.nightcode.milter.scan.MatchListener;
+import org.nightcode.milter.scan.PatternScanner;
+
+/**
+ * Per-session evaluation state of a {@link RuleSet}.
+ */
+final class RuleState {
+
+  final long[]           satisfied;
+  final int[]            newlySatisfied;
+  final PatternScanner[] scanners;
+  final MatchListener[]  listeners;
+
+  int newlySatisfiedCount;
+
+  RuleState(int conditionCount, int indexCount) {
+    satisfied      = new long[(conditionCount + 63) >>> 6];
+    newlySatisfied = new int[conditionCount];
+    scanners       = new PatternScanner[indexCount];
+    listeners      = new MatchListener[indexCount];
+  }
+
+  void satisfy(int condition) {
+    int  word = condition >>> 6;
+    long bit  = 1L << condition;
+    if ((satisfied[word] & bit) == 0) {
+      satisfied[word] |= bit;
+      newlySatisfied[newlySatisfiedCount++] = condition;
+    }
+  }
+
+  boolean satisfiedAll(long[] mask) {
+    for (int i = 0; i < mask.length; i++) {
+      if ((satisfied[i] & mask[i]) != mask[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void retain(long[] mask) {
+    for (int i = 0; i < satisfied.length; i++) {
+      satisfied[i] &= mask[i];
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.rules;
+
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.MilterPackets;
+
+/**
+ * Outcome of a rule.
+ */
+public enum Verdict {
+  /** The message continues, only header additions of the rule are applied. */
+  CONTINUE(MilterPackets.SMFIS_CONTINUE),
+  ACCEPT(MilterPackets.SMFIS_ACCEPT),
+  REJECT(MilterPackets.SMFIS_REJECT),
+  TEMPFAIL(MilterPackets.SMFIS_TEMPFAIL),
+  DISCARD(MilterPackets.SMFIS_DISCARD);
+
+  private final MilterPacket packet;
+
+  Verdict(MilterPacket packet) {
+    this.packet = packet;
+  }
+
+  public MilterPacket packet() {
+    return packet;
+  }
+}
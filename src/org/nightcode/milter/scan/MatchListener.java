@@ -0,0 +1,31 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.scan;
+
+/**
+ * Receives pattern matches found by {@link PatternScanner}.
+ */
+@FunctionalInterface
+public interface MatchListener {
+
+  /**
+   * Called for every occurrence of a pattern.
+   *
+   * @param patternIndex index of the pattern in {@link PatternSet}
+   * @param endOffset offset right after the last byte of the occurrence
+   *                  relative to the last {@link PatternScanner#reset()}
+   */
+  void match(int patternIndex, long endOffset);
+}
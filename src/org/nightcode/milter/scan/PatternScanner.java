@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.scan;
+
+import java.util.function.Supplier;
+
+/**
+ * Streaming matcher of a {@link PatternSet}. Keeps the automaton state between calls,
+ * so occurrences split across body chunks are found. An instance belongs to a single session
+ * (e.g. kept as an attribute of {@link org.nightcode.milter.MilterContext}) and is not thread-safe.
+ */
+public final class PatternScanner {
+
+  private final Supplier<PatternSet> source;
+
+  private PatternSet patternSet;
+  private int        state;
+  private long       position;
+
+  public PatternScanner(PatternSet patternSet) {
+    this(() -> patternSet);
+  }
+
+  /**
+   * Creates a scanner which takes the current pattern set from the source on every {@link #reset()}.
+   *
+   * @param source source of pattern sets, e.g. {@link ReloadablePatternSet}
+   */
+  public PatternScanner(Supplier<PatternSet> source) {
+    this.source = source;
+    reset();
+  }
+
+  public PatternSet patternSet() {
+    return patternSet;
+  }
+
+  public long position() {
+    return position;
+  }
+
+  /**
+   * Discards the matching state and takes the current pattern set from the source.
+   * Should be called between independent inputs such as header values or messages.
+   */
+  public void reset() {
+    patternSet = source.get();
+    state      = PatternSet.ROOT;
+    position   = 0;
+  }
+
+  /**
+   * Scans the next portion of input.
+   *
+   * @param data array holding the input
+   * @param offset offset of the input in {@code data}
+   * @param length length of the input
+   * @param listener listener of matches
+   */
+  public void scan(byte[] data, int offset, int length, MatchListener listener) {
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      consume(patternSet.fold(data[i]), listener);
+    }
+  }
+
+  /**
+   * Scans the next portion of input given as characters, characters are matched as UTF-8 bytes.
+   *
+   * @param text input
+   * @param listener listener of matches
+   */
+  public void scan(CharSequence text, MatchListener listener) {
+    int length = text.length();
+    for (int i = 0; i < length; i++) {
+      int c = text.charAt(i);
+      if (c < 0x80) {
+        consume(patternSet.fold((byte) c), listener);
+        continue;
+      }
+      if (Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+        c = Character.toCodePoint((char) c, text.charAt(++i));
+      } else if (Character.isSurrogate((char) c)) {
+        c = '?';
+      }
+      if (c < 0x80) {
+        consume(c, listener);
+      } else if (c < 0x800) {
+        consume(0xC0 | (c >> 6), listener);
+        consume(0x80 | (c & 0x3F), listener);
+      } else if (c < 0x10000) {
+        consume(0xE0 | (c >> 12), listener);
+        consume(0x80 | ((c >> 6) & 0x3F), listener);
+        consume(0x80 | (c & 0x3F), listener);
+      } else {
+        consume(0xF0 | (c >> 18), listener);
+        consume(0x80 | ((c >> 12) & 0x3F), listener);
+        consume(0x80 | ((c >> 6) & 0x3F), listener);
+        consume(0x80 | (c & 0x3F), listener);
+      }
+    }
+  }
+
+  private void consume(int label, MatchListener listener) {
+    PatternSet set = patternSet;
+    state = set.step(state, label);
+    position++;
+    int s = set.hasOutputs(state) ? state : set.dictionary(state);
+    while (s > 0) {
+      int end = set.outputEnd(s);
+      for (int i = set.outputStart(s); i < end; i++) {
+        listener.match(set.output(i), position);
+      }
+      s = set.dictionary(s);
+    }
+  }
+}
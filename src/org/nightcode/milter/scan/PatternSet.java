@@ -0,0 +1,287 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.scan;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable Aho-Corasick automaton compiled from a set of literal patterns.
+ * Patterns are matched as UTF-8 bytes, case folding (if enabled) applies to ASCII letters.
+ * A set is safe to share between threads, per-session matching state is kept by {@link PatternScanner}.
+ */
+public final class PatternSet {
+
+  public static final class Builder {
+    private final List<String> patterns = new ArrayList<>();
+
+    private boolean ignoreCase;
+
+    private Builder() {
+      // do nothing
+    }
+
+    /**
+     * Adds a pattern to the set.
+     *
+     * @param pattern non-empty literal pattern
+     * @return index of the pattern in the set
+     */
+    public int add(String pattern) {
+      if (pattern.isEmpty()) {
+        throw new IllegalArgumentException("pattern must not be empty");
+      }
+      patterns.add(pattern);
+      return patterns.size() - 1;
+    }
+
+    public Builder ignoreCase() {
+      ignoreCase = true;
+      return this;
+    }
+
+    /**
+     * Compiles the automaton. Compilation cost is linear in the total length of patterns
+     * and should be done outside of session processing.
+     *
+     * @return compiled pattern set
+     */
+    public PatternSet build() {
+      return new PatternSet(this);
+    }
+  }
+
+  static final int ROOT = 0;
+
+  private static final int LINEAR_SEARCH_THRESHOLD = 8;
+
+  private final List<String> patterns;
+  private final boolean      ignoreCase;
+  private final byte[]       fold = new byte[256];
+  private final int[]        patternLengths;
+
+  private final int[] rootNext = new int[256];
+
+  private final int[]  edgeStart;
+  private final byte[] edgeLabels;
+  private final int[]  edgeTargets;
+  private final int[]  failure;
+  private final int[]  outputStart;
+  private final int[]  outputs;
+  private final int[]  dictionary;
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private PatternSet(Builder builder) {
+    patterns   = Collections.unmodifiableList(new ArrayList<>(builder.patterns));
+    ignoreCase = builder.ignoreCase;
+    for (int i = 0; i < fold.length; i++) {
+      fold[i] = (byte) (ignoreCase && i >= 'A' && i <= 'Z' ? i + ('a' - 'A') : i);
+    }
+
+    // trie
+    Map<Long, Integer> edges = new HashMap<>();
+    List<List<Integer>> terminals = new ArrayList<>();
+    terminals.add(null);
+    patternLengths = new int[patterns.size()];
+    for (int index = 0; index < patterns.size(); index++) {
+      byte[] bytes = patterns.get(index).getBytes(StandardCharsets.UTF_8);
+      patternLengths[index] = bytes.length;
+      int state = ROOT;
+      for (byte b : bytes) {
+        long key = ((long) state << 8) | (fold[b & 0xFF] & 0xFF);
+        Integer next = edges.get(key);
+        if (next == null) {
+          next = terminals.size();
+          terminals.add(null);
+          edges.put(key, next);
+        }
+        state = next;
+      }
+      List<Integer> ids = terminals.get(state);
+      if (ids == null) {
+        ids = new ArrayList<>(1);
+        terminals.set(state, ids);
+      }
+      ids.add(index);
+    }
+    int stateCount = terminals.size();
+
+    // transitions in compressed sparse row layout, sorted by state and label
+    long[] keys = new long[edges.size()];
+    int k = 0;
+    for (Long key : edges.keySet()) {
+      keys[k++] = key;
+    }
+    Arrays.sort(keys);
+    edgeStart   = new int[stateCount + 1];
+    edgeLabels  = new byte[keys.length];
+    edgeTargets = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      int state = (int) (keys[i] >>> 8);
+      edgeLabels[i]  = (byte) keys[i];
+      edgeTargets[i] = edges.get(keys[i]);
+      edgeStart[state + 1]++;
+    }
+    for (int i = 0; i < stateCount; i++) {
+      edgeStart[i + 1] += edgeStart[i];
+    }
+
+    outputStart = new int[stateCount + 1];
+    int outputCount = 0;
+    for (int i = 0; i < stateCount; i++) {
+      outputStart[i] = outputCount;
+      List<Integer> ids = terminals.get(i);
+      outputCount += ids != null ? ids.size() : 0;
+    }
+    outputStart[stateCount] = outputCount;
+    outputs = new int[outputCount];
+    for (int i = 0; i < stateCount; i++) {
+      List<Integer> ids = terminals.get(i);
+      if (ids != null) {
+        for (int j = 0; j < ids.size(); j++) {
+          outputs[outputStart[i] + j] = ids.get(j);
+        }
+      }
+    }
+
+    // failure and dictionary suffix links
+    failure    = new int[stateCount];
+    dictionary = new int[stateCount];
+    Arrays.fill(dictionary, -1);
+    ArrayDeque<Integer> queue = new ArrayDeque<>();
+    for (int e = edgeStart[ROOT]; e < edgeStart[ROOT + 1]; e++) {
+      rootNext[edgeLabels[e] & 0xFF] = edgeTargets[e];
+      queue.add(edgeTargets[e]);
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.poll();
+      for (int e = edgeStart[state]; e < edgeStart[state + 1]; e++) {
+        int label  = edgeLabels[e] & 0xFF;
+        int target = edgeTargets[e];
+        int f      = failure[state];
+        int next;
+        while ((next = next(f, label)) < 0) {
+          f = failure[f];
+        }
+        failure[target]    = next;
+        dictionary[target] = hasOutputs(next) ? next : dictionary[next];
+        queue.add(target);
+      }
+    }
+  }
+
+  public boolean ignoreCase() {
+    return ignoreCase;
+  }
+
+  /**
+   * Returns the pattern with the given index.
+   *
+   * @param index index of the pattern
+   * @return pattern
+   */
+  public String pattern(int index) {
+    return patterns.get(index);
+  }
+
+  /**
+   * Returns length of the pattern in bytes.
+   *
+   * @param index index of the pattern
+   * @return length of the pattern in bytes
+   */
+  public int patternLength(int index) {
+    return patternLengths[index];
+  }
+
+  public int size() {
+    return patterns.size();
+  }
+
+  int fold(byte b) {
+    return fold[b & 0xFF] & 0xFF;
+  }
+
+  /**
+   * Returns the state after consuming {@code label} in {@code state} following failure links.
+   */
+  int step(int state, int label) {
+    int s = state;
+    int next;
+    while ((next = next(s, label)) < 0) {
+      s = failure[s];
+    }
+    return next;
+  }
+
+  boolean hasOutputs(int state) {
+    return outputStart[state] != outputStart[state + 1];
+  }
+
+  int dictionary(int state) {
+    return dictionary[state];
+  }
+
+  int outputStart(int state) {
+    return outputStart[state];
+  }
+
+  int outputEnd(int state) {
+    return outputStart[state + 1];
+  }
+
+  int output(int index) {
+    return outputs[index];
+  }
+
+  private int next(int state, int label) {
+    if (state == ROOT) {
+      return rootNext[label];
+    }
+    int from = edgeStart[state];
+    int to   = edgeStart[state + 1];
+    if (to - from <= LINEAR_SEARCH_THRESHOLD) {
+      for (int e = from; e < to; e++) {
+        if ((edgeLabels[e] & 0xFF) == label) {
+          return edgeTargets[e];
+        }
+      }
+      return -1;
+    }
+    int low  = from;
+    int high = to - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midLabel = edgeLabels[mid] & 0xFF;
+      if (midLabel < label) {
+        low = mid + 1;
+      } else if (midLabel > label) {
+        high = mid - 1;
+      } else {
+        return edgeTargets[mid];
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.scan;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Holder of the current {@link PatternSet} which allows to replace the set without
+ * stopping sessions. A new set is compiled on the supplied executor, scanners pick it up
+ * on their next {@link PatternScanner#reset()}.
+ */
+public final class ReloadablePatternSet implements Supplier<PatternSet> {
+
+  private volatile PatternSet current;
+
+  public ReloadablePatternSet(PatternSet initial) {
+    this.current = initial;
+  }
+
+  @Override public PatternSet get() {
+    return current;
+  }
+
+  /**
+   * Compiles a new pattern set on the given executor and makes it current.
+   *
+   * @param builder builder of the new set
+   * @param executor executor to compile the set on
+   * @return future that completes with the new set once it becomes current
+   */
+  public CompletableFuture<PatternSet> reload(PatternSet.Builder builder, Executor executor) {
+    return CompletableFuture.supplyAsync(builder::build, executor).thenApply(set -> {
+      current = set;
+      return set;
+    });
+  }
+}
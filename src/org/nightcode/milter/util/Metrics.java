@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide named counters.
+ */
+public enum Metrics {
+  ;
+
+  private static final ConcurrentMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the counter registered under the given name, creating it if necessary.
+   * Callers are expected to keep the returned counter in a field.
+   *
+   * @param name counter name
+   * @return counter
+   */
+  public static LongAdder counter(String name) {
+    return COUNTERS.computeIfAbsent(name, k -> new LongAdder());
+  }
+
+  /**
+   * Returns current values of all counters sorted by name.
+   *
+   * @return counters snapshot
+   */
+  public static Map<String, Long> snapshot() {
+    Map<String, Long> snapshot = new TreeMap<>();
+    COUNTERS.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+    return snapshot;
+  }
+}
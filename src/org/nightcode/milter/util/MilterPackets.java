@@ -18,13 +18,16 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.NoSuchElementException;
 
+import io.netty.buffer.ByteBufUtil;
 import org.jetbrains.annotations.Nullable;
 import org.nightcode.milter.CommandCode;
 import org.nightcode.milter.codec.MilterPacket;
 
 import static org.nightcode.milter.CommandCode.SMFIC_BODY;
 import static org.nightcode.milter.CommandCode.SMFIC_DATA;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
 import static org.nightcode.milter.CommandCode.SMFIC_EOH;
 import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
 import static org.nightcode.milter.CommandCode.SMFIC_MAIL;
@@ -145,6 +148,24 @@ public enum MilterPackets {
     return MESSAGE_STATES.contains(command);
   }
 
+  /**
+   * Checks that the command belongs to a message, i.e. it's a message state or SMFIC_EOB.
+   * The first such command starts a message whichever steps are negotiated (e.g. without SMFIC_MAIL).
+   *
+   * @param code command code
+   * @return true if the command belongs to a message
+   */
+  public static boolean isMessageCommand(int code) {
+    if (code == SMFIC_EOB.code()) {
+      return true;
+    }
+    try {
+      return MESSAGE_STATES.contains(CommandCode.valueOf(code));
+    } catch (IllegalArgumentException | NoSuchElementException ex) {
+      return false;
+    }
+  }
+
   /**
    * Splits the supplied buffer to strings, separated by \0.
    *
@@ -187,11 +208,15 @@ public enum MilterPackets {
     return length;
   }
 
+  /**
+   * @param arg string argument
+   * @return length of the UTF-8 encoded argument in bytes, 0 for {@code null}
+   */
   public static int getLengthSafe(@Nullable String arg) {
     if (arg == null) {
       return 0;
     }
-    return arg.length();
+    return ByteBufUtil.utf8Bytes(arg);
   }
 
   public static int safeCopy(@Nullable String arg, byte[] dst, int offset) {
@@ -18,10 +18,12 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.List;
 
 import org.nightcode.milter.codec.MilterPacket;
 import org.nightcode.milter.net.MilterPacketSender;
 import org.nightcode.milter.util.Hexs;
+import org.nightcode.milter.util.MilterPackets;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -37,6 +39,58 @@ public class AbstractMilterHandlerTest {
 
   private static final Hexs HEX = Hexs.hex();
 
+  private static final class BatchHandler extends AbstractMilterHandler implements HeaderBatchHandler {
+    BatchHandler() {
+      super(Actions.DEF_ACTIONS, MilterMacros.builder().build());
+    }
+
+    @Override public void headers(MilterContext context, HeaderBatch batch) {
+      // do nothing
+    }
+
+    @Override public void quit(MilterContext context) {
+      // do nothing
+    }
+  }
+
+  @Test public void testInspectedProtocolSteps() {
+    MilterMacros milterMacros = MilterMacros.builder().connectMacros("{client_addr}").build();
+
+    MilterHandler handler = new AbstractMilterHandler(Actions.DEF_ACTIONS, milterMacros) {
+      @Override public void envfrom(MilterContext context, List<String> from) throws MilterException {
+        context.sendPacket(MilterPackets.SMFIS_REJECT);
+      }
+
+      @NoReply @Override public void header(MilterContext context, String headerName, String headerValue) throws MilterException {
+        context.sendContinue();
+      }
+
+      @Override public void quit(MilterContext context) {
+        // do nothing
+      }
+    };
+
+    int expected = ProtocolSteps.NO_REPLY_FOR_CONNECT
+        | ProtocolSteps.NO_HELO
+        | ProtocolSteps.NO_RECIPIENTS
+        | ProtocolSteps.NO_DATA
+        | ProtocolSteps.NO_REPLY_FOR_HEADERS
+        | ProtocolSteps.NO_EOH
+        | ProtocolSteps.NO_BODY
+        | ProtocolSteps.NO_UNKNOWN;
+
+    MilterContext context = handler.createContext(EasyMock.mock(MilterPacketSender.class));
+    Assert.assertEquals(expected, context.milterProtocolSteps().bitmap());
+    Assert.assertSame(milterMacros, context.milterMacros());
+  }
+
+  @Test public void testInspectedHeaderBatchSteps() {
+    MilterContext context = new BatchHandler().createContext(EasyMock.mock(MilterPacketSender.class));
+    int bitmap = context.milterProtocolSteps().bitmap();
+    Assert.assertEquals(ProtocolSteps.NO_REPLY_FOR_HEADERS, bitmap & (ProtocolSteps.NO_HEADERS | ProtocolSteps.NO_REPLY_FOR_HEADERS));
+    Assert.assertNotEquals(0, bitmap & ProtocolSteps.NO_HELO);
+  }
+
   @Test public void testNegotiate() throws MilterException, IOException {
     MilterPacketSender packetSenderMock = EasyMock.mock(MilterPacketSender.class);
 
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HeaderBatchTest {
+
+  private static byte[] payload(String name, String value) {
+    return (name + '\0' + value + '\0').getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test public void testAdd() {
+    HeaderBatch batch = new HeaderBatch();
+    for (int i = 0; i < 1000; i++) {
+      batch.add(payload("X-Header-" + i, "value " + i), ("X-Header-" + i).length());
+    }
+    Assert.assertEquals(1000, batch.size());
+    Assert.assertEquals("X-Header-999", batch.name(999));
+    Assert.assertEquals("value 999", batch.value(999));
+    Assert.assertEquals(10, batch.nameLength(0));
+    Assert.assertEquals(7, batch.valueLength(0));
+    Assert.assertEquals(batch.nameOffset(0) + 10, batch.valueOffset(0));
+    Assert.assertTrue(batch.nameEquals(5, "x-header-5"));
+    Assert.assertFalse(batch.nameEquals(5, "x-header-6"));
+    Assert.assertFalse(batch.nameEquals(5, "x-header-50"));
+
+    batch.clear();
+    Assert.assertEquals(0, batch.size());
+    batch.add(payload("Subject", ""), 7);
+    Assert.assertEquals("Subject", batch.name(0));
+    Assert.assertEquals("", batch.value(0));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testIndexOutOfBounds() {
+    HeaderBatch batch = new HeaderBatch();
+    batch.add(payload("Subject", "test"), 7);
+    batch.clear();
+    batch.name(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPayload() {
+    new HeaderBatch().add(payload("Subject", "test"), 12);
+  }
+}
@@ -16,10 +16,12 @@ package org.nightcode.milter;
 
 import java.io.IOException;
 
+import io.netty.util.AttributeKey;
 import org.nightcode.milter.codec.MilterPacket;
 import org.nightcode.milter.net.MilterPacketSender;
 import org.nightcode.milter.util.MilterPackets;
 
+import org.junit.Assert;
 import org.junit.Test;
 import org.easymock.EasyMock;
 
@@ -116,4 +118,18 @@ public class MilterContextTest {
 
     EasyMock.verify(packetSenderMock);
   }
+
+  @Test public void testAttributes() {
+    MilterHandler      milterHandlerMock = EasyMock.mock(MilterHandler.class);
+    MilterPacketSender packetSenderMock  = EasyMock.mock(MilterPacketSender.class);
+
+    MilterContext context = new MilterContextImpl(milterHandlerMock, Actions.DEF_ACTIONS
+        , ProtocolSteps.DEF_PROTOCOL_STEPS, packetSenderMock);
+
+    AttributeKey<String> key = AttributeKey.valueOf(MilterContextTest.class, "testAttributes");
+    Assert.assertFalse(context.hasAttr(key));
+
+    context.attr(key).set("value");
+    Assert.assertEquals("value", context.attr(key).get());
+  }
 }
@@ -0,0 +1,360 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.net.MilterChannelHandler;
+import org.nightcode.milter.net.MilterPacketSender;
+import org.nightcode.milter.util.MilterPackets;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+
+import static org.nightcode.milter.CommandCode.SMFIC_ABORT;
+import static org.nightcode.milter.CommandCode.SMFIC_BODY;
+import static org.nightcode.milter.CommandCode.SMFIC_CONNECT;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+import static org.nightcode.milter.CommandCode.SMFIC_RCPT;
+import static org.nightcode.milter.ResponseCode.SMFIR_ADDHEADER;
+import static org.nightcode.milter.ResponseCode.SMFIR_CONTINUE;
+
+public class MilterHandlerChainTest {
+
+  private static final ProtocolSteps ALL_STEPS = ProtocolSteps.builder().build();
+
+  private static final class TestHandler extends AbstractMilterHandler {
+    private final List<String> calls = new ArrayList<>();
+
+    private @Nullable MilterPacket rcptReply;
+    private @Nullable MilterPacket eomReply;
+    private @Nullable String       header;
+    private boolean                skipBody;
+
+    TestHandler(Actions actions, ProtocolSteps steps) {
+      super(actions, steps);
+    }
+
+    TestHandler(Actions actions, ProtocolSteps steps, MilterMacros macros) {
+      super(actions, steps, macros);
+    }
+
+    @Override public void body(MilterContext context, byte[] bodyChunk) throws MilterException {
+      calls.add("body");
+      context.sendPacket(skipBody ? MilterPackets.SMFIS_SKIP : MilterPackets.SMFIS_CONTINUE);
+    }
+
+    @Override public void connect(MilterContext context, String hostname, int family, int port, @Nullable SocketAddress address)
+        throws MilterException {
+      calls.add("connect");
+      context.sendContinue();
+    }
+
+    @Override public void envrcpt(MilterContext context, List<String> recipients) throws MilterException {
+      calls.add("envrcpt");
+      context.sendPacket(rcptReply != null ? rcptReply : MilterPackets.SMFIS_CONTINUE);
+    }
+
+    @Override public void eom(MilterContext context, @Nullable byte[] bodyChunk) throws MilterException {
+      calls.add("eom");
+      if (header != null) {
+        messageModificationService.addHeader(context, header, "yes");
+      }
+      context.sendPacket(eomReply != null ? eomReply : MilterPackets.SMFIS_CONTINUE);
+    }
+
+    @Override public void quit(MilterContext context) {
+      calls.add("quit");
+    }
+  }
+
+  private static final class AsyncHandler extends AbstractMilterHandler {
+    private final List<String> calls = new ArrayList<>();
+
+    private @Nullable MilterContext           pending;
+    private @Nullable CompletableFuture<Void> work;
+
+    AsyncHandler() {
+      super(Actions.DEF_ACTIONS, ALL_STEPS);
+    }
+
+    @Override public void abort(MilterContext context, @Nullable MilterPacket packet) {
+      calls.add("abort");
+    }
+
+    @Override public void envrcpt(MilterContext context, List<String> recipients) {
+      calls.add("envrcpt " + recipients.get(0));
+      pending = context;
+      work    = new CompletableFuture<>();
+      context.addPendingWork(work);
+    }
+
+    @Override public void quit(MilterContext context) {
+      // do nothing
+    }
+
+    void reply(MilterPacket packet) throws Exception {
+      MilterContext context = pending;
+      pending = null;
+      CompletableFuture.runAsync(() -> {
+        try {
+          context.sendPacket(packet);
+        } catch (MilterException ex) {
+          throw new IllegalStateException(ex);
+        }
+      }).get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  private static final class ListSender implements MilterPacketSender {
+    private final List<MilterPacket> packets = new CopyOnWriteArrayList<>();
+
+    @Override public void close() {
+      // do nothing
+    }
+
+    @Override public void send(MilterPacket packet) {
+      packets.add(packet);
+    }
+  }
+
+  private static MilterContext context(MilterHandlerChain chain, MilterPacketSender sender) {
+    MilterContext context = chain.createContext(sender);
+    context.setSessionProtocolSteps(chain.createContext(sender).milterProtocolSteps());
+    return context;
+  }
+
+  @Test public void testNegotiation() {
+    TestHandler first = new TestHandler(Actions.builder().addHeader().build()
+        , ProtocolSteps.builder().noHelo().noReplyForConnect().understandSkip().build()
+        , MilterMacros.builder().connectMacros("j").build());
+    TestHandler second = new TestHandler(Actions.builder().changeFrom().build()
+        , ProtocolSteps.builder().noHelo().noBody().build()
+        , MilterMacros.builder().connectMacros("j {daemon_name}").eomMacros("i").build());
+
+    MilterHandlerChain chain = MilterHandlerChain.builder().add(first).add(second).build();
+    MilterContext context = chain.createContext(EasyMock.mock(MilterPacketSender.class));
+
+    Assert.assertEquals(Actions.builder().addHeader().changeFrom().build().bitmap(), context.milterActions().bitmap());
+    Assert.assertEquals(ProtocolSteps.builder().noHelo().understandSkip().build(), context.milterProtocolSteps());
+    Assert.assertArrayEquals(MilterMacros.builder().connectMacros("j {daemon_name}").eomMacros("i").build().array()
+        , context.milterMacros().array());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testEmptyChain() {
+    MilterHandlerChain.builder().build();
+  }
+
+  @Test public void testShortCircuit() throws MilterException, IOException {
+    TestHandler first  = new TestHandler(Actions.DEF_ACTIONS, ALL_STEPS);
+    TestHandler second = new TestHandler(Actions.DEF_ACTIONS, ALL_STEPS);
+    first.rcptReply = MilterPackets.SMFIS_REJECT;
+
+    MilterPacketSender packetSenderMock = EasyMock.mock(MilterPacketSender.class);
+    packetSenderMock.send(MilterPackets.SMFIS_CONTINUE);
+    EasyMock.expectLastCall().once();
+    packetSenderMock.send(MilterPackets.SMFIS_REJECT);
+    EasyMock.expectLastCall().once();
+    packetSenderMock.close();
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(packetSenderMock);
+
+    MilterHandlerChain chain   = MilterHandlerChain.builder().add(first).add(second).build();
+    MilterContext      context = context(chain, packetSenderMock);
+
+    context.setSessionStep(SMFIC_CONNECT);
+    chain.connect(context, "localhost", '4', 25, null);
+    context.setSessionStep(SMFIC_RCPT);
+    chain.envrcpt(context, Collections.singletonList("<rcpt@example.org>"));
+    chain.closeSession(context);
+
+    EasyMock.verify(packetSenderMock);
+    Assert.assertEquals(Arrays.asList("connect", "envrcpt", "quit"), first.calls);
+    Assert.assertEquals(Arrays.asList("connect", "quit"), second.calls);
+  }
+
+  @Test public void testAsyncReply() throws Exception {
+    AsyncHandler first  = new AsyncHandler();
+    TestHandler  second = new TestHandler(Actions.DEF_ACTIONS, ALL_STEPS);
+    ListSender   sender = new ListSender();
+
+    MilterHandlerChain chain   = MilterHandlerChain.builder().add(first).add(second).build();
+    MilterContext      context = context(chain, sender);
+
+    context.setSessionStep(SMFIC_RCPT);
+    chain.envrcpt(context, Collections.singletonList("<first@example.org>"));
+    chain.envrcpt(context, Collections.singletonList("<second@example.org>"));
+    Assert.assertTrue(sender.packets.isEmpty());
+    Assert.assertEquals(Collections.singletonList("envrcpt <first@example.org>"), first.calls);
+    Assert.assertTrue(second.calls.isEmpty());
+
+    first.reply(MilterPackets.SMFIS_CONTINUE);
+    Assert.assertEquals(Collections.singletonList(MilterPackets.SMFIS_CONTINUE), sender.packets);
+    Assert.assertEquals(Collections.singletonList("envrcpt"), second.calls);
+    Assert.assertEquals(Arrays.asList("envrcpt <first@example.org>", "envrcpt <second@example.org>"), first.calls);
+
+    first.reply(MilterPackets.SMFIS_REJECT);
+    Assert.assertEquals(Arrays.asList(MilterPackets.SMFIS_CONTINUE, MilterPackets.SMFIS_REJECT), sender.packets);
+    Assert.assertEquals(Collections.singletonList("envrcpt"), second.calls);
+  }
+
+  @Test public void testAbortAbandonsReply() throws Exception {
+    AsyncHandler first  = new AsyncHandler();
+    TestHandler  second = new TestHandler(Actions.DEF_ACTIONS, ALL_STEPS);
+    ListSender   sender = new ListSender();
+
+    MilterHandlerChain chain   = MilterHandlerChain.builder().add(first).add(second).build();
+    MilterContext      context = context(chain, sender);
+
+    context.setSessionStep(SMFIC_RCPT);
+    chain.envrcpt(context, Collections.singletonList("<first@example.org>"));
+    context.setSessionStep(SMFIC_ABORT);
+    chain.abort(context, null);
+    Assert.assertEquals(Arrays.asList("envrcpt <first@example.org>", "abort"), first.calls);
+
+    first.reply(MilterPackets.SMFIS_REJECT);
+    context.setSessionStep(SMFIC_CONNECT);
+    chain.connect(context, "localhost", '4', 25, null);
+    Assert.assertEquals(Collections.singletonList(MilterPackets.SMFIS_CONTINUE), sender.packets);
+    Assert.assertEquals(Collections.singletonList("connect"), second.calls);
+  }
+
+  @Test public void testDeadlineAbandonsReply() throws Exception {
+    AsyncHandler first  = new AsyncHandler();
+    TestHandler  second = new TestHandler(Actions.DEF_ACTIONS, ALL_STEPS);
+
+    MilterHandlerChain chain     = MilterHandlerChain.builder().add(first).add(second).build();
+    StageDeadlines     deadlines = StageDeadlines.builder()
+        .deadline(SMFIC_RCPT, 100)
+        .fallback(MilterPackets.SMFIS_TEMPFAIL)
+        .build();
+    EmbeddedChannel channel = new EmbeddedChannel(new MilterChannelHandler(chain, deadlines));
+    channel.writeInbound(new MilterPacket(SMFIC_OPTNEG, new byte[] {0, 0, 0, 6, 0, 0, 1, -1, 0, 0, 0, 0}));
+    Assert.assertEquals(SMFIC_OPTNEG.code(), ((MilterPacket) channel.readOutbound()).command());
+
+    channel.writeInbound(rcpt("<first@example.org>"));
+    channel.advanceTimeBy(110, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertEquals(MilterPackets.SMFIS_TEMPFAIL, channel.readOutbound());
+    Assert.assertTrue(first.work.isCancelled());
+
+    first.reply(MilterPackets.SMFIS_REJECT);
+    channel.runPendingTasks();
+    Assert.assertNull(channel.readOutbound());
+
+    channel.writeInbound(rcpt("<second@example.org>"));
+    Assert.assertEquals(Arrays.asList("envrcpt <first@example.org>", "envrcpt <second@example.org>"), first.calls);
+
+    first.reply(MilterPackets.SMFIS_CONTINUE);
+    channel.runPendingTasks();
+    Assert.assertEquals(MilterPackets.SMFIS_CONTINUE, channel.readOutbound());
+    Assert.assertEquals(Collections.singletonList("envrcpt"), second.calls);
+
+    channel.finishAndReleaseAll();
+  }
+
+  @Test public void testMergedModifications() throws MilterException, IOException {
+    TestHandler first  = new TestHandler(Actions.DEF_ACTIONS, ALL_STEPS);
+    TestHandler second = new TestHandler(Actions.DEF_ACTIONS, ALL_STEPS);
+    first.header  = "X-First";
+    second.header = "X-Second";
+
+    Capture<List<MilterPacket>> packetsCapture   = EasyMock.newCapture();
+    MilterPacketSender          packetSenderMock = EasyMock.mock(MilterPacketSender.class);
+    packetSenderMock.sendBatch(EasyMock.capture(packetsCapture));
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(packetSenderMock);
+
+    MilterHandlerChain chain   = MilterHandlerChain.builder().add(first).add(second).build();
+    MilterContext      context = context(chain, packetSenderMock);
+
+    context.setSessionStep(SMFIC_EOB);
+    chain.eom(context, null);
+
+    EasyMock.verify(packetSenderMock);
+    List<MilterPacket> packets = packetsCapture.getValue();
+    Assert.assertEquals(3, packets.size());
+    Assert.assertEquals(SMFIR_ADDHEADER.code(), packets.get(0).command());
+    Assert.assertEquals(SMFIR_ADDHEADER.code(), packets.get(1).command());
+    Assert.assertEquals(SMFIR_CONTINUE.code(), packets.get(2).command());
+  }
+
+  @Test public void testRejectDropsModifications() throws MilterException, IOException {
+    TestHandler first  = new TestHandler(Actions.DEF_ACTIONS, ALL_STEPS);
+    TestHandler second = new TestHandler(Actions.DEF_ACTIONS, ALL_STEPS);
+    first.header    = "X-First";
+    second.eomReply = MilterPackets.SMFIS_REJECT;
+
+    MilterPacketSender packetSenderMock = EasyMock.mock(MilterPacketSender.class);
+    packetSenderMock.send(MilterPackets.SMFIS_REJECT);
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(packetSenderMock);
+
+    MilterHandlerChain chain   = MilterHandlerChain.builder().add(first).add(second).build();
+    MilterContext      context = context(chain, packetSenderMock);
+
+    context.setSessionStep(SMFIC_EOB);
+    chain.eom(context, null);
+
+    EasyMock.verify(packetSenderMock);
+  }
+
+  @Test public void testBodySkip() throws MilterException, IOException {
+    TestHandler first  = new TestHandler(Actions.DEF_ACTIONS, ProtocolSteps.builder().understandSkip().build());
+    TestHandler second = new TestHandler(Actions.DEF_ACTIONS, ProtocolSteps.builder().noBody().build());
+    first.skipBody = true;
+
+    MilterPacketSender packetSenderMock = EasyMock.mock(MilterPacketSender.class);
+    packetSenderMock.send(MilterPackets.SMFIS_SKIP);
+    EasyMock.expectLastCall().times(2);
+    packetSenderMock.send(MilterPackets.SMFIS_CONTINUE);
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(packetSenderMock);
+
+    MilterHandlerChain chain   = MilterHandlerChain.builder().add(first).add(second).build();
+    MilterContext      context = context(chain, packetSenderMock);
+
+    context.setSessionStep(SMFIC_BODY);
+    chain.body(context, new byte[16]);
+    chain.body(context, new byte[16]);
+    context.setSessionStep(SMFIC_EOB);
+    chain.eom(context, null);
+
+    EasyMock.verify(packetSenderMock);
+    Assert.assertEquals(Arrays.asList("body", "eom"), first.calls);
+    Assert.assertEquals(Collections.singletonList("eom"), second.calls);
+  }
+
+  private static MilterPacket rcpt(String recipient) {
+    byte[] address = recipient.getBytes(StandardCharsets.US_ASCII);
+    return MilterPacket.builder().command(SMFIC_RCPT).payload(Arrays.copyOf(address, address.length + 1)).build();
+  }
+}
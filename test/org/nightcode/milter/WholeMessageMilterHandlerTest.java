@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.nightcode.milter.net.MilterPacketSender;
+import org.nightcode.milter.util.MilterPackets;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.easymock.EasyMock;
+
+import static org.nightcode.milter.CommandCode.SMFIC_BODY;
+import static org.nightcode.milter.CommandCode.SMFIC_CONNECT;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_EOH;
+import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
+import static org.nightcode.milter.CommandCode.SMFIC_HELO;
+import static org.nightcode.milter.CommandCode.SMFIC_MAIL;
+import static org.nightcode.milter.CommandCode.SMFIC_RCPT;
+
+public class WholeMessageMilterHandlerTest {
+
+  private static final class CollectingHandler extends WholeMessageMilterHandler {
+    final List<String> messages = new ArrayList<>();
+
+    CollectingHandler() {
+      super(Actions.DEF_ACTIONS);
+    }
+
+    @Override protected void onMessage(MilterContext context, WholeMessage message) throws MilterException {
+      ByteBuffer body = message.body();
+      byte[] bytes = new byte[body.remaining()];
+      body.get(bytes);
+      messages.add(message.hostname() + "|" + message.helo() + "|" + message.macro("i") + "|" + message.macro("j")
+          + "|" + message.envfrom() + "|" + message.recipients() + "|" + message.headerCount()
+          + "|" + message.header("subject") + "|" + new String(bytes, StandardCharsets.US_ASCII));
+      context.sendPacket(MilterPackets.SMFIS_ACCEPT);
+    }
+  }
+
+  @Test public void testWholeMessage() throws Exception {
+    MilterPacketSender packetSenderMock = EasyMock.mock(MilterPacketSender.class);
+    packetSenderMock.send(MilterPackets.SMFIS_ACCEPT);
+    EasyMock.expectLastCall().times(2);
+    EasyMock.replay(packetSenderMock);
+
+    CollectingHandler handler = new CollectingHandler();
+    MilterContext context = handler.createContext(packetSenderMock);
+    context.setMtaProtocolSteps(WholeMessageMilterHandler.PROTOCOL_STEPS);
+    context.setSessionProtocolSteps(WholeMessageMilterHandler.PROTOCOL_STEPS);
+
+    context.setSessionStep(SMFIC_CONNECT);
+    handler.macro(context, SMFIC_CONNECT.code(), Collections.singletonMap("j", "mx.example.org"));
+    handler.connect(context, "client.example.com", '4', 25, new InetSocketAddress("127.0.0.1", 25));
+    context.setSessionStep(SMFIC_HELO);
+    handler.helo(context, "client");
+
+    for (int i = 0; i < 2; i++) {
+      context.setSessionStep(SMFIC_MAIL);
+      handler.macro(context, SMFIC_MAIL.code(), Collections.singletonMap("i", "Q" + i));
+      handler.envfrom(context, Collections.singletonList("<from@example.com>"));
+      context.setSessionStep(SMFIC_RCPT);
+      handler.envrcpt(context, Collections.singletonList("<rcpt" + i + "@example.com>"));
+      context.setSessionStep(SMFIC_HEADER);
+      handler.header(context, "Subject", "test " + i);
+      context.setSessionStep(SMFIC_EOH);
+      handler.eoh(context);
+      context.setSessionStep(SMFIC_BODY);
+      handler.body(context, "hello ".getBytes(StandardCharsets.US_ASCII));
+      context.setSessionStep(SMFIC_EOB);
+      handler.eom(context, ("world" + i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    EasyMock.verify(packetSenderMock);
+    Assert.assertEquals(Arrays.asList(
+        "client.example.com|client|Q0|mx.example.org|[<from@example.com>]|[[<rcpt0@example.com>]]|1|test 0|hello world0"
+      , "client.example.com|client|Q1|mx.example.org|[<from@example.com>]|[[<rcpt1@example.com>]]|1|test 1|hello world1"
+    ), handler.messages);
+  }
+
+  @Test public void testAbortDiscardsMessage() throws Exception {
+    MilterPacketSender packetSenderMock = EasyMock.mock(MilterPacketSender.class);
+    packetSenderMock.send(MilterPackets.SMFIS_ACCEPT);
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(packetSenderMock);
+
+    CollectingHandler handler = new CollectingHandler();
+    MilterContext context = handler.createContext(packetSenderMock);
+    context.setMtaProtocolSteps(WholeMessageMilterHandler.PROTOCOL_STEPS);
+    context.setSessionProtocolSteps(WholeMessageMilterHandler.PROTOCOL_STEPS);
+
+    context.setSessionStep(SMFIC_CONNECT);
+    handler.connect(context, "client.example.com", '4', 25, null);
+    context.setSessionStep(SMFIC_MAIL);
+    handler.macro(context, SMFIC_MAIL.code(), Collections.singletonMap("i", "Q0"));
+    handler.envfrom(context, Collections.singletonList("<from@example.com>"));
+    context.setSessionStep(SMFIC_BODY);
+    handler.body(context, "discarded".getBytes(StandardCharsets.US_ASCII));
+    handler.abort(context, null);
+
+    context.setSessionStep(SMFIC_EOB);
+    handler.eom(context, null);
+
+    EasyMock.verify(packetSenderMock);
+    Assert.assertEquals(Collections.singletonList("client.example.com|null|null|null|[]|[]|0|null|"), handler.messages);
+  }
+
+  @Test public void testMtaWithoutNoReply() throws Exception {
+    MilterPacketSender packetSenderMock = EasyMock.mock(MilterPacketSender.class);
+    packetSenderMock.send(MilterPackets.SMFIS_CONTINUE);
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(packetSenderMock);
+
+    CollectingHandler handler = new CollectingHandler();
+    MilterContext context = handler.createContext(packetSenderMock);
+    context.setMtaProtocolSteps(ProtocolSteps.DEF_PROTOCOL_STEPS);
+    context.setSessionProtocolSteps(ProtocolSteps.DEF_PROTOCOL_STEPS);
+
+    context.setSessionStep(SMFIC_CONNECT);
+    handler.connect(context, "client.example.com", '4', 25, null);
+
+    EasyMock.verify(packetSenderMock);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.check;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMock;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.CommandCode;
+import org.nightcode.milter.MessageModificationService;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterHandler;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.net.MilterPacketSender;
+import org.nightcode.milter.util.MilterPackets;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelChecksTest {
+
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+  @AfterClass public static void shutdown() {
+    EXECUTOR.shutdownNow();
+  }
+
+  private static Check<String> sleeping(long sleepMs, CheckResult result) {
+    return message -> {
+      Thread.sleep(sleepMs);
+      return result;
+    };
+  }
+
+  @Test public void testParallelEvaluation() {
+    ParallelChecks<String> checks = ParallelChecks.<String>builder()
+        .check("av", sleeping(300, CheckResult.builder().addHeader("X-AV", "clean").build()), 2000)
+        .check("url", sleeping(300, CheckResult.CONTINUE), 2000)
+        .check("ml", sleeping(300, CheckResult.builder().addHeader("X-Score", "1").build()), 2000)
+        .executor(EXECUTOR)
+        .build();
+
+    long start = System.nanoTime();
+    CheckResult result = checks.evaluate("message");
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    Assert.assertTrue("elapsed " + elapsedMs + " ms", elapsedMs < 800);
+    Assert.assertEquals(MilterPackets.SMFIS_CONTINUE, result.verdict());
+    Assert.assertEquals(2, result.modifications().size());
+  }
+
+  @Test public void testDeadlineAndFailure() {
+    ParallelChecks<String> checks = ParallelChecks.<String>builder()
+        .check("slow", sleeping(5000, CheckResult.REJECT), 100, CheckResult.TEMPFAIL)
+        .check("broken", message -> {
+          throw new IllegalStateException(message);
+        }, 1000)
+        .executor(EXECUTOR)
+        .build();
+
+    long start = System.nanoTime();
+    CheckResult result = checks.evaluate("message");
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    Assert.assertTrue("elapsed " + elapsedMs + " ms", elapsedMs < 1000);
+    Assert.assertEquals(MilterPackets.SMFIS_TEMPFAIL, result.verdict());
+  }
+
+  @Test public void testAsyncEvaluation() throws Exception {
+    ParallelChecks<String> checks = ParallelChecks.<String>builder()
+        .check("av", sleeping(100, CheckResult.builder().addHeader("X-AV", "clean").build()), 2000)
+        .check("slow", sleeping(5000, CheckResult.REJECT), 200)
+        .executor(EXECUTOR)
+        .build();
+
+    List<MilterPacket> sent = new CopyOnWriteArrayList<>();
+    MilterHandler handler = new AbstractMilterHandler(Actions.DEF_ACTIONS, ProtocolSteps.builder().build()) {
+      @Override public void quit(MilterContext context) {
+        // do nothing
+      }
+    };
+    MilterContext context = handler.createContext(new MilterPacketSender() {
+      @Override public void close() {
+        // do nothing
+      }
+
+      @Override public void send(MilterPacket packet) {
+        sent.add(packet);
+      }
+    });
+    context.setSessionStep(CommandCode.SMFIC_EOB);
+
+    MessageModificationService service = EasyMock.mock(MessageModificationService.class);
+    service.addHeader(context, "X-AV", "clean");
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(service);
+
+    CompletableFuture<CheckResult> future = checks.evaluateAsync(context, service, "message");
+    Assert.assertFalse(future.isDone());
+
+    CheckResult result = future.get(5, TimeUnit.SECONDS);
+    Assert.assertEquals(MilterPackets.SMFIS_CONTINUE, result.verdict());
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (sent.isEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    Assert.assertEquals(Collections.singletonList(MilterPackets.SMFIS_CONTINUE), sent);
+    EasyMock.verify(service);
+  }
+
+  @Test public void testMergePolicies() {
+    CheckResult accept = CheckResult.builder().verdict(MilterPackets.SMFIS_ACCEPT).build();
+    CheckResult header = CheckResult.builder().addHeader("X-Test", "1").build();
+
+    CheckResult mostSevere = MergePolicy.mostSevere().merge(Arrays.asList(accept, header, CheckResult.REJECT, CheckResult.TEMPFAIL));
+    Assert.assertEquals(MilterPackets.SMFIS_REJECT, mostSevere.verdict());
+    Assert.assertEquals(1, mostSevere.modifications().size());
+
+    CheckResult firstDecisive = MergePolicy.firstDecisive().merge(Arrays.asList(header, accept, CheckResult.REJECT));
+    Assert.assertEquals(MilterPackets.SMFIS_ACCEPT, firstDecisive.verdict());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidVerdict() {
+    CheckResult.builder().verdict(MilterPackets.SMFIS_SKIP);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import io.netty.channel.local.LocalAddress;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.net.LocalServerFactory;
+import org.nightcode.milter.net.MilterGatewayManager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BalancingSessionFactoryTest {
+
+  private static final LocalAddress FIRST_ADDRESS  = new LocalAddress("balancer.first");
+  private static final LocalAddress SECOND_ADDRESS = new LocalAddress("balancer.second");
+
+  private static final class CountingHandler extends AbstractMilterHandler {
+    private final AtomicInteger negotiations = new AtomicInteger();
+
+    CountingHandler() {
+      super(Actions.DEF_ACTIONS, ProtocolSteps.builder().build());
+    }
+
+    @Override public void optneg(MilterContext context, int mtaProtocolVersion, Actions mtaActions, ProtocolSteps mtaProtocolSteps)
+        throws MilterException {
+      negotiations.incrementAndGet();
+      super.optneg(context, mtaProtocolVersion, mtaActions, mtaProtocolSteps);
+    }
+
+    @Override public void quit(MilterContext context) {
+      // do nothing
+    }
+  }
+
+  @Test public void testEjectAndProbe() throws Exception {
+    CountingHandler firstHandler  = new CountingHandler();
+    CountingHandler secondHandler = new CountingHandler();
+
+    List<MilterSession> sessions = new ArrayList<>();
+    try (MilterGatewayManager<LocalAddress> first = new MilterGatewayManager<>(new LocalServerFactory(FIRST_ADDRESS), firstHandler);
+         BalancingSessionFactory factory = BalancingSessionFactory.builder()
+             .endpoint(sessionFactory(FIRST_ADDRESS))
+             .endpoint(sessionFactory(SECOND_ADDRESS))
+             .ejectionTime(100)
+             .probeInterval(20)
+             .build()) {
+      first.bind().get(5, TimeUnit.SECONDS);
+
+      for (int i = 0; i < 4; i++) {
+        sessions.add(factory.createSession().get(5, TimeUnit.SECONDS));
+      }
+      Assert.assertEquals(4, firstHandler.negotiations.get());
+      Assert.assertEquals(1, factory.healthyEndpoints());
+
+      try (MilterGatewayManager<LocalAddress> second
+               = new MilterGatewayManager<>(new LocalServerFactory(SECOND_ADDRESS), secondHandler)) {
+        second.bind().get(5, TimeUnit.SECONDS);
+        await(() -> factory.healthyEndpoints() == 2);
+        Assert.assertEquals(1, secondHandler.negotiations.get());
+
+        sessions.add(factory.createSession().get(5, TimeUnit.SECONDS));
+        sessions.add(factory.createSession().get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(4, firstHandler.negotiations.get());
+        Assert.assertEquals(3, secondHandler.negotiations.get());
+
+        for (MilterSession session : sessions) {
+          session.quit().get(5, TimeUnit.SECONDS);
+        }
+        await(() -> factory.endpoints().get(0).load.get() == 0 && factory.endpoints().get(1).load.get() == 0);
+      }
+    }
+  }
+
+  @Test public void testNoEndpointAvailable() throws Exception {
+    try (BalancingSessionFactory factory = BalancingSessionFactory.builder()
+        .endpoint(sessionFactory(FIRST_ADDRESS))
+        .endpoint(sessionFactory(SECOND_ADDRESS))
+        .build()) {
+      for (int i = 0; i < 2; i++) {
+        try {
+          factory.createSession().get(5, TimeUnit.SECONDS);
+          Assert.fail("should fail");
+        } catch (ExecutionException ex) {
+          Assert.assertNotNull(ex.getCause());
+        }
+        Assert.assertEquals(0, factory.healthyEndpoints());
+      }
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNoEndpoints() {
+    BalancingSessionFactory.builder().build();
+  }
+
+  private static MilterSessionFactory sessionFactory(LocalAddress address) {
+    return MilterSessionFactoryBuilder.<LocalAddress>builder()
+        .factory(new LocalConnectionFactory(address))
+        .protocolVersion(6)
+        .actions(Actions.DEF_ACTIONS)
+        .protocolSteps(ProtocolSteps.builder().build())
+        .create();
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    Assert.assertTrue(condition.getAsBoolean());
+  }
+}
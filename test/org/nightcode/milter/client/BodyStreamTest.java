@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.local.LocalAddress;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.net.LocalServerFactory;
+import org.nightcode.milter.net.MilterGatewayManager;
+import org.nightcode.milter.net.ServerFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.nightcode.milter.util.MilterPackets.MILTER_CHUNK_SIZE;
+
+public class BodyStreamTest {
+
+  private static final class BodyHandler extends AbstractMilterHandler {
+    private final ByteArrayOutputStream body   = new ByteArrayOutputStream();
+    private final AtomicInteger         chunks = new AtomicInteger();
+    private final boolean               skip;
+
+    BodyHandler(boolean skip) {
+      super(Actions.DEF_ACTIONS, ProtocolSteps.builder().build());
+      this.skip = skip;
+    }
+
+    @Override public void body(MilterContext context, byte[] bodyChunk) throws MilterException {
+      chunks.incrementAndGet();
+      synchronized (body) {
+        body.write(bodyChunk, 0, bodyChunk.length);
+      }
+      if (skip) {
+        context.sendPacket(new MilterPacket(ResponseCode.SMFIR_SKIP));
+      } else {
+        context.sendContinue();
+      }
+    }
+
+    @Override public void quit(MilterContext context) {
+      // do nothing
+    }
+  }
+
+  private static byte[] body(int length) {
+    byte[] body = new byte[length];
+    new Random(length).nextBytes(body);
+    return body;
+  }
+
+  @Test public void testByteBuf() throws Exception {
+    BodyHandler handler = new BodyHandler(false);
+    byte[]      body    = body(2 * MILTER_CHUNK_SIZE + 100);
+    ByteBuf     buffer  = Unpooled.wrappedBuffer(body);
+
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), handler);
+         MilterSessionFactory factory = sessionFactory(new LocalConnectionFactory())) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+
+      MilterResponse response = factory.createSession()
+          .thenCompose(s -> s.envfrom(Collections.singletonList("<support@example.org>")))
+          .thenCompose(r -> r.session().body(buffer))
+          .get(5, TimeUnit.SECONDS);
+
+      Assert.assertEquals(ResponseCode.SMFIR_CONTINUE.code(), response.lastPacket().command());
+      Assert.assertEquals(3, handler.chunks.get());
+      Assert.assertArrayEquals(body, handler.body.toByteArray());
+      Assert.assertEquals(0, buffer.refCnt());
+
+      response = response.session().eob().get(5, TimeUnit.SECONDS);
+      Assert.assertEquals(ResponseCode.SMFIR_CONTINUE.code(), response.lastPacket().command());
+      response.session().quit().get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test public void testMessageWhileStreaming() throws Exception {
+    BodyHandler handler = new BodyHandler(false);
+    byte[]      body    = body(4 * MILTER_CHUNK_SIZE);
+
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), handler);
+         MilterSessionFactory factory = sessionFactory(new LocalConnectionFactory())) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+
+      MilterSession session = factory.createSession().get(5, TimeUnit.SECONDS);
+      session.envfrom(Collections.singletonList("<support@example.org>")).get(5, TimeUnit.SECONDS);
+
+      CompletableFuture<MilterResponse> bodyFuture = session.body(Unpooled.wrappedBuffer(body));
+      try {
+        session.eob().get(5, TimeUnit.SECONDS);
+        Assert.fail("should fail");
+      } catch (ExecutionException ex) {
+        Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+      }
+
+      Assert.assertEquals(ResponseCode.SMFIR_CONTINUE.code(), bodyFuture.get(5, TimeUnit.SECONDS).lastPacket().command());
+      Assert.assertArrayEquals(body, handler.body.toByteArray());
+      Assert.assertEquals(ResponseCode.SMFIR_CONTINUE.code(), session.eob().get(5, TimeUnit.SECONDS).lastPacket().command());
+      session.quit().get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test public void testSkip() throws Exception {
+    BodyHandler handler = new BodyHandler(true);
+    int         total   = 4 * BodyStream.MAX_CHUNKS_IN_FLIGHT;
+
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), handler);
+         MilterSessionFactory factory = sessionFactory(new LocalConnectionFactory())) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+
+      MilterResponse response = factory.createSession()
+          .thenCompose(s -> s.envfrom(Collections.singletonList("<support@example.org>")))
+          .thenCompose(r -> r.session().body(new ByteArrayInputStream(new byte[total * MILTER_CHUNK_SIZE])))
+          .thenCompose(r -> {
+            Assert.assertEquals(ResponseCode.SMFIR_SKIP.code(), r.lastPacket().command());
+            return r.session().eob();
+          })
+          .get(5, TimeUnit.SECONDS);
+
+      Assert.assertEquals(ResponseCode.SMFIR_CONTINUE.code(), response.lastPacket().command());
+      Assert.assertTrue(handler.chunks.get() <= BodyStream.MAX_CHUNKS_IN_FLIGHT);
+      response.session().quit().get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test public void testFileChannel() throws Exception {
+    InetSocketAddress address;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      address = new InetSocketAddress("127.0.0.1", socket.getLocalPort());
+    }
+
+    BodyHandler handler = new BodyHandler(false);
+    byte[]      body    = body(3 * MILTER_CHUNK_SIZE + 1);
+    Path        file    = Files.createTempFile("jmilter", ".eml");
+    Files.write(file, body);
+
+    try (MilterGatewayManager<InetSocketAddress> manager = new MilterGatewayManager<>(ServerFactory.tcpIpFactory(address), handler);
+         MilterSessionFactory factory = sessionFactory(ConnectionFactory.tcpIpFactory(address));
+         FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+
+      MilterResponse response = factory.createSession()
+          .thenCompose(s -> s.envfrom(Collections.singletonList("<support@example.org>")))
+          .thenCompose(r -> r.session().body(channel))
+          .get(5, TimeUnit.SECONDS);
+
+      Assert.assertEquals(ResponseCode.SMFIR_CONTINUE.code(), response.lastPacket().command());
+      Assert.assertEquals(4, handler.chunks.get());
+      Assert.assertArrayEquals(body, handler.body.toByteArray());
+      Assert.assertTrue(channel.isOpen());
+      Assert.assertEquals(0, channel.position());
+      response.session().quit().get(5, TimeUnit.SECONDS);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static <A extends SocketAddress> MilterSessionFactory sessionFactory(ConnectionFactory<A> connectionFactory) {
+    return MilterSessionFactoryBuilder.<A>builder()
+        .factory(connectionFactory)
+        .protocolVersion(6)
+        .actions(Actions.DEF_ACTIONS)
+        .protocolSteps(ProtocolSteps.builder().build())
+        .create();
+  }
+}
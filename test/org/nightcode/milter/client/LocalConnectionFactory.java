@@ -32,7 +32,33 @@ public class LocalConnectionFactory implements ConnectionFactory<LocalAddress> {
 
   private static final LocalAddress TEST_ADDRESS = new LocalAddress("test.id");
 
-  @Override public Bootstrap create() {
+  private final LocalAddress address;
+
+  public LocalConnectionFactory() {
+    this(TEST_ADDRESS);
+  }
+
+  public LocalConnectionFactory(LocalAddress address) {
+    this.address = address;
+  }
+
+  private Bootstrap template;
+
+  @Override public synchronized Bootstrap create() {
+    if (template == null) {
+      template = createTemplate();
+    }
+    return template.clone();
+  }
+
+  @Override public synchronized void close() {
+    if (template != null) {
+      template.config().group().shutdownGracefully();
+      template = null;
+    }
+  }
+
+  private Bootstrap createTemplate() {
     Bootstrap bootstrap = new Bootstrap();
     bootstrap
         .group(new SingleThreadIoEventLoop(null, ExecutorUtils.namedThreadFactory("test"), LocalIoHandler.newFactory()))
@@ -40,11 +66,11 @@ public class LocalConnectionFactory implements ConnectionFactory<LocalAddress> {
         .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, getInt(NETTY_CONNECT_TIMEOUT_MS, 5_000))
         .option(ChannelOption.AUTO_READ,              getBoolean(NETTY_AUTO_READ, true))
         .option(ChannelOption.ALLOCATOR,              PooledByteBufAllocator.DEFAULT)
-        .remoteAddress(TEST_ADDRESS);
+        .remoteAddress(address);
     return bootstrap;
   }
 
   @Override public LocalAddress remoteAddress() {
-    return TEST_ADDRESS;
+    return address;
   }
 }
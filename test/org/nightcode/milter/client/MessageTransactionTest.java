@@ -0,0 +1,198 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.channel.local.LocalAddress;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.CommandCode;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.net.LocalServerFactory;
+import org.nightcode.milter.net.MilterGatewayManager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.nightcode.milter.ProtocolFamily.SMFIA_INET;
+
+public class MessageTransactionTest {
+
+  private static final String BAD_SENDER    = "<spammer@example.net>";
+  private static final String BAD_RECIPIENT = "<unknown@example.com>";
+
+  private static final class RecordingHandler extends AbstractMilterHandler {
+    private final AtomicInteger helos      = new AtomicInteger();
+    private final AtomicInteger recipients = new AtomicInteger();
+    private final AtomicInteger headers    = new AtomicInteger();
+    private final AtomicInteger bodyBytes  = new AtomicInteger();
+    private final AtomicInteger aborts     = new AtomicInteger();
+
+    RecordingHandler(ProtocolSteps protocolSteps) {
+      super(Actions.builder().addHeader().build(), protocolSteps);
+    }
+
+    @Override public void helo(MilterContext context, String helohost) throws MilterException {
+      helos.incrementAndGet();
+      super.helo(context, helohost);
+    }
+
+    @Override public void envfrom(MilterContext context, List<String> from) throws MilterException {
+      if (BAD_SENDER.equals(from.get(0))) {
+        context.sendPacket(new MilterPacket(ResponseCode.SMFIR_REJECT));
+      } else {
+        context.sendContinue();
+      }
+    }
+
+    @Override public void envrcpt(MilterContext context, List<String> args) throws MilterException {
+      recipients.incrementAndGet();
+      if (BAD_RECIPIENT.equals(args.get(0))) {
+        context.sendPacket(new MilterPacket(ResponseCode.SMFIR_REJECT));
+      } else {
+        context.sendContinue();
+      }
+    }
+
+    @Override public void header(MilterContext context, String headerName, String headerValue) throws MilterException {
+      headers.incrementAndGet();
+      super.header(context, headerName, headerValue);
+    }
+
+    @Override public void body(MilterContext context, byte[] bodyChunk) throws MilterException {
+      bodyBytes.addAndGet(bodyChunk.length);
+      super.body(context, bodyChunk);
+    }
+
+    @Override public void eom(MilterContext context, @Nullable byte[] bodyChunk) throws MilterException {
+      messageModificationService.addHeader(context, "X-Scanned", "yes");
+      context.sendContinue();
+    }
+
+    @Override public void abort(MilterContext context, @Nullable MilterPacket packet) {
+      aborts.incrementAndGet();
+    }
+
+    @Override public void quit(MilterContext context) {
+      // do nothing
+    }
+  }
+
+  @Test public void testProcess() throws Exception {
+    ProtocolSteps protocolSteps = ProtocolSteps.builder()
+        .noHelo()
+        .noReplyForHeaders()
+        .noReplyForBodyChunk()
+        .build();
+    RecordingHandler handler = new RecordingHandler(protocolSteps);
+
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), handler);
+         MilterSessionFactory sessionFactory = sessionFactory(protocolSteps)) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+      MilterSession session = sessionFactory.createSession().get(5, TimeUnit.SECONDS);
+
+      Envelope envelope = Envelope.builder()
+          .connect("[144.229.210.94]", SMFIA_INET, 62293, "144.229.210.94")
+          .helo("mail.example.org")
+          .sender(Collections.singletonList("<support@example.org>"))
+          .recipient(Collections.singletonList("<user@example.com>"))
+          .recipient(Collections.singletonList(BAD_RECIPIENT))
+          .build();
+      Headers headers = Headers.builder()
+          .add("Subject", "Some subject")
+          .add("From", "support@example.org")
+          .build();
+      byte[] body = new byte[70_000];
+      Arrays.fill(body, (byte) 'a');
+
+      MessageResult result = session.process(envelope, headers, BodySource.of(body)).get(5, TimeUnit.SECONDS);
+
+      Assert.assertEquals(CommandCode.SMFIC_EOB, result.command());
+      Assert.assertEquals(ResponseCode.SMFIR_CONTINUE, result.verdictCode());
+      Assert.assertEquals(1, result.modifications().size());
+      Assert.assertEquals(ResponseCode.SMFIR_ADDHEADER.code(), result.modifications().get(0).command());
+      Assert.assertEquals(Collections.singletonList(Collections.singletonList(BAD_RECIPIENT)), result.rejectedRecipients());
+
+      Assert.assertEquals(0, handler.helos.get());
+      Assert.assertEquals(2, handler.recipients.get());
+      Assert.assertEquals(2, handler.headers.get());
+      Assert.assertEquals(body.length, handler.bodyBytes.get());
+      Assert.assertEquals(0, handler.aborts.get());
+
+      session.quit().get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test public void testStopOnReject() throws Exception {
+    ProtocolSteps protocolSteps = ProtocolSteps.builder().build();
+    RecordingHandler handler = new RecordingHandler(protocolSteps);
+
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), handler);
+         MilterSessionFactory sessionFactory = sessionFactory(protocolSteps)) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+      MilterSession session = sessionFactory.createSession().get(5, TimeUnit.SECONDS);
+
+      Envelope rejected = Envelope.builder()
+          .connect("[144.229.210.94]", SMFIA_INET, 62293, "144.229.210.94")
+          .sender(Collections.singletonList(BAD_SENDER))
+          .recipient(Collections.singletonList("<user@example.com>"))
+          .build();
+
+      MessageResult result = session.process(rejected, Headers.empty(), BodySource.empty()).get(5, TimeUnit.SECONDS);
+
+      Assert.assertEquals(CommandCode.SMFIC_MAIL, result.command());
+      Assert.assertEquals(ResponseCode.SMFIR_REJECT, result.verdictCode());
+      Assert.assertEquals(0, handler.recipients.get());
+
+      Envelope accepted = Envelope.builder()
+          .sender(Collections.singletonList("<support@example.org>"))
+          .recipient(Collections.singletonList("<user@example.com>"))
+          .build();
+
+      result = session.process(accepted, Headers.empty(), BodySource.empty()).get(5, TimeUnit.SECONDS);
+
+      Assert.assertEquals(CommandCode.SMFIC_EOB, result.command());
+      Assert.assertEquals(ResponseCode.SMFIR_CONTINUE, result.verdictCode());
+      Assert.assertEquals(1, handler.recipients.get());
+      Assert.assertEquals(1, handler.aborts.get());
+
+      session.quit().get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testEnvelopeWithoutRecipients() {
+    Envelope.builder().sender(Collections.singletonList("<support@example.org>")).build();
+  }
+
+  private static MilterSessionFactory sessionFactory(ProtocolSteps protocolSteps) {
+    return MilterSessionFactoryBuilder.<LocalAddress>builder()
+        .factory(new LocalConnectionFactory())
+        .protocolVersion(6)
+        .actions(Actions.builder().addHeader().build())
+        .protocolSteps(protocolSteps)
+        .create();
+  }
+}
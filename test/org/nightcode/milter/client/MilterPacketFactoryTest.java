@@ -144,6 +144,36 @@ public class MilterPacketFactoryTest {
         , packet.payload());
   }
 
+  @Test public void testCreateMacroWith() {
+    Macros connectionMacros = Macros.builder()
+        .add("j", "mx.example.org")
+        .build();
+    Macros messageMacros = connectionMacros.with("i", "C1A7C20BAF").with("{mail_addr}", "b\u00fccher@example.org");
+
+    Assert.assertSame(MilterPacketFactory.createMacro(SMFIC_CONNECT, connectionMacros)
+        , MilterPacketFactory.createMacro(SMFIC_CONNECT, connectionMacros));
+    Assert.assertEquals(17, connectionMacros.encodedLength());
+
+    MilterPacket packet = MilterPacketFactory.createMacro(SMFIC_MAIL, messageMacros);
+    Assert.assertEquals(SMFIC_MACRO.code(), packet.command());
+    Assert.assertArrayEquals(HEX.toByteArray("4d6a006d782e6578616d706c652e6f726700690043314137433230424146"
+            + "007b6d61696c5f616464727d0062c3bc63686572406578616d706c652e6f726700")
+        , packet.payload());
+  }
+
+  @Test public void testCreateMacroEmptyValue() {
+    Macros macros = Macros.builder().add("{auth_type}", "").add("i", "C1A7C20BAF").build();
+
+    MilterPacket packet = MilterPacketFactory.createMacro(SMFIC_MAIL, macros);
+    Assert.assertArrayEquals(HEX.toByteArray("4d7b617574685f747970657d000069004331413743323042414600"), packet.payload());
+  }
+
+  @Test public void testCreateHeloUtf8() {
+    MilterPacket packet = MilterPacketFactory.createHelo("b\u00fccher.example");
+
+    Assert.assertArrayEquals(HEX.toByteArray("62c3bc636865722e6578616d706c6500"), packet.payload());
+  }
+
   @Test public void testCreateOptneg() {
     byte[] payload = HEX.toByteArray("00000006000001ff001fffff");
 
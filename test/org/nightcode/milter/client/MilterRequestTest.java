@@ -15,7 +15,6 @@
 package org.nightcode.milter.client;
 
 import java.io.IOException;
-import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -36,7 +35,7 @@ public class MilterRequestTest {
 
   @Test public void testResponse() throws Exception {
     MilterSession   sessionMock = EasyMock.mock(MilterSession.class);
-    EmbeddedChannel channel     = new EmbeddedChannel();
+    EmbeddedChannel channel     = new EmbeddedChannel(new ResponseHandler());
 
     CompletableFuture<MilterResponse> responseFuture = new CompletableFuture<>();
 
@@ -52,7 +51,7 @@ public class MilterRequestTest {
     );
 
     request.execute();
-    request.onAction(SMFIS_CONTINUE);
+    channel.writeInbound(SMFIS_CONTINUE);
 
     MilterResponse response = responseFuture.get(500, TimeUnit.MILLISECONDS);
 
@@ -60,21 +59,18 @@ public class MilterRequestTest {
     channel.runScheduledPendingTasks();
 
     Assert.assertEquals(SMFIS_CONTINUE, response.lastPacket());
-    Assert.assertTrue(request.timeoutFuture().isCancelled());
+    Assert.assertFalse(responseFuture.isCompletedExceptionally());
 
     EasyMock.verify(sessionMock);
   }
 
   @Test public void testReadTimeout() {
-    System.setProperty("jmilter.SMFIC_HELO.responseTimeoutMs", "500");
-
     MilterSession   sessionMock = EasyMock.mock(MilterSession.class);
-    EmbeddedChannel channel     = new EmbeddedChannel();
+    EmbeddedChannel channel     = new EmbeddedChannel(new ResponseHandler());
 
     CompletableFuture<MilterResponse> responseFuture = new CompletableFuture<>();
 
     EasyMock.expect(sessionMock.milterProtocolSteps()).andReturn(ProtocolSteps.DEF_PROTOCOL_STEPS).once();
-    EasyMock.expect(sessionMock.id()).andReturn(UUID.randomUUID().toString()).once();
     EasyMock.replay(sessionMock);
 
     MilterRequest request = new MilterRequest(
@@ -0,0 +1,295 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.client;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import io.netty.channel.local.LocalAddress;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.net.LocalServerFactory;
+import org.nightcode.milter.net.MilterGatewayManager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.nightcode.milter.ProtocolFamily.SMFIA_INET;
+
+public class MilterSessionPoolTest {
+
+  private static final class CountingHandler extends AbstractMilterHandler {
+    private final AtomicInteger negotiations = new AtomicInteger();
+    private final AtomicInteger quitNcs      = new AtomicInteger();
+
+    CountingHandler() {
+      super(Actions.DEF_ACTIONS, ProtocolSteps.builder().build());
+    }
+
+    @Override public void optneg(MilterContext context, int mtaProtocolVersion, Actions mtaActions, ProtocolSteps mtaProtocolSteps)
+        throws MilterException {
+      negotiations.incrementAndGet();
+      super.optneg(context, mtaProtocolVersion, mtaActions, mtaProtocolSteps);
+    }
+
+    @Override public void helo(MilterContext context, String helohost) {
+      // never replies
+    }
+
+    @Override public void quitNc(MilterContext context) {
+      quitNcs.incrementAndGet();
+    }
+
+    @Override public void quit(MilterContext context) {
+      // do nothing
+    }
+  }
+
+  @Test public void testLeaseAndReuse() throws Exception {
+    CountingHandler handler = new CountingHandler();
+
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), handler)) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+
+      MilterSessionFactory sessionFactory = MilterSessionFactoryBuilder.<LocalAddress>builder()
+          .factory(new LocalConnectionFactory())
+          .protocolVersion(6)
+          .actions(Actions.DEF_ACTIONS)
+          .protocolSteps(ProtocolSteps.builder().build())
+          .create();
+
+      try (MilterSessionPool pool = MilterSessionPool.builder()
+          .sessionFactory(sessionFactory)
+          .minIdle(1)
+          .maxSize(2)
+          .leaseTimeout(100)
+          .build()) {
+        pool.warm().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, pool.idle());
+        Assert.assertEquals(1, handler.negotiations.get());
+
+        String sessionId;
+        try (MilterSessionPool.Lease lease = pool.lease().get(5, TimeUnit.SECONDS)) {
+          sessionId = lease.session().id();
+          MilterResponse response = lease.session()
+              .connect("[144.229.210.94]", SMFIA_INET, 62293, "144.229.210.94")
+              .thenCompose(r -> r.session().envfrom(Collections.singletonList("<support@example.org>")))
+              .thenCompose(r -> r.session().eob())
+              .get(5, TimeUnit.SECONDS);
+          Assert.assertEquals(ResponseCode.SMFIR_CONTINUE.code(), response.lastPacket().command());
+        }
+        await(() -> pool.idle() == 1 && handler.quitNcs.get() == 1);
+
+        MilterSessionPool.Lease first  = pool.lease().get(5, TimeUnit.SECONDS);
+        MilterSessionPool.Lease second = pool.lease().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(sessionId, first.session().id());
+        Assert.assertEquals(2, pool.size());
+        Assert.assertEquals(2, handler.negotiations.get());
+
+        try {
+          pool.lease().get(5, TimeUnit.SECONDS);
+          Assert.fail("should time out");
+        } catch (ExecutionException ex) {
+          Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+
+        second.invalidate();
+        Assert.assertEquals(1, pool.size());
+        first.close();
+        await(() -> pool.idle() == 1);
+      }
+      sessionFactory.close();
+    }
+  }
+
+  @Test public void testLeaseWait() throws Exception {
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), new CountingHandler())) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+      MilterSessionFactory sessionFactory = sessionFactory();
+
+      try (MilterSessionPool pool = MilterSessionPool.builder()
+          .sessionFactory(sessionFactory)
+          .maxSize(1)
+          .leaseTimeout(5_000)
+          .build()) {
+        MilterSessionPool.Lease first = pool.lease().get(5, TimeUnit.SECONDS);
+        CompletableFuture<MilterSessionPool.Lease> waiting = pool.lease();
+        Assert.assertFalse(waiting.isDone());
+
+        first.close();
+        MilterSessionPool.Lease second = waiting.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(first.session().id(), second.session().id());
+        Assert.assertEquals(1, pool.size());
+        second.close();
+      }
+      sessionFactory.close();
+    }
+  }
+
+  @Test public void testLeaseTimeout() throws Exception {
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), new CountingHandler())) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+      MilterSessionFactory sessionFactory = sessionFactory();
+
+      try (MilterSessionPool pool = MilterSessionPool.builder()
+          .sessionFactory(sessionFactory)
+          .maxSize(1)
+          .leaseTimeout(50)
+          .build()) {
+        MilterSessionPool.Lease lease = pool.lease().get(5, TimeUnit.SECONDS);
+        try {
+          pool.lease().get(5, TimeUnit.SECONDS);
+          Assert.fail("should time out");
+        } catch (ExecutionException ex) {
+          Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        lease.close();
+        await(() -> pool.idle() == 1);
+        Assert.assertEquals(1, pool.size());
+      }
+      sessionFactory.close();
+    }
+  }
+
+  @Test public void testInFlightSessionIsNotReused() throws Exception {
+    CountingHandler handler = new CountingHandler();
+
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), handler)) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+      MilterSessionFactory sessionFactory = sessionFactory();
+
+      try (MilterSessionPool pool = MilterSessionPool.builder()
+          .sessionFactory(sessionFactory)
+          .maxSize(1)
+          .build()) {
+        MilterSessionPool.Lease lease = pool.lease().get(5, TimeUnit.SECONDS);
+        CompletableFuture<MilterResponse> helo = lease.session().helo("example.org");
+        lease.close();
+
+        await(() -> pool.size() == 0);
+        Assert.assertEquals(0, pool.idle());
+        await(() -> !lease.session().isActive());
+        await(helo::isCompletedExceptionally);
+
+        MilterSessionPool.Lease next = pool.lease().get(5, TimeUnit.SECONDS);
+        Assert.assertNotEquals(lease.session().id(), next.session().id());
+        next.close();
+      }
+      sessionFactory.close();
+    }
+  }
+
+  @Test public void testIdleEviction() throws Exception {
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), new CountingHandler())) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+      MilterSessionFactory sessionFactory = sessionFactory();
+
+      try (MilterSessionPool pool = MilterSessionPool.builder()
+          .sessionFactory(sessionFactory)
+          .maxSize(2)
+          .idleTimeout(1)
+          .healthCheckInterval(60_000)
+          .build()) {
+        MilterSessionPool.Lease first  = pool.lease().get(5, TimeUnit.SECONDS);
+        MilterSessionPool.Lease second = pool.lease().get(5, TimeUnit.SECONDS);
+        first.close();
+        second.close();
+        await(() -> pool.idle() == 2);
+
+        Thread.sleep(5);
+        pool.healthCheck();
+        Assert.assertEquals(0, pool.idle());
+        Assert.assertEquals(0, pool.size());
+        await(() -> !first.session().isActive() && !second.session().isActive());
+      }
+      sessionFactory.close();
+    }
+  }
+
+  @Test public void testHealthCheckRefill() throws Exception {
+    CountingHandler handler = new CountingHandler();
+
+    try (MilterGatewayManager<LocalAddress> manager = new MilterGatewayManager<>(new LocalServerFactory(), handler)) {
+      manager.bind().get(5, TimeUnit.SECONDS);
+      MilterSessionFactory sessionFactory = sessionFactory();
+
+      try (MilterSessionPool pool = MilterSessionPool.builder()
+          .sessionFactory(sessionFactory)
+          .minIdle(1)
+          .maxSize(2)
+          .healthCheckInterval(60_000)
+          .build()) {
+        pool.warm().get(5, TimeUnit.SECONDS);
+        MilterSession session;
+        try (MilterSessionPool.Lease lease = pool.lease().get(5, TimeUnit.SECONDS)) {
+          session = lease.session();
+        }
+        await(() -> pool.idle() == 1);
+
+        session.quit().get(5, TimeUnit.SECONDS);
+        pool.healthCheck();
+        await(() -> pool.idle() == 1);
+        Assert.assertEquals(1, pool.size());
+        Assert.assertEquals(2, handler.negotiations.get());
+
+        try (MilterSessionPool.Lease lease = pool.lease().get(5, TimeUnit.SECONDS)) {
+          Assert.assertTrue(lease.session().isActive());
+          Assert.assertNotEquals(session.id(), lease.session().id());
+        }
+      }
+      sessionFactory.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidSize() {
+    MilterSessionPool.builder()
+        .sessionFactory(MilterSessionFactoryBuilder.<LocalAddress>builder()
+            .factory(new LocalConnectionFactory())
+            .protocolVersion(6)
+            .actions(Actions.DEF_ACTIONS)
+            .protocolSteps(ProtocolSteps.DEF_PROTOCOL_STEPS)
+            .create())
+        .minIdle(3)
+        .maxSize(2)
+        .build();
+  }
+
+  private static MilterSessionFactory sessionFactory() {
+    return MilterSessionFactoryBuilder.<LocalAddress>builder()
+        .factory(new LocalConnectionFactory())
+        .protocolVersion(6)
+        .actions(Actions.DEF_ACTIONS)
+        .protocolSteps(ProtocolSteps.builder().build())
+        .create();
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    Assert.assertTrue(condition.getAsBoolean());
+  }
+}
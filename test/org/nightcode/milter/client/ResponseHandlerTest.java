@@ -15,8 +15,13 @@
 package org.nightcode.milter.client;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
@@ -45,15 +50,20 @@ import org.nightcode.milter.net.MilterChannelHandler;
 import org.nightcode.milter.net.SessionInitializer;
 import org.nightcode.milter.util.ExecutorUtils;
 import org.nightcode.milter.util.Log;
+import org.nightcode.milter.util.MilterPackets;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import static org.nightcode.milter.CommandCode.SMFIC_HELO;
 import static org.nightcode.milter.ResponseCode.SMFIR_CONTINUE;
+import static org.nightcode.milter.ResponseCode.SMFIR_PROGRESS;
+import static org.nightcode.milter.client.MilterPacketFactory.createEob;
 import static org.nightcode.milter.client.MilterPacketFactory.createEoh;
+import static org.nightcode.milter.client.MilterPacketFactory.createHeader;
 import static org.nightcode.milter.client.MilterPacketFactory.createHelo;
 import static org.nightcode.milter.client.MilterPacketFactory.createMacro;
+import static org.nightcode.milter.client.MilterPacketFactory.createQuit;
 import static org.nightcode.milter.util.MilterPackets.SMFIS_CONTINUE;
 
 public class ResponseHandlerTest {
@@ -230,4 +240,115 @@ public class ResponseHandlerTest {
     Assert.assertTrue(Pattern.compile("\\[.*] connection to Milter has been closed")
         .matcher(causeReference.get().getMessage()).find()); 
   }
+
+  @Test public void testPipelining() {
+    ResponseHandler handler = new ResponseHandler();
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+
+    List<String> actions = new ArrayList<>();
+    Function<String, MilterCallback> callback = name -> new MilterCallback() {
+      @Override public boolean isFinalAction(MilterPacket packet) {
+        return packet.command() != SMFIR_PROGRESS.code();
+      }
+
+      @Override public void onAction(MilterPacket packet) {
+        actions.add(name + ":" + (char) packet.command());
+      }
+
+      @Override public void onFailure(Throwable cause) {
+        actions.add(name + ":failure");
+      }
+    };
+
+    channel.writeOutbound(new MilterMessage(CommandCode.SMFIC_HEADER, new MilterPacket[] {createHeader("Subject", "Test")}, null));
+    channel.writeOutbound(new MilterMessage(CommandCode.SMFIC_EOH, new MilterPacket[] {createEoh()}, callback.apply("eoh")));
+    channel.writeOutbound(new MilterMessage(CommandCode.SMFIC_EOB, new MilterPacket[] {createEob()}, callback.apply("eob")));
+    channel.writeOutbound(new MilterMessage(CommandCode.SMFIC_QUIT, new MilterPacket[] {createQuit()}, callback.apply("quit")));
+    Assert.assertEquals(3, handler.inFlight());
+    Assert.assertEquals(4, channel.outboundMessages().size());
+
+    channel.writeInbound(SMFIS_CONTINUE);
+    channel.writeInbound(new MilterPacket(SMFIR_PROGRESS));
+    channel.writeInbound(MilterPackets.SMFIS_ACCEPT);
+    Assert.assertEquals(1, handler.inFlight());
+
+    channel.pipeline().fireChannelInactive();
+    Assert.assertEquals(0, handler.inFlight());
+    Assert.assertEquals(Arrays.asList("eoh:c", "eob:p", "eob:a", "quit:failure"), actions);
+  }
+
+  @Test public void testResponseTimeout() {
+    ResponseHandler handler = new ResponseHandler();
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+
+    List<String> actions = new ArrayList<>();
+    Function<String, MilterCallback> callback = name -> new MilterCallback() {
+      @Override public boolean isFinalAction(MilterPacket packet) {
+        return packet.command() != SMFIR_PROGRESS.code();
+      }
+
+      @Override public void onAction(MilterPacket packet) {
+        actions.add(name + ":" + (char) packet.command());
+      }
+
+      @Override public void onFailure(Throwable cause) {
+        actions.add(name + ":" + cause.getClass().getSimpleName());
+      }
+    };
+
+    long timeoutMs = CommandCode.SMFIC_EOB.responseTimeoutMs();
+    channel.writeOutbound(new MilterMessage(CommandCode.SMFIC_EOH, new MilterPacket[] {createEoh()}, callback.apply("eoh")));
+    channel.writeOutbound(new MilterMessage(CommandCode.SMFIC_EOB, new MilterPacket[] {createEob()}, callback.apply("eob")));
+
+    channel.advanceTimeBy(timeoutMs / 2, TimeUnit.MILLISECONDS);
+    channel.writeInbound(SMFIS_CONTINUE);
+    channel.writeInbound(new MilterPacket(SMFIR_PROGRESS));
+
+    channel.advanceTimeBy(timeoutMs / 2 + 1, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertEquals(Arrays.asList("eoh:c", "eob:p"), actions);
+
+    channel.advanceTimeBy(timeoutMs, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertEquals(Arrays.asList("eoh:c", "eob:p", "eob:ReadTimeoutException"), actions);
+    Assert.assertEquals(0, handler.inFlight());
+    Assert.assertFalse(channel.isActive());
+  }
+
+  @Test public void testMissingReplyClosesConnection() {
+    ResponseHandler handler = new ResponseHandler();
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+
+    List<String> actions = new ArrayList<>();
+    Function<String, MilterCallback> callback = name -> new MilterCallback() {
+      @Override public boolean isFinalAction(MilterPacket packet) {
+        return true;
+      }
+
+      @Override public void onAction(MilterPacket packet) {
+        actions.add(name + ":" + (char) packet.command());
+      }
+
+      @Override public void onFailure(Throwable cause) {
+        actions.add(name + ":" + cause.getClass().getSimpleName());
+      }
+    };
+
+    long timeoutMs = CommandCode.SMFIC_EOH.responseTimeoutMs();
+    channel.writeOutbound(new MilterMessage(CommandCode.SMFIC_EOH, new MilterPacket[] {createEoh()}, callback.apply("eoh")));
+    channel.advanceTimeBy(timeoutMs / 2, TimeUnit.MILLISECONDS);
+    channel.writeOutbound(new MilterMessage(CommandCode.SMFIC_EOB, new MilterPacket[] {createEob()}, callback.apply("eob")));
+    Assert.assertEquals(2, handler.inFlight());
+
+    channel.advanceTimeBy(timeoutMs / 2 + 1, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertEquals(Arrays.asList("eoh:ReadTimeoutException", "eob:ReadTimeoutException"), actions);
+    Assert.assertEquals(0, handler.inFlight());
+    Assert.assertFalse(channel.isActive());
+
+    ChannelFuture future = channel.writeOneOutbound(
+        new MilterMessage(CommandCode.SMFIC_EOB, new MilterPacket[] {createEob()}, callback.apply("next")));
+    Assert.assertFalse(future.isSuccess());
+    Assert.assertEquals(0, handler.inFlight());
+  }
 }
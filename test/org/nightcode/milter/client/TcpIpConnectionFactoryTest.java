@@ -17,6 +17,8 @@ package org.nightcode.milter.client;
 import java.net.InetSocketAddress;
 
 import io.netty.bootstrap.Bootstrap;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.ProtocolSteps;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -37,4 +39,44 @@ public class TcpIpConnectionFactoryTest {
     Bootstrap target = factory.create();
     Assert.assertNotNull(target);
   }
+
+  @Test public void testSharedEventLoopGroup() {
+    InetSocketAddress                    address = new InetSocketAddress("127.0.0.1", 0);
+    ConnectionFactory<InetSocketAddress> factory = new TcpIpConnectionFactory(address);
+
+    Bootstrap first  = factory.create();
+    Bootstrap second = factory.create();
+    Assert.assertNotSame(first, second);
+    Assert.assertSame(first.config().group(), second.config().group());
+    Assert.assertEquals(address, second.config().remoteAddress());
+
+    factory.close();
+    Assert.assertTrue(first.config().group().isShuttingDown());
+
+    factory.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCreateAfterClose() {
+    ConnectionFactory<InetSocketAddress> factory = new TcpIpConnectionFactory(new InetSocketAddress("127.0.0.1", 0));
+    factory.create();
+    factory.close();
+    factory.create();
+  }
+
+  @Test public void testSessionFactoryClosesConnectionFactory() {
+    ConnectionFactory<InetSocketAddress> factory = new TcpIpConnectionFactory(new InetSocketAddress("127.0.0.1", 0));
+    Bootstrap bootstrap = factory.create();
+
+    MilterSessionFactory sessionFactory = MilterSessionFactoryBuilder.<InetSocketAddress>builder()
+        .factory(factory)
+        .protocolVersion(6)
+        .actions(Actions.DEF_ACTIONS)
+        .protocolSteps(ProtocolSteps.DEF_PROTOCOL_STEPS)
+        .create();
+    sessionFactory.close();
+
+    Assert.assertTrue(bootstrap.config().group().isShuttingDown());
+    Assert.assertTrue(sessionFactory.createSession().isCompletedExceptionally());
+  }
 }
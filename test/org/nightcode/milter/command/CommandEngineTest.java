@@ -15,8 +15,13 @@
 package org.nightcode.milter.command;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.nightcode.milter.Actions;
+import org.nightcode.milter.HeaderBatch;
+import org.nightcode.milter.HeaderBatchHandler;
 import org.nightcode.milter.MilterContext;
 import org.nightcode.milter.MilterContextImpl;
 import org.nightcode.milter.MilterException;
@@ -51,6 +56,10 @@ public class CommandEngineTest {
 
   private static final Hexs HEX = Hexs.hex();
 
+  interface BatchMilterHandler extends MilterHandler, HeaderBatchHandler {
+    // mocked
+  }
+
   private MilterContext context(MilterHandler handler) {
     return new MilterContextImpl(handler, Actions.DEF_ACTIONS, ProtocolSteps.DEF_PROTOCOL_STEPS, null);
   }
@@ -267,6 +276,43 @@ public class CommandEngineTest {
     EasyMock.verify(handlerMock);
   }
 
+  @Test public void testSubmitHeaderBatch() throws MilterException {
+    BatchMilterHandler handlerMock = EasyMock.createMock(BatchMilterHandler.class);
+    MilterContext      context     = context(handlerMock);
+    context.setSessionProtocolSteps(ProtocolSteps.builder().noReplyForHeaders().build());
+
+    CommandEngine engine = CommandEngine.instance();
+
+    List<String> delivered = new ArrayList<>();
+    handlerMock.headers(EasyMock.eq(context), EasyMock.anyObject());
+    EasyMock.expectLastCall().andAnswer(() -> {
+      HeaderBatch batch = (HeaderBatch) EasyMock.getCurrentArguments()[1];
+      for (int i = 0; i < batch.size(); i++) {
+        delivered.add(batch.name(i) + ":" + batch.value(i));
+      }
+      delivered.add("|");
+      return null;
+    }).times(2);
+    handlerMock.macro(EasyMock.eq(context), EasyMock.eq((int) SMFIC_HEADER.code()), EasyMock.anyObject());
+    EasyMock.expectLastCall().once();
+    handlerMock.eoh(context);
+    EasyMock.expectLastCall().once();
+
+    EasyMock.replay(handlerMock);
+
+    engine.submit(context, new MilterPacket(SMFIC_HEADER, "From\0a@example.org\0".getBytes(StandardCharsets.UTF_8)));
+    engine.submit(context, new MilterPacket(SMFIC_MACRO, "Li\0Q1\0".getBytes(StandardCharsets.UTF_8)));
+    engine.submit(context, new MilterPacket(SMFIC_HEADER, "Subject\0test\0".getBytes(StandardCharsets.UTF_8)));
+    engine.flush(context);
+    engine.flush(context);
+    engine.submit(context, new MilterPacket(SMFIC_HEADER, "To\0b@example.org\0".getBytes(StandardCharsets.UTF_8)));
+    engine.submit(context, new MilterPacket(SMFIC_EOH));
+    Assert.assertEquals(SMFIC_EOH, context.getSessionStep());
+
+    EasyMock.verify(handlerMock);
+    Assert.assertEquals(Arrays.asList("From:a@example.org", "Subject:test", "|", "To:b@example.org", "|"), delivered);
+  }
+
   @Test public void testSubmitHelo() throws MilterException {
     MilterHandler handlerMock = EasyMock.createMock(MilterHandler.class);
     MilterContext context     = context(handlerMock);
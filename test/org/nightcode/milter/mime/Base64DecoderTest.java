@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Base64DecoderTest {
+
+  @Test public void testDecodeSplitChunks() {
+    byte[] data = new byte[10000];
+    new Random(42).nextBytes(data);
+
+    for (int tail = 0; tail < 3; tail++) {
+      byte[] expected = new byte[data.length - tail];
+      System.arraycopy(data, 0, expected, 0, expected.length);
+      byte[] encoded = Base64.getMimeEncoder().encode(expected);
+
+      Base64Decoder decoder = new Base64Decoder(16);
+      for (int chunkSize : new int[] {1, 2, 3, 5, 77, 4096, encoded.length}) {
+        Assert.assertArrayEquals(expected, decode(decoder, encoded, chunkSize));
+      }
+    }
+  }
+
+  @Test public void testStopAtPadding() {
+    byte[] encoded = "QUI=\r\nQUJD\r\n".getBytes(StandardCharsets.US_ASCII);
+    Assert.assertArrayEquals("AB".getBytes(StandardCharsets.US_ASCII), decode(new Base64Decoder(), encoded, 2));
+  }
+
+  @Test public void testUnpadded() {
+    byte[] encoded = "QUJDRA".getBytes(StandardCharsets.US_ASCII);
+    Assert.assertArrayEquals("ABCD".getBytes(StandardCharsets.US_ASCII), decode(new Base64Decoder(), encoded, 1));
+  }
+
+  static byte[] decode(TransferDecoder decoder, byte[] encoded, int chunkSize) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PartConsumer consumer = (data, offset, length) -> out.write(data, offset, length);
+    for (int i = 0; i < encoded.length; i += chunkSize) {
+      decoder.decode(encoded, i, Math.min(chunkSize, encoded.length - i), consumer);
+    }
+    decoder.finish(consumer);
+    return out.toByteArray();
+  }
+}
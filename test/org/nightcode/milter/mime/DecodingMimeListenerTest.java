@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DecodingMimeListenerTest {
+
+  private static final String BODY = "--b\r\n"
+      + "Content-Type: text/plain\r\n"
+      + "Content-Transfer-Encoding: quoted-printable\r\n"
+      + "\r\n"
+      + "a=3Db\r\n"
+      + "--b\r\n"
+      + "Content-Type: application/octet-stream; name=\"n.bin\"\r\n"
+      + "Content-Disposition: attachment; filename=\"f.bin\"\r\n"
+      + "Content-Transfer-Encoding: base64\r\n"
+      + "\r\n"
+      + "QUJD\r\n"
+      + "REVG\r\n"
+      + "--b\r\n"
+      + "\r\n"
+      + "plain\r\n"
+      + "--b--\r\n";
+
+  @Test public void testDecodeParts() {
+    List<String> parts = new ArrayList<>();
+    PartConsumerFactory factory = (depth, contentType, fileName) -> {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      return new PartConsumer() {
+        @Override public void data(byte[] data, int offset, int length) {
+          out.write(data, offset, length);
+        }
+
+        @Override public void end() {
+          parts.add(depth + " " + contentType + " " + fileName + " " + new String(out.toByteArray(), StandardCharsets.US_ASCII));
+        }
+      };
+    };
+
+    MimeTokenizer tokenizer = new MimeTokenizer(new DecodingMimeListener(factory));
+    tokenizer.header("Content-Type", "multipart/mixed; boundary=b");
+    byte[] bytes = BODY.getBytes(StandardCharsets.US_ASCII);
+    for (int i = 0; i < bytes.length; i += 3) {
+      tokenizer.write(bytes, i, Math.min(3, bytes.length - i));
+    }
+    tokenizer.close();
+
+    Assert.assertEquals(3, parts.size());
+    Assert.assertEquals("1 text/plain null a=b", parts.get(0));
+    Assert.assertEquals("1 application/octet-stream f.bin ABCDEF", parts.get(1));
+    Assert.assertEquals("1 text/plain null plain", parts.get(2));
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MimeHeadersTest {
+
+  @Test public void testMediaType() {
+    Assert.assertEquals("multipart/mixed", MimeHeaders.mediaType(" Multipart/Mixed ; boundary=abc"));
+    Assert.assertEquals("text/plain", MimeHeaders.mediaType("text/plain"));
+  }
+
+  @Test public void testParameter() {
+    String value = "attachment; size=10 ; FileName=\"a \\\"b\\\".pdf\"; empty";
+
+    Assert.assertEquals("a \"b\".pdf", MimeHeaders.parameter(value, "filename"));
+    Assert.assertEquals("10", MimeHeaders.parameter(value, "size"));
+    Assert.assertNull(MimeHeaders.parameter(value, "empty"));
+    Assert.assertNull(MimeHeaders.parameter("text/plain", "charset"));
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MimeTokenizerTest {
+
+  private static final String BODY = "preamble\r\n"
+      + "--outer\r\n"
+      + "Content-Type: text/plain; charset=utf-8\r\n"
+      + "\r\n"
+      + "hello\r\n"
+      + "--not-a-boundary\r\n"
+      + "\r\n"
+      + "--outer\r\n"
+      + "Content-Type: multipart/alternative;\r\n"
+      + " boundary=\"inner\"\r\n"
+      + "\r\n"
+      + "--inner\r\n"
+      + "Content-Type: application/pdf; name=\"a b.pdf\"\r\n"
+      + "Content-Transfer-Encoding: base64\r\n"
+      + "\r\n"
+      + "QUJD\r\n"
+      + "--inner--\r\n"
+      + "--outer--  \r\n"
+      + "epilogue\r\n";
+
+  private static final class RecordingListener implements MimeListener {
+    final List<String>  events = new ArrayList<>();
+    final StringBuilder data   = new StringBuilder();
+    long dataOffset = -1;
+
+    @Override public void partStart(int depth, long offset) {
+      flushData();
+      events.add("start " + depth + " @" + offset);
+    }
+
+    @Override public void partHeader(int depth, String name, String value, long offset) {
+      flushData();
+      events.add("header " + depth + " " + name + "=" + value + " @" + offset);
+    }
+
+    @Override public void partData(int depth, byte[] chunk, int offset, int length, long bodyOffset) {
+      if (dataOffset < 0) {
+        dataOffset = bodyOffset;
+        data.append(depth).append(' ');
+      } else {
+        Assert.assertEquals(dataOffset + data.length() - 2, bodyOffset);
+      }
+      data.append(new String(chunk, offset, length, StandardCharsets.ISO_8859_1));
+    }
+
+    @Override public void partEnd(int depth, long offset) {
+      flushData();
+      events.add("end " + depth + " @" + offset);
+    }
+
+    private void flushData() {
+      if (dataOffset >= 0) {
+        events.add("data " + data + " @" + dataOffset);
+        data.setLength(0);
+        dataOffset = -1;
+      }
+    }
+  }
+
+  @Test public void testMultipart() {
+    RecordingListener listener = tokenize(BODY, BODY.length());
+
+    List<String> expected = new ArrayList<>();
+    expected.add("start 0 @0");
+    expected.add("header 0 Content-Type=multipart/mixed; boundary=outer @0");
+    expected.add("start 1 @" + offsetAfter("--outer\r\n", 0));
+    expected.add("header 1 Content-Type=text/plain; charset=utf-8 @" + offsetAfter("--outer\r\n", 0));
+    expected.add("data 1 hello\r\n--not-a-boundary\r\n @" + offsetAfter("utf-8\r\n\r\n", 0));
+    expected.add("end 1 @" + (BODY.indexOf("--outer", offsetAfter("hello", 0)) - 2));
+    int second = offsetAfter("--outer\r\n", BODY.indexOf("hello"));
+    expected.add("start 1 @" + second);
+    expected.add("header 1 Content-Type=multipart/alternative; boundary=\"inner\" @" + second);
+    int third = offsetAfter("--inner\r\n", 0);
+    expected.add("start 2 @" + third);
+    expected.add("header 2 Content-Type=application/pdf; name=\"a b.pdf\" @" + third);
+    expected.add("header 2 Content-Transfer-Encoding=base64 @" + BODY.indexOf("Content-Transfer-Encoding"));
+    expected.add("data 2 QUJD @" + BODY.indexOf("QUJD"));
+    expected.add("end 2 @" + (BODY.indexOf("QUJD") + 4));
+    expected.add("end 1 @" + (BODY.indexOf("--outer--") - 2));
+    expected.add("end 0 @" + BODY.length());
+
+    Assert.assertEquals(expected, listener.events);
+  }
+
+  @Test public void testSplitChunks() {
+    List<String> expected = tokenize(BODY, BODY.length()).events;
+    for (int chunkSize = 1; chunkSize < 40; chunkSize++) {
+      Assert.assertEquals("chunk size " + chunkSize, expected, tokenize(BODY, chunkSize).events);
+    }
+  }
+
+  @Test public void testSinglePart() {
+    MimeTokenizer     tokenizer;
+    RecordingListener listener = new RecordingListener();
+    tokenizer = new MimeTokenizer(listener);
+    tokenizer.header("Subject", "test");
+    tokenizer.write("line1\r".getBytes(StandardCharsets.US_ASCII));
+    tokenizer.write("\n--line2\r\n".getBytes(StandardCharsets.US_ASCII));
+    tokenizer.close();
+
+    Assert.assertEquals("data 0 line1\r\n--line2\r\n @0", listener.events.get(2));
+    Assert.assertEquals("end 0 @16", listener.events.get(3));
+  }
+
+  @Test public void testReset() {
+    RecordingListener listener  = new RecordingListener();
+    MimeTokenizer     tokenizer = new MimeTokenizer(listener);
+    tokenizer.header("Content-Type", "multipart/mixed; boundary=outer");
+    tokenizer.write("--outer\r\nX: y".getBytes(StandardCharsets.US_ASCII));
+    tokenizer.close();
+
+    Assert.assertEquals("end 1 @13", listener.events.get(4));
+    Assert.assertEquals("end 0 @13", listener.events.get(5));
+
+    listener.events.clear();
+    tokenizer.reset();
+    tokenizer.write("abc".getBytes(StandardCharsets.US_ASCII));
+    tokenizer.close();
+
+    Assert.assertEquals("[start 0 @0, data 0 abc @0, end 0 @3]", listener.events.toString());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testHeaderAfterBody() {
+    MimeTokenizer tokenizer = new MimeTokenizer(new RecordingListener());
+    tokenizer.write(new byte[] {'a'});
+    tokenizer.header("Subject", "test");
+  }
+
+  private static int offsetAfter(String str, int from) {
+    return BODY.indexOf(str, from) + str.length();
+  }
+
+  private static RecordingListener tokenize(String body, int chunkSize) {
+    RecordingListener listener  = new RecordingListener();
+    MimeTokenizer     tokenizer = new MimeTokenizer(listener);
+    tokenizer.header("Content-Type", "multipart/mixed; boundary=outer");
+
+    byte[] bytes = body.getBytes(StandardCharsets.US_ASCII);
+    for (int i = 0; i < bytes.length; i += chunkSize) {
+      tokenizer.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+    }
+    tokenizer.close();
+    return listener;
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.mime;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QuotedPrintableDecoderTest {
+
+  @Test public void testDecode() {
+    String encoded = "Caf=C3=A9 au lait  \r\n"
+        + "soft =\r\n"
+        + "break=3D=3d\r\n"
+        + "malformed =ZZ and =4";
+    String expected = "Café au lait\r\n"
+        + "soft break==\r\n"
+        + "malformed =ZZ and =4";
+
+    byte[] bytes = encoded.getBytes(StandardCharsets.US_ASCII);
+    QuotedPrintableDecoder decoder = new QuotedPrintableDecoder(4);
+    for (int chunkSize = 1; chunkSize <= bytes.length; chunkSize++) {
+      byte[] decoded = Base64DecoderTest.decode(decoder, bytes, chunkSize);
+      Assert.assertEquals("chunk size " + chunkSize, expected, new String(decoded, StandardCharsets.UTF_8));
+    }
+  }
+}
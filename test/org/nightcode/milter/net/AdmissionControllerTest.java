@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.ByteArrays;
+import org.nightcode.milter.util.MilterPackets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.nightcode.milter.CommandCode.SMFIC_CONNECT;
+import static org.nightcode.milter.CommandCode.SMFIC_HELO;
+import static org.nightcode.milter.CommandCode.SMFIC_MAIL;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+import static org.nightcode.milter.CommandCode.SMFIC_QUIT;
+
+public class AdmissionControllerTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test public void testAimd() {
+    AdmissionController controller = AdmissionController.builder()
+        .targetDelay(10)
+        .interval(100)
+        .limits(2, 10)
+        .decreaseFactor(0.5)
+        .build();
+    Assert.assertEquals(10, controller.limit());
+
+    for (int i = 0; i < 8; i++) {
+      Assert.assertTrue(controller.tryAcquire());
+    }
+
+    long now = System.nanoTime();
+    controller.onLatency(50 * MS, now);
+    controller.onLatency(20 * MS, now + 50 * MS);
+    Assert.assertEquals(10, controller.limit());
+    controller.onLatency(30 * MS, now + 150 * MS);
+    Assert.assertEquals(4, controller.limit());
+    Assert.assertFalse(controller.tryAcquire());
+
+    controller.onLatency(30 * MS, now + 300 * MS);
+    Assert.assertEquals(2, controller.limit());
+
+    controller.onLatency(5 * MS, now + 350 * MS);
+    Assert.assertEquals(2, controller.limit());
+    controller.onLatency(50 * MS, now + 400 * MS);
+    Assert.assertEquals(3, controller.limit());
+  }
+
+  @Test public void testShedding() {
+    AdmissionController controller = AdmissionController.builder()
+        .limits(1, 1)
+        .verdict(MilterPackets.SMFIS_ACCEPT)
+        .build();
+
+    EmbeddedChannel first  = new EmbeddedChannel(controller);
+    EmbeddedChannel second = new EmbeddedChannel(controller);
+
+    Assert.assertTrue(first.writeInbound(new MilterPacket(SMFIC_CONNECT)));
+    Assert.assertNotNull(first.readInbound());
+    Assert.assertEquals(1, controller.inFlight());
+
+    Assert.assertFalse(second.writeInbound(new MilterPacket(SMFIC_CONNECT)));
+    Assert.assertEquals(MilterPackets.SMFIS_ACCEPT, second.readOutbound());
+
+    first.writeInbound(new MilterPacket(SMFIC_QUIT));
+    Assert.assertEquals(0, controller.inFlight());
+
+    Assert.assertTrue(second.writeInbound(new MilterPacket(SMFIC_CONNECT)));
+    Assert.assertEquals(1, controller.inFlight());
+    second.close();
+    Assert.assertEquals(0, controller.inFlight());
+
+    first.finishAndReleaseAll();
+    second.finishAndReleaseAll();
+  }
+
+  @Test public void testNoReplyForConnect() {
+    AdmissionController controller = AdmissionController.builder()
+        .limits(1, 1)
+        .build();
+
+    EmbeddedChannel first  = new EmbeddedChannel(controller);
+    EmbeddedChannel second = new EmbeddedChannel(controller);
+
+    byte[] optneg = new byte[12];
+    ByteArrays.intToByteArray(ProtocolSteps.NO_REPLY_FOR_CONNECT | ProtocolSteps.NO_REPLY_FOR_HELO, optneg, 8);
+    for (EmbeddedChannel channel : new EmbeddedChannel[] {first, second}) {
+      channel.writeOutbound(new MilterPacket(SMFIC_OPTNEG, optneg));
+      channel.readOutbound();
+      Assert.assertTrue(channel.writeInbound(new MilterPacket(SMFIC_CONNECT), new MilterPacket(SMFIC_HELO)));
+      channel.releaseInbound();
+    }
+    Assert.assertEquals(0, controller.inFlight());
+
+    Assert.assertTrue(first.writeInbound(new MilterPacket(SMFIC_MAIL)));
+    Assert.assertEquals(1, controller.inFlight());
+
+    Assert.assertFalse(second.writeInbound(new MilterPacket(SMFIC_MAIL)));
+    Assert.assertEquals(MilterPackets.SMFIS_TEMPFAIL, second.readOutbound());
+
+    first.close();
+    Assert.assertEquals(0, controller.inFlight());
+    Assert.assertTrue(second.writeInbound(new MilterPacket(SMFIC_MAIL)));
+    Assert.assertEquals(1, controller.inFlight());
+
+    first.finishAndReleaseAll();
+    second.finishAndReleaseAll();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidVerdict() {
+    AdmissionController.builder().verdict(MilterPackets.SMFIS_REJECT).build();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.MilterPackets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.nightcode.milter.CommandCode.SMFIC_CONNECT;
+import static org.nightcode.milter.CommandCode.SMFIC_HELO;
+import static org.nightcode.milter.CommandCode.SMFIC_MACRO;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+
+public class ConnectionLimiterTest {
+
+  @Test public void testTotalLimitClose() {
+    ConnectionLimiter limiter = ConnectionLimiter.builder()
+        .maxSessions(2)
+        .rejection(ConnectionLimiter.Rejection.CLOSE)
+        .build();
+
+    EmbeddedChannel first  = new EmbeddedChannel(limiter);
+    EmbeddedChannel second = new EmbeddedChannel(limiter);
+    EmbeddedChannel third  = new EmbeddedChannel(limiter);
+    Assert.assertTrue(first.isActive());
+    Assert.assertTrue(second.isActive());
+    Assert.assertFalse(third.isActive());
+    Assert.assertEquals(2, limiter.sessions());
+
+    first.close();
+    Assert.assertEquals(1, limiter.sessions());
+    third.close();
+    Assert.assertEquals(1, limiter.sessions());
+
+    EmbeddedChannel fourth = new EmbeddedChannel(limiter);
+    Assert.assertTrue(fourth.isActive());
+    Assert.assertEquals(2, limiter.sessions());
+    Assert.assertEquals(2, limiter.peerSessions(fourth));
+  }
+
+  @Test public void testPerPeerLimitTempfail() {
+    ConnectionLimiter limiter = ConnectionLimiter.builder()
+        .maxSessions(10)
+        .maxSessionsPerPeer(1)
+        .stripes(16)
+        .build();
+
+    EmbeddedChannel first  = new EmbeddedChannel(limiter);
+    EmbeddedChannel second = new EmbeddedChannel(limiter);
+    Assert.assertTrue(second.isActive());
+    Assert.assertEquals(1, limiter.sessions());
+    Assert.assertEquals(1, limiter.peerSessions(second));
+
+    Assert.assertTrue(first.writeInbound(new MilterPacket(SMFIC_OPTNEG)));
+    Assert.assertNotNull(first.readInbound());
+
+    byte[] optneg = {0, 0, 0, 6, 0, 0, 0, 0x1F, 0, 0x1F, 0xF, (byte) 0xFF};
+    Assert.assertFalse(second.writeInbound(new MilterPacket(SMFIC_OPTNEG, optneg)));
+    MilterPacket reply = second.readOutbound();
+    Assert.assertEquals(SMFIC_OPTNEG.code(), reply.command());
+    Assert.assertArrayEquals(new byte[] {0, 0, 0, 6, 0, 0, 0, 0, 0, 0, 0, 0}, reply.payload());
+    Assert.assertTrue(second.isActive());
+
+    Assert.assertFalse(second.writeInbound(new MilterPacket(SMFIC_MACRO), new MilterPacket(SMFIC_CONNECT), new MilterPacket(SMFIC_HELO)));
+    Assert.assertEquals(MilterPackets.SMFIS_TEMPFAIL, second.readOutbound());
+    Assert.assertNull(second.readOutbound());
+    Assert.assertFalse(second.isActive());
+
+    first.close();
+    Assert.assertEquals(0, limiter.sessions());
+    Assert.assertEquals(0, limiter.peerSessions(first));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLimit() {
+    ConnectionLimiter.builder().maxSessionsPerPeer(0).build();
+  }
+}
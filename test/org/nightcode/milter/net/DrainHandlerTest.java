@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import io.netty.channel.DefaultChannelId;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.ByteArrays;
+import org.nightcode.milter.util.MilterPackets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.nightcode.milter.CommandCode.SMFIC_ABORT;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
+import static org.nightcode.milter.CommandCode.SMFIC_MAIL;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+import static org.nightcode.milter.CommandCode.SMFIC_RCPT;
+
+public class DrainHandlerTest {
+
+  @Test public void testMessageTracking() {
+    DrainHandler    handler = new DrainHandler();
+    EmbeddedChannel first   = new EmbeddedChannel(DefaultChannelId.newInstance(), handler);
+    EmbeddedChannel second  = new EmbeddedChannel(DefaultChannelId.newInstance(), handler);
+    Assert.assertEquals(2, handler.sessions());
+    Assert.assertEquals(0, handler.sessionsInMessage());
+
+    first.writeInbound(new MilterPacket(SMFIC_MAIL));
+    second.writeInbound(new MilterPacket(SMFIC_MAIL));
+    Assert.assertEquals(2, handler.sessionsInMessage());
+
+    first.writeInbound(new MilterPacket(SMFIC_EOB));
+    Assert.assertEquals(2, handler.sessionsInMessage());
+    first.writeOutbound(MilterPackets.SMFIS_ACCEPT);
+    Assert.assertEquals(1, handler.sessionsInMessage());
+
+    second.writeInbound(new MilterPacket(SMFIC_ABORT));
+    Assert.assertEquals(0, handler.sessionsInMessage());
+
+    second.close();
+    Assert.assertEquals(1, handler.sessions());
+  }
+
+  @Test public void testTempfailWhileDraining() {
+    DrainHandler    handler = new DrainHandler();
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+
+    handler.startDraining();
+    Assert.assertFalse(channel.writeInbound(new MilterPacket(SMFIC_MAIL)));
+    Assert.assertEquals(MilterPackets.SMFIS_TEMPFAIL, channel.readOutbound());
+    Assert.assertEquals(0, handler.sessionsInMessage());
+    Assert.assertTrue(channel.isActive());
+  }
+
+  @Test public void testDrainWithoutMail() {
+    DrainHandler    handler = new DrainHandler();
+    EmbeddedChannel first   = new EmbeddedChannel(DefaultChannelId.newInstance(), handler);
+    EmbeddedChannel second  = new EmbeddedChannel(DefaultChannelId.newInstance(), handler);
+    EmbeddedChannel third   = new EmbeddedChannel(DefaultChannelId.newInstance(), handler);
+    optneg(first, ProtocolSteps.NO_MAIL_FROM);
+    optneg(second, ProtocolSteps.NO_MAIL_FROM);
+    optneg(third, ProtocolSteps.NO_MAIL_FROM | ProtocolSteps.NO_RECIPIENTS | ProtocolSteps.NO_REPLY_FOR_HEADERS);
+
+    first.writeInbound(new MilterPacket(SMFIC_RCPT));
+    Assert.assertEquals(1, handler.sessionsInMessage());
+
+    handler.startDraining();
+    first.writeInbound(new MilterPacket(SMFIC_EOB));
+    first.writeOutbound(MilterPackets.SMFIS_ACCEPT);
+    Assert.assertEquals(0, handler.sessionsInMessage());
+
+    Assert.assertFalse(second.writeInbound(new MilterPacket(SMFIC_RCPT)));
+    Assert.assertEquals(MilterPackets.SMFIS_TEMPFAIL, second.readOutbound());
+    Assert.assertTrue(second.isActive());
+
+    Assert.assertFalse(third.writeInbound(new MilterPacket(SMFIC_HEADER)));
+    Assert.assertNull(third.readOutbound());
+    Assert.assertFalse(third.isActive());
+    Assert.assertEquals(0, handler.sessionsInMessage());
+  }
+
+  private static void optneg(EmbeddedChannel channel, int steps) {
+    byte[] payload = new byte[12];
+    payload[3] = MilterContext.PROTOCOL_VERSION;
+    ByteArrays.intToByteArray(steps, payload, 8);
+    channel.writeOutbound(new MilterPacket(SMFIC_OPTNEG, payload));
+    channel.readOutbound();
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.unix.DomainSocketAddress;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.client.ConnectionFactory;
+import org.nightcode.milter.client.MilterSession;
+import org.nightcode.milter.client.MilterSessionFactory;
+import org.nightcode.milter.client.MilterSessionFactoryBuilder;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.nightcode.milter.ProtocolFamily.SMFIA_INET;
+
+public class ListenerHandoffTest {
+
+  private static final DomainSocketAddress CONTROL_ADDRESS = new DomainSocketAddress("target/jmilter-handoff.sock");
+
+  private static final class CountingHandler extends AbstractMilterHandler {
+    private final AtomicInteger connects = new AtomicInteger();
+
+    CountingHandler() {
+      super(Actions.DEF_ACTIONS, ProtocolSteps.builder().build());
+    }
+
+    @Override public void connect(MilterContext context, String hostname, int family, int port, @Nullable SocketAddress address)
+        throws MilterException {
+      connects.incrementAndGet();
+      super.connect(context, hostname, family, port, address);
+    }
+
+    @Override public void quit(MilterContext context) {
+      // do nothing
+    }
+  }
+
+  @Before public void setUp() {
+    Assume.assumeTrue(Epoll.isAvailable());
+  }
+
+  @After public void tearDown() throws Exception {
+    Files.deleteIfExists(Paths.get(CONTROL_ADDRESS.path()));
+  }
+
+  @Test public void testHandoff() throws Exception {
+    InetSocketAddress address;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      address = new InetSocketAddress("127.0.0.1", socket.getLocalPort());
+    }
+
+    CountingHandler oldHandler = new CountingHandler();
+    CountingHandler newHandler = new CountingHandler();
+
+    MilterSessionFactoryBuilder<InetSocketAddress> builder = MilterSessionFactoryBuilder.<InetSocketAddress>builder()
+        .factory(ConnectionFactory.tcpIpFactory(address))
+        .protocolVersion(6)
+        .actions(Actions.DEF_ACTIONS)
+        .protocolSteps(ProtocolSteps.builder().build());
+
+    List<String> envfrom = new ArrayList<>();
+    envfrom.add("<support@example.org>");
+
+    try (MilterGatewayManager<InetSocketAddress> oldManager
+             = new MilterGatewayManager<>(ServerFactory.tcpIpFactory(address), oldHandler);
+         MilterSessionFactory factory = builder.create()) {
+      oldManager.bind().get(5, TimeUnit.SECONDS);
+
+      MilterSession inMessage = factory.createSession()
+          .thenCompose(s -> s.connect("[144.229.210.94]", SMFIA_INET, 62293, "144.229.210.94"))
+          .thenCompose(r -> r.session().envfrom(envfrom))
+          .get(5, TimeUnit.SECONDS)
+          .session();
+      Assert.assertEquals(1, oldHandler.connects.get());
+
+      CompletableFuture<DrainResult> drain = ListenerHandoff.offer(oldManager, CONTROL_ADDRESS, Duration.ofSeconds(5));
+      try (MilterGatewayManager<InetSocketAddress> newManager
+               = ListenerHandoff.takeOver(CONTROL_ADDRESS, sf -> new MilterGatewayManager<>(sf, newHandler), Duration.ofSeconds(5))) {
+        Assert.assertEquals(MilterGatewayManager.RUNNING, newManager.getState());
+        Assert.assertEquals(address.getPort(), ((InetSocketAddress) newManager.serverChannel().localAddress()).getPort());
+
+        while (oldManager.getState() == MilterGatewayManager.RUNNING) {
+          Thread.sleep(1);
+        }
+        inMessage.eob().get(5, TimeUnit.SECONDS);
+
+        DrainResult result = drain.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, result.drained());
+        Assert.assertEquals(0, result.forced());
+        Assert.assertEquals(MilterGatewayManager.CLOSED, oldManager.getState());
+
+        factory.createSession()
+            .thenCompose(s -> s.connect("[144.229.210.94]", SMFIA_INET, 62293, "144.229.210.94"))
+            .thenCompose(r -> r.session().quit())
+            .get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, oldHandler.connects.get());
+        Assert.assertEquals(1, newHandler.connects.get());
+      }
+    }
+  }
+}
@@ -28,6 +28,16 @@ public class LocalServerFactory implements ServerFactory<LocalAddress> {
 
   private static final LocalAddress TEST_ADDRESS = new LocalAddress("test.id");
 
+  private final LocalAddress address;
+
+  public LocalServerFactory() {
+    this(TEST_ADDRESS);
+  }
+
+  public LocalServerFactory(LocalAddress address) {
+    this.address = address;
+  }
+
   @Override public ServerBootstrap create() {
     ServerBootstrap serverBootstrap = new ServerBootstrap();
     serverBootstrap
@@ -35,11 +45,11 @@ public class LocalServerFactory implements ServerFactory<LocalAddress> {
             , new MultiThreadIoEventLoopGroup(1, LocalIoHandler.newFactory()))
         .channel(LocalServerChannel.class)
         .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
-        .localAddress(TEST_ADDRESS);
+        .localAddress(address);
     return serverBootstrap;
   }
 
   @Override public LocalAddress localAddress() {
-    return TEST_ADDRESS;
+    return address;
   }
 }
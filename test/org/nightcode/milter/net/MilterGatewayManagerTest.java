@@ -20,9 +20,11 @@ import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import io.netty.channel.local.LocalAddress;
@@ -32,9 +34,11 @@ import org.nightcode.milter.MilterContext;
 import org.nightcode.milter.MilterHandler;
 import org.nightcode.milter.MilterOptions;
 import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.ResponseCode;
 import org.nightcode.milter.client.ConnectionFactory;
 import org.nightcode.milter.client.LocalConnectionFactory;
 import org.nightcode.milter.client.MilterSessionFactory;
+import org.nightcode.milter.client.MilterSession;
 import org.nightcode.milter.client.MilterSessionFactoryBuilder;
 import org.nightcode.milter.util.NetUtils;
 import org.nightcode.milter.util.Properties;
@@ -124,6 +128,61 @@ public class MilterGatewayManagerTest {
     }
   }
 
+  @Test public void testDrain() throws Exception {
+    MilterHandler milterHandler = new AbstractMilterHandler(Actions.DEF_ACTIONS, ProtocolSteps.builder().build()) {
+      @Override public void quit(MilterContext context) {
+        // do nothing
+      }
+    };
+
+    try (MilterGatewayManager<LocalAddress> gatewayManager = new MilterGatewayManager<>(new LocalServerFactory(), milterHandler)) {
+      gatewayManager.bind().get(5, TimeUnit.SECONDS);
+
+      MilterSessionFactoryBuilder<LocalAddress> builder = MilterSessionFactoryBuilder.<LocalAddress>builder()
+          .factory(new LocalConnectionFactory())
+          .protocolVersion(6)
+          .actions(Actions.DEF_ACTIONS)
+          .protocolSteps(ProtocolSteps.builder().build());
+
+      try (MilterSessionFactory factory = builder.create()) {
+        List<String> envfrom = new ArrayList<>();
+        envfrom.add("<support@example.org>");
+
+        MilterSession inMessage = factory.createSession()
+            .thenCompose(s -> s.connect("[144.229.210.94]", SMFIA_INET, 62293, "144.229.210.94"))
+            .thenCompose(r -> r.session().envfrom(envfrom))
+            .get(500, TimeUnit.MILLISECONDS)
+            .session();
+        MilterSession idle = factory.createSession()
+            .thenCompose(s -> s.connect("[144.229.210.94]", SMFIA_INET, 62293, "144.229.210.94"))
+            .get(500, TimeUnit.MILLISECONDS)
+            .session();
+
+        CompletableFuture<DrainResult> drain = CompletableFuture.supplyAsync(() -> {
+          try {
+            return gatewayManager.drain(Duration.ofSeconds(5));
+          } catch (InterruptedException ex) {
+            throw new IllegalStateException(ex);
+          }
+        });
+        while (gatewayManager.getState() != MilterGatewayManager.DRAINING) {
+          Thread.sleep(1);
+        }
+
+        Assert.assertEquals(ResponseCode.SMFIR_TEMPFAIL.code(),
+            idle.envfrom(envfrom).get(500, TimeUnit.MILLISECONDS).lastPacket().command());
+        Assert.assertFalse(drain.isDone());
+
+        inMessage.eob().get(500, TimeUnit.MILLISECONDS);
+
+        DrainResult result = drain.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(2, result.drained());
+        Assert.assertEquals(0, result.forced());
+        Assert.assertEquals(MilterGatewayManager.CLOSED, gatewayManager.getState());
+      }
+    }
+  }
+
   @Test public void testFailStopMode() throws Exception {
     Field field = Properties.class.getDeclaredField("OPTIONS");
     field.setAccessible(true);
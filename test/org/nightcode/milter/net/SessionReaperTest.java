@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.Hexs;
+import org.nightcode.milter.util.Metrics;
+import org.nightcode.milter.util.MilterPackets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_MAIL;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+import static org.nightcode.milter.CommandCode.SMFIC_RCPT;
+
+public class SessionReaperTest {
+
+  private static final class RecordingHandler extends AbstractMilterHandler {
+    private boolean aborted;
+    private boolean quit;
+
+    RecordingHandler() {
+      super(Actions.DEF_ACTIONS, ProtocolSteps.builder().build());
+    }
+
+    @Override public void abort(MilterContext context, @Nullable MilterPacket packet) {
+      aborted = true;
+    }
+
+    @Override public void quit(MilterContext context) {
+      quit = true;
+    }
+  }
+
+  private static final class EventRecorder extends ChannelInboundHandlerAdapter {
+    private Object event;
+
+    @Override public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+      event = evt;
+    }
+  }
+
+  @Test public void testReapBeforeNegotiation() {
+    SessionReaper reaper = SessionReaper.builder()
+        .beforeNegotiation(100)
+        .build();
+    EventRecorder   recorder = new EventRecorder();
+    EmbeddedChannel channel  = new EmbeddedChannel(reaper, recorder);
+
+    channel.advanceTimeBy(60, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertTrue(channel.isActive());
+
+    channel.advanceTimeBy(60, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertFalse(channel.isActive());
+    Assert.assertEquals(SessionReaper.IdleSessionEvent.BEFORE_NEGOTIATION, recorder.event);
+  }
+
+  @Test public void testReapInMessage() {
+    SessionReaper reaper = SessionReaper.builder()
+        .inMessage(100)
+        .betweenMessages(1_000)
+        .build();
+    RecordingHandler handler = new RecordingHandler();
+    EmbeddedChannel  channel = new EmbeddedChannel(reaper, new MilterChannelHandler(handler));
+    long reaped = Metrics.counter("jmilter.reaper.reapedSessions").sum();
+
+    channel.writeInbound(new MilterPacket(SMFIC_OPTNEG, Hexs.hex().toByteArray("00000006000001ff001fffff")));
+    channel.writeInbound(new MilterPacket(SMFIC_MAIL, "<user@example.com>\0".getBytes(StandardCharsets.US_ASCII)));
+    channel.advanceTimeBy(80, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    channel.writeInbound(new MilterPacket(SMFIC_MAIL, "<user@example.com>\0".getBytes(StandardCharsets.US_ASCII)));
+    channel.advanceTimeBy(80, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertTrue(channel.isActive());
+
+    channel.advanceTimeBy(30, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertFalse(channel.isActive());
+    Assert.assertTrue(handler.aborted);
+    Assert.assertTrue(handler.quit);
+    Assert.assertEquals(reaped + 1, Metrics.counter("jmilter.reaper.reapedSessions").sum());
+  }
+
+  @Test public void testBetweenMessages() {
+    SessionReaper reaper = SessionReaper.builder()
+        .inMessage(100)
+        .build();
+    EmbeddedChannel channel = new EmbeddedChannel(reaper);
+
+    channel.writeInbound(new MilterPacket(SMFIC_MAIL));
+    channel.writeInbound(new MilterPacket(SMFIC_EOB));
+    channel.writeOutbound(MilterPackets.SMFIS_CONTINUE);
+    channel.advanceTimeBy(1, TimeUnit.HOURS);
+    channel.runScheduledPendingTasks();
+    Assert.assertTrue(channel.isActive());
+  }
+
+  @Test public void testReapInMessageWithoutMail() {
+    SessionReaper reaper = SessionReaper.builder()
+        .inMessage(100)
+        .betweenMessages(1_000)
+        .build();
+    EventRecorder   recorder = new EventRecorder();
+    EmbeddedChannel channel  = new EmbeddedChannel(reaper, recorder);
+
+    channel.writeInbound(new MilterPacket(SMFIC_OPTNEG));
+    channel.writeInbound(new MilterPacket(SMFIC_RCPT));
+    channel.advanceTimeBy(110, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertFalse(channel.isActive());
+    Assert.assertEquals(SessionReaper.IdleSessionEvent.IN_MESSAGE, recorder.event);
+    channel.finishAndReleaseAll();
+  }
+
+  @Test public void testSlowEomReply() {
+    SessionReaper reaper = SessionReaper.builder()
+        .inMessage(1_000)
+        .betweenMessages(100)
+        .build();
+    EventRecorder   recorder = new EventRecorder();
+    EmbeddedChannel channel  = new EmbeddedChannel(reaper, recorder);
+
+    channel.writeInbound(new MilterPacket(SMFIC_MAIL));
+    channel.writeInbound(new MilterPacket(SMFIC_EOB));
+    channel.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertTrue(channel.isActive());
+
+    channel.writeOutbound(MilterPacket.builder().command(ResponseCode.SMFIR_ADDHEADER).payload(new byte[] {'X', 0, 'y', 0}).build());
+    channel.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertTrue(channel.isActive());
+
+    channel.writeOutbound(MilterPackets.SMFIS_ACCEPT);
+    channel.advanceTimeBy(110, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertFalse(channel.isActive());
+    Assert.assertEquals(SessionReaper.IdleSessionEvent.BETWEEN_MESSAGES, recorder.event);
+    channel.finishAndReleaseAll();
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.net;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.StageDeadlines;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.util.Metrics;
+import org.nightcode.milter.util.MilterPackets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
+import static org.nightcode.milter.CommandCode.SMFIC_OPTNEG;
+
+public class StageDeadlineTrackerTest {
+
+  private static final class AsyncHandler extends AbstractMilterHandler {
+    private final boolean registerWork;
+
+    private MilterContext                   context;
+    private CompletableFuture<MilterPacket> work;
+
+    AsyncHandler() {
+      this(true);
+    }
+
+    AsyncHandler(boolean registerWork) {
+      super(Actions.DEF_ACTIONS, ProtocolSteps.builder().build());
+      this.registerWork = registerWork;
+    }
+
+    @Override public void eom(MilterContext context, @Nullable byte[] bodyChunk) {
+      this.context = context;
+      this.work    = new CompletableFuture<>();
+      if (registerWork) {
+        context.addPendingWork(work);
+      }
+    }
+
+    @Override public void quit(MilterContext context) {
+      // do nothing
+    }
+  }
+
+  @Test public void testFallbackAfterDeadline() throws Exception {
+    AsyncHandler handler = new AsyncHandler();
+    StageDeadlines deadlines = StageDeadlines.builder()
+        .deadline(SMFIC_EOB, 100)
+        .fallback(MilterPackets.SMFIS_CONTINUE)
+        .build();
+    EmbeddedChannel channel = new EmbeddedChannel(new MilterChannelHandler(handler, deadlines));
+    long misses = Metrics.counter("jmilter.stage.deadlineMisses").sum();
+
+    channel.writeInbound(new MilterPacket(SMFIC_EOB));
+    channel.advanceTimeBy(50, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertNull(channel.readOutbound());
+
+    channel.advanceTimeBy(60, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertEquals(MilterPackets.SMFIS_CONTINUE, channel.readOutbound());
+    Assert.assertTrue(handler.work.isCancelled());
+    Assert.assertEquals(misses + 1, Metrics.counter("jmilter.stage.deadlineMisses").sum());
+
+    handler.context.sendPacket(MilterPackets.SMFIS_REJECT);
+    channel.runPendingTasks();
+    Assert.assertNull(channel.readOutbound());
+
+    channel.writeInbound(new MilterPacket(SMFIC_EOB));
+    handler.context.sendPacket(MilterPackets.SMFIS_REJECT);
+    Assert.assertEquals(MilterPackets.SMFIS_REJECT, channel.readOutbound());
+    channel.advanceTimeBy(200, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertNull(channel.readOutbound());
+    Assert.assertEquals(misses + 1, Metrics.counter("jmilter.stage.deadlineMisses").sum());
+
+    channel.finishAndReleaseAll();
+  }
+
+  @Test public void testLateReplyAfterNextStage() throws Exception {
+    AsyncHandler handler = new AsyncHandler(false);
+    StageDeadlines deadlines = StageDeadlines.builder()
+        .deadline(SMFIC_EOB, 100)
+        .fallback(MilterPackets.SMFIS_CONTINUE)
+        .build();
+    EmbeddedChannel channel = new EmbeddedChannel(new MilterChannelHandler(handler, deadlines));
+    channel.writeInbound(new MilterPacket(SMFIC_OPTNEG, new byte[] {0, 0, 0, 6, 0, 0, 1, -1, 0, 0, 0, 0}));
+    Assert.assertEquals(SMFIC_OPTNEG.code(), ((MilterPacket) channel.readOutbound()).command());
+
+    channel.writeInbound(new MilterPacket(SMFIC_EOB));
+    channel.advanceTimeBy(110, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertEquals(MilterPackets.SMFIS_CONTINUE, channel.readOutbound());
+
+    channel.writeInbound(MilterPacket.builder().command(SMFIC_HEADER).payload(new byte[] {'X', 0, 'y', 0}).build());
+    Assert.assertEquals(MilterPackets.SMFIS_CONTINUE, channel.readOutbound());
+
+    channel.writeInbound(new MilterPacket(SMFIC_EOB));
+    handler.context.sendPacket(MilterPacket.builder().command(ResponseCode.SMFIR_ADDHEADER).payload(new byte[] {'X', 0, 'y', 0}).build());
+    handler.context.sendPacket(MilterPackets.SMFIS_REJECT);
+    Assert.assertNull(channel.readOutbound());
+
+    handler.context.sendPacket(MilterPackets.SMFIS_TEMPFAIL);
+    Assert.assertEquals(MilterPackets.SMFIS_TEMPFAIL, channel.readOutbound());
+    channel.advanceTimeBy(200, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertNull(channel.readOutbound());
+
+    channel.finishAndReleaseAll();
+  }
+
+  @Test public void testProgressKeepalive() throws Exception {
+    AsyncHandler handler = new AsyncHandler();
+    StageDeadlines deadlines = StageDeadlines.builder()
+        .progressInterval(100)
+        .build();
+    EmbeddedChannel channel = new EmbeddedChannel(new MilterChannelHandler(handler, deadlines));
+    channel.writeInbound(new MilterPacket(SMFIC_OPTNEG, new byte[] {0, 0, 0, 6, 0, 0, 1, -1, 0, 0, 0, 0}));
+    Assert.assertEquals(SMFIC_OPTNEG.code(), ((MilterPacket) channel.readOutbound()).command());
+
+    channel.writeInbound(new MilterPacket(SMFIC_EOB));
+    channel.advanceTimeBy(110, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    MilterPacket progress = channel.readOutbound();
+    Assert.assertEquals(ResponseCode.SMFIR_PROGRESS.code(), progress.command());
+
+    channel.advanceTimeBy(40, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    handler.context.sendPacket(MilterPacket.builder().command(ResponseCode.SMFIR_ADDHEADER).payload(new byte[] {'X', 0, 'y', 0}).build());
+    Assert.assertEquals(ResponseCode.SMFIR_ADDHEADER.code(), ((MilterPacket) channel.readOutbound()).command());
+
+    channel.advanceTimeBy(70, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertNull(channel.readOutbound());
+
+    channel.advanceTimeBy(40, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    progress = channel.readOutbound();
+    Assert.assertEquals(ResponseCode.SMFIR_PROGRESS.code(), progress.command());
+
+    handler.context.sendPacket(MilterPackets.SMFIS_CONTINUE);
+    Assert.assertEquals(MilterPackets.SMFIS_CONTINUE, channel.readOutbound());
+    channel.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    Assert.assertNull(channel.readOutbound());
+
+    channel.finishAndReleaseAll();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidFallback() {
+    StageDeadlines.builder().fallback(MilterPackets.SMFIS_REJECT);
+  }
+}
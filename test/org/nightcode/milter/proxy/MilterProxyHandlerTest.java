@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.proxy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.channel.local.LocalAddress;
+import org.jetbrains.annotations.Nullable;
+import org.nightcode.milter.AbstractMilterHandler;
+import org.nightcode.milter.Actions;
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.MilterException;
+import org.nightcode.milter.ProtocolFamily;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.ResponseCode;
+import org.nightcode.milter.client.BodySource;
+import org.nightcode.milter.client.Envelope;
+import org.nightcode.milter.client.Headers;
+import org.nightcode.milter.client.LocalConnectionFactory;
+import org.nightcode.milter.client.MessageResult;
+import org.nightcode.milter.client.MilterSession;
+import org.nightcode.milter.client.MilterSessionFactory;
+import org.nightcode.milter.client.MilterSessionFactoryBuilder;
+import org.nightcode.milter.client.MilterSessionPool;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.net.LocalServerFactory;
+import org.nightcode.milter.net.MilterGatewayManager;
+import org.nightcode.milter.net.MilterPacketSender;
+import org.nightcode.milter.util.MilterPackets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.nightcode.milter.CommandCode.SMFIC_EOH;
+import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
+
+public class MilterProxyHandlerTest {
+
+  private static final LocalAddress FRONT_ADDRESS  = new LocalAddress("proxy.front");
+  private static final LocalAddress FIRST_ADDRESS  = new LocalAddress("proxy.first");
+  private static final LocalAddress SECOND_ADDRESS = new LocalAddress("proxy.second");
+
+  private static class BackendHandler extends AbstractMilterHandler {
+    private final String header;
+    private final String rejectedRecipient;
+
+    BackendHandler(Actions actions, String header, @Nullable String rejectedRecipient) {
+      this(actions, ProtocolSteps.builder().build(), header, rejectedRecipient);
+    }
+
+    BackendHandler(Actions actions, ProtocolSteps protocolSteps, String header, @Nullable String rejectedRecipient) {
+      super(actions, protocolSteps);
+      this.header            = header;
+      this.rejectedRecipient = rejectedRecipient;
+    }
+
+    @Override public void envrcpt(MilterContext context, List<String> recipients) throws MilterException {
+      if (recipients.get(0).equals(rejectedRecipient)) {
+        context.sendPacket(MilterPackets.SMFIS_REJECT);
+      } else {
+        context.sendContinue();
+      }
+    }
+
+    @Override public void eoh(MilterContext context) throws MilterException {
+      messageModificationService.addHeader(context, "X-Early", "yes");
+      context.sendContinue();
+    }
+
+    @Override public void eom(MilterContext context, @Nullable byte[] bodyChunk) throws MilterException {
+      messageModificationService.addHeader(context, header, "yes");
+      context.sendContinue();
+    }
+
+    @Override public void quit(MilterContext context) {
+      // do nothing
+    }
+  }
+
+  private static final class FailingHandler extends BackendHandler {
+    private final AtomicInteger envfromCalls = new AtomicInteger();
+
+    FailingHandler(Actions actions, String header) {
+      super(actions, header, null);
+    }
+
+    @Override public void envfrom(MilterContext context, List<String> from) throws MilterException {
+      if (envfromCalls.incrementAndGet() == 1) {
+        throw new MilterException("backend failure");
+      }
+      context.sendContinue();
+    }
+  }
+
+  private static final class ListSender implements MilterPacketSender {
+    private final List<MilterPacket> packets = new CopyOnWriteArrayList<>();
+
+    @Override public void close() {
+      // do nothing
+    }
+
+    @Override public void send(MilterPacket packet) {
+      packets.add(packet);
+    }
+  }
+
+  @Test public void testMergedResult() throws Exception {
+    BackendHandler first  = new BackendHandler(Actions.builder().addHeader().build(), "X-First", null);
+    BackendHandler second = new BackendHandler(Actions.builder().addHeader().addRecipients().build(), "X-Second", "<spam@example.com>");
+
+    try (MilterGatewayManager<LocalAddress> firstManager = new MilterGatewayManager<>(new LocalServerFactory(FIRST_ADDRESS), first);
+         MilterGatewayManager<LocalAddress> secondManager = new MilterGatewayManager<>(new LocalServerFactory(SECOND_ADDRESS), second);
+         MilterSessionFactory firstFactory = sessionFactory(FIRST_ADDRESS);
+         MilterSessionFactory secondFactory = sessionFactory(SECOND_ADDRESS);
+         MilterSessionPool firstPool = MilterSessionPool.builder().sessionFactory(firstFactory).build();
+         MilterSessionPool secondPool = MilterSessionPool.builder().sessionFactory(secondFactory).build()) {
+      firstManager.bind().get(5, TimeUnit.SECONDS);
+      secondManager.bind().get(5, TimeUnit.SECONDS);
+
+      MilterProxyHandler proxy = MilterProxyHandler.builder()
+          .backend(firstPool)
+          .backend(secondPool)
+          .build();
+
+      try (MilterGatewayManager<LocalAddress> frontManager = new MilterGatewayManager<>(new LocalServerFactory(FRONT_ADDRESS), proxy);
+           MilterSessionFactory frontFactory = sessionFactory(FRONT_ADDRESS)) {
+        frontManager.bind().get(5, TimeUnit.SECONDS);
+
+        MilterSession session = frontFactory.createSession().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(Actions.builder().addHeader().addRecipients().build().bitmap(), session.milterActions().bitmap());
+
+        MessageResult result = session.process(envelope("<user@example.com>"), headers(), body()).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(ResponseCode.SMFIR_CONTINUE, result.verdictCode());
+        Assert.assertEquals(2, result.modifications().size());
+        Assert.assertEquals("X-First", headerName(result.modifications().get(0)));
+        Assert.assertEquals("X-Second", headerName(result.modifications().get(1)));
+
+        MilterPacket reply = session.envrcpt(Collections.singletonList("<spam@example.com>")).get(5, TimeUnit.SECONDS).lastPacket();
+        Assert.assertNotNull(reply);
+        Assert.assertEquals(ResponseCode.SMFIR_REJECT.code(), reply.command());
+
+        session.quit().get(5, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  @Test public void testBackendFailure() throws Exception {
+    BackendHandler first = new BackendHandler(Actions.builder().addHeader().build(), "X-First", null);
+
+    try (MilterGatewayManager<LocalAddress> firstManager = new MilterGatewayManager<>(new LocalServerFactory(FIRST_ADDRESS), first);
+         MilterSessionFactory firstFactory = sessionFactory(FIRST_ADDRESS);
+         MilterSessionFactory secondFactory = sessionFactory(SECOND_ADDRESS);
+         MilterSessionPool firstPool = MilterSessionPool.builder().sessionFactory(firstFactory).build();
+         MilterSessionPool secondPool = MilterSessionPool.builder().sessionFactory(secondFactory).build()) {
+      firstManager.bind().get(5, TimeUnit.SECONDS);
+
+      try {
+        MilterProxyHandler.builder().backend(firstPool).backend(secondPool).build();
+        Assert.fail("should fail");
+      } catch (IllegalStateException ex) {
+        Assert.assertEquals("unable to probe backend #1", ex.getMessage());
+      }
+    }
+  }
+
+  @Test public void testBackendFailureMidSession() throws Exception {
+    BackendHandler first  = new BackendHandler(Actions.builder().addHeader().build(), "X-First", "<spam@example.com>");
+    FailingHandler second = new FailingHandler(Actions.builder().addHeader().build(), "X-Second");
+
+    try (MilterGatewayManager<LocalAddress> firstManager = new MilterGatewayManager<>(new LocalServerFactory(FIRST_ADDRESS), first);
+         MilterGatewayManager<LocalAddress> secondManager = new MilterGatewayManager<>(new LocalServerFactory(SECOND_ADDRESS), second);
+         MilterSessionFactory firstFactory = sessionFactory(FIRST_ADDRESS);
+         MilterSessionFactory secondFactory = sessionFactory(SECOND_ADDRESS);
+         MilterSessionPool firstPool = MilterSessionPool.builder().sessionFactory(firstFactory).build();
+         MilterSessionPool secondPool = MilterSessionPool.builder().sessionFactory(secondFactory).build()) {
+      firstManager.bind().get(5, TimeUnit.SECONDS);
+      secondManager.bind().get(5, TimeUnit.SECONDS);
+
+      MilterProxyHandler proxy = MilterProxyHandler.builder()
+          .backend(firstPool)
+          .backend(secondPool)
+          .build();
+
+      try (MilterGatewayManager<LocalAddress> frontManager = new MilterGatewayManager<>(new LocalServerFactory(FRONT_ADDRESS), proxy);
+           MilterSessionFactory frontFactory = sessionFactory(FRONT_ADDRESS)) {
+        frontManager.bind().get(5, TimeUnit.SECONDS);
+
+        MilterSession session = frontFactory.createSession().get(5, TimeUnit.SECONDS);
+
+        MessageResult result = session.process(envelope("<user@example.com>"), headers(), body()).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(ResponseCode.SMFIR_TEMPFAIL, result.verdictCode());
+        Assert.assertTrue(result.modifications().isEmpty());
+        Assert.assertEquals(1, second.envfromCalls.get());
+
+        MilterPacket reply = session.envfrom(Collections.singletonList("<sender@example.com>")).get(5, TimeUnit.SECONDS).lastPacket();
+        Assert.assertNotNull(reply);
+        Assert.assertEquals(ResponseCode.SMFIR_CONTINUE.code(), reply.command());
+        Assert.assertEquals(1, second.envfromCalls.get());
+
+        reply = session.envrcpt(Collections.singletonList("<spam@example.com>")).get(5, TimeUnit.SECONDS).lastPacket();
+        Assert.assertNotNull(reply);
+        Assert.assertEquals(ResponseCode.SMFIR_REJECT.code(), reply.command());
+
+        session.quit().get(5, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  @Test public void testNoReplyForHeaders() throws Exception {
+    ProtocolSteps  steps = ProtocolSteps.builder().noReplyForHeaders().build();
+    BackendHandler first = new BackendHandler(Actions.builder().addHeader().build(), steps, "X-First", null);
+
+    try (MilterGatewayManager<LocalAddress> firstManager = new MilterGatewayManager<>(new LocalServerFactory(FIRST_ADDRESS), first);
+         MilterSessionFactory firstFactory = sessionFactory(FIRST_ADDRESS, steps);
+         MilterSessionPool firstPool = MilterSessionPool.builder().sessionFactory(firstFactory).build()) {
+      firstManager.bind().get(5, TimeUnit.SECONDS);
+
+      MilterProxyHandler proxy = MilterProxyHandler.builder().backend(firstPool).build();
+
+      ListSender    sender  = new ListSender();
+      MilterContext context = proxy.createContext(sender);
+      Assert.assertNotEquals(0, context.milterProtocolSteps().bitmap() & SMFIC_HEADER.noReplyBit());
+      context.setMtaProtocolSteps(steps);
+      context.setSessionProtocolSteps(steps);
+
+      context.setSessionStep(SMFIC_HEADER);
+      proxy.header(context, "Subject", "test");
+      proxy.header(context, "From", "<sender@example.com>");
+      context.setSessionStep(SMFIC_EOH);
+      proxy.eoh(context);
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (sender.packets.isEmpty() && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      Thread.sleep(100);
+      Assert.assertEquals(1, sender.packets.size());
+      Assert.assertEquals(ResponseCode.SMFIR_CONTINUE.code(), sender.packets.get(0).command());
+
+      proxy.quit(context);
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNoBackends() {
+    MilterProxyHandler.builder().build();
+  }
+
+  private static Envelope envelope(String recipient) {
+    return Envelope.builder()
+        .connect("mail.example.com", ProtocolFamily.SMFIA_INET, 25, "192.0.2.1")
+        .helo("mail.example.com")
+        .sender(Collections.singletonList("<sender@example.com>"))
+        .recipient(Collections.singletonList(recipient))
+        .build();
+  }
+
+  private static Headers headers() {
+    return Headers.builder().add("Subject", "test").build();
+  }
+
+  private static BodySource body() {
+    return BodySource.of("hello\r\n".getBytes(US_ASCII));
+  }
+
+  private static String headerName(MilterPacket packet) {
+    byte[] payload = packet.payload();
+    int    length  = 0;
+    while (payload[length] != 0) {
+      length++;
+    }
+    return new String(payload, 0, length, US_ASCII);
+  }
+
+  private static MilterSessionFactory sessionFactory(LocalAddress address) {
+    return sessionFactory(address, ProtocolSteps.builder().build());
+  }
+
+  private static MilterSessionFactory sessionFactory(LocalAddress address, ProtocolSteps protocolSteps) {
+    return MilterSessionFactoryBuilder.<LocalAddress>builder()
+        .factory(new LocalConnectionFactory(address))
+        .protocolVersion(6)
+        .actions(Actions.DEF_ACTIONS)
+        .protocolSteps(protocolSteps)
+        .create();
+  }
+}
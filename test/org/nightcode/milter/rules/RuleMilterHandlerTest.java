@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.rules;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.nightcode.milter.MilterContext;
+import org.nightcode.milter.ProtocolSteps;
+import org.nightcode.milter.codec.MilterPacket;
+import org.nightcode.milter.net.MilterPacketSender;
+import org.nightcode.milter.util.MilterPackets;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.easymock.EasyMock;
+
+import static org.nightcode.milter.CommandCode.SMFIC_CONNECT;
+import static org.nightcode.milter.CommandCode.SMFIC_EOB;
+import static org.nightcode.milter.CommandCode.SMFIC_HEADER;
+import static org.nightcode.milter.CommandCode.SMFIC_MAIL;
+import static org.nightcode.milter.CommandCode.SMFIC_RCPT;
+import static org.nightcode.milter.ResponseCode.SMFIR_ADDHEADER;
+
+public class RuleMilterHandlerTest {
+
+  private static RuleSet ruleSet() {
+    return RuleSet.builder()
+        .add(Rule.builder("blocked-network")
+            .address(Matcher.equalTo("10.0.0.66"))
+            .verdict(Verdict.REJECT)
+            .build())
+        .add(Rule.builder("spam-subject")
+            .envfrom(Matcher.domain("example.com"))
+            .header("Subject", Matcher.contains("viagra", "casino"))
+            .verdict(Verdict.DISCARD)
+            .build())
+        .add(Rule.builder("postmaster")
+            .envrcpt(Matcher.equalTo("postmaster@example.org"))
+            .verdict(Verdict.ACCEPT)
+            .build())
+        .add(Rule.builder("tag-partner")
+            .envfrom(Matcher.domain("partner.org"))
+            .addHeader("X-Partner", "yes")
+            .build())
+        .build();
+  }
+
+  @Test public void testProtocolSteps() {
+    RuleSet ruleSet = ruleSet();
+
+    int bitmap = ruleSet.protocolSteps().bitmap();
+    Assert.assertEquals(0, bitmap & ProtocolSteps.NO_CONNECT);
+    Assert.assertEquals(ProtocolSteps.NO_HELO, bitmap & ProtocolSteps.NO_HELO);
+    Assert.assertEquals(0, bitmap & ProtocolSteps.NO_MAIL_FROM);
+    Assert.assertEquals(0, bitmap & ProtocolSteps.NO_HEADERS);
+    Assert.assertEquals(ProtocolSteps.NO_BODY, bitmap & ProtocolSteps.NO_BODY);
+    Assert.assertEquals(ProtocolSteps.NO_EOH, bitmap & ProtocolSteps.NO_EOH);
+
+    RuleSet heloOnly = RuleSet.builder()
+        .add(Rule.builder("helo").helo(Matcher.equalTo("localhost")).verdict(Verdict.REJECT).build())
+        .build();
+    int heloBitmap = heloOnly.protocolSteps().bitmap();
+    Assert.assertEquals(0, heloBitmap & ProtocolSteps.NO_HELO);
+    Assert.assertEquals(ProtocolSteps.NO_CONNECT | ProtocolSteps.NO_MAIL_FROM | ProtocolSteps.NO_RECIPIENTS
+        | ProtocolSteps.NO_HEADERS, heloBitmap & (ProtocolSteps.NO_CONNECT | ProtocolSteps.NO_MAIL_FROM
+        | ProtocolSteps.NO_RECIPIENTS | ProtocolSteps.NO_HEADERS));
+    Assert.assertEquals(0, heloOnly.actions().bitmap());
+    Assert.assertNotEquals(0, ruleSet.actions().bitmap());
+  }
+
+  @Test public void testRules() throws Exception {
+    MilterPacketSender senderMock = EasyMock.mock(MilterPacketSender.class);
+
+    RuleMilterHandler handler = new RuleMilterHandler(ruleSet());
+    MilterContext     context = handler.createContext(senderMock);
+    context.setSessionProtocolSteps(ProtocolSteps.builder().build());
+
+    senderMock.send(MilterPackets.SMFIS_CONTINUE);
+    EasyMock.expectLastCall().times(3);
+    senderMock.send(MilterPackets.SMFIS_DISCARD);
+    EasyMock.expectLastCall().once();
+    senderMock.send(MilterPackets.SMFIS_CONTINUE);
+    EasyMock.expectLastCall().times(2);
+    senderMock.send(MilterPackets.SMFIS_ACCEPT);
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(senderMock);
+
+    context.setSessionStep(SMFIC_CONNECT);
+    handler.connect(context, "mx.example.net", 4, 25, new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 25));
+
+    context.setSessionStep(SMFIC_MAIL);
+    handler.envfrom(context, Arrays.asList("<user@mail.Example.COM>", "SIZE=100"));
+
+    context.setSessionStep(SMFIC_HEADER);
+    handler.header(context, "From", "user@mail.example.com");
+    handler.header(context, "subject", "cheap VIAGRA");
+
+    handler.abort(context, null);
+
+    context.setSessionStep(SMFIC_MAIL);
+    handler.envfrom(context, Collections.singletonList("<other@example.net>"));
+    context.setSessionStep(SMFIC_HEADER);
+    handler.header(context, "Subject", "cheap viagra");
+    context.setSessionStep(SMFIC_RCPT);
+    handler.envrcpt(context, Collections.singletonList("<postmaster@example.org>"));
+
+    EasyMock.verify(senderMock);
+  }
+
+  @Test public void testRejectAddress() throws Exception {
+    MilterPacketSender senderMock = EasyMock.mock(MilterPacketSender.class);
+
+    RuleMilterHandler handler = new RuleMilterHandler(ruleSet());
+    MilterContext     context = handler.createContext(senderMock);
+    context.setSessionProtocolSteps(ProtocolSteps.builder().build());
+
+    senderMock.send(MilterPackets.SMFIS_REJECT);
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(senderMock);
+
+    context.setSessionStep(SMFIC_CONNECT);
+    handler.connect(context, "[10.0.0.66]", 4, 25, new InetSocketAddress(InetAddress.getByName("10.0.0.66"), 25));
+
+    EasyMock.verify(senderMock);
+  }
+
+  @Test public void testAddHeader() throws Exception {
+    MilterPacketSender senderMock = EasyMock.mock(MilterPacketSender.class);
+
+    RuleMilterHandler handler = new RuleMilterHandler(ruleSet());
+    MilterContext     context = handler.createContext(senderMock);
+    context.setSessionProtocolSteps(ProtocolSteps.builder().build());
+
+    senderMock.send(MilterPackets.SMFIS_CONTINUE);
+    EasyMock.expectLastCall().once();
+    senderMock.send(EasyMock.anyObject());
+    EasyMock.expectLastCall().andAnswer(() -> {
+      MilterPacket packet = (MilterPacket) EasyMock.getCurrentArguments()[0];
+      Assert.assertEquals(SMFIR_ADDHEADER.code(), packet.command());
+      return null;
+    }).once();
+    senderMock.send(MilterPackets.SMFIS_CONTINUE);
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(senderMock);
+
+    context.setSessionStep(SMFIC_MAIL);
+    handler.envfrom(context, Collections.singletonList("<news@partner.org>"));
+    context.setSessionStep(SMFIC_EOB);
+    handler.eom(context, null);
+
+    EasyMock.verify(senderMock);
+  }
+}
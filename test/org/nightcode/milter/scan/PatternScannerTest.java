@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.milter.scan;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PatternScannerTest {
+
+  @Test public void testMatchesNaiveSearch() {
+    Random random = new Random(7);
+    PatternSet.Builder builder = PatternSet.builder();
+    List<String> patterns = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      String pattern = randomString(random, 1 + random.nextInt(6));
+      patterns.add(pattern);
+      builder.add(pattern);
+    }
+    PatternSet set = builder.build();
+
+    String text = randomString(random, 5000);
+    List<String> expected = naive(patterns, text);
+
+    byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+    for (int chunkSize : new int[] {1, 7, 4096, bytes.length}) {
+      PatternScanner scanner = new PatternScanner(set);
+      List<String> actual = new ArrayList<>();
+      for (int i = 0; i < bytes.length; i += chunkSize) {
+        scanner.scan(bytes, i, Math.min(chunkSize, bytes.length - i), (index, end) -> actual.add(index + "@" + end));
+      }
+      actual.sort(null);
+      Assert.assertEquals("chunk size " + chunkSize, expected, actual);
+    }
+  }
+
+  @Test public void testIgnoreCase() {
+    PatternSet.Builder builder = PatternSet.builder().ignoreCase();
+    int viagra = builder.add("ViAgRa");
+    int url    = builder.add("http://example.org/");
+    PatternSet set = builder.build();
+
+    List<String> hits = new ArrayList<>();
+    PatternScanner scanner = new PatternScanner(set);
+    scanner.scan("buy VIAGRA at HTTP://Example.ORG/", (index, end) -> hits.add(index + "@" + end));
+
+    Assert.assertEquals(2, hits.size());
+    Assert.assertEquals(viagra + "@10", hits.get(0));
+    Assert.assertEquals(url + "@33", hits.get(1));
+  }
+
+  @Test public void testUtf8Text() {
+    PatternSet.Builder builder = PatternSet.builder();
+    builder.add("привет");
+    builder.add("😀");
+    PatternSet set = builder.build();
+
+    List<Integer> hits = new ArrayList<>();
+    PatternScanner scanner = new PatternScanner(set);
+    scanner.scan("Ну, привет 😀", (index, end) -> hits.add(index));
+
+    byte[] bytes = "при".getBytes(StandardCharsets.UTF_8);
+    scanner.scan(bytes, 0, bytes.length, (index, end) -> hits.add(index));
+
+    Assert.assertEquals(2, hits.size());
+    Assert.assertEquals(set.size(), 2);
+    Assert.assertEquals(12, set.patternLength(0));
+  }
+
+  @Test public void testReload() throws Exception {
+    PatternSet.Builder first = PatternSet.builder();
+    first.add("first");
+    ReloadablePatternSet patternSet = new ReloadablePatternSet(first.build());
+
+    PatternScanner scanner = new PatternScanner(patternSet);
+
+    PatternSet.Builder second = PatternSet.builder();
+    second.add("second");
+    patternSet.reload(second, Runnable::run).get(500, TimeUnit.MILLISECONDS);
+
+    List<Integer> hits = new ArrayList<>();
+    scanner.scan("first second", (index, end) -> hits.add(index));
+    Assert.assertEquals(1, hits.size());
+    Assert.assertEquals("first", scanner.patternSet().pattern(hits.get(0)));
+
+    scanner.reset();
+    hits.clear();
+    scanner.scan("first second", (index, end) -> hits.add(index));
+    Assert.assertEquals(1, hits.size());
+    Assert.assertEquals("second", scanner.patternSet().pattern(hits.get(0)));
+  }
+
+  private static String randomString(Random random, int length) {
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append((char) ('a' + random.nextInt(3)));
+    }
+    return builder.toString();
+  }
+
+  private static List<String> naive(List<String> patterns, String text) {
+    List<String> hits = new ArrayList<>();
+    for (int index = 0; index < patterns.size(); index++) {
+      String pattern = patterns.get(index);
+      int from = 0;
+      int found;
+      while ((found = text.indexOf(pattern, from)) >= 0) {
+        hits.add(index + "@" + (found + pattern.length()));
+        from = found + 1;
+      }
+    }
+    hits.sort(null);
+    return hits;
+  }
+}
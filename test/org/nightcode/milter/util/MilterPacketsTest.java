@@ -48,6 +48,7 @@ public class MilterPacketsTest {
   
   @Test public void testGetLengthSafe() {
     Assert.assertEquals(0, MilterPackets.getLengthSafe(null));
+    Assert.assertEquals(7, MilterPackets.getLengthSafe("b\u00fccher"));
   }
 
   @Test public void testSafeCopy() {